@@ -0,0 +1,81 @@
+package com.ltsllc.miranda;
+
+import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import org.asynchttpclient.Param;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Things that several of the benchmarks need
+ *
+ * <P>
+ * The benchmarks don't start a Miranda, so the classes that look at the properties would find nothing there.
+ * setupProperties puts in just enough for the logging classes to work with files in a scratch directory.
+ * </P>
+ */
+public class BenchmarkSupport {
+    /**
+     * Install a set of properties that points the logfiles at a directory
+     *
+     * @param directory Where the logfiles should go.
+     */
+    public static void setupProperties(File directory) {
+        PropertiesHolder properties = new PropertiesHolder();
+        properties.setProperty(Miranda.PROPERTY_EVENTS_FILE, new File(directory, "events.log").toString());
+        properties.setProperty(Miranda.PROPERTY_MESSAGE_LOG, new File(directory, "messages.log").toString());
+        properties.setProperty(Miranda.PROPERTY_OWNER_FILE, new File(directory, "owners.log").toString());
+        properties.setProperty(Miranda.PROPERTY_CACHE_LOAD_LIMIT, Miranda.PROPERTY_DEFAULT_CACHE_LOAD_LIMIT);
+
+        //
+        // keep compaction from running in the middle of a measurement
+        //
+        properties.setProperty(Miranda.PROPERTY_COMPACTION_TIME, Long.toString(Long.MAX_VALUE / 2));
+
+        Miranda.setProperties(properties);
+    }
+
+    /**
+     * Create a message that looks like one a client would send
+     *
+     * @param contentsSize How many bytes of contents the message should have.
+     * @return The message.
+     */
+    public static Message createMessage(int contentsSize) {
+        Message message = new Message();
+        message.setMessageID(UUID.randomUUID());
+        message.setOwner(UUID.randomUUID());
+        message.setDeliveryURL("http://localhost:8080/deliver");
+        message.setStatusURL("http://localhost:8080/status");
+
+        List<Param> paramList = new ArrayList<>();
+        paramList.add(new Param("one", "a"));
+        paramList.add(new Param("two", "b"));
+        message.setParamList(paramList);
+
+        byte[] contents = new byte[contentsSize];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        message.setContents(contents);
+
+        return message;
+    }
+
+    /**
+     * Delete a directory and everything in it
+     */
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,41 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.miranda.message.MessageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deciding what kind of message another node sent us
+ *
+ * <P>
+ * determineMessageType is called for every frame a node receives and works by trying each prefix in turn, so the
+ * cost depends on how far down the list the message is.  The inputs cover the top, the middle and the bottom of the
+ * list as well as something it won't recognize.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeBenchmark {
+    @Param({"DEAD NODE", "HEART BEAT", "MESSAGE CREATED", "SYNCHRONIZE", "DIVIDE UP MESSAGES", "GARBAGE"})
+    public String prefix;
+
+    protected Node node;
+    protected String input;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        node = new Node(UUID.randomUUID(), "localhost", 2020, null);
+        input = prefix + " " + UUID.randomUUID();
+    }
+
+    @Benchmark
+    public MessageType determineMessageType() {
+        return node.determineMessageType(input);
+    }
+}
@@ -0,0 +1,79 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.message.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the ways of appending a message to a logfile
+ *
+ * <P>
+ * The "legacy" mode is what LoggingCache.add used to do: open a FileWriter, write the line and close it again.
+ * The other modes are the AppendWriter durabilities.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendWriterBenchmark {
+    @Param({"legacy", "sync", "group", "buffered"})
+    public String mode;
+
+    protected File file;
+    protected AppendWriter writer;
+    protected String line;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("append", ".log");
+
+        Message message = new Message();
+        message.setMessageID(UUID.randomUUID());
+        message.setOwner(UUID.randomUUID());
+        message.setDeliveryURL("http://localhost:8080/deliver");
+        message.setStatusURL("http://localhost:8080/status");
+        message.setContents(new byte[256]);
+        line = message.longToString();
+
+        if (!mode.equals("legacy")) {
+            writer = new AppendWriter(file, AppendWriter.Durability.valueOf(mode), 10, 100);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+
+        file.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        if (writer != null) {
+            return writer.append(line);
+        }
+
+        long location = file.length();
+        FileWriter fileWriter = new FileWriter(file, true);
+        BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
+        try {
+            bufferedWriter.write(line);
+            bufferedWriter.newLine();
+        } finally {
+            bufferedWriter.close();
+        }
+
+        return location;
+    }
+}
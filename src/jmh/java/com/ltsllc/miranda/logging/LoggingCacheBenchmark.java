@@ -0,0 +1,119 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.LtsllcException;
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.BenchmarkSupport;
+import com.ltsllc.miranda.message.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The LoggingCache operations that every new message and every delivery goes through
+ *
+ * <P>
+ * The cache is filled with numberOfMessages messages before each iteration.  get looks up messages that are in
+ * memory; getEvicted moves a message to disk and then looks it up, so it has to be read back from the logfile.
+ * migrate measures moving half the cache to disk, so every message is put back in memory before each invocation.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingCacheBenchmark {
+    public static final int CONTENTS_SIZE = 1024;
+
+    @Param({"1000", "10000"})
+    public int numberOfMessages;
+
+    protected File directory;
+    protected LoggingCache loggingCache;
+    protected List<Message> messages;
+    protected int next;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        directory = Files.createTempDirectory("cache").toFile();
+        BenchmarkSupport.setupProperties(directory);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        fill();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        loggingCache.clear();
+        loggingCache.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        BenchmarkSupport.delete(directory);
+    }
+
+    protected void fill() throws IOException {
+        ImprovedFile logfile = new ImprovedFile(new File(directory, "messages.log"));
+        loggingCache = new LoggingCache(logfile, Integer.MAX_VALUE);
+        messages = new ArrayList<>(numberOfMessages);
+        for (int i = 0; i < numberOfMessages; i++) {
+            Message message = BenchmarkSupport.createMessage(CONTENTS_SIZE);
+            loggingCache.add(message);
+            messages.add(message);
+        }
+        next = 0;
+    }
+
+    protected UUID nextUuid() {
+        UUID uuid = messages.get(next).getMessageID();
+        next = (next + 1) % messages.size();
+        return uuid;
+    }
+
+    @Benchmark
+    public void add() throws IOException {
+        loggingCache.add(BenchmarkSupport.createMessage(CONTENTS_SIZE));
+    }
+
+    @Benchmark
+    public Message get() throws LtsllcException, IOException {
+        return loggingCache.get(nextUuid());
+    }
+
+    @Benchmark
+    public Message getEvicted() throws LtsllcException, IOException {
+        UUID uuid = nextUuid();
+        if (loggingCache.isInMemory(uuid)) {
+            loggingCache.moveMessageToDisk(loggingCache.get(uuid));
+        }
+
+        return loggingCache.get(uuid);
+    }
+
+    @State(Scope.Thread)
+    public static class Migrate {
+        @Setup(Level.Invocation)
+        public void setup(LoggingCacheBenchmark benchmark) {
+            for (Message message : benchmark.messages) {
+                benchmark.loggingCache.forceInMemory(message);
+            }
+            benchmark.loggingCache.setCurrentLoad(benchmark.messages.size() * CONTENTS_SIZE);
+        }
+    }
+
+    @Benchmark
+    public int migrate(Migrate migrate) {
+        loggingCache.migrateLeastReferencedMessagesToDisk(loggingCache.getCurrentLoad() / 2);
+        return loggingCache.getCurrentLoad();
+    }
+}
@@ -0,0 +1,44 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.BenchmarkSupport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording the owner of a message
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingMapBenchmark {
+    protected File directory;
+    protected LoggingMap loggingMap;
+    protected UUID owner;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("map").toFile();
+        BenchmarkSupport.setupProperties(directory);
+        loggingMap = new LoggingMap(new File(directory, "owners.log"));
+        owner = UUID.randomUUID();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        loggingMap.close();
+        BenchmarkSupport.delete(directory);
+    }
+
+    @Benchmark
+    public void add() throws IOException {
+        loggingMap.add(UUID.randomUUID(), owner);
+    }
+}
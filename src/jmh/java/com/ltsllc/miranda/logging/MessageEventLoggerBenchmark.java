@@ -0,0 +1,66 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.BenchmarkSupport;
+import com.ltsllc.miranda.message.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording message events
+ *
+ * <P>
+ * The logger is cleared before each iteration so the results show what an event costs with a given number of events
+ * already recorded rather than growing without bound over the run.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageEventLoggerBenchmark {
+    @Param({"0", "1000"})
+    public int existingEvents;
+
+    protected File directory;
+    protected MessageEventLogger messageEventLogger;
+    protected Message message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("events").toFile();
+        BenchmarkSupport.setupProperties(directory);
+        messageEventLogger = new MessageEventLogger(new ImprovedFile(new File(directory, "events.log")));
+        message = BenchmarkSupport.createMessage(16);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        messageEventLogger.getLog().clear();
+        messageEventLogger.getMap().clear();
+        for (int i = 0; i < existingEvents; i++) {
+            messageEventLogger.getLog().add(new MessageEvent(message.getMessageID(), MessageEventType.added));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(directory);
+    }
+
+    @Benchmark
+    public void added() {
+        messageEventLogger.added(message);
+    }
+
+    @Benchmark
+    public void delivered() {
+        messageEventLogger.delivered(message);
+    }
+}
@@ -0,0 +1,57 @@
+package com.ltsllc.miranda.message;
+
+import com.ltsllc.miranda.BenchmarkSupport;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a message into its long format and back
+ *
+ * <P>
+ * This is what every logfile write, every logfile read and every message sent to another node costs.  The binary
+ * codec is measured alongside it so the two formats can be compared on the same message.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"16", "1024", "65536"})
+    public int contentsSize;
+
+    protected Message message;
+    protected String longFormat;
+    protected byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        message = BenchmarkSupport.createMessage(contentsSize);
+        longFormat = message.longToString();
+        encoded = MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public String longToString() {
+        return message.longToString();
+    }
+
+    @Benchmark
+    public Message readLongFormat() {
+        return Message.readLongFormat(longFormat);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message decode() {
+        return MessageCodec.decode(ByteBuffer.wrap(encoded));
+    }
+}
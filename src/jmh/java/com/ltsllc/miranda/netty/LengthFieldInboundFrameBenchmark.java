@@ -0,0 +1,65 @@
+package com.ltsllc.miranda.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting what comes in from another node into frames
+ *
+ * <P>
+ * The same as NullTerminatedInboundFrameBenchmark, but with the length prefixed frames that nodes switch to at
+ * START.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LengthFieldInboundFrameBenchmark {
+    @Param({"1", "16", "256"})
+    public int framesPerBuffer;
+
+    protected EmbeddedChannel channel;
+    protected byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        channel = new EmbeddedChannel(new LengthFieldInboundFrame());
+
+        ByteBuf byteBuf = Unpooled.buffer();
+        for (int i = 0; i < framesPerBuffer; i++) {
+            byte[] frame = ("MESSAGE DELIVERED " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+            byteBuf.writeInt(frame.length);
+            byteBuf.writeBytes(frame);
+        }
+
+        bytes = new byte[byteBuf.readableBytes()];
+        byteBuf.readBytes(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int decode() {
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(bytes);
+        channel.writeInbound(byteBuf);
+
+        int count = 0;
+        while (channel.readInbound() != null) {
+            count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,64 @@
+package com.ltsllc.miranda.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting what comes in from another node into frames
+ *
+ * <P>
+ * Each invocation pushes one buffer holding framesPerBuffer null terminated frames through the decoder and drains
+ * what comes out the other end.
+ * </P>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NullTerminatedInboundFrameBenchmark {
+    @Param({"1", "16", "256"})
+    public int framesPerBuffer;
+
+    protected EmbeddedChannel channel;
+    protected byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        channel = new EmbeddedChannel(new NullTerminatedInboundFrame());
+
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < framesPerBuffer; i++) {
+            stringBuilder.append("MESSAGE DELIVERED ");
+            stringBuilder.append(UUID.randomUUID());
+            stringBuilder.append('\u0000');
+        }
+
+        bytes = stringBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int decode() {
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(bytes);
+        channel.writeInbound(byteBuf);
+
+        int count = 0;
+        while (channel.readInbound() != null) {
+            count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,463 @@
+package com.ltsllc.miranda;
+
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import com.ltsllc.miranda.properties.PropertyChangedEvent;
+import com.ltsllc.miranda.properties.PropertyListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.ClientStats;
+import org.asynchttpclient.DefaultAsyncHttpClientConfig;
+import org.asynchttpclient.Dsl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HTTP client that the system uses to deliver messages
+ *
+ * <P>
+ * Creating an AsyncHttpClient is expensive: each one has its own event loop, its own connection pool and its own
+ * set of threads.  This class holds the one client that deliver, sendDelivered, sendFailed and
+ * notifyClientOfDelivery share so that connections to a host are kept alive and reused between deliveries.
+ * </P>
+ * <P>
+ * The client is created the first time someone asks for it, using the delivery properties
+ * (PROPERTY_DELIVERY_MAX_CONNECTIONS, PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST and
+ * PROPERTY_DELIVERY_IDLE_TIMEOUT).  Changing one of those properties closes the current client; the next caller
+ * gets a new one that uses the new values.  Requests that lease the client (leaseClient) keep the old one open
+ * until the last of them gives it back, so a property change doesn't abort deliveries or status POSTs that are
+ * already under way.
+ * </P>
+ * <P>
+ * This class also owns the executor that processes the responses to deliveries and the limit on how many
+ * deliveries can be outstanding at once.  The executor is either a fixed pool of
+ * PROPERTY_DELIVERY_CALLBACK_THREADS threads or, if PROPERTY_DELIVERY_VIRTUAL_THREADS is true, one virtual thread
+ * per response.  A delivery takes a permit from getOutstanding before it is sent and gives it back when its
+ * response has been processed, so that the work queued for the executor can never exceed
+ * PROPERTY_DELIVERY_MAX_OUTSTANDING.
+ * </P>
+ */
+public class DeliveryClient implements PropertyListener {
+    public static final Logger logger = LogManager.getLogger(DeliveryClient.class);
+
+    /**
+     * The one instance of this class
+     */
+    protected static DeliveryClient instance = new DeliveryClient();
+
+    public static DeliveryClient getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(DeliveryClient instance) {
+        DeliveryClient.instance = instance;
+    }
+
+    /**
+     * Essentially an equivalent to an initialize method for static variables
+     */
+    public static void defineStatics() {
+        if (instance != null) {
+            instance.close();
+        }
+
+        instance = new DeliveryClient();
+    }
+
+    /**
+     * The shared client, null if the client has not been started or has been closed
+     */
+    protected AsyncHttpClient client = null;
+
+    /**
+     * The number of leases on each client that has any, including clients that have been retired
+     */
+    protected Map<AsyncHttpClient, Integer> leases = new HashMap<>();
+
+    /**
+     * Clients that were replaced while they were leased, each is closed when its last lease is given back
+     */
+    protected Set<AsyncHttpClient> retired = new HashSet<>();
+
+    /**
+     * The executor that processes responses, null if it hasn't been started or has been shut down
+     */
+    protected ExecutorService callbackExecutor = null;
+
+    /**
+     * The permits for outstanding deliveries
+     */
+    protected Semaphore outstanding = null;
+
+    /**
+     * Have we registered for property changes?
+     */
+    protected boolean listening = false;
+
+    public synchronized boolean isStarted() {
+        return client != null && !client.isClosed();
+    }
+
+    /**
+     * Return the shared client, starting it if necessary
+     *
+     * @return The shared client.
+     */
+    public synchronized AsyncHttpClient getClient() {
+        if (!isStarted()) {
+            start();
+        }
+
+        return client;
+    }
+
+    /**
+     * Return the shared client for a request that will give it back with returnClient when it is done
+     *
+     * <P>
+     * If a connection property changes while the lease is held, the client is replaced for new callers but isn't
+     * closed until every lease on it has been given back.
+     * </P>
+     *
+     * @return The shared client.
+     */
+    public synchronized AsyncHttpClient leaseClient() {
+        AsyncHttpClient current = getClient();
+        leases.merge(current, 1, Integer::sum);
+
+        return current;
+    }
+
+    /**
+     * Give back a client from leaseClient
+     *
+     * @param leased The client.
+     */
+    public synchronized void returnClient(AsyncHttpClient leased) {
+        Integer count = leases.get(leased);
+        if (count == null) {
+            logger.warn("returnClient called on a client that isn't leased");
+            return;
+        }
+
+        if (count > 1) {
+            leases.put(leased, count - 1);
+            return;
+        }
+
+        leases.remove(leased);
+        if (retired.remove(leased)) {
+            closeClient(leased);
+        }
+    }
+
+    public synchronized int getRetiredCount() {
+        return retired.size();
+    }
+
+    /**
+     * Stop handing out the current client, closing it now if nobody has it leased or when the last lease is given
+     * back otherwise
+     */
+    protected synchronized void retireClient() {
+        if (client == null) {
+            return;
+        }
+
+        if (leases.containsKey(client)) {
+            retired.add(client);
+        } else {
+            closeClient(client);
+        }
+
+        client = null;
+    }
+
+    protected static void closeClient(AsyncHttpClient asyncHttpClient) {
+        try {
+            asyncHttpClient.close();
+        } catch (IOException e) {
+            logger.warn("exception closing delivery client", e);
+        }
+    }
+
+    /**
+     * Start the client
+     *
+     * <P>
+     * If the client is already running then this method does nothing.
+     * </P>
+     */
+    public synchronized void start() {
+        logger.debug("entering start");
+
+        if (isStarted()) {
+            logger.debug("leaving start --- already started");
+            return;
+        }
+
+        DefaultAsyncHttpClientConfig.Builder builder = Dsl.config()
+                .setKeepAlive(true)
+                .setMaxConnections(getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS,
+                        Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS))
+                .setMaxConnectionsPerHost(getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST,
+                        Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS_PER_HOST))
+                .setPooledConnectionIdleTimeout(Duration.ofMillis(getIntProperty(Miranda.PROPERTY_DELIVERY_IDLE_TIMEOUT,
+                        Miranda.PROPERTY_DEFAULT_DELIVERY_IDLE_TIMEOUT)));
+
+        client = Dsl.asyncHttpClient(builder);
+        listen();
+
+        logger.debug("leaving start");
+    }
+
+    /**
+     * Close the client
+     *
+     * <P>
+     * This releases the pooled connections and the threads that the client uses.  Calling getClient after this
+     * will start a new client.  Retired clients are closed too, even if they are still leased, since this is how
+     * the system shuts delivery down.
+     * </P>
+     */
+    public synchronized void close() {
+        logger.debug("entering close");
+
+        if (client != null) {
+            closeClient(client);
+            client = null;
+        }
+
+        for (AsyncHttpClient asyncHttpClient : retired) {
+            closeClient(asyncHttpClient);
+        }
+
+        retired.clear();
+        leases.clear();
+
+        shutdownCallbackExecutor();
+
+        logger.debug("leaving close");
+    }
+
+    /**
+     * Return the executor that processes the responses to deliveries, starting it if necessary
+     *
+     * @return The executor for delivery callbacks.
+     */
+    public synchronized Executor getCallbackExecutor() {
+        if (callbackExecutor == null || callbackExecutor.isShutdown()) {
+            callbackExecutor = createCallbackExecutor();
+            listen();
+        }
+
+        return callbackExecutor;
+    }
+
+    /**
+     * Run the callback for a delivery's response
+     *
+     * <P>
+     * The executor is looked up when the response arrives, not when the delivery was sent, so a close or a change
+     * to a callback property while the delivery is outstanding doesn't leave the callback on an executor that has
+     * been shut down.  If the executor rejects the callback anyway (it was shut down in between, or its queue is
+     * full) the callback runs on the calling thread, which is one of the HTTP client's IO threads.  That is slow
+     * for the client but the callback always runs, so the message always leaves inflight and its permit is always
+     * given back.
+     * </P>
+     *
+     * @param callback The callback.
+     */
+    public void executeCallback(Runnable callback) {
+        try {
+            getCallbackExecutor().execute(callback);
+        } catch (RejectedExecutionException e) {
+            logger.warn("delivery callback rejected, running it on the calling thread");
+            callback.run();
+        }
+    }
+
+    /**
+     * Return the permits for outstanding deliveries
+     *
+     * <P>
+     * A caller should tryAcquire a permit before sending a message and release that same semaphore when it is
+     * done with the response.
+     * </P>
+     *
+     * @return The semaphore that limits the number of outstanding deliveries.
+     */
+    public synchronized Semaphore getOutstanding() {
+        if (outstanding == null) {
+            outstanding = new Semaphore(getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_OUTSTANDING,
+                    Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_OUTSTANDING));
+            listen();
+        }
+
+        return outstanding;
+    }
+
+    /**
+     * Create the executor for delivery callbacks
+     *
+     * <P>
+     * The fixed pool has a queue that is as large as PROPERTY_DELIVERY_MAX_OUTSTANDING.  That is only a guide: the
+     * property can change while deliveries that hold permits from the old semaphore are still outstanding.  A task
+     * that doesn't fit is rejected, and executeCallback runs it on the calling thread.
+     * </P>
+     */
+    protected ExecutorService createCallbackExecutor() {
+        if (getBooleanProperty(Miranda.PROPERTY_DELIVERY_VIRTUAL_THREADS,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_VIRTUAL_THREADS)) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("delivery-", 0).factory());
+        }
+
+        int threads = getIntProperty(Miranda.PROPERTY_DELIVERY_CALLBACK_THREADS,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_CALLBACK_THREADS);
+        int queueSize = getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_OUTSTANDING,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_OUTSTANDING);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "delivery-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Shut down the callback executor
+     *
+     * <P>
+     * Callbacks that have already been submitted are allowed to finish.  Responses that arrive later go to the
+     * next executor, see executeCallback.
+     * </P>
+     */
+    protected synchronized void shutdownCallbackExecutor() {
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdown();
+            callbackExecutor = null;
+        }
+    }
+
+    /**
+     * Return the statistics for the connection pool
+     *
+     * <P>
+     * The statistics include the total, active and idle connections both overall and for each host.
+     * </P>
+     *
+     * @return The statistics for the connection pool or null if the client isn't running.
+     */
+    public synchronized ClientStats getClientStats() {
+        if (!isStarted()) {
+            return null;
+        }
+
+        return client.getClientStats();
+    }
+
+    public synchronized long getTotalConnectionCount() {
+        ClientStats clientStats = getClientStats();
+        return clientStats == null ? 0 : clientStats.getTotalConnectionCount();
+    }
+
+    public synchronized long getActiveConnectionCount() {
+        ClientStats clientStats = getClientStats();
+        return clientStats == null ? 0 : clientStats.getTotalActiveConnectionCount();
+    }
+
+    public synchronized long getIdleConnectionCount() {
+        ClientStats clientStats = getClientStats();
+        return clientStats == null ? 0 : clientStats.getTotalIdleConnectionCount();
+    }
+
+    /**
+     * Get an int property or the default value if the properties haven't been loaded
+     */
+    protected int getIntProperty(String name, String defaultValue) {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(name) == null) {
+            return Integer.parseInt(defaultValue);
+        }
+
+        return properties.getIntProperty(name);
+    }
+
+    /**
+     * Get a boolean property or the default value if the properties haven't been loaded
+     */
+    protected boolean getBooleanProperty(String name, String defaultValue) {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(name) == null) {
+            return Boolean.parseBoolean(defaultValue);
+        }
+
+        return properties.getBooleanProperty(name);
+    }
+
+    protected void listen() {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (listening || properties == null) {
+            return;
+        }
+
+        properties.listen(this, com.ltsllc.miranda.properties.Properties.deliveryCallbackThreads);
+        properties.listen(this, com.ltsllc.miranda.properties.Properties.deliveryIdleTimeout);
+        properties.listen(this, com.ltsllc.miranda.properties.Properties.deliveryMaxConnections);
+        properties.listen(this, com.ltsllc.miranda.properties.Properties.deliveryMaxConnectionsPerHost);
+        properties.listen(this, com.ltsllc.miranda.properties.Properties.deliveryMaxOutstanding);
+        properties.listen(this, com.ltsllc.miranda.properties.Properties.deliveryVirtualThreads);
+        listening = true;
+    }
+
+    /**
+     * A property that we use changed
+     *
+     * <P>
+     * Changing a connection property retires the client so the next caller gets one with the new value; see
+     * leaseClient.  Changing
+     * a callback property shuts down the executor (letting callbacks that were already submitted finish) and/or
+     * replaces the permits.  Deliveries that hold a permit from the old semaphore release it back to that
+     * semaphore.
+     * </P>
+     *
+     * @param propertyChangedEvent The property that changed.
+     */
+    @Override
+    public synchronized void propertyChanged(PropertyChangedEvent propertyChangedEvent) {
+        logger.debug("delivery property changed: " + propertyChangedEvent.getProperty());
+
+        switch (propertyChangedEvent.getProperty()) {
+            case deliveryCallbackThreads:
+            case deliveryVirtualThreads: {
+                shutdownCallbackExecutor();
+                break;
+            }
+
+            case deliveryMaxOutstanding: {
+                shutdownCallbackExecutor();
+                outstanding = null;
+                break;
+            }
+
+            default: {
+                retireClient();
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.ltsllc.miranda;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * The messages that are waiting to be delivered, ordered by when they should next be sent
+ *
+ * <P>
+ * Every message the system is responsible for has an entry here keyed on its nextSend time.  Rather than walking
+ * every message to find the few that are due, the main loop asks for the messages whose time has come (takeDue)
+ * and then waits (awaitDue) until the earliest remaining entry comes due or until someone schedules a message that
+ * is due sooner than that.
+ * </P>
+ * <P>
+ * A message has at most one entry: scheduling a message that is already scheduled moves it.  Scheduling,
+ * cancelling and taking a due message are all O(log n).
+ * </P>
+ */
+public class DeliveryScheduler {
+    public static final Logger logger = LogManager.getLogger(DeliveryScheduler.class);
+
+    /**
+     * The time to message UUIDs map; the "queue" part of the scheduler
+     */
+    protected TreeMap<Long, Set<UUID>> timeToMessages = new TreeMap<>();
+
+    /**
+     * A map from a message's UUID to the time it is scheduled for
+     */
+    protected Map<UUID, Long> messageToTime = new HashMap<>();
+
+    /**
+     * Has someone called wakeUp since the last time awaitDue returned?
+     */
+    protected boolean awakened = false;
+
+    /**
+     * Schedule a message to be sent at a time
+     *
+     * <P>
+     * If the message is already scheduled then it is moved to the new time.
+     * </P>
+     *
+     * @param uuid The UUID of the message.
+     * @param time When the message should be sent, in milliseconds since the epoch.
+     */
+    public synchronized void schedule(UUID uuid, long time) {
+        Long earliest = timeToMessages.isEmpty() ? null : timeToMessages.firstKey();
+
+        removeEntry(uuid);
+        messageToTime.put(uuid, time);
+        timeToMessages.computeIfAbsent(time, k -> new HashSet<>()).add(uuid);
+
+        if (earliest == null || time < earliest) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Remove a message from the schedule
+     *
+     * @param uuid The UUID of the message to remove.  If the message isn't scheduled this method does nothing.
+     */
+    public synchronized void cancel(UUID uuid) {
+        removeEntry(uuid);
+    }
+
+    public synchronized boolean isScheduled(UUID uuid) {
+        return messageToTime.containsKey(uuid);
+    }
+
+    /**
+     * When is a message scheduled for?
+     *
+     * @param uuid The message.
+     * @return The time the message is scheduled for, or -1 if the message isn't scheduled.
+     */
+    public synchronized long getScheduledTime(UUID uuid) {
+        Long time = messageToTime.get(uuid);
+        return time == null ? -1 : time;
+    }
+
+    public synchronized int size() {
+        return messageToTime.size();
+    }
+
+    public synchronized void clear() {
+        timeToMessages.clear();
+        messageToTime.clear();
+    }
+
+    /**
+     * Remove and return the messages that are due
+     *
+     * <P>
+     * The messages are returned in the order they came due.  A returned message is no longer scheduled; the caller
+     * is expected to schedule it again if it still needs to be sent.
+     * </P>
+     *
+     * @param now   The current time.
+     * @param limit The maximum number of messages to return.
+     * @return The messages whose time is at or before now.
+     */
+    public synchronized List<UUID> takeDue(long now, int limit) {
+        List<UUID> list = new ArrayList<>();
+
+        while (list.size() < limit && !timeToMessages.isEmpty() && timeToMessages.firstKey() <= now) {
+            Map.Entry<Long, Set<UUID>> entry = timeToMessages.firstEntry();
+            Iterator<UUID> iterator = entry.getValue().iterator();
+
+            while (list.size() < limit && iterator.hasNext()) {
+                UUID uuid = iterator.next();
+                iterator.remove();
+                messageToTime.remove(uuid);
+                list.add(uuid);
+            }
+
+            if (entry.getValue().isEmpty()) {
+                timeToMessages.remove(entry.getKey());
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Wait until a message is due
+     *
+     * <P>
+     * This method returns when the earliest scheduled message comes due, when a message is scheduled for an
+     * earlier time than any other message, when someone calls wakeUp or when maxWait milliseconds have passed;
+     * whichever comes first.
+     * </P>
+     *
+     * @param maxWait The longest time, in milliseconds, to wait.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized void awaitDue(long maxWait) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWait;
+
+        while (!awakened) {
+            long now = System.currentTimeMillis();
+            long until = deadline;
+            if (!timeToMessages.isEmpty() && timeToMessages.firstKey() < until) {
+                until = timeToMessages.firstKey();
+            }
+
+            if (until <= now) {
+                break;
+            }
+
+            wait(until - now);
+        }
+
+        awakened = false;
+    }
+
+    /**
+     * Cause awaitDue to return
+     */
+    public synchronized void wakeUp() {
+        awakened = true;
+        notifyAll();
+    }
+
+    protected void removeEntry(UUID uuid) {
+        Long time = messageToTime.remove(uuid);
+        if (time == null) {
+            return;
+        }
+
+        Set<UUID> set = timeToMessages.get(time);
+        if (set != null) {
+            set.remove(uuid);
+            if (set.isEmpty()) {
+                timeToMessages.remove(time);
+            }
+        }
+    }
+}
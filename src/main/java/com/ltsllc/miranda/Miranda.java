@@ -8,8 +8,9 @@ import com.ltsllc.miranda.cluster.Cluster;
 import com.ltsllc.miranda.cluster.ClusterThread;
 import com.ltsllc.miranda.cluster.Node;
 import com.ltsllc.miranda.cluster.SpecNode;
-import com.ltsllc.miranda.logging.LoggingCache;
 import com.ltsllc.miranda.logging.MessageLog;
+import com.ltsllc.miranda.logging.SegmentedLog;
+import com.ltsllc.miranda.message.ContentStore;
 import com.ltsllc.miranda.message.Message;
 import com.ltsllc.miranda.netty.ChannelMonitor;
 import com.ltsllc.miranda.netty.HeartBeatHandler;
@@ -41,12 +42,13 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
-import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 
 public class Miranda implements PropertyListener {
@@ -91,6 +93,69 @@ public class Miranda implements PropertyListener {
      * The port number to use if it's not set.  The default is 2020
      */
     public static final String PROPERTY_DEFAULT_CLUSTER_PORT = "2020";
+
+    /**
+     * How many of the other nodes must have been sent a new message before newMessage returns: none, one, quorum or
+     * all.  See Broadcast.AckMode.
+     */
+    public static final String PROPERTY_CLUSTER_ACK_MODE = com.ltsllc.miranda.properties.Properties.clusterAckMode.toString();
+
+    /**
+     * The default ack mode is all, which waits for the writes to every node like the cluster always has
+     */
+    public static final String PROPERTY_DEFAULT_CLUSTER_ACK_MODE = "all";
+
+    /**
+     * How long, in milliseconds, to wait for the other nodes before giving up on a broadcast
+     */
+    public static final String PROPERTY_CLUSTER_ACK_TIMEOUT = com.ltsllc.miranda.properties.Properties.clusterAckTimeout.toString();
+
+    /**
+     * The default ack timeout is 1000 milliseconds (1 second)
+     */
+    public static final String PROPERTY_DEFAULT_CLUSTER_ACK_TIMEOUT = "1000";
+
+    /**
+     * Whether to offer binary message records to other nodes that use length prefixed frames.  See MessageRecord.
+     */
+    public static final String PROPERTY_CLUSTER_BINARY_RECORDS = com.ltsllc.miranda.properties.Properties.clusterBinaryRecords.toString();
+
+    /**
+     * By default binary records are offered, and used with any node that offers them back
+     */
+    public static final String PROPERTY_DEFAULT_CLUSTER_BINARY_RECORDS = "true";
+
+    /**
+     * Whether to send a digest of the messages and owners this node already has when it synchronizes, so that the
+     * other node only sends the parts that differ.  See RangeDigest.
+     */
+    public static final String PROPERTY_CLUSTER_DIGEST = com.ltsllc.miranda.properties.Properties.clusterDigest.toString();
+
+    /**
+     * By default a digest is sent
+     */
+    public static final String PROPERTY_DEFAULT_CLUSTER_DIGEST = "true";
+
+    /**
+     * How many bytes can be written to another node before they are flushed whether or not a flush was asked for.
+     * See FlushConsolidator.
+     */
+    public static final String PROPERTY_CLUSTER_FLUSH_BYTES = com.ltsllc.miranda.properties.Properties.clusterFlushBytes.toString();
+
+    /**
+     * The default is 65536 bytes (64K)
+     */
+    public static final String PROPERTY_DEFAULT_CLUSTER_FLUSH_BYTES = "65536";
+
+    /**
+     * Whether to offer length prefixed frames to other nodes at START.  See Framing.
+     */
+    public static final String PROPERTY_CLUSTER_LENGTH_FRAMES = com.ltsllc.miranda.properties.Properties.clusterLengthFrames.toString();
+
+    /**
+     * By default length prefixed frames are offered, and used with any node that offers them back
+     */
+    public static final String PROPERTY_DEFAULT_CLUSTER_LENGTH_FRAMES = "true";
     public static final String PROPERTY_PROPERTIES_FILE = "properties";
 
     /**
@@ -142,6 +207,26 @@ public class Miranda implements PropertyListener {
      */
     public static final String PROPERTY_DEFAULT_CACHE_LOAD_LIMIT = "104856700"; // 100 megabytes
 
+    /**
+     * Where the message cache keeps the contents of the messages it has in memory: heap or direct
+     */
+    public static final String PROPERTY_CACHE_CONTENT_STORE = com.ltsllc.miranda.properties.Properties.cacheContentStore.toString();
+
+    /**
+     * The default is to leave the contents on the heap
+     */
+    public static final String PROPERTY_DEFAULT_CACHE_CONTENT_STORE = "heap";
+
+    /**
+     * How the message cache decides which messages to leave on disk: lfu or slru
+     */
+    public static final String PROPERTY_CACHE_EVICTION_POLICY = com.ltsllc.miranda.properties.Properties.cacheEvictionPolicy.toString();
+
+    /**
+     * The default is least frequently used
+     */
+    public static final String PROPERTY_DEFAULT_CACHE_EVICTION_POLICY = "lfu";
+
     /**
      * The name of the owner file
      */
@@ -230,6 +315,17 @@ public class Miranda implements PropertyListener {
      */
     public static final String PROPERTY_DEFAULT_COMPACTION_TIME = "100000";
 
+    /**
+     * The percentage of the records in a sealed segment of the message log that must be dead before a compaction
+     * copies the segment
+     */
+    public static final String PROPERTY_COMPACTION_DEAD_PERCENT = com.ltsllc.miranda.properties.Properties.compactionDeadPercent.toString();
+
+    /**
+     * The default value for PROPERTY_COMPACTION_DEAD_PERCENT is half of the records
+     */
+    public static final String PROPERTY_DEFAULT_COMPACTION_DEAD_PERCENT = "50";
+
     /**
      * The amount of time to wait in between heart beat start messages
      */
@@ -305,6 +401,36 @@ public class Miranda implements PropertyListener {
      */
     public static final String PROPERTY_DEFAULT_EVENTS_FILE = "events.log";
 
+    /**
+     * How many message events are kept in memory, this is also how often the events file is checkpointed
+     */
+    public static final String PROPERTY_EVENTS_RETAINED = com.ltsllc.miranda.properties.Properties.eventsRetained.toString();
+
+    /**
+     * The default is to keep the last 10,000 events
+     */
+    public static final String PROPERTY_DEFAULT_EVENTS_RETAINED = "10000";
+
+    /**
+     * How much of the stack a message event captures: off, caller or full
+     */
+    public static final String PROPERTY_EVENT_ORIGIN = com.ltsllc.miranda.properties.Properties.eventOrigin.toString();
+
+    /**
+     * The default is to capture just the caller
+     */
+    public static final String PROPERTY_DEFAULT_EVENT_ORIGIN = "caller";
+
+    /**
+     * When PROPERTY_EVENT_ORIGIN is caller, how many frames to capture
+     */
+    public static final String PROPERTY_EVENT_ORIGIN_FRAMES = com.ltsllc.miranda.properties.Properties.eventOriginFrames.toString();
+
+    /**
+     * The default is 3 frames
+     */
+    public static final String PROPERTY_DEFAULT_EVENT_ORIGIN_FRAMES = "3";
+
     /**
      * How long to wait between attempts
      */
@@ -327,6 +453,129 @@ public class Miranda implements PropertyListener {
      * The default maximum wait between sends
      */
     public static final String PROPERTY_DEFAULT_MAX_WAIT_BETWEEN_SENDS = "3600000"; // 1 hour
+
+    /**
+     * The maximum number of connections, to all hosts, that the system will have open for delivering messages
+     */
+    public static final String PROPERTY_DELIVERY_MAX_CONNECTIONS = com.ltsllc.miranda.properties.Properties.deliveryMaxConnections.toString();
+
+    /**
+     * The default maximum number of delivery connections is 200
+     */
+    public static final String PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS = "200";
+
+    /**
+     * The maximum number of connections to any one host that the system will have open for delivering messages
+     */
+    public static final String PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST = com.ltsllc.miranda.properties.Properties.deliveryMaxConnectionsPerHost.toString();
+
+    /**
+     * The default maximum number of delivery connections to a host is 20
+     */
+    public static final String PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS_PER_HOST = "20";
+
+    /**
+     * How long (in milliseconds) an idle delivery connection is kept in the pool before it is closed
+     */
+    public static final String PROPERTY_DELIVERY_IDLE_TIMEOUT = com.ltsllc.miranda.properties.Properties.deliveryIdleTimeout.toString();
+
+    /**
+     * The default idle timeout for delivery connections is 1 minute
+     */
+    public static final String PROPERTY_DEFAULT_DELIVERY_IDLE_TIMEOUT = "60000";
+
+    /**
+     * The number of threads that process the responses to deliveries
+     */
+    public static final String PROPERTY_DELIVERY_CALLBACK_THREADS = com.ltsllc.miranda.properties.Properties.deliveryCallbackThreads.toString();
+
+    /**
+     * The default number of delivery callback threads is 8
+     */
+    public static final String PROPERTY_DEFAULT_DELIVERY_CALLBACK_THREADS = "8";
+
+    /**
+     * The maximum number of deliveries that can be waiting for a response or for a callback thread.  When this many
+     * deliveries are outstanding, deliver leaves new messages alone until some of the outstanding deliveries finish.
+     */
+    public static final String PROPERTY_DELIVERY_MAX_OUTSTANDING = com.ltsllc.miranda.properties.Properties.deliveryMaxOutstanding.toString();
+
+    /**
+     * The default maximum number of outstanding deliveries is 1000
+     */
+    public static final String PROPERTY_DEFAULT_DELIVERY_MAX_OUTSTANDING = "1000";
+
+    /**
+     * Whether to process the responses to deliveries on virtual threads instead of a fixed pool
+     */
+    public static final String PROPERTY_DELIVERY_VIRTUAL_THREADS = com.ltsllc.miranda.properties.Properties.deliveryVirtualThreads.toString();
+
+    /**
+     * The default is to use a fixed pool
+     */
+    public static final String PROPERTY_DEFAULT_DELIVERY_VIRTUAL_THREADS = "false";
+
+    /**
+     * How hard the logfiles try to make a record durable: sync (force every record to disk), group (force records
+     * together every so often) or buffered (leave it to the operating system).
+     */
+    public static final String PROPERTY_LOG_DURABILITY = com.ltsllc.miranda.properties.Properties.logDurability.toString();
+
+    /**
+     * The default durability is buffered, which is what the system has always done
+     */
+    public static final String PROPERTY_DEFAULT_LOG_DURABILITY = "buffered";
+
+    /**
+     * For group durability, the longest time (in milliseconds) a record can wait to be forced to disk
+     */
+    public static final String PROPERTY_LOG_GROUP_COMMIT_PERIOD = com.ltsllc.miranda.properties.Properties.logGroupCommitPeriod.toString();
+
+    /**
+     * The default group commit period is 10 milliseconds
+     */
+    public static final String PROPERTY_DEFAULT_LOG_GROUP_COMMIT_PERIOD = "10";
+
+    /**
+     * For group durability, the number of records that can wait before they are forced to disk
+     */
+    public static final String PROPERTY_LOG_GROUP_COMMIT_RECORDS = com.ltsllc.miranda.properties.Properties.logGroupCommitRecords.toString();
+
+    /**
+     * The default number of records in a group commit is 100
+     */
+    public static final String PROPERTY_DEFAULT_LOG_GROUP_COMMIT_RECORDS = "100";
+
+    /**
+     * The size (in bytes) at which the message log starts a new segment
+     */
+    public static final String PROPERTY_MESSAGE_LOG_SEGMENT_SIZE = com.ltsllc.miranda.properties.Properties.messageLogSegmentSize.toString();
+
+    /**
+     * The default segment size is 64MB
+     */
+    public static final String PROPERTY_DEFAULT_MESSAGE_LOG_SEGMENT_SIZE = "67108864";
+
+    /**
+     * How many threads to use to read the message log when recovering, 0 means one per processor
+     */
+    public static final String PROPERTY_RECOVERY_THREADS = com.ltsllc.miranda.properties.Properties.recoveryThreads.toString();
+
+    /**
+     * The default is one thread per processor
+     */
+    public static final String PROPERTY_DEFAULT_RECOVERY_THREADS = "0";
+
+    /**
+     * The format that messages are written to the logfiles in: text or binary
+     */
+    public static final String PROPERTY_MESSAGE_LOG_FORMAT = com.ltsllc.miranda.properties.Properties.messageLogFormat.toString();
+
+    /**
+     * The default is text, which is what older versions of the system can read
+     */
+    public static final String PROPERTY_DEFAULT_MESSAGE_LOG_FORMAT = "text";
+
     /**
      * The logger to use
      */
@@ -337,6 +586,21 @@ public class Miranda implements PropertyListener {
      */
     public static final Logger event = LogManager.getLogger("events");
 
+    /**
+     * The maximum number of due messages that mainLoop will try to deliver in one pass
+     */
+    public static final int MAX_DUE_PER_PASS = 1000;
+
+    /**
+     * How long (in milliseconds) to wait before trying again with a due message that could not be sent
+     */
+    public static final long RETRY_DELAY = 100;
+
+    /**
+     * The longest time (in milliseconds) awaitWork will wait
+     */
+    public static final long MAX_IDLE_WAIT = 1000;
+
     /**
      * The one instance of miranda that exists.
      */
@@ -365,8 +629,12 @@ public class Miranda implements PropertyListener {
 
     /**
      * The set of messages that we have sent out, but haven't heard back from
+     *
+     * <P>
+     * The main loop adds to this while the delivery callbacks remove from it, so it is a concurrent set.
+     * </P>
      */
-    protected Set<Message> inflight = new HashSet<>();
+    protected Set<Message> inflight = ConcurrentHashMap.newKeySet();
 
     protected String myHost;
 
@@ -489,19 +757,6 @@ public class Miranda implements PropertyListener {
         Miranda.rld = rld;
     }
 
-    /**
-     * where we should pick up
-     */
-    protected int restartIndex = 0;
-
-    public int getRestartIndex() {
-        return restartIndex;
-    }
-
-    public void setRestartIndex(int restartIndex) {
-        this.restartIndex = restartIndex;
-    }
-
     /**
      * The constructor for the class
      *
@@ -607,52 +862,79 @@ public class Miranda implements PropertyListener {
      *
      * <p>
      * <PRE>
-     * if this iteration is divisible by 1,000
-     * run garbage collection
-     * copy all the messages we are responsible for delivering
+     * take the messages that are due from the delivery schedule
      * foreach of those messages
      * try and deliver the message
-     * if the message was deliver
-     * remove it from the collection of messages that we are responsible for
-     * if the message has a status URL
-     * send a notification that we delivered it
+     * if we still have the message
+     * put it back on the schedule for when it should next be sent
      * </PRE>
      *
      * <p>
+     * Messages that are delivered are removed from the schedule when they are removed from the message log.  The
+     * caller should call awaitWork between calls to this method rather than spinning.
+     * </P>
+     * <p>
      * Note that this is only used if keepRunning is true.
      * </P>
      *
-     * @throws IOException If there is a problem copying the messages
+     * @throws IOException If there is a problem loading a message
      */
     public synchronized void mainLoop() throws IOException, LtsllcException {
         if (keepRunning) {
-            /*
-             * Try and deliver some messages
-             */
-            if (MessageLog.getInstance().outOfBounds(restartIndex)) {
-                restartIndex = 0;
+            MessageLog messageLog = MessageLog.getInstance();
+            DeliveryScheduler scheduler = messageLog.getScheduler();
+            if (scheduler == null) {
+                return;
             }
 
-            LoggingCache.CopyMessagesResult temp = MessageLog.getInstance().copyMessages(
-                Miranda.properties.getIntProperty(Miranda.PROPERTY_CACHE_LOAD_LIMIT),
-                restartIndex
-            );
-
-            if (temp != null) {
-                for (Message message : temp.list) {
-                    try {
-                        deliver(message);
-                    } catch (LtsllcException e) {
-                        logger.warn("caught LtsllcExceeption during deliver", e);
-                    }
+            long now = System.currentTimeMillis();
+            for (UUID uuid : scheduler.takeDue(now, MAX_DUE_PER_PASS)) {
+                Message message = messageLog.get(uuid);
+                if (message == null) {
+                    continue;
+                }
+
+                try {
+                    deliver(message);
+                } catch (LtsllcException e) {
+                    logger.warn("caught LtsllcExceeption during deliver", e);
                 }
 
-                restartIndex = temp.restartIndex;
+                //
+                // if the message was not sent (because there are too many deliveries outstanding for example) then
+                // try again a little later
+                //
+                if (messageLog.getCache().contains(uuid) && !scheduler.isScheduled(uuid)) {
+                    scheduler.schedule(uuid, Math.max(message.getNextSend(), now + RETRY_DELAY));
+                }
             }
+
             iterations++;
         }
     }
 
+    /**
+     * Wait until there is a message to deliver
+     *
+     * <p>
+     * This method returns when a message comes due, when a message that is due sooner than the others is added,
+     * when stop is called or after MAX_IDLE_WAIT milliseconds.
+     * </P>
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void awaitWork() throws InterruptedException {
+        MessageLog messageLog = MessageLog.getInstance();
+        if (messageLog == null || messageLog.getScheduler() == null) {
+            synchronized (this) {
+                wait(MAX_IDLE_WAIT);
+            }
+            return;
+        }
+
+        messageLog.getScheduler().awaitDue(MAX_IDLE_WAIT);
+    }
+
     /**
      * setup miscellaneous properties
      */
@@ -890,6 +1172,8 @@ public class Miranda implements PropertyListener {
 
         properties.setIfNull(PROPERTY_MESSAGE_PORT, PROPERTY_DEFAULT_MESSAGE_PORT);
         properties.setIfNull(PROPERTY_CACHE_LOAD_LIMIT, PROPERTY_DEFAULT_CACHE_LOAD_LIMIT);
+        properties.setIfNull(PROPERTY_CACHE_CONTENT_STORE, PROPERTY_DEFAULT_CACHE_CONTENT_STORE);
+        properties.setIfNull(PROPERTY_CACHE_EVICTION_POLICY, PROPERTY_DEFAULT_CACHE_EVICTION_POLICY);
         properties.setIfNull(PROPERTY_BID_TIMEOUT, PROPERTY_DEFAULT_BID_TIMEOUT);
         properties.setIfNull(PROPERTY_OWNER_FILE, PROPERTY_DEFAULT_OWNER_FILE);
         properties.setIfNull(PROPERTY_PROPERTIES_FILE, PROPERTY_DEFAULT_PROPERTIES_FILE);
@@ -897,7 +1181,14 @@ public class Miranda implements PropertyListener {
         properties.setIfNull(PROPERTY_CLUSTER_RETRY, PROPERTY_DEFAULT_CLUSTER_RETRY);
         properties.setIfNull(PROPERTY_MESSAGE_LOG, PROPERTY_DEFAULT_MESSAGE_LOG);
         properties.setIfNull(PROPERTY_CLUSTER_PORT, PROPERTY_DEFAULT_CLUSTER_PORT);
+        properties.setIfNull(PROPERTY_CLUSTER_ACK_MODE, PROPERTY_DEFAULT_CLUSTER_ACK_MODE);
+        properties.setIfNull(PROPERTY_CLUSTER_ACK_TIMEOUT, PROPERTY_DEFAULT_CLUSTER_ACK_TIMEOUT);
+        properties.setIfNull(PROPERTY_CLUSTER_BINARY_RECORDS, PROPERTY_DEFAULT_CLUSTER_BINARY_RECORDS);
+        properties.setIfNull(PROPERTY_CLUSTER_DIGEST, PROPERTY_DEFAULT_CLUSTER_DIGEST);
+        properties.setIfNull(PROPERTY_CLUSTER_FLUSH_BYTES, PROPERTY_DEFAULT_CLUSTER_FLUSH_BYTES);
+        properties.setIfNull(PROPERTY_CLUSTER_LENGTH_FRAMES, PROPERTY_DEFAULT_CLUSTER_LENGTH_FRAMES);
         properties.setIfNull(PROPERTY_COMPACTION_TIME, PROPERTY_DEFAULT_COMPACTION_TIME);
+        properties.setIfNull(PROPERTY_COMPACTION_DEAD_PERCENT, PROPERTY_DEFAULT_COMPACTION_DEAD_PERCENT);
         properties.setIfNull(PROPERTY_HEART_BEAT_INTERVAL, PROPERTY_DEFAULT_HEART_BEAT_INTERVAL);
         properties.setIfNull(PROPERTY_START_TIMEOUT, PROPERTY_DEFAULT_START_TIMEOUT);
         properties.setIfNull(PROPERTY_HEART_BEAT_TIMEOUT, PROPERTY_DEFAULT_HEART_BEAT_TIMEOUT);
@@ -906,9 +1197,24 @@ public class Miranda implements PropertyListener {
         properties.setIfNull(PROPERTY_SCAN_PERIOD, PROPERTY_DEFAULT_SCAN_PERIOD);
         properties.setIfNull(PROPERTY_USE_HEARTBEATS, PROPERTY_DEFAULT_USE_HEART_BEATS);
         properties.setIfNull(PROPERTY_EVENTS_FILE, PROPERTY_DEFAULT_EVENTS_FILE);
+        properties.setIfNull(PROPERTY_EVENTS_RETAINED, PROPERTY_DEFAULT_EVENTS_RETAINED);
+        properties.setIfNull(PROPERTY_EVENT_ORIGIN, PROPERTY_DEFAULT_EVENT_ORIGIN);
+        properties.setIfNull(PROPERTY_EVENT_ORIGIN_FRAMES, PROPERTY_DEFAULT_EVENT_ORIGIN_FRAMES);
         properties.setIfNull(PROPERTY_WAIT_BETWEEN_SENDS, PROPERTY_DEFAULT_WAIT_BETWEEN_SENDS);
         properties.setIfNull(PROPERTY_MAX_WAIT_BETWEEN_SENDS, PROPERTY_DEFAULT_WAIT_BETWEEN_SENDS);
         properties.setIfNull(PROPERTY_LEADER_TIMEOUT, PROPERTY_DEFAULT_LEADER_TIMEOUT);
+        properties.setIfNull(PROPERTY_DELIVERY_MAX_CONNECTIONS, PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS);
+        properties.setIfNull(PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST, PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS_PER_HOST);
+        properties.setIfNull(PROPERTY_DELIVERY_IDLE_TIMEOUT, PROPERTY_DEFAULT_DELIVERY_IDLE_TIMEOUT);
+        properties.setIfNull(PROPERTY_DELIVERY_CALLBACK_THREADS, PROPERTY_DEFAULT_DELIVERY_CALLBACK_THREADS);
+        properties.setIfNull(PROPERTY_DELIVERY_MAX_OUTSTANDING, PROPERTY_DEFAULT_DELIVERY_MAX_OUTSTANDING);
+        properties.setIfNull(PROPERTY_DELIVERY_VIRTUAL_THREADS, PROPERTY_DEFAULT_DELIVERY_VIRTUAL_THREADS);
+        properties.setIfNull(PROPERTY_LOG_DURABILITY, PROPERTY_DEFAULT_LOG_DURABILITY);
+        properties.setIfNull(PROPERTY_LOG_GROUP_COMMIT_PERIOD, PROPERTY_DEFAULT_LOG_GROUP_COMMIT_PERIOD);
+        properties.setIfNull(PROPERTY_LOG_GROUP_COMMIT_RECORDS, PROPERTY_DEFAULT_LOG_GROUP_COMMIT_RECORDS);
+        properties.setIfNull(PROPERTY_MESSAGE_LOG_SEGMENT_SIZE, PROPERTY_DEFAULT_MESSAGE_LOG_SEGMENT_SIZE);
+        properties.setIfNull(PROPERTY_RECOVERY_THREADS, PROPERTY_DEFAULT_RECOVERY_THREADS);
+        properties.setIfNull(PROPERTY_MESSAGE_LOG_FORMAT, PROPERTY_DEFAULT_MESSAGE_LOG_FORMAT);
     }
 
     /**
@@ -931,15 +1237,25 @@ public class Miranda implements PropertyListener {
 
     public void stop() {
         keepRunning = false;
+
+        MessageLog messageLog = MessageLog.getInstance();
+        if (messageLog != null && messageLog.getScheduler() != null) {
+            messageLog.getScheduler().wakeUp();
+        }
     }
 
     /**
      * Release all the ports we are bound to
      *
+     * <p>
+     * This also closes the pooled connections that the system uses to deliver messages.
+     * </P>
+     *
      * @throws Exception If there is a problem stopping Jetty.
      */
     public void releasePorts() throws Exception {
         releaseMessagePort();
+        DeliveryClient.getInstance().close();
     }
 
     /**
@@ -974,6 +1290,12 @@ public class Miranda implements PropertyListener {
      * <p>
      * This method tries to deliver a message asynchronously.  On success it calls successfulMessage to signal that this
      * is so.
+     * </P>
+     * <p>
+     * The response is processed on the DeliveryClient callback executor.  Each delivery holds one of the
+     * DeliveryClient's outstanding permits until its response has been processed; if there are no permits left the
+     * message is left alone and will be tried on a later pass.
+     * </P>
      *
      * @param message The message to
      * @throws IOException If there is a problem with the manipulation of the logfiles
@@ -1005,6 +1327,17 @@ public class Miranda implements PropertyListener {
             logger.debug("leaving deliver --- message is already in flight");
             return;
         }
+
+        //
+        // don't send if there are already too many deliveries waiting on a response; the message is still due so
+        // we will try it again on a later pass
+        //
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        Semaphore outstanding = deliveryClient.getOutstanding();
+        if (!outstanding.tryAcquire()) {
+            logger.debug("leaving deliver --- too many outstanding deliveries");
+            return;
+        }
         inflight.add(message);
 
         double exponent = message.getNumberOfSends() + 1;
@@ -1018,10 +1351,15 @@ public class Miranda implements PropertyListener {
         long nextSend = currentTime + waitTime;
         message.setNextSend(nextSend);
         message.setNumberOfSends(message.getNumberOfSends() + 1);
+        MessageLog.getInstance().getScheduler().schedule(message.getMessageID(), nextSend);
 
         MessageLog.getInstance().deliveryAttempted(message);
 
-        AsyncHttpClient httpClient = Dsl.asyncHttpClient();
+        //
+        // the lease keeps the client open until the response has been processed, even if a connection property
+        // changes in the meantime
+        //
+        AsyncHttpClient httpClient = deliveryClient.leaseClient();
 
         List<Param> paramList = new ArrayList<>();
 
@@ -1030,14 +1368,32 @@ public class Miranda implements PropertyListener {
             paramList.add (actual);
         }
 
+        //
+        // if the contents are in the cache's content store, send them from there rather than copying them; the
+        // reference keeps them from being reused until the delivery is over
+        //
+        ContentStore.Handle body = message.retainContents();
+
         Request request = null;
         try {
-            request = httpClient.preparePost(message.getDeliveryURL())
-                    .setFormParams(paramList)
-                    .setBody(message.getContents())
-                    .build();
+            BoundRequestBuilder builder = httpClient.preparePost(message.getDeliveryURL())
+                    .setFormParams(paramList);
+            if (body == null) {
+                //
+                // if the cache evicted the message after we got it and dropped its contents, this reads them again
+                //
+                builder.setBody(message.getContents());
+            } else {
+                builder.setBody(body.buffer());
+            }
+            request = builder.build();
         } catch (Exception e) {
+            if (body != null) {
+                body.release();
+            }
+            deliveryClient.returnClient(httpClient);
             inflight.remove(message);
+            outstanding.release();
             throw new LtsllcException(e);
         }
         message.setLastSend(System.currentTimeMillis());
@@ -1058,33 +1414,38 @@ public class Miranda implements PropertyListener {
                         MessageLog.getInstance().remove(message.getMessageID());
                         MessageLog.getInstance().getMessageEventLogger().delivered(message);
 
-                        sendDelivered(message, response, httpClient);
+                        sendDelivered(message, response);
                     } else {
                         MessageLog.getInstance().getMessageEventLogger().attemptFailed(message);
 
-                        sendFailed(message, response, httpClient);
+                        sendFailed(message, response);
                     }
 
-                } catch (InterruptedException | ExecutionException | IOException e) {
+                } catch (ExecutionException e) {
+                    logger.warn("exception delivering " + message.getMessageID(), e.getCause());
+                    inflight.remove(message);
+                    MessageLog.getInstance().getMessageEventLogger().attemptFailed(message);
+                } catch (InterruptedException | IOException e) {
                     throw new RuntimeException(e);
+                } finally {
+                    if (body != null) {
+                        body.release();
+                    }
+                    deliveryClient.returnClient(httpClient);
+                    outstanding.release();
                 }
             }
         };
 
-        Executor executor = new Executor() {
-            @Override
-            public void execute(@NotNull Runnable command) {
-                Thread thread = new Thread(command);
-                thread.start();
-            }
-        };
-
-        listenableFuture.addListener(callback, executor);
+        //
+        // pick the executor when the response arrives; the one we would get now may be shut down by then
+        //
+        listenableFuture.addListener(() -> deliveryClient.executeCallback(callback), Runnable::run);
 
         logger.debug("leaving deliver");
      }
 
-    public void sendFailed(Message message, Response response, AsyncHttpClient client) {
+    public void sendFailed(Message message, Response response) {
         Param param = new Param("ID", message.getMessageID().toString());
         List<Param> list = new ArrayList<>();
         list.add(param);
@@ -1096,14 +1457,10 @@ public class Miranda implements PropertyListener {
         param = new Param("STATUS", integer.toString());
         list.add(param);
 
-        Request request = client.preparePost(message.getStatusURL())
-                .setFormParams(list)
-                .build();
-
-        client.executeRequest(request);
+        sendStatus(message, list, "failed");
     }
 
-    public void sendDelivered(Message message, Response response, AsyncHttpClient client) {
+    public void sendDelivered(Message message, Response response) {
         Param param = new Param("MESSAGE_ID", message.getMessageID().toString());
         List<Param> list = new ArrayList<>();
         list.add(param);
@@ -1115,18 +1472,44 @@ public class Miranda implements PropertyListener {
         param = new Param("STATUS", integer.toString());
         list.add(param);
 
-        Request request = client.preparePost(message.getStatusURL())
-                .setFormParams(list)
-                .build();
+        sendStatus(message, list, "delivered");
+    }
 
-        ListenableFuture<Response> future = client.executeRequest(request);
-        Response rsp = null;
+    /**
+     * POST a status to the status URL of a message without waiting for the response
+     *
+     * <P>
+     * The POST leases the current delivery client and gives it back when the response comes, so that a client that
+     * is replaced in the meantime isn't closed under it.
+     * </P>
+     *
+     * @param message The message.
+     * @param params  The form parameters of the POST.
+     * @param status  What the status is, for the log.
+     */
+    protected void sendStatus(Message message, List<Param> params, String status) {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        AsyncHttpClient client = deliveryClient.leaseClient();
+
+        CompletableFuture<Response> future = null;
         try {
-            rsp = future.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+            Request request = client.preparePost(message.getStatusURL())
+                    .setFormParams(params)
+                    .build();
+            future = client.executeRequest(request).toCompletableFuture();
+        } catch (RuntimeException e) {
+            deliveryClient.returnClient(client);
+            throw e;
         }
-        rsp.getStatusCode();
+
+        future.whenComplete((rsp, throwable) -> {
+            deliveryClient.returnClient(client);
+            if (throwable != null) {
+                logger.warn("exception sending " + status + " status for " + message.getMessageID(), throwable);
+            } else {
+                logger.debug("status URL responded with " + rsp.getStatusCode());
+            }
+        });
     }
 
     /**
@@ -1163,7 +1546,8 @@ public class Miranda implements PropertyListener {
         logger.debug("entering notifyClientOfDelivery with " + message);
         event.info("delivered " + message.getMessageID());
 
-        AsyncHttpClient httpClient = Dsl.asyncHttpClient();
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        AsyncHttpClient httpClient = deliveryClient.leaseClient();
         BoundRequestBuilder
                 rb = httpClient.preparePost(message.getDeliveryURL());
         StringBuffer stringBuffer = new StringBuffer();
@@ -1171,12 +1555,24 @@ public class Miranda implements PropertyListener {
         stringBuffer.append(" ");
         stringBuffer.append(message.getMessageID());
         rb.setBody(stringBuffer.toString());
-        rb.execute(new AsyncCompletionHandler<Response>() {
-            @Override
-            public Response onCompleted(Response response) throws Exception {
-                return response;
-            }
-        });
+        try {
+            rb.execute(new AsyncCompletionHandler<Response>() {
+                @Override
+                public Response onCompleted(Response response) throws Exception {
+                    deliveryClient.returnClient(httpClient);
+                    return response;
+                }
+
+                @Override
+                public void onThrowable(Throwable throwable) {
+                    deliveryClient.returnClient(httpClient);
+                    logger.warn("exception notifying the client of delivery of " + message.getMessageID(), throwable);
+                }
+            });
+        } catch (RuntimeException e) {
+            deliveryClient.returnClient(httpClient);
+            throw e;
+        }
 
         logger.debug("leaving notifyClientOfDelivery");
     }
@@ -1292,6 +1688,8 @@ public class Miranda implements PropertyListener {
             throw new LtsllcException("failed to rename " + messagesBackup + " to " + messages);
         }
 
+        SegmentedLog.restoreBackups(messages);
+
         if (!ownersBackup.exists()) {
             throw new LtsllcException("backup file, " + ownersBackup + ", does not exist");
         }
@@ -1379,13 +1777,27 @@ public class Miranda implements PropertyListener {
         node.sendStart(true, node.getHost().equalsIgnoreCase(Miranda.getInstance().getMyHost()));
     }
 
+    /**
+     * Take ownership of a new message
+     *
+     * <P>
+     * The message is logged and then sent to the other nodes in the cluster.  This returns once as many of the
+     * other nodes have been sent the message as PROPERTY_CLUSTER_ACK_MODE calls for, or when
+     * PROPERTY_CLUSTER_ACK_TIMEOUT runs out.
+     * </P>
+     *
+     * @param message The new message.
+     * @return The UUID given to the message.
+     */
     public UUID newMessage (Message message) {
         UUID uuid = UUID.randomUUID();
 
         try {
             message.setMessageID(uuid);
             MessageLog.getInstance().add(message, myUuid);
-            Cluster.getInstance().informOfNewMessage(message);
+            if (!Cluster.getInstance().informOfNewMessage(message).join()) {
+                logger.debug("the cluster ack mode was not met for " + uuid);
+            }
         } catch (IOException | LtsllcException e) {
             throw new RuntimeException(e);
         }
@@ -36,21 +36,8 @@ public class MirandaThread extends Thread {
         while (miranda.isKeepRunning()) {
             try {
                 miranda.mainLoop();
-
-                if (miranda.getIterations() % 1000 == 0) {
-                    System.gc();
-                }
-
-                if (miranda.getIterations() % 500 == 0) {
-                    synchronized (this) {
-                        try {
-                            wait(500);
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                }
-            } catch (IOException | LtsllcException e) {
+                miranda.awaitWork();
+            } catch (IOException | LtsllcException | InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
@@ -12,6 +12,7 @@ public enum Alarms {
     COMPACTION, // time for the MessageLog to compact
     CLUSTER, // time for the Cluster to reconnect
     DEAD_NODE, // the dead node timeout
+    GROUP_COMMIT, // time for an AppendWriter to force what it has written
     HEART_BEAT, // time to send a heart beat
     HEART_BEAT_TIMEOUT, // timeout waiting for a heart beat response
     LEADER, // The period of time to wait for all nodes to respond to a leader message
@@ -0,0 +1,229 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One write to several nodes, done in parallel
+ *
+ * <P>
+ * The write is issued to every channel at once and the result is a single future that completes when enough of the
+ * writes have finished, as decided by the AckMode.  The future completes with true when the ack mode is satisfied
+ * and with false if it can no longer be satisfied, either because too many writes failed or because the timeout
+ * passed first.  It never completes exceptionally, so a caller that doesn't care can just drop it.
+ * </P>
+ * <P>
+ * A quorum is a majority of the whole cluster, counting the nodes that are down, not just of the nodes we have
+ * channels to.  If too few nodes are connected for a quorum, the message is still written to them but the future
+ * completes with false right away.
+ * </P>
+ * <P>
+ * A write counts as acknowledged when netty has written it to the node's socket.  The messages the cluster sends,
+ * like MESSAGE CREATED, have no reply, so that is the most that can be known.
+ * </P>
+ * <P>
+ * Timeouts and failed writes are counted rather than logged, see getTimeouts and getFailures.  They show up on the
+ * status page.
+ * </P>
+ */
+public class Broadcast {
+    public static final Logger logger = LogManager.getLogger(Broadcast.class);
+
+    /**
+     * How many of the writes must finish before a broadcast is done
+     */
+    public enum AckMode {
+        /**
+         * Don't wait at all
+         */
+        none,
+
+        /**
+         * Wait for any one node
+         */
+        one,
+
+        /**
+         * Wait for enough nodes that, counting this one, a majority of the cluster has the message
+         */
+        quorum,
+
+        /**
+         * Wait for every node
+         */
+        all
+    }
+
+    protected static final LongAdder timeouts = new LongAdder();
+    protected static final LongAdder failures = new LongAdder();
+
+    protected CompletableFuture<Boolean> future = new CompletableFuture<>();
+    protected int writes;
+    protected int required;
+    protected int succeeded = 0;
+    protected int failed = 0;
+
+    /**
+     * Write something to a group of channels that is the whole rest of the cluster
+     *
+     * @param channels The channels to write to.
+     * @param contents What to write.
+     * @param ackMode  How many writes to wait for.
+     * @param timeout  How long to wait, in milliseconds.
+     */
+    public Broadcast(List<Channel> channels, Object contents, AckMode ackMode, long timeout) {
+        this(channels, contents, ackMode, timeout, channels.size() + 1);
+    }
+
+    /**
+     * Write something to a group of channels
+     *
+     * @param channels    The channels to write to.
+     * @param contents    What to write.
+     * @param ackMode     How many writes to wait for.
+     * @param timeout     How long to wait, in milliseconds.
+     * @param clusterSize The number of nodes in the cluster, counting this one and the ones that aren't connected.
+     */
+    public Broadcast(List<Channel> channels, Object contents, AckMode ackMode, long timeout, int clusterSize) {
+        writes = channels.size();
+        required = required(ackMode, writes, clusterSize);
+
+        if (required == 0) {
+            future.complete(true);
+        } else if (required > writes) {
+            future.complete(false);
+        } else {
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(() -> {
+                if (future.complete(false)) {
+                    timeouts.increment();
+                }
+            });
+        }
+
+        for (Channel channel : channels) {
+            ChannelFuture channelFuture = channel.writeAndFlush(contents);
+            channelFuture.addListener(f -> finished(f.isSuccess()));
+        }
+    }
+
+    /**
+     * The number of writes that must succeed for an ack mode, when the writes go to the whole rest of the cluster
+     *
+     * @param ackMode The ack mode.
+     * @param writes  The number of writes.
+     * @return The number that must succeed.
+     */
+    public static int required(AckMode ackMode, int writes) {
+        return required(ackMode, writes, writes + 1);
+    }
+
+    /**
+     * The number of writes that must succeed for an ack mode
+     *
+     * @param ackMode     The ack mode.
+     * @param writes      The number of writes.
+     * @param clusterSize The number of nodes in the cluster, counting this one.
+     * @return The number that must succeed.  For a quorum this can be more than writes, in which case the ack mode
+     * can't be satisfied.
+     */
+    public static int required(AckMode ackMode, int writes, int clusterSize) {
+        switch (ackMode) {
+            case none:
+                return 0;
+
+            case one:
+                return Math.min(1, writes);
+
+            case quorum:
+                //
+                // a majority of the cluster is clusterSize / 2 + 1 nodes, and this node, which already has the
+                // message, is one of them
+                //
+                return clusterSize / 2;
+
+            case all:
+            default:
+                return writes;
+        }
+    }
+
+    protected synchronized void finished(boolean success) {
+        if (success) {
+            succeeded++;
+        } else {
+            failed++;
+            failures.increment();
+        }
+
+        if (succeeded >= required) {
+            future.complete(true);
+        } else if (writes - failed < required) {
+            future.complete(false);
+        }
+    }
+
+    /**
+     * The result of the broadcast
+     *
+     * @return A future that completes with true when the ack mode is satisfied, or false if it can't be.
+     */
+    public CompletableFuture<Boolean> getFuture() {
+        return future;
+    }
+
+    /**
+     * The number of broadcasts that timed out before their ack mode was satisfied
+     */
+    public static long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * The number of writes to other nodes that failed
+     */
+    public static long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Return the ack mode called for by the properties
+     *
+     * @return The value of PROPERTY_CLUSTER_ACK_MODE, or the default if the properties haven't been loaded.
+     */
+    public static AckMode getDefaultAckMode() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_CLUSTER_ACK_MODE);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_CLUSTER_ACK_MODE;
+        }
+
+        return AckMode.valueOf(value.toLowerCase());
+    }
+
+    /**
+     * Return the timeout called for by the properties
+     *
+     * @return The value of PROPERTY_CLUSTER_ACK_TIMEOUT, or the default if the properties haven't been loaded.
+     */
+    public static long getDefaultTimeout() {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(Miranda.PROPERTY_CLUSTER_ACK_TIMEOUT) == null) {
+            return Long.parseLong(Miranda.PROPERTY_DEFAULT_CLUSTER_ACK_TIMEOUT);
+        }
+
+        return properties.getLongProperty(Miranda.PROPERTY_CLUSTER_ACK_TIMEOUT);
+    }
+}
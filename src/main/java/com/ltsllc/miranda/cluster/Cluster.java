@@ -35,7 +35,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -88,11 +88,6 @@ import java.util.concurrent.TimeUnit;
  * The other nodes make no reply.
  */
 public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
-    public static final long IOD_TIMEOUT = 1000;
-    public static final TimeUnit IOD_TIMEOUT_UNITS = TimeUnit.MILLISECONDS;
-    public static final long IONM_TIMEOUT = 1000;
-    public static final TimeUnit IONM_TIMEOUT_UNITS = TimeUnit.MILLISECONDS;
-
     public static final String STRING_ENCODER = "STRING";
     public static final String HEART_BEAT = "HEARTBEAT";
     public static final String HEAT_BEAT_OUTBOUND = "HEARTBEAT_OUTBOUND";
@@ -100,6 +95,20 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
     public static final String LENGTH = "LENGTH";
     public static final String NULL_FRAME_INBOUND = "NULL_FRAME_INBOUND";
     public static final String NULL_FRAME_OUTBOUND = "NULL_FRAME_OUTBOUND";
+    public static final String LENGTH_FRAME_INBOUND = "LENGTH_FRAME_INBOUND";
+    public static final String LENGTH_FRAME_OUTBOUND = "LENGTH_FRAME_OUTBOUND";
+    public static final String FLUSH = "FLUSH";
+
+    /**
+     * When a channel to another node has this much waiting to be written it stops being writable, and a
+     * synchronization going over it waits.  See SyncStream.
+     */
+    public static final int WRITE_BUFFER_HIGH_WATER_MARK = 1024 * 1024;
+
+    /**
+     * When the channel gets down to this much waiting to be written it is writable again
+     */
+    public static final int WRITE_BUFFER_LOW_WATER_MARK = 256 * 1024;
 
     protected Node leader;
     protected int nodeCount = 0;
@@ -265,6 +274,8 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
         boot.option(ChannelOption.SO_BACKLOG, 128);
         boot.option(ChannelOption.SO_REUSEADDR, true);
         boot.option(ChannelOption.SO_KEEPALIVE, true);
+        boot.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK));
         boot.childHandler(new ChannelInitializer<Channel>() {
             public void initChannel(Channel c) {
                 ChannelPipeline cp = c.pipeline();
@@ -273,6 +284,7 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
                 //Boolean channelIsLocked = new Boolean(false);
                 //cp.addLast(HEART_BEAT, new InboundHeartBeatHandler(channelIsLocked, "server", c, l, b));
                 //cp.addLast(HEAT_BEAT_OUTBOUND, new OutboundHeartBeatHandler(channelIsLocked,"server",c, l, b));
+                cp.addLast(FLUSH, new FlushConsolidator());
                 NullTerminatedOutboundFrame ntof = new NullTerminatedOutboundFrame();
                 cp.addLast(NULL_FRAME_OUTBOUND, ntof);
                 ChannelOutboundMonitor out = new ChannelOutboundMonitor(cp.channel(), "server");
@@ -354,27 +366,22 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
     /**
      * Inform the cluster of this node receiving a new message
      *
+     * <P>
+     * The message is written to every node at once and this method does not wait for the writes.  The future it
+     * returns says when enough of them are done, according to PROPERTY_CLUSTER_ACK_MODE.
+     * </P>
+     *
      * @param message The message we received.
+     * @return A future that completes with true when the ack mode is satisfied or false if it timed out or too
+     * many writes failed.
      */
-    public void informOfNewMessage(Message message) {
+    public CompletableFuture<Boolean> informOfNewMessage(Message message) {
         logger.debug("entering informOfNewMessage with message = " + message);
-        String contents = "MESSAGE CREATED " + message.longToString();
-
-        logger.debug("POST contents = " + contents);
-        for (Node node : nodes) {
-            if (node.getChannel() == null) {
-                continue;
-            }
-            ChannelFuture channelFuture = node.getChannel().writeAndFlush(contents);
-            try {
-                if (!channelFuture.await(IONM_TIMEOUT, IONM_TIMEOUT_UNITS)) {
-                    logger.error("write timed out informing another node of new message");
-                }
-            } catch (InterruptedException e) {
-                logger.error("Interrupted during wait in informOfNewMessage", e);
-            }
-        }
+        MessageRecord contents = new MessageRecord(MessageRecord.Kind.CREATED, message);
+        Broadcast broadcast = broadcast(contents);
         logger.debug("leaving informOfNewMessage");
+
+        return broadcast.getFuture();
     }
 
 
@@ -382,29 +389,44 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
      * Tell the cluster that we delivered a message
      * <p>
      * When another node is told of a message delivery, it can free up memory it was using to record the message.
+     * The message is written to every node at once and this method does not wait for the writes.
      * </P>
      *
      * @param message The message that we delivered.
+     * @return A future that completes with true when the ack mode is satisfied or false if it timed out or too
+     * many writes failed.
      */
-    public void informOfDelivery(Message message) {
+    public CompletableFuture<Boolean> informOfDelivery(Message message) {
         logger.debug("entering informOfDelivery with message = " + message);
 
         String contents = "MESSAGE DELIVERED " + message.getMessageID();
         logger.debug("session contents = " + contents);
-        for (Node node : nodes) {
-            if (node.getChannel() == null) {
-                continue;
-            }
+        Broadcast broadcast = broadcast(contents);
 
-            ChannelFuture channelFuture = node.getChannel().writeAndFlush(contents);
-            try {
-                channelFuture.await(IOD_TIMEOUT, IOD_TIMEOUT_UNITS);
-            } catch (InterruptedException e) {
-                logger.error("Interrupted during wait for write to complete for some in informOfDelivery", e);
+        logger.debug("leaving informOfDelivery");
+        return broadcast.getFuture();
+    }
+
+    /**
+     * Write something to every node that has a channel, using the ack mode and timeout from the properties
+     *
+     * <P>
+     * The size of the cluster, for a quorum, is every other node we know of, connected or not, plus this one.
+     * </P>
+     *
+     * @param contents What to write.
+     * @return The broadcast.
+     */
+    public Broadcast broadcast(Object contents) {
+        List<Channel> channels = new ArrayList<>();
+        for (Node node : nodes) {
+            if (node.getChannel() != null) {
+                channels.add(node.getChannel());
             }
         }
 
-        logger.debug("leaving informOfDelivery");
+        return new Broadcast(channels, contents, Broadcast.getDefaultAckMode(), Broadcast.getDefaultTimeout(),
+                nodes.size() + 1);
     }
 
     /**
@@ -590,6 +612,8 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
         boot.group(new NioEventLoopGroup());
         boot.option(ChannelOption.SO_REUSEADDR, true);
         boot.option(ChannelOption.SO_KEEPALIVE, true);
+        boot.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK));
         boot.channel(NioSocketChannel.class);
         boot.handler(new ChannelInitializer<SocketChannel>() {
             public void initChannel (SocketChannel ch) {
@@ -599,6 +623,7 @@ public class Cluster implements Alarmable, PropertyListener, AutoCloseable {
                 //cp.addLast(LENGTH, new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0,4,0,4));
                 //cp.addLast("whatever", new DoNothingOutboundChannelHandler("fist"));
                 //cp.addLast("NOTHING", new DoNothingInboundChannelHandler())
+                cp.addLast(FLUSH, new FlushConsolidator());
                 NullTerminatedOutboundFrame ntof = new NullTerminatedOutboundFrame();
                 cp.addLast(NULL_FRAME_OUTBOUND, ntof);
                 ChannelOutboundMonitor out = new ChannelOutboundMonitor(cp.channel(), "client");
@@ -4,12 +4,17 @@ package com.ltsllc.miranda.cluster;
 import com.ltsllc.commons.LtsllcException;
 import com.ltsllc.commons.io.ImprovedFile;
 import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.logging.RecordReader;
 import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
 import com.ltsllc.miranda.properties.PropertiesHolder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 
@@ -60,6 +65,17 @@ public class MessageCache {
       */
     protected int currentLoad = 0;
 
+    /**
+     * The number of records in the logfile that are for removed messages, counting tombstones, since the last
+     * compaction
+     */
+    protected int deadRecords = 0;
+
+    /**
+     * remove does not compact the logfile until there are at least this many dead records
+     */
+    public static final int MINIMUM_DEAD_RECORDS = 1024;
+
 
 
     public MessageCache(ImprovedFile logfile, int loadLimit) throws LtsllcException {
@@ -160,7 +176,7 @@ public class MessageCache {
      *
      * @param uuid The UUID of the message
      * @return The message
-     * @throws IOException If the temp file is not found or if skip throws an Exception
+     * @throws IOException If the temp file is not found or if there is a problem reading it
      */
     public Message get(UUID uuid) throws IOException, LtsllcException {
         Message returnValue = null;
@@ -181,29 +197,12 @@ public class MessageCache {
             //
             // the message is offline
             //
-            FileReader fileReader = null;
-            BufferedReader bufferedReader = null;
-            try {
-                long location = uuidToLocation.get(uuid);
-                fileReader = new FileReader(logfile);
-                bufferedReader = new BufferedReader(fileReader);
-                bufferedReader.skip(location);
-                String line = bufferedReader.readLine();
-                returnValue = Message.readLongFormat(line);
-
-                if (!returnValue.getMessageID().equals(uuid)) {
-                    throw new LtsllcException("UUID of the returned message doesn't match");
-                }
-            } finally {
-                if (bufferedReader != null) {
-                    bufferedReader.close();
-                }
+            long location = uuidToLocation.get(uuid);
+            returnValue = Message.readLongFormat(RecordReader.readLine(logfile, location));
 
-                if (fileReader != null) {
-                    fileReader.close();
-                }
+            if (!returnValue.getMessageID().equals(uuid)) {
+                throw new LtsllcException("UUID of the returned message doesn't match");
             }
-
         }
 
         return returnValue;
@@ -226,11 +225,11 @@ public class MessageCache {
             return;
         }
 
-        while (currentLoad + newMessage.getContents().length > loadLimit && currentLoad != 0) {
+        while (currentLoad + newMessage.getContentLength() > loadLimit && currentLoad != 0) {
             migrateLeastReferencedMessage();
         }
 
-        if (newMessage.getContents().length > loadLimit) {
+        if (newMessage.getContentLength() > loadLimit) {
             logger.error("a new message is larger than the loadLimit, " + loadLimit);
             throw new LtsllcException("a new message is larger than the loadLimit, " + loadLimit);
         }
@@ -245,14 +244,16 @@ public class MessageCache {
             uuidToNumberOfTimesReferenced.put(newMessage.getMessageID(), newNumberOfTimesReferenced);
         }
 
-        currentLoad += newMessage.getContents().length;
+        currentLoad += newMessage.getContentLength();
     }
 
     /**
      * Remove a message from the cache
      * <p>
-     * NOTE: this method expects the message to be in the cache.  It will try to delete the message from
-     * offlineMessages.
+     * If the message has ever been written to the logfile, a tombstone is appended to it so that anything reading
+     * the logfile back, like copyAllMessages, leaves the message out.  The record itself stays in the logfile until
+     * the next compact, which happens on its own once the logfile has more dead records than live ones (and at least
+     * MINIMUM_DEAD_RECORDS).  So a remove is an append rather than a rewrite of the logfile.
      *
      * @param uuid The UUID of the message to remove.
      * @throws LtsllcException If there is a problem removing the message.
@@ -263,77 +264,67 @@ public class MessageCache {
             return;
         }
 
-        if (uuidToMessage.containsKey(uuid)) {
+        if (!contains(uuid)) {
             return;
         }
 
-        uuidToMessage.remove(uuid);
+        Message message = uuidToMessage.remove(uuid);
+        if (message != null) {
+            currentLoad -= message.getContentLength();
+        }
         uuidToOnline.remove(uuid);
         uuidToLocation.remove(uuid);
         uuidToNumberOfTimesReferenced.remove(uuid);
 
         if (logfile.exists()) {
-            FileReader fileReader = null;
-            BufferedReader bufferedReader = null;
-            FileWriter fileWriter = null;
-            BufferedWriter bufferedWriter = null;
-
-            try {
-                fileReader = new FileReader(logfile);
-                bufferedReader = new BufferedReader(fileReader);
-                ImprovedFile tempfile = logfile.copy();
-                fileWriter = new FileWriter(tempfile);
-                bufferedWriter = new BufferedWriter(fileWriter);
-                for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-                    Message readMessage = Message.readLongFormat(line);
-                    if (!readMessage.getMessageID().equals(uuid)) {
-                        bufferedWriter.write(line);
-                        bufferedWriter.newLine();
-                    }
-                }
-
-                String tempFileName = logfile.toString() + ".backup";
-                ImprovedFile tempFile = new ImprovedFile(tempFileName);
-                // rename the offLineMessages to a backup file
-                if (!logfile.renameTo(tempFile)) {
-                    logger.error("Could not rename " + logfile + " to " + tempFile + " aborting.");
-                    tempfile.delete();
-                    throw new LtsllcException("Could not rename " + logfile + " to " + tempFile);
-                }
-
-                // try to rename the tempfile to offLineMessages
-                if (!tempfile.renameTo(logfile)) {
-                    logger.error("Could not rename " + tempfile + " to " + logfile);
-                    logger.error("tempfile," + tempfile + ", may still be around. Aborting");
-                    tempfile.delete();
-                    throw new LtsllcException("could not rename " + tempfile + " to " + logfile);
-                }
-
-                // remove tempFile
-                if (!tempFile.delete()) {
-                    logger.error("Could not remove " + tempFile + ". Aborting.");
-                    throw new LtsllcException("could not remove " + tempFile);
-                }
+            try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(logfile.toString(),
+                    StandardCharsets.UTF_8, true))) {
+                bufferedWriter.write(MessageCodec.toTombstone(uuid));
+                bufferedWriter.newLine();
+            }
+            deadRecords += 2;
 
-                // we successfully finished!
-            } finally {
-                if (bufferedReader != null) {
-                    bufferedReader.close();
-                }
+            if (deadRecords >= MINIMUM_DEAD_RECORDS && deadRecords > uuidToLocation.size()) {
+                compact();
+            }
+        }
+    }
 
-                if (fileReader != null) {
-                    fileReader.close();
-                }
+    /**
+     * Rewrite the logfile so that it only has the records of the messages that are offline
+     * <p>
+     * The records are copied to a temporary file which then replaces the logfile, and uuidToLocation is updated
+     * with their new locations.
+     *
+     * @throws IOException If there is a problem reading or writing the files.
+     */
+    public synchronized void compact() throws IOException {
+        if (!logfile.exists()) {
+            return;
+        }
 
-                if (bufferedWriter != null) {
-                    bufferedWriter.close();
+        ImprovedFile temp = new ImprovedFile(logfile.toString() + ".temp");
+        Map<UUID, Long> newLocations = new HashMap<>();
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            long location = 0;
+            for (Map.Entry<UUID, Long> entry : uuidToLocation.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
                 }
 
-                if (fileWriter != null) {
-                    fileWriter.close();
-                }
+                String line = RecordReader.readLine(logfile, entry.getValue());
+                bufferedWriter.write(line);
+                bufferedWriter.newLine();
+                newLocations.put(entry.getKey(), location);
+                location += (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8).length;
             }
         }
+
+        Files.move(temp.toPath(), logfile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        uuidToLocation.putAll(newLocations);
+        deadRecords = 0;
     }
 
     /**
@@ -350,12 +341,12 @@ public class MessageCache {
             throw new LtsllcException("messageID, " + message.getMessageID() + ", is already present in the cache");
         }
 
-        while (message.getContents().length + currentLoad > loadLimit) {
+        while (message.getContentLength() + currentLoad > loadLimit) {
             migrateLeastReferencedMessage();
         }
         uuidToMessage.put(message.getMessageID(), message);
         uuidToOnline.put(message.getMessageID(), true);
-        currentLoad += message.getContents().length;
+        currentLoad += message.getContentLength();
     }
 
     /**
@@ -396,12 +387,12 @@ public class MessageCache {
         FileWriter fileWriter = null;
         BufferedWriter bufferedWriter = null;
         try {
-            fileWriter = new FileWriter(logfile.toString(), true);
+            fileWriter = new FileWriter(logfile.toString(), StandardCharsets.UTF_8, true);
             bufferedWriter = new BufferedWriter(fileWriter);
             long location = logfile.length();
-            bufferedWriter.write(message.longToString());
+            bufferedWriter.write(MessageCodec.toRecord(message));
             bufferedWriter.newLine();
-            currentLoad = currentLoad - message.getContents().length;
+            currentLoad = currentLoad - message.getContentLength();
             uuidToMessage.remove (message.getMessageID());
             uuidToOnline.put(message.getMessageID(), false);
             uuidToLocation.put(message.getMessageID(), location);
@@ -428,7 +419,7 @@ public class MessageCache {
         int newLoad = 0;
         for (UUID uuid : uuidToOnline.keySet()) {
             if (uuidToOnline.get(uuid)) {
-                newLoad += uuidToMessage.get(uuid).getContents().length;
+                newLoad += uuidToMessage.get(uuid).getContentLength();
             }
         }
         currentLoad = newLoad;
@@ -447,27 +438,11 @@ public class MessageCache {
         if (uuidToLocation.get(uuid) == null) {
             throw new LtsllcException("message does not exist in uuidToLocation");
         }
-        FileReader fileReader = null;
-        BufferedReader bufferedReader = null;
         try {
-            fileReader = new FileReader(logfile);
-            bufferedReader = new BufferedReader(fileReader);
-            bufferedReader.skip(uuidToLocation.get(uuid));
-            String inline = bufferedReader.readLine();
+            String inline = RecordReader.readLine(logfile, uuidToLocation.get(uuid));
             return Message.readLongFormat(inline);
         } catch (IOException e) {
             throw new LtsllcException("Execption opening or reading offline file", e);
-        } finally {
-            try {
-                if (bufferedReader != null) {
-                    bufferedReader.close();
-                }
-                if (fileReader != null) {
-                    fileReader.close();
-                }
-            } catch (IOException e) {
-                throw new LtsllcException("Exception closing offline file", e);
-            }
         }
     }
 
@@ -486,7 +461,7 @@ public class MessageCache {
         }
 
         Message message = readOfflineMessage(uuid);
-        while (currentLoad + message.getContents().length > loadLimit) {
+        while (currentLoad + message.getContentLength() > loadLimit) {
             migrateLeastReferencedMessage();
         }
 
@@ -530,11 +505,11 @@ public class MessageCache {
         logger.debug("entering copyAllMessages");
         PropertiesHolder p = Miranda.getProperties();
 
-        List<Message> list = new ArrayList<>(uuidToOnline.size());
-
-        Collection<Message> onlineMessages = uuidToMessage.values();
-        list.addAll(onlineMessages);
-
+        //
+        // a later record for a message replaces an earlier one, a tombstone removes the message, and a message that
+        // is in memory replaces whatever is in the logfile
+        //
+        Map<UUID, Message> idToMessage = new LinkedHashMap<>();
 
         if (logfile.exists()) {
             FileReader fileReader = null;
@@ -544,7 +519,12 @@ public class MessageCache {
                 bufferedReader = new BufferedReader(fileReader);
 
                 for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-                    list.add(Message.readLongFormat(line));
+                    if (MessageCodec.isTombstone(line)) {
+                        idToMessage.remove(MessageCodec.readTombstone(line));
+                    } else if (!line.isEmpty()) {
+                        Message message = Message.readLongFormat(line);
+                        idToMessage.put(message.getMessageID(), message);
+                    }
                 }
             } catch (IOException e) {
                 logger.error("Encountered exception while copying messages", e);
@@ -559,6 +539,14 @@ public class MessageCache {
                 }
             }
         }
+
+        for (Message message : uuidToMessage.values()) {
+            if (message != null) {
+                idToMessage.put(message.getMessageID(), message);
+            }
+        }
+
+        List<Message> list = new ArrayList<>(idToMessage.values());
         logger.debug("leaving copyAllMessages");
 
         return list;
@@ -0,0 +1,161 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A message going to or coming from another node
+ *
+ * <P>
+ * A CREATED record is the MESSAGE CREATED that tells the cluster about a new message, and a SYNC record is a message
+ * sent while synchronizing.  What goes over the wire depends on the connection, so the record is written to the
+ * channel as it is and the frame handler picks the form.  On a connection where the other node said it can read them
+ * (BINARY, see Framing) a record is a length prefixed frame of MARKER, the kind and the message as MessageCodec
+ * encodes it, so the contents are not hex encoded and nothing has to be parsed a token at a time.  Everywhere else it
+ * is the same text as before.  A text frame never starts with a null, so MARKER tells the two apart.
+ * </P>
+ * <P>
+ * The record is written some time after it is made, and the cache may have evicted the message and released its
+ * contents in the meantime, so the record writes Message.withContents rather than the message it was given.
+ * </P>
+ */
+public class MessageRecord {
+    /**
+     * The first byte of a binary record
+     */
+    public static final byte MARKER = 0;
+
+    public enum Kind {
+        CREATED(1),
+        SYNC(2);
+
+        private final byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        public static Kind fromCode(byte code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+
+            throw new IllegalArgumentException("unknown message record kind: " + code);
+        }
+    }
+
+    protected Kind kind;
+    protected volatile Message message;
+
+    public MessageRecord(Kind kind, Message message) {
+        this.kind = kind;
+        this.message = message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Return the message, read again if the cache released its contents since the record was made
+     */
+    public Message getMessage() {
+        if (message.isContentsReleased()) {
+            message = message.withContents();
+        }
+
+        return message;
+    }
+
+    /**
+     * Return the record as text, for a connection that can't take binary records
+     */
+    public String toText() {
+        if (kind == Kind.CREATED) {
+            return Node.NEW_MESSAGE + " " + getMessage().longToString();
+        }
+
+        return getMessage().longToString();
+    }
+
+    /**
+     * The number of bytes encode will write
+     */
+    public int encodedLength() {
+        return 2 + MessageCodec.encodedLength(getMessage());
+    }
+
+    /**
+     * Write the record in binary form, without a frame length
+     *
+     * @param byteBuf Where to write it.  The buffer grows if it needs to.
+     */
+    public void encode(ByteBuf byteBuf) {
+        byteBuf.writeByte(MARKER);
+        byteBuf.writeByte(kind.getCode());
+        MessageCodec.encode(getMessage(), byteBuf);
+    }
+
+    /**
+     * The number of bytes encodeHeader will write
+     */
+    public int headerLength() {
+        return 2 + MessageCodec.headerLength(getMessage());
+    }
+
+    /**
+     * Write the record in binary form without the bytes of the contents, which the caller writes after it
+     *
+     * @param byteBuf       Where to write it.  The buffer grows if it needs to.
+     * @param contentLength The length of the contents that will follow.
+     */
+    public void encodeHeader(ByteBuf byteBuf, int contentLength) {
+        byteBuf.writeByte(MARKER);
+        byteBuf.writeByte(kind.getCode());
+        MessageCodec.encodeHeader(getMessage(), contentLength, byteBuf);
+    }
+
+    /**
+     * Is a frame a binary record?
+     *
+     * @param byteBuf The buffer the frame is in.
+     * @param index   Where the frame starts, after its length.
+     * @param length  The length of the frame.
+     * @return true if the frame starts with MARKER.
+     */
+    public static boolean isRecord(ByteBuf byteBuf, int index, int length) {
+        return length > 0 && byteBuf.getByte(index) == MARKER;
+    }
+
+    /**
+     * Read a record in binary form
+     *
+     * @param byteBuf The record, without its frame length.
+     * @return The record.
+     * @throws IllegalArgumentException If the record is malformed.
+     */
+    public static MessageRecord decode(ByteBuf byteBuf) {
+        if (byteBuf.readableBytes() < 2 || byteBuf.readByte() != MARKER) {
+            throw new IllegalArgumentException("not a message record");
+        }
+
+        Kind kind = Kind.fromCode(byteBuf.readByte());
+        Message message = MessageCodec.decode(byteBuf);
+        if (byteBuf.isReadable()) {
+            throw new IllegalArgumentException("message record has " + byteBuf.readableBytes() + " extra bytes");
+        }
+
+        return new MessageRecord(kind, message);
+    }
+
+    public String toString() {
+        return toText();
+    }
+}
@@ -11,6 +11,7 @@ import com.ltsllc.miranda.alarm.Alarms;
 import com.ltsllc.miranda.logging.MessageLog;
 import com.ltsllc.miranda.message.Message;
 import com.ltsllc.miranda.message.MessageType;
+import com.ltsllc.miranda.netty.Framing;
 import com.ltsllc.miranda.netty.HeartBeatHandler;
 import com.ltsllc.miranda.properties.PropertyChangedEvent;
 import com.ltsllc.miranda.properties.PropertyListener;
@@ -123,6 +124,19 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         return channel;
     }
 
+    /**
+     * What is being sent to the node to synchronize it, if anything
+     */
+    protected SyncStream syncStream;
+
+    public SyncStream getSyncStream() {
+        return syncStream;
+    }
+
+    public void setSyncStream(SyncStream syncStream) {
+        this.syncStream = syncStream;
+    }
+
     public void setChannel(Channel channel) {
         this.channel = channel;
     }
@@ -296,6 +310,29 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         return result;
     }
 
+    /**
+     * Write something to the node without flushing it
+     *
+     * <P>
+     * This is for sending a lot of things at once: write each of them and then call flush, so that they go out in a
+     * few large writes to the socket instead of one each.  The FlushConsolidator in the pipeline sends what has
+     * piled up every PROPERTY_CLUSTER_FLUSH_BYTES, so the things written don't all have to fit in memory.
+     * </P>
+     *
+     * @param message The thing to write, usually a String.
+     * @return The future of the write.
+     */
+    public ChannelFuture write(Object message) {
+        return channel.write(message);
+    }
+
+    /**
+     * Send everything that has been written to the node
+     */
+    public void flush() {
+        channel.flush();
+    }
+
     /**
      * Send a message to the node informing it that we created a message
      * <p>
@@ -325,7 +362,7 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         stringBuilder.append(" ");
         stringBuilder.append(message.getMessageID());
 
-        channel.write(stringBuilder.toString());
+        channel.writeAndFlush(stringBuilder.toString());
     }
 
 
@@ -374,6 +411,34 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         logger.debug("leaving messageReceived with state = " + state);
     }
 
+    /**
+     * Process a binary message record
+     *
+     * <P>
+     * A record does what its text would do without the text being parsed: a CREATED record adds a new message and a
+     * SYNC record that comes while synchronizing adds a message from the other node.  Anything else goes through
+     * messageReceived as text, so it is handled, or treated as an error, the same way the text would be.
+     * </P>
+     *
+     * @param record The record.
+     * @throws IOException     If there is a problem adding the message to the message log.
+     * @throws LtsllcException If there is an application error.
+     */
+    public void recordReceived(MessageRecord record) throws IOException, LtsllcException {
+        logger.debug("entering recordReceived with state = " + state + " and kind = " + record.getKind());
+
+        if (record.getKind() == MessageRecord.Kind.CREATED
+                && (state == START || state == GENERAL || state == AWAITING_ASSIGNMENTS)) {
+            MessageLog.getInstance().add(record.getMessage(), uuid);
+        } else if (record.getKind() == MessageRecord.Kind.SYNC && state == SYNCHRONIZING) {
+            receiveMessage(record.getMessage());
+        } else {
+            messageReceived(record.toText());
+        }
+
+        logger.debug("leaving recordReceived with state = " + state);
+    }
+
     public void handleStateAwaitingAssignments(MessageType messageType, String s) throws IOException, LtsllcException {
         logger.debug("Entering handleStateAwaitingAssignments");
 
@@ -650,10 +715,16 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
      * <PRE>
      * The message has the form:
      * <p>
-     * START START &lt;UUID of the remote node&gt; &lt;ip of the remote node&gt; &lt;port of the remote node&gt; &lt;start time of the remote node&gt;
+     * START START &lt;UUID of the remote node&gt; &lt;ip of the remote node&gt; &lt;port of the remote node&gt; &lt;start time of the remote node&gt; [LENGTH]
      * </PRE>
      * </P>
      *
+     * <p>
+     * If the remote node offered LENGTH and this node can use length prefixed frames, LENGTH goes on the end of the
+     * acknowledgement and the channel switches over.  If it also offered BINARY and this node can use binary message
+     * records, BINARY goes after the LENGTH.  See Framing.
+     * </P>
+     *
      * @param input The string that came to us.
      */
     protected synchronized void handleStartStart(String input) throws IOException {
@@ -667,6 +738,8 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         host = scanner.next();
         port = scanner.nextInt();
         nodeStart = scanner.nextLong();
+        boolean lengthFrames = Framing.isEnabled() && Framing.offered(scanner);
+        boolean binary = lengthFrames && Framing.isBinaryEnabled() && Framing.offeredBinary(scanner);
 
         if (
                 uuid.equals(Miranda.getInstance().getMyUuid())
@@ -689,6 +762,15 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         builder.append(Node.START_ACKNOWLEDGED);
         builder.append(" ");
         addId(builder);
+        if (lengthFrames) {
+            builder.append(" ");
+            builder.append(Framing.LENGTH);
+        }
+
+        if (binary) {
+            builder.append(" ");
+            builder.append(Framing.BINARY);
+        }
 
         ByteBuf buf = Unpooled.copiedBuffer(builder.toString().getBytes());
         ChannelFuture channelFuture = channel.writeAndFlush(buf);
@@ -706,6 +788,10 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         channelFuture.addListener(channelFutureListener);
         logger.debug("wrote " + builder);
 
+        if (lengthFrames) {
+            Framing.switchOutbound(channel, binary);
+        }
+
         //
         // if the node is eldest, then synchronize with it
         //
@@ -768,6 +854,7 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         stringBuilder.append(Miranda.getInstance().getMyPort());
         stringBuilder.append(" ");
         stringBuilder.append(Miranda.getInstance().getMyStart());
+        Framing.addOffer(stringBuilder);
 
 
         // ChannelOutputShutdownEvent
@@ -877,16 +964,6 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         logger.debug("leaving handleMessage");
     }
 
-    /**
-     * Send a message message
-     *
-     * @param message The message to send.
-     */
-    protected void sendMessage(Message message) {
-        String str = message.longToString();
-        channel.writeAndFlush(str);
-    }
-
     /**
      * Handle an error by sending a start message
      *
@@ -964,28 +1041,67 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         UUID message = UUID.fromString(scanner.next()); // message UUID
         UUID owner = UUID.fromString(scanner.next()); // owner UUID
         MessageLog.getInstance().setOwner(message, owner);
+
+        SyncStream.Checkpoint checkpoint = state == SYNCHRONIZING ? SyncStream.getCheckpoint(uuid) : null;
+        if (checkpoint != null) {
+            checkpoint.received(SyncStream.Phase.OWNERS, message);
+        }
+
         logger.debug("leaving handelOwner");
     }
 
+    /**
+     * Send a message message
+     *
+     * @param message The message to send.
+     */
+    protected void sendMessage(Message message) {
+        channel.writeAndFlush(new MessageRecord(MessageRecord.Kind.SYNC, message));
+    }
+
     /**
      * send all the messages that we "know" about
      *
+     * <P>
+     * The messages are sent by a SyncStream, a page at a time as the channel can take them, so this may return
+     * before they have all been written.
+     * </P>
+     *
      * @throws IOException If there is an error copying the messages
      */
     public void sendAllMessages() throws IOException {
         logger.debug("entering sendAllMessages");
 
-        channel.writeAndFlush(MESSAGES);
+        stream(new SyncStream(this, SyncStream.Phase.MESSAGES, null, SyncStream.Phase.OWNERS));
 
-        for (Message message : MessageLog.getInstance().copyAllMessages()) {
-            sendMessage(message);
-            logger.debug("wrote " + message.getMessageID());
-        }
+        logger.debug("leaving sendAllMessages");
+    }
 
-        channel.writeAndFlush(MESSAGES_END);
-        logger.debug("wrote " + MESSAGES_END);
+    /**
+     * Start sending a stream to the node, or start it after the one that is being sent now
+     *
+     * @param stream The stream to send.
+     */
+    public void stream(SyncStream stream) {
+        if (syncStream != null && !syncStream.isDone()) {
+            syncStream.then(stream);
+        } else {
+            syncStream = stream;
+            stream.start();
+        }
+    }
 
-        logger.debug("leaving sendAllMessages");
+    /**
+     * The channel's write buffer went over its high water mark or back under its low one
+     *
+     * <P>
+     * When the channel can take more, any synchronization that stopped for it picks up again.
+     * </P>
+     */
+    public void channelWritabilityChanged() {
+        if (syncStream != null && !syncStream.isDone() && channel.isWritable()) {
+            syncStream.resume();
+        }
     }
 
     /**
@@ -999,8 +1115,22 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
      * @throws IOException If there is a problem adding the message to the message log.
      */
     public void handleReceiveMessage(String input) throws IOException, LtsllcException {
-        Message message = Message.readLongFormat(input);
+        receiveMessage(Message.readLongFormat(input));
+    }
+
+    /**
+     * Add a message that came while synchronizing to the message log
+     *
+     * @param message The message.
+     * @throws IOException If there is a problem adding the message to the message log.
+     */
+    public void receiveMessage(Message message) throws IOException, LtsllcException {
         MessageLog.getInstance().add(message,message.getOwner());
+
+        SyncStream.Checkpoint checkpoint = SyncStream.getCheckpoint(uuid);
+        if (checkpoint != null) {
+            checkpoint.received(SyncStream.Phase.MESSAGES, message.getMessageID());
+        }
     }
 
     /**
@@ -1047,12 +1177,27 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         port = scanner.nextInt();
         long temp = scanner.nextLong();
         nodeStart = temp;
+        boolean lengthFrames = Framing.isEnabled() && Framing.offered(scanner);
+        boolean binary = lengthFrames && Framing.isBinaryEnabled() && Framing.offeredBinary(scanner);
         StringBuilder builder = new StringBuilder();
         builder.append(START_ACKNOWLEDGED);
         builder.append(" ");
         addId(builder);
+        if (lengthFrames) {
+            builder.append(" ");
+            builder.append(Framing.LENGTH);
+        }
+
+        if (binary) {
+            builder.append(" ");
+            builder.append(Framing.BINARY);
+        }
+
         ByteBuf byteBuf = Unpooled.copiedBuffer(builder.toString().getBytes());
         channel.writeAndFlush(byteBuf);
+        if (lengthFrames) {
+            Framing.switchOutbound(channel, binary);
+        }
 
         if (uuid.equals(Miranda.getInstance().getMyUuid())) {
             isLoopback = true;
@@ -1093,23 +1238,7 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
      * </P>
      */
     public void sendAllOwners() {
-        channel.writeAndFlush(OWNERS);
-
-        for (UUID messageID : MessageLog.getInstance().getUuidToOwner().getAllKeys()) {
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(OWNER);
-            stringBuilder.append(" ");
-            stringBuilder.append(messageID);
-            stringBuilder.append(" ");
-            stringBuilder.append(MessageLog.getInstance().getOwnerOf(messageID));
-
-            channel.writeAndFlush(stringBuilder.toString());
-            logger.debug("wrote " + stringBuilder);
-        }
-
-        channel.writeAndFlush(OWNERS_END);
-        logger.debug("wrote " + OWNERS_END);
-
+        stream(new SyncStream(this, SyncStream.Phase.OWNERS, null, SyncStream.Phase.DONE));
     }
 
     /**
@@ -1181,6 +1310,23 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
             owners.touch();
         }
 
+        //
+        // if an earlier synchronization with this node was cut off, pick up where it left off
+        //
+        if (uuid != null) {
+            SyncStream.Checkpoint checkpoint = SyncStream.checkpointFor(uuid, nodeStart);
+            if (checkpoint.getPhase() != SyncStream.Phase.MESSAGES || checkpoint.getLast() != null) {
+                checkpoint.addTo(stringBuffer);
+            }
+        }
+
+        //
+        // tell the node what we already have, so it only sends what we don't
+        //
+        if (RangeDigest.isEnabled()) {
+            RangeDigest.of(MessageLog.getInstance()).addTo(stringBuffer);
+        }
+
         channel.writeAndFlush(stringBuffer.toString());
         logger.debug("wrote " + stringBuffer);
 
@@ -1443,6 +1589,11 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
 
         Miranda.getInstance().setMyStart(nodeStart);
 
+        SyncStream.Checkpoint checkpoint = SyncStream.getCheckpoint(uuid);
+        if (checkpoint != null) {
+            checkpoint.ended(SyncStream.Phase.MESSAGES);
+        }
+
         logger.debug("leaving handleMessagesEnd");
     }
 
@@ -1476,15 +1627,38 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
     /**
      * Another node wants to synchronize with us.  Send all of our ownership and message information.
      *
+     * <P>
+     * If the message ends with a RESUME checkpoint then the node already has everything up to that point, and the
+     * SyncStream starts from there.  See SyncStream.
+     * </P>
+     * <P>
+     * If it has a DIGEST then only the ranges of message IDs where the node's digest differs from ours are sent,
+     * and the checkpoint is not needed.  See RangeDigest.
+     * </P>
+     *
      * @param input The synchronization message.  This includes the uuid of the other node its host its port and the
      *              time it was started.
      * @throws IOException If there is a problem sending the messages.
      */
     public void handleSynchronizationStartInGeneral(String input) throws IOException, LtsllcException {
+        //
+        // skip SYNCHRONIZE START <uuid> <host> <port> <start>
+        //
+        Scanner scanner = new Scanner(input);
+        for (int i = 0; i < 6 && scanner.hasNext(); i++) {
+            scanner.next();
+        }
+
+        SyncStream.Checkpoint checkpoint = SyncStream.Checkpoint.read(scanner);
+        RangeDigest digest = RangeDigest.read(scanner);
+
         sendSynchronize();
 
-        sendAllMessages();
-        sendAllOwners();
+        if (digest != null) {
+            stream(SyncStream.differences(this, digest));
+        } else {
+            stream(SyncStream.resume(this, checkpoint));
+        }
     }
 
     public void handleStartAcknowledged(String input) {
@@ -1498,6 +1672,10 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         java.lang.String temp = scanner.next();
         port = Integer.parseInt(temp);
 
+        if (Framing.isEnabled() && Framing.offered(scanner)) {
+            Framing.switchOutbound(channel, Framing.isBinaryEnabled() && Framing.offeredBinary(scanner));
+        }
+
         setState(GENERAL);
         setOnline(true);
         timeoutsMet.put(Alarms.START, true);
@@ -1526,6 +1704,10 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
         host = scanner.next();
         port = scanner.nextInt();
 
+        if (Framing.isEnabled() && Framing.offered(scanner)) {
+            Framing.switchOutbound(channel, Framing.isBinaryEnabled() && Framing.offeredBinary(scanner));
+        }
+
         if (uuid.equals(Miranda.getInstance().getMyUuid())) {
             ChannelHandler channelHandler = channel.pipeline().get(Cluster.HEART_BEAT);
             if (channelHandler == null || !(channelHandler instanceof HeartBeatHandler)) {
@@ -1560,6 +1742,8 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
      * </P>
      */
     public void handleOwnersEnd() {
+        SyncStream.finished(uuid);
+
         try {
             setState(popState());
         } catch (LtsllcException e) {
@@ -1570,7 +1754,7 @@ public class Node implements Cloneable, Alarmable, PropertyListener {
     public void sendError() {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append(ERROR);
-        channel.write(stringBuilder.toString());
+        channel.writeAndFlush(stringBuilder.toString());
         sendStart(true, isLoopback);
     }
 
@@ -0,0 +1,291 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.logging.LoggingCache;
+import com.ltsllc.miranda.logging.LoggingMap;
+import com.ltsllc.miranda.logging.MessageLog;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.UUID;
+
+/**
+ * A hash of the messages and owners a node has, for each range of message IDs
+ *
+ * <P>
+ * The message IDs are split into 2<sup>bits</sup> ranges by their top bits, the same way a MessageTable splits them
+ * into home slots, so each range is one contiguous stretch of UUID order and can be walked with a cursor.  The hash
+ * of a range is the sum of a hash of each message ID in it and a hash of each message ID and owner pair in it, so it
+ * doesn't depend on the order things were added in, and two nodes with the same messages and owners in a range have
+ * the same hash for it.
+ * </P>
+ * <P>
+ * A node that is about to synchronize puts its digest on the end of its SYNCHRONIZE START:
+ * </P>
+ * <PRE>
+ * SYNCHRONIZE START &lt;UUID&gt; &lt;host&gt; &lt;port&gt; &lt;start&gt; [RESUME ...] DIGEST &lt;bits&gt; &lt;hashes&gt;
+ * </PRE>
+ * <P>
+ * where hashes is 16 hex digits per range.  The other node works out its own digest with the same number of bits
+ * and sends only the messages and owners in the ranges whose hashes differ, so a node that was only gone for a
+ * moment gets a few ranges instead of everything.  The number of bits is picked so that there are about
+ * MESSAGES_PER_RANGE messages in a range, between MINIMUM_BITS and MAXIMUM_BITS.  A node that doesn't know about
+ * DIGEST ignores it and sends everything.
+ * </P>
+ * <P>
+ * This is one round of a Merkle tree exchange: the leaves are compared directly instead of descending from the root,
+ * which keeps SYNCHRONIZE START a single message at the cost of sending a whole range when one message in it is
+ * missing.  Digests are worked out when they are needed by walking the message IDs and owners, which are all in
+ * memory; no message is read from the logfile.
+ * </P>
+ */
+public class RangeDigest {
+    public static final Logger logger = LogManager.getLogger(RangeDigest.class);
+
+    public static final String DIGEST = "DIGEST";
+
+    public static final int MINIMUM_BITS = 4;
+
+    /**
+     * 1024 ranges, which makes the digest 16K of hex digits
+     */
+    public static final int MAXIMUM_BITS = 10;
+
+    public static final int MESSAGES_PER_RANGE = 64;
+
+    /**
+     * The number of message IDs or owners read at a time while working out a digest
+     */
+    public static final int PAGE = 1000;
+
+    protected int bits;
+    protected long[] hashes;
+
+    /**
+     * Construct an empty digest
+     *
+     * @param bits The number of top bits of a message ID that pick its range.  This must be between MINIMUM_BITS
+     *             and MAXIMUM_BITS.
+     */
+    public RangeDigest(int bits) {
+        this.bits = bits;
+        hashes = new long[1 << bits];
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getRanges() {
+        return hashes.length;
+    }
+
+    public long getHash(int range) {
+        return hashes[range];
+    }
+
+    /**
+     * Return the number of bits to use for a number of messages
+     *
+     * @param messages The number of messages.
+     * @return The bits, between MINIMUM_BITS and MAXIMUM_BITS.
+     */
+    public static int bitsFor(long messages) {
+        int bits = 64 - Long.numberOfLeadingZeros(messages / MESSAGES_PER_RANGE);
+        return Math.max(MINIMUM_BITS, Math.min(MAXIMUM_BITS, bits));
+    }
+
+    /**
+     * Work out the digest of a message log with the number of bits called for by its size
+     *
+     * @param messageLog The message log.
+     * @return The digest.
+     */
+    public static RangeDigest of(MessageLog messageLog) {
+        return of(messageLog, bitsFor(messageLog.getCache().getTable().size()));
+    }
+
+    /**
+     * Work out the digest of a message log
+     *
+     * @param messageLog The message log.
+     * @param bits       The number of bits to use.
+     * @return The digest.
+     */
+    public static RangeDigest of(MessageLog messageLog, int bits) {
+        RangeDigest digest = new RangeDigest(bits);
+
+        LoggingCache.Cursor cursor = messageLog.cursor();
+        for (List<UUID> page = cursor.nextKeys(PAGE); !page.isEmpty(); page = cursor.nextKeys(PAGE)) {
+            for (UUID message : page) {
+                digest.addMessage(message);
+            }
+        }
+
+        LoggingMap owners = messageLog.getUuidToOwner();
+        UUID last = null;
+        for (List<Map.Entry<UUID, UUID>> page = owners.next(last, PAGE); !page.isEmpty(); page = owners.next(last, PAGE)) {
+            for (Map.Entry<UUID, UUID> entry : page) {
+                digest.addOwner(entry.getKey(), entry.getValue());
+                last = entry.getKey();
+            }
+        }
+
+        return digest;
+    }
+
+    /**
+     * Return the range a message ID is in
+     */
+    public int rangeOf(UUID message) {
+        return (int) ((message.getMostSignificantBits() ^ Long.MIN_VALUE) >>> (64 - bits));
+    }
+
+    /**
+     * Return the first message ID in a range
+     */
+    public UUID first(int range) {
+        long msb = ((long) range << (64 - bits)) ^ Long.MIN_VALUE;
+        return new UUID(msb, Long.MIN_VALUE);
+    }
+
+    /**
+     * Return the last message ID in a range
+     */
+    public UUID last(int range) {
+        long msb = ((((long) range + 1) << (64 - bits)) - 1) ^ Long.MIN_VALUE;
+        return new UUID(msb, Long.MAX_VALUE);
+    }
+
+    /**
+     * Return the message ID to start a cursor after to get a range
+     *
+     * @param range The range.
+     * @return The last message ID in the range before it, or null for the first range.
+     */
+    public UUID before(int range) {
+        return range == 0 ? null : last(range - 1);
+    }
+
+    public void addMessage(UUID message) {
+        hashes[rangeOf(message)] += hash(message);
+    }
+
+    public void addOwner(UUID message, UUID owner) {
+        hashes[rangeOf(message)] += mix(hash(message) ^ mix(hash(owner) + 1));
+    }
+
+    /**
+     * Return the ranges whose hashes are different in another digest
+     *
+     * @param other The other digest.
+     * @return The ranges that differ.  If the digests have a different number of bits, that's all of them.
+     */
+    public BitSet differences(RangeDigest other) {
+        BitSet ranges = new BitSet(hashes.length);
+        if (other.bits != bits) {
+            ranges.set(0, hashes.length);
+            return ranges;
+        }
+
+        for (int range = 0; range < hashes.length; range++) {
+            if (hashes[range] != other.hashes[range]) {
+                ranges.set(range);
+            }
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Add DIGEST and the digest to a SYNCHRONIZE START
+     */
+    public void addTo(StringBuffer stringBuffer) {
+        stringBuffer.append(" ");
+        stringBuffer.append(DIGEST);
+        stringBuffer.append(" ");
+        stringBuffer.append(bits);
+        stringBuffer.append(" ");
+
+        for (long hash : hashes) {
+            for (int shift = 60; shift >= 0; shift -= 4) {
+                stringBuffer.append(Character.forDigit((int) (hash >>> shift) & 0xF, 16));
+            }
+        }
+    }
+
+    /**
+     * Read the digest from the end of a SYNCHRONIZE START
+     *
+     * @param scanner A scanner that has read everything up to where DIGEST would be.  Nothing is read if the next
+     *                token isn't DIGEST.
+     * @return The digest, or null if there isn't one or it can't be used.
+     */
+    public static RangeDigest read(Scanner scanner) {
+        if (!scanner.hasNext("(?i)" + DIGEST)) {
+            return null;
+        }
+
+        scanner.next();
+        if (!scanner.hasNextInt()) {
+            logger.warn("DIGEST without a number of bits, ignoring it");
+            return null;
+        }
+
+        int bits = scanner.nextInt();
+        String hex = scanner.hasNext() ? scanner.next() : "";
+        if (bits < MINIMUM_BITS || bits > MAXIMUM_BITS || hex.length() != 16 << bits) {
+            logger.warn("DIGEST with " + bits + " bits and " + hex.length() + " digits, ignoring it");
+            return null;
+        }
+
+        RangeDigest digest = new RangeDigest(bits);
+        try {
+            for (int range = 0; range < digest.hashes.length; range++) {
+                digest.hashes[range] = Long.parseUnsignedLong(hex.substring(16 * range, 16 * range + 16), 16);
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("DIGEST that isn't hex, ignoring it");
+            return null;
+        }
+
+        return digest;
+    }
+
+    /**
+     * Should this node send a digest when it synchronizes?
+     *
+     * @return The value of PROPERTY_CLUSTER_DIGEST, or the default if the properties haven't been loaded.
+     */
+    public static boolean isEnabled() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_CLUSTER_DIGEST);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_CLUSTER_DIGEST;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+
+    protected static long hash(UUID uuid) {
+        return mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+    }
+
+    /**
+     * The finalizer from SplitMix64, which spreads every bit of its input over every bit of its output
+     */
+    protected static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,547 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.miranda.logging.LoggingCache;
+import com.ltsllc.miranda.logging.MessageLog;
+import com.ltsllc.miranda.message.Message;
+import io.netty.channel.Channel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sending the messages and owners to a node that is synchronizing with us, a page at a time
+ *
+ * <P>
+ * The messages are read with a LoggingCache.Cursor and the owners with LoggingMap.next, so only one page of either
+ * is in memory at a time.  A page is only read while the channel is writable.  When the channel's write buffer goes
+ * over its high water mark the stream stops, and it picks up where it left off when the buffer drains below the
+ * low water mark and the node calls resume.  A slow node slows the stream down instead of filling up our memory.
+ * </P>
+ * <P>
+ * Both the cursor and the owners are walked in message ID order, so the last message ID that a node received is
+ * enough to pick up from.  The receiving node keeps a Checkpoint of that for each node it synchronizes with.  If
+ * the connection drops part way through and the node synchronizes with the same node again, it puts the checkpoint
+ * on the end of its SYNCHRONIZE START:
+ * </P>
+ * <PRE>
+ * SYNCHRONIZE START &lt;UUID&gt; &lt;host&gt; &lt;port&gt; &lt;start&gt; RESUME &lt;MESSAGES or OWNERS&gt; &lt;last message ID or -&gt;
+ * </PRE>
+ * <P>
+ * and the stream starts after that point.  A node that doesn't know about RESUME ignores it and sends everything.
+ * Messages and owners that were added behind the checkpoint while the nodes were apart are not sent.
+ * </P>
+ * <P>
+ * If the SYNCHRONIZE START also has a RangeDigest, the checkpoint is ignored and the stream only sends the ranges of
+ * message IDs whose hashes differ from ours, which covers what was added behind the checkpoint too.
+ * </P>
+ * <P>
+ * Reading a page means reading messages from the logfile and holding the cache's lock, so pages are read on READER,
+ * one at a time per stream, and only writing them to the channel and checking whether it is writable happens on the
+ * channel's event loop.  Working out our RangeDigest to compare with a node's happens on READER too.  The event loop
+ * owns phase, next and whether a read is outstanding; the reader owns the cursor, the ranges and the last owner.
+ * </P>
+ */
+public class SyncStream {
+    public static final Logger logger = LogManager.getLogger(SyncStream.class);
+
+    public static final String RESUME = "RESUME";
+
+    /**
+     * The most bytes of message contents read at a time
+     */
+    public static final int MESSAGE_PAGE = 64 * 1024;
+
+    /**
+     * The most owners read at a time
+     */
+    public static final int OWNER_PAGE = 1000;
+
+    /**
+     * Where pages are read, so that the event loops never wait on the logfile
+     */
+    protected static final ExecutorService READER = createReader();
+
+    public enum Phase {
+        MESSAGES,
+        OWNERS,
+        DONE
+    }
+
+    /**
+     * How far a node got synchronizing with another node
+     */
+    public static class Checkpoint {
+        protected UUID source;
+        protected long sourceStart;
+        protected Phase phase = Phase.MESSAGES;
+        protected UUID last;
+
+        public Checkpoint(UUID source, long sourceStart) {
+            this.source = source;
+            this.sourceStart = sourceStart;
+        }
+
+        public UUID getSource() {
+            return source;
+        }
+
+        public long getSourceStart() {
+            return sourceStart;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public UUID getLast() {
+            return last;
+        }
+
+        public synchronized void received(Phase phase, UUID messageID) {
+            this.phase = phase;
+            last = messageID;
+        }
+
+        /**
+         * The end of a phase was received
+         */
+        public synchronized void ended(Phase phase) {
+            if (phase == Phase.MESSAGES) {
+                this.phase = Phase.OWNERS;
+                last = null;
+            } else {
+                this.phase = Phase.DONE;
+            }
+        }
+
+        /**
+         * Add RESUME and the checkpoint to a SYNCHRONIZE START
+         */
+        public synchronized void addTo(StringBuffer stringBuffer) {
+            stringBuffer.append(" ");
+            stringBuffer.append(RESUME);
+            stringBuffer.append(" ");
+            stringBuffer.append(phase);
+            stringBuffer.append(" ");
+            stringBuffer.append(last == null ? "-" : last.toString());
+        }
+
+        /**
+         * Read the checkpoint from the end of a SYNCHRONIZE START
+         *
+         * @param scanner A scanner that has read everything up to where RESUME would be.  Nothing is read if the
+         *                next token isn't RESUME.
+         * @return The checkpoint, or null if there isn't one.
+         */
+        public static Checkpoint read(Scanner scanner) {
+            if (!scanner.hasNext("(?i)" + RESUME)) {
+                return null;
+            }
+
+            scanner.next();
+            Checkpoint checkpoint = new Checkpoint(null, -1);
+            checkpoint.phase = Phase.valueOf(scanner.next().toUpperCase());
+            String last = scanner.next();
+            checkpoint.last = last.equals("-") ? null : UUID.fromString(last);
+            return checkpoint;
+        }
+    }
+
+    /**
+     * The checkpoints of the synchronizations that this node has started but not finished, by the UUID of the node
+     * it was synchronizing with
+     */
+    protected static final Map<UUID, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Return the checkpoint for synchronizing with a node, starting a new one if there isn't one or if the node has
+     * restarted since
+     *
+     * @param source      The UUID of the node we are synchronizing with.
+     * @param sourceStart When that node started.
+     * @return The checkpoint.
+     */
+    public static Checkpoint checkpointFor(UUID source, long sourceStart) {
+        return checkpoints.compute(source, (key, checkpoint) ->
+                checkpoint == null || checkpoint.sourceStart != sourceStart || checkpoint.phase == Phase.DONE
+                        ? new Checkpoint(source, sourceStart)
+                        : checkpoint);
+    }
+
+    /**
+     * Return the checkpoint for synchronizing with a node
+     *
+     * @param source The UUID of the node.
+     * @return The checkpoint or null if we are not synchronizing with that node.
+     */
+    public static Checkpoint getCheckpoint(UUID source) {
+        return source == null ? null : checkpoints.get(source);
+    }
+
+    protected static ExecutorService createReader() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "sync-reader-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * Forget about a synchronization that finished
+     */
+    public static void finished(UUID source) {
+        if (source != null) {
+            checkpoints.remove(source);
+        }
+    }
+
+    /**
+     * What one read produced: the lines and message records to write and the phase the stream is in after them
+     */
+    protected static class Page {
+        protected List<Object> lines = new ArrayList<>();
+        protected Phase phase;
+
+        public Page(Phase phase) {
+            this.phase = phase;
+        }
+    }
+
+    protected Node node;
+    protected Channel channel;
+    protected volatile Phase phase;
+    protected Phase end;
+    protected LoggingCache.Cursor cursor;
+    protected UUID lastOwner;
+
+    /**
+     * Is a page being read?  Only used on the event loop.
+     */
+    protected boolean reading = false;
+
+    /**
+     * The ranges of message IDs to send, null to send all of them
+     */
+    protected BitSet ranges;
+    protected RangeDigest digest;
+    protected int messageRange = -1;
+    protected int ownerRange = -1;
+
+    /**
+     * The digest of the node we are sending to, until ours has been worked out and compared with it
+     */
+    protected RangeDigest theirs;
+
+    /**
+     * The stream to start when this one is done
+     */
+    protected SyncStream next;
+
+    /**
+     * Construct a new instance
+     *
+     * @param node  The node to send to.
+     * @param phase The phase to start in.
+     * @param after The last message ID the node already has in that phase, or null.
+     * @param end   The phase to stop before: OWNERS to send just the messages or DONE to send everything.
+     */
+    public SyncStream(Node node, Phase phase, UUID after, Phase end) {
+        this.node = node;
+        this.channel = node.getChannel();
+        this.phase = phase;
+        this.end = end;
+
+        if (phase == Phase.MESSAGES) {
+            cursor = MessageLog.getInstance().cursor(after);
+        } else {
+            lastOwner = after;
+        }
+    }
+
+    /**
+     * Construct a stream that sends some ranges of message IDs
+     *
+     * @param node   The node to send to.
+     * @param digest The digest that defines the ranges.
+     * @param ranges The ranges to send.
+     */
+    public SyncStream(Node node, RangeDigest digest, BitSet ranges) {
+        this.node = node;
+        this.channel = node.getChannel();
+        this.phase = Phase.MESSAGES;
+        this.end = Phase.DONE;
+        setRanges(digest, ranges);
+    }
+
+    /**
+     * Construct a stream that sends the ranges where our digest differs from a node's
+     *
+     * <P>
+     * Our digest is worked out by the first read, on READER.
+     * </P>
+     *
+     * @param node   The node to send to.
+     * @param theirs The node's digest.
+     */
+    public SyncStream(Node node, RangeDigest theirs) {
+        this.node = node;
+        this.channel = node.getChannel();
+        this.phase = Phase.MESSAGES;
+        this.end = Phase.DONE;
+        this.theirs = theirs;
+    }
+
+    /**
+     * A stream of what we have that a node doesn't
+     *
+     * @param node   The node to send to.
+     * @param theirs The node's digest.
+     * @return A stream of the ranges where our digest is different.
+     */
+    public static SyncStream differences(Node node, RangeDigest theirs) {
+        return new SyncStream(node, theirs);
+    }
+
+    /**
+     * A stream that picks up from a checkpoint
+     *
+     * @param node       The node to send to.
+     * @param checkpoint Where to pick up from, or null to send everything.
+     * @return The stream.
+     */
+    public static SyncStream resume(Node node, Checkpoint checkpoint) {
+        if (checkpoint == null || checkpoint.getPhase() == Phase.DONE) {
+            return new SyncStream(node, Phase.MESSAGES, null, Phase.DONE);
+        }
+
+        return new SyncStream(node, checkpoint.getPhase(), checkpoint.getLast(), Phase.DONE);
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public boolean isDone() {
+        return phase == end;
+    }
+
+    /**
+     * Start another stream when this one, and any others already waiting on it, are done
+     *
+     * @param stream The stream to start.
+     */
+    public void then(SyncStream stream) {
+        SyncStream last = this;
+        while (last.next != null) {
+            last = last.next;
+        }
+
+        last.next = stream;
+    }
+
+    /**
+     * Start sending
+     */
+    public void start() {
+        logger.debug("starting synchronization of " + node + " in phase " + phase);
+        node.write(phase == Phase.MESSAGES ? Node.MESSAGES : Node.OWNERS);
+        resume();
+    }
+
+    /**
+     * Send as much as the channel will take
+     *
+     * <P>
+     * The node calls this when the channel becomes writable again.
+     * </P>
+     */
+    public void resume() {
+        if (channel.eventLoop().inEventLoop()) {
+            pump();
+        } else {
+            channel.eventLoop().execute(this::pump);
+        }
+    }
+
+    /**
+     * Read the next page on READER if the channel can take it
+     *
+     * <P>
+     * This runs on the event loop.  If the channel isn't writable nothing is read; the node calls resume when it is.
+     * </P>
+     */
+    protected void pump() {
+        if (reading) {
+            return;
+        }
+
+        if (isDone()) {
+            if (next != null) {
+                SyncStream stream = next;
+                next = null;
+                node.setSyncStream(stream);
+                stream.start();
+            }
+
+            return;
+        }
+
+        if (!channel.isActive() || !channel.isWritable()) {
+            return;
+        }
+
+        reading = true;
+        Phase current = phase;
+        READER.execute(() -> {
+            Page page = null;
+            Exception exception = null;
+            try {
+                page = read(current);
+            } catch (IOException | RuntimeException e) {
+                exception = e;
+            }
+
+            Page result = page;
+            Exception failure = exception;
+            channel.eventLoop().execute(() -> written(result, failure));
+        });
+    }
+
+    /**
+     * Write a page that was read and go on to the next one
+     *
+     * <P>
+     * This runs on the event loop.
+     * </P>
+     */
+    protected void written(Page page, Exception failure) {
+        reading = false;
+        if (failure != null) {
+            logger.error("problem reading messages to synchronize " + node + ", closing the channel", failure);
+            channel.close();
+            return;
+        }
+
+        for (Object line : page.lines) {
+            node.write(line);
+        }
+
+        phase = page.phase;
+        node.flush();
+        pump();
+    }
+
+    /**
+     * Read a page
+     *
+     * <P>
+     * This runs on READER, and only one read for a stream is outstanding at a time.
+     * </P>
+     *
+     * @param current The phase the stream is in.
+     * @return The page.
+     * @throws IOException If there is a problem reading the messages.
+     */
+    protected Page read(Phase current) throws IOException {
+        Page page = new Page(current);
+
+        if (theirs != null) {
+            RangeDigest ours = RangeDigest.of(MessageLog.getInstance(), theirs.getBits());
+            BitSet differences = ours.differences(theirs);
+            logger.debug(differences.cardinality() + " of " + ours.getRanges() + " ranges differ from " + node);
+            theirs = null;
+            setRanges(ours, differences);
+        } else if (current == Phase.MESSAGES) {
+            readMessages(page);
+        } else {
+            readOwners(page);
+        }
+
+        return page;
+    }
+
+    protected void setRanges(RangeDigest digest, BitSet ranges) {
+        this.digest = digest;
+        this.ranges = ranges;
+
+        messageRange = ranges.nextSetBit(0);
+        ownerRange = messageRange;
+        if (messageRange != -1) {
+            cursor = MessageLog.getInstance().cursor(digest.before(messageRange), digest.last(messageRange));
+            lastOwner = digest.before(ownerRange);
+        }
+    }
+
+    protected void readMessages(Page page) throws IOException {
+        List<Message> messages = cursor == null ? Collections.emptyList() : cursor.next(MESSAGE_PAGE);
+        for (Message message : messages) {
+            page.lines.add(new MessageRecord(MessageRecord.Kind.SYNC, message));
+        }
+
+        if (messages.isEmpty() && ranges != null && messageRange != -1) {
+            messageRange = ranges.nextSetBit(messageRange + 1);
+            if (messageRange != -1) {
+                cursor = MessageLog.getInstance().cursor(digest.before(messageRange), digest.last(messageRange));
+                return;
+            }
+        }
+
+        if (messages.isEmpty()) {
+            page.lines.add(Node.MESSAGES_END);
+            page.phase = Phase.OWNERS;
+            if (end != Phase.OWNERS) {
+                page.lines.add(Node.OWNERS);
+            }
+        }
+    }
+
+    protected void readOwners(Page page) {
+        List<Map.Entry<UUID, UUID>> owners = Collections.emptyList();
+        if (ranges == null) {
+            owners = MessageLog.getInstance().getUuidToOwner().next(lastOwner, OWNER_PAGE);
+        } else if (ownerRange != -1) {
+            owners = MessageLog.getInstance().getUuidToOwner().next(lastOwner, digest.last(ownerRange), OWNER_PAGE);
+        }
+
+        for (Map.Entry<UUID, UUID> entry : owners) {
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append(Node.OWNER);
+            stringBuilder.append(" ");
+            stringBuilder.append(entry.getKey());
+            stringBuilder.append(" ");
+            stringBuilder.append(entry.getValue());
+
+            page.lines.add(stringBuilder.toString());
+            lastOwner = entry.getKey();
+        }
+
+        if (owners.isEmpty() && ranges != null && ownerRange != -1) {
+            ownerRange = ranges.nextSetBit(ownerRange + 1);
+            if (ownerRange != -1) {
+                lastOwner = digest.before(ownerRange);
+                return;
+            }
+        }
+
+        if (owners.isEmpty()) {
+            page.lines.add(Node.OWNERS_END);
+            page.phase = Phase.DONE;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.UncheckedLtsllcException;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.alarm.AlarmClock;
+import com.ltsllc.miranda.alarm.Alarmable;
+import com.ltsllc.miranda.alarm.Alarms;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A long-lived writer that appends lines to a logfile
+ *
+ * <P>
+ * The logging classes used to open a FileWriter, write one line and close it again for every record.  This class
+ * keeps a FileChannel open instead and keeps track of where the end of the file is, so appending a record is one
+ * write and the caller gets the record's location without asking the file system for the length of the file.
+ * </P>
+ * <P>
+ * How hard the class tries to make a record durable is controlled by its Durability:
+ * </P>
+ * <TABLE border="1">
+ *     <TR>
+ *         <TH>Durability</TH>
+ *         <TH>Meaning</TH>
+ *     </TR>
+ *     <TR>
+ *         <TD>sync</TD>
+ *         <TD>every append is forced to disk before it returns</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>group</TD>
+ *         <TD>appends are forced to disk together, once groupCommitRecords records have been written or
+ *         groupCommitPeriod milliseconds have passed since the first unforced record, whichever comes first</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>buffered</TD>
+ *         <TD>appends are handed to the operating system and never explicitly forced; this is what the old
+ *         FileWriter code did</TD>
+ *     </TR>
+ * </TABLE>
+ * <P>
+ * A caller that is writing several records as a unit can bracket them with beginBatch and endBatch.  Inside a batch
+ * nothing is forced; endBatch then forces the whole batch at once unless the durability is buffered.
+ * </P>
+ * <P>
+ * The channel is opened on the first append.  Anyone who is going to delete, rename or truncate the file must call
+ * close first; the next append opens the file again and picks up its new length.
+ * </P>
+ */
+public class AppendWriter implements Alarmable {
+    public static final Logger logger = LogManager.getLogger(AppendWriter.class);
+
+    public enum Durability {
+        sync,
+        group,
+        buffered
+    }
+
+    /**
+     * The file we append to
+     */
+    protected File file;
+
+    /**
+     * The open channel or null if the file is not open
+     */
+    protected FileChannel channel;
+
+    /**
+     * The position of the end of the file, which is where the next record will go
+     */
+    protected long position;
+
+    protected Durability durability;
+
+    /**
+     * In group mode, how long (in milliseconds) a record can wait before it is forced
+     */
+    protected long groupCommitPeriod;
+
+    /**
+     * In group mode, how many records can wait before they are forced
+     */
+    protected int groupCommitRecords;
+
+    /**
+     * The number of records that have been written but not forced
+     */
+    protected int unforced = 0;
+
+    /**
+     * Is there a GROUP_COMMIT alarm outstanding?
+     */
+    protected boolean alarmSet = false;
+
+    /**
+     * How many beginBatch calls have not been matched by an endBatch
+     */
+    protected int batchDepth = 0;
+
+    /**
+     * Create a writer that uses the durability settings from the properties
+     *
+     * @param file The file to append to.
+     */
+    public AppendWriter(File file) {
+        this(file, getDefaultDurability(), getLongProperty(Miranda.PROPERTY_LOG_GROUP_COMMIT_PERIOD,
+                Miranda.PROPERTY_DEFAULT_LOG_GROUP_COMMIT_PERIOD),
+                (int) getLongProperty(Miranda.PROPERTY_LOG_GROUP_COMMIT_RECORDS,
+                        Miranda.PROPERTY_DEFAULT_LOG_GROUP_COMMIT_RECORDS));
+    }
+
+    public AppendWriter(File file, Durability durability, long groupCommitPeriod, int groupCommitRecords) {
+        this.file = file;
+        this.durability = durability;
+        this.groupCommitPeriod = groupCommitPeriod;
+        this.groupCommitRecords = groupCommitRecords;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Return the location where the next record will go
+     *
+     * @return The position of the end of the file.
+     * @throws IOException If there is a problem opening the file.
+     */
+    public synchronized long getPosition() throws IOException {
+        open();
+        return position;
+    }
+
+    /**
+     * Append a line to the file
+     *
+     * <P>
+     * A newline is written after the line.
+     * </P>
+     *
+     * @param line The line to append.
+     * @return The location of the start of the line in the file.
+     * @throws IOException If there is a problem writing to the file.
+     */
+    public synchronized long append(String line) throws IOException {
+        open();
+
+        byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        long location = position;
+
+        while (byteBuffer.hasRemaining()) {
+            position += channel.write(byteBuffer, position);
+        }
+
+        unforced++;
+        commit();
+
+        return location;
+    }
+
+    /**
+     * Start a batch
+     *
+     * <P>
+     * Records appended until the matching endBatch are not forced individually.
+     * </P>
+     */
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * End a batch
+     *
+     * <P>
+     * When the outermost batch ends, everything in it is forced to disk unless the durability is buffered.
+     * </P>
+     *
+     * @throws IOException If there is a problem forcing the file.
+     */
+    public synchronized void endBatch() throws IOException {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+
+        if (batchDepth == 0) {
+            if (durability == Durability.buffered) {
+                unforced = 0;
+            } else {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Force anything that has been written to disk
+     *
+     * @throws IOException If there is a problem forcing the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (channel != null && unforced > 0) {
+            channel.force(false);
+        }
+
+        unforced = 0;
+    }
+
+    /**
+     * Force and close the file
+     *
+     * <P>
+     * The next append will open the file again.
+     * </P>
+     *
+     * @throws IOException If there is a problem closing the file.
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * The group commit period has passed: force whatever is waiting
+     *
+     * @param alarm The alarm, this should be GROUP_COMMIT.
+     */
+    @Override
+    public synchronized void alarm(Alarms alarm) throws IOException {
+        if (alarm != Alarms.GROUP_COMMIT) {
+            throw new UncheckedLtsllcException("alarm called with " + alarm);
+        }
+
+        alarmSet = false;
+        flush();
+    }
+
+    protected void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        position = channel.size();
+    }
+
+    /**
+     * Do whatever the durability mode calls for after a record has been written
+     */
+    protected void commit() throws IOException {
+        if (batchDepth > 0) {
+            return;
+        }
+
+        switch (durability) {
+            case sync: {
+                flush();
+                break;
+            }
+
+            case group: {
+                if (unforced >= groupCommitRecords) {
+                    flush();
+                } else if (!alarmSet) {
+                    alarmSet = true;
+                    AlarmClock.getInstance().scheduleOnce(this, Alarms.GROUP_COMMIT, groupCommitPeriod);
+                }
+                break;
+            }
+
+            case buffered: {
+                unforced = 0;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return the durability called for by the properties
+     *
+     * @return The durability from PROPERTY_LOG_DURABILITY or the default if the properties haven't been loaded.
+     */
+    public static Durability getDefaultDurability() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_LOG_DURABILITY);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_LOG_DURABILITY;
+        }
+
+        return Durability.valueOf(value.toLowerCase());
+    }
+
+    protected static long getLongProperty(String name, String defaultValue) {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(name) == null) {
+            return Long.parseLong(defaultValue);
+        }
+
+        return properties.getLongProperty(name);
+    }
+}
@@ -0,0 +1,113 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+
+import java.util.UUID;
+
+/**
+ * Decides which in-memory message a LoggingCache moves to disk when it needs room
+ *
+ * <P>
+ * The cache tells the policy when a message comes into memory (admit), when it is referenced (access) and when it
+ * leaves memory (remove); the policy answers which message should go next (victim).  Each of these is O(1) or
+ * O(log n) so that a cache running near its load limit doesn't pay for a sort on every add.
+ * </P>
+ * <P>
+ * Which policy a cache uses is controlled by PROPERTY_CACHE_EVICTION_POLICY:
+ * </P>
+ * <TABLE border="1">
+ *     <TR><TH>Value</TH><TH>Policy</TH></TR>
+ *     <TR><TD>lfu</TD><TD>LfuEvictionPolicy, the least frequently referenced message goes first</TD></TR>
+ *     <TR><TD>slru</TD><TD>SegmentedLruEvictionPolicy, a recency based policy that protects messages that have been
+ *     referenced more than once</TD></TR>
+ * </TABLE>
+ */
+public interface EvictionPolicy {
+    /**
+     * A message has come into memory
+     *
+     * @param uuid            The message.
+     * @param timesReferenced How many times the message has been referenced so far.
+     */
+    void admit(UUID uuid, int timesReferenced);
+
+    /**
+     * An in-memory message has been referenced
+     *
+     * @param uuid The message.
+     */
+    void access(UUID uuid);
+
+    /**
+     * A message has left memory
+     *
+     * <P>
+     * Removing a message the policy doesn't know about does nothing.
+     * </P>
+     *
+     * @param uuid The message.
+     */
+    void remove(UUID uuid);
+
+    /**
+     * Which message should be moved to disk next?
+     *
+     * <P>
+     * This does not remove the message from the policy; the cache calls remove when it actually moves it.
+     * </P>
+     *
+     * @return The message or null if the policy has no messages.
+     */
+    UUID victim();
+
+    /**
+     * The number of messages the policy knows about
+     */
+    int size();
+
+    /**
+     * Forget every message
+     */
+    void clear();
+
+    /**
+     * Create the policy called for by the properties
+     *
+     * @return A new instance of the policy named by PROPERTY_CACHE_EVICTION_POLICY or the default if the properties
+     * haven't been loaded.
+     */
+    static EvictionPolicy createDefault() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_CACHE_EVICTION_POLICY);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_CACHE_EVICTION_POLICY;
+        }
+
+        return create(value);
+    }
+
+    /**
+     * Create a policy given its name
+     *
+     * @param name The name of the policy, lfu or slru.
+     * @return A new instance of the policy.
+     * @throws IllegalArgumentException If the name is not one we know.
+     */
+    static EvictionPolicy create(String name) {
+        switch (name.toLowerCase()) {
+            case "lfu":
+                return new LfuEvictionPolicy();
+
+            case "slru":
+                return new SegmentedLruEvictionPolicy();
+
+            default:
+                throw new IllegalArgumentException("unknown eviction policy: " + name);
+        }
+    }
+}
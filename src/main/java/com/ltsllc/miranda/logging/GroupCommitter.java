@@ -0,0 +1,209 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.message.Message;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits the messages added to a MessageLog in groups
+ *
+ * <P>
+ * Callers submit a message and get back a future.  A single writer thread takes everything that has been submitted
+ * (up to MAX_BATCH records), writes the whole batch to the message log, the owners log and the events file with one
+ * force per file, and only then completes the futures.  A caller whose future has completed knows that its message
+ * has been logged.
+ * </P>
+ * <P>
+ * The writer thread is started when something is submitted and exits after it has been idle for IDLE_TIMEOUT
+ * milliseconds.
+ * </P>
+ */
+public class GroupCommitter implements Runnable {
+    public static final Logger logger = LogManager.getLogger(GroupCommitter.class);
+
+    /**
+     * The most records the writer will put into one batch
+     */
+    public static final int MAX_BATCH = 256;
+
+    /**
+     * How long (in milliseconds) the writer thread waits for work before it exits
+     */
+    public static final long IDLE_TIMEOUT = 1000;
+
+    /**
+     * A message that is waiting to be committed
+     */
+    public static class Pending {
+        public Message message;
+        public UUID owner;
+        public CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * Set by MessageLog.writeBatch once the message is on disk
+         */
+        public boolean appended = false;
+
+        /**
+         * Why the message couldn't be written, or null
+         */
+        public Throwable failure = null;
+
+        public Pending(Message message, UUID owner) {
+            this.message = message;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * The log we commit to
+     */
+    protected MessageLog messageLog;
+
+    protected BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * The writer thread or null if it isn't running
+     */
+    protected Thread thread = null;
+
+    public GroupCommitter(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    /**
+     * Submit a message to be committed
+     *
+     * @param message The message.
+     * @param owner   The owner of the message or null if the ownership information was previously entered.
+     * @return A future that completes when the message has been logged, or completes exceptionally if logging it
+     * failed.
+     */
+    public CompletableFuture<Void> submit(Message message, UUID owner) {
+        Pending pending = new Pending(message, owner);
+        queue.add(pending);
+        startIfNeeded();
+
+        return pending.future;
+    }
+
+    /**
+     * Is the current thread the writer thread?
+     *
+     * @return true if the caller is the writer thread.
+     */
+    public synchronized boolean isWriterThread() {
+        return thread == Thread.currentThread();
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    protected synchronized void startIfNeeded() {
+        if (thread == null) {
+            thread = new Thread(this, "group-commit");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Decide if the writer should exit
+     *
+     * <P>
+     * This is synchronized with startIfNeeded so that a submit that happens as the writer is exiting either gets
+     * picked up by this writer or starts a new one.
+     * </P>
+     */
+    protected synchronized boolean shouldExit() {
+        if (queue.isEmpty()) {
+            thread = null;
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void run() {
+        logger.debug("entering run");
+
+        while (true) {
+            List<Pending> batch = new ArrayList<>();
+
+            try {
+                Pending first = queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (shouldExit()) {
+                        break;
+                    } else {
+                        continue;
+                    }
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                logger.warn("group commit interrupted", e);
+                synchronized (this) {
+                    thread = null;
+                }
+                break;
+            }
+
+            commit(batch);
+        }
+
+        logger.debug("leaving run");
+    }
+
+    /**
+     * Write a batch and complete its futures
+     *
+     * @param batch The records to commit.
+     */
+    protected void commit(List<Pending> batch) {
+        commit(messageLog, batch);
+    }
+
+    /**
+     * Write a batch to a message log and complete each of its futures
+     *
+     * <P>
+     * Each future is completed on its own: a message that made it to disk completes normally even if something
+     * after it failed, and one that didn't completes with its own failure or, failing that, with whatever stopped
+     * the batch.
+     * </P>
+     *
+     * @param messageLog The log to write to.
+     * @param batch      The records to commit.
+     */
+    public static void commit(MessageLog messageLog, List<Pending> batch) {
+        Throwable batchFailure = null;
+        try {
+            messageLog.writeBatch(batch);
+        } catch (Throwable throwable) {
+            logger.error("exception committing " + batch.size() + " messages", throwable);
+            batchFailure = throwable;
+        }
+
+        for (Pending pending : batch) {
+            if (pending.appended) {
+                pending.future.complete(null);
+            } else if (pending.failure != null) {
+                pending.future.completeExceptionally(pending.failure);
+            } else {
+                pending.future.completeExceptionally(batchFailure);
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A copy of a LoggingCache's index on disk, so that a restart does not have to read the whole log
+ *
+ * <P>
+ * A snapshot is the message ID, location and next send of every message the cache knows about, tagged with the point in the
+ * log that it covers: the end of the active segment when the snapshot was taken.  Loading a snapshot and then
+ * indexing only the part of the log after that point gives the same index as indexing the whole log, since a later
+ * record for a message replaces an earlier one.
+ * </P>
+ * <P>
+ * The snapshot is only written right after the active segment has been compacted, because compaction is the only
+ * thing that moves records that are already in the log.  The old snapshot is deleted before compacting, so a crash
+ * in the middle leaves no snapshot rather than a wrong one.  The index is copied while the cache is locked but the
+ * file is written afterwards, so the cache is only held up for as long as it takes to copy a few arrays.
+ * </P>
+ * <P>
+ * A snapshot is ignored if it does not match the log: if it is damaged, if the record at the end of what it covers
+ * is not the one it expects, or if it covers more than is there.  In all these cases the caller just indexes the
+ * whole log.  Entries for segments that have since been removed are dropped, since every message in such a segment
+ * was removed.
+ * </P>
+ * <P>
+ * The file is the logfile with ".index" on the end and has the following format.
+ * </P>
+ * <TABLE border="1">
+ *     <TR>
+ *         <TH>Field</TH>
+ *         <TH>Size</TH>
+ *     </TR>
+ *     <TR>
+ *         <TD>MAGIC</TD>
+ *         <TD>4 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>VERSION</TD>
+ *         <TD>4 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>The location the snapshot covers up to</TD>
+ *         <TD>8 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>The location of the last record before that, or -1</TD>
+ *         <TD>8 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>The message ID of that record</TD>
+ *         <TD>16 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>The number of entries</TD>
+ *         <TD>4 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>Each entry: the message ID, location and next send</TD>
+ *         <TD>32 bytes</TD>
+ *     </TR>
+ *     <TR>
+ *         <TD>A CRC32 of everything before it</TD>
+ *         <TD>8 bytes</TD>
+ *     </TR>
+ * </TABLE>
+ * <P>
+ * A VERSION_1 snapshot, which has no next send in its entries, is still read; its entries get a next send of 0.
+ * </P>
+ */
+public class IndexSnapshot {
+    public static final Logger logger = LogManager.getLogger(IndexSnapshot.class);
+
+    public static final int MAGIC = 0x4D495853;
+
+    public static final int VERSION = 2;
+
+    /**
+     * The version before entries had a next send
+     */
+    public static final int VERSION_1 = 1;
+
+    public static final String SUFFIX = ".index";
+
+    protected ImprovedFile file;
+
+    /**
+     * The location covered by the last snapshot written or read, 0 if there wasn't one
+     */
+    protected long covered;
+
+    public IndexSnapshot(ImprovedFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Return the snapshot that goes with a logfile
+     *
+     * @param logfile The logfile.
+     * @return The snapshot.
+     */
+    public static IndexSnapshot forLog(ImprovedFile logfile) {
+        return new IndexSnapshot(new ImprovedFile(logfile.toString() + SUFFIX));
+    }
+
+    public ImprovedFile getFile() {
+        return file;
+    }
+
+    public long getCovered() {
+        return covered;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public void delete() {
+        covered = 0;
+        if (file.exists() && !file.delete()) {
+            logger.warn("could not delete " + file);
+        }
+    }
+
+    /**
+     * What goes in a snapshot, copied out of a table so that it can be written without holding on to the table
+     */
+    public static class Image {
+        protected long covered;
+        protected long lastLocation = -1;
+        protected UUID last = new UUID(0, 0);
+        protected int count;
+        protected long[] mostSignificant;
+        protected long[] leastSignificant;
+        protected long[] locations;
+        protected long[] nextSends;
+
+        public long getCovered() {
+            return covered;
+        }
+
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * Copy what goes in a snapshot out of a table
+     *
+     * <P>
+     * The snapshot covers everything in the log.  The caller must keep the table and the log from changing while
+     * this runs; writing the image can happen later.  Entries that are not in the log (location -1) are left out.
+     * </P>
+     *
+     * @param log   The log that the table is an index of.
+     * @param table The table.
+     * @return The image.
+     * @throws IOException If there is a problem flushing the log.
+     */
+    public static Image capture(SegmentedLog log, MessageTable table) throws IOException {
+        log.flush();
+
+        Image image = new Image();
+        int active = log.getActive();
+        long end = log.getActiveFile().exists() ? log.getActiveFile().length() : 0;
+        image.covered = SegmentedLog.toLocation(active, end);
+        image.mostSignificant = new long[table.size()];
+        image.leastSignificant = new long[table.size()];
+        image.locations = new long[table.size()];
+        image.nextSends = new long[table.size()];
+
+        for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+            long location = table.getLocation(slot);
+            if (location == -1) {
+                continue;
+            }
+
+            UUID uuid = table.getUuid(slot);
+            image.mostSignificant[image.count] = uuid.getMostSignificantBits();
+            image.leastSignificant[image.count] = uuid.getLeastSignificantBits();
+            image.locations[image.count] = location;
+            Message message = table.getMessage(slot);
+            image.nextSends[image.count] = message != null ? message.getNextSend() : table.getNextSend(slot);
+            image.count++;
+
+            if (SegmentedLog.segmentOf(location) == active && location > image.lastLocation) {
+                image.lastLocation = location;
+                image.last = uuid;
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Write a snapshot of a table
+     *
+     * @param log   The log that the table is an index of.
+     * @param table The table.
+     * @throws IOException If there is a problem writing the snapshot.
+     */
+    public void write(SegmentedLog log, MessageTable table) throws IOException {
+        write(capture(log, table));
+    }
+
+    /**
+     * Write a snapshot
+     *
+     * <P>
+     * The snapshot is written to a temporary file that then replaces the old one.
+     * </P>
+     *
+     * @param image What to write.
+     * @throws IOException If there is a problem writing the snapshot.
+     */
+    public void write(Image image) throws IOException {
+        logger.debug("entering write with " + file);
+
+        ImprovedFile temp = new ImprovedFile(file.toString() + ".temp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(image.covered);
+            out.writeLong(image.lastLocation);
+            out.writeLong(image.last.getMostSignificantBits());
+            out.writeLong(image.last.getLeastSignificantBits());
+            out.writeInt(image.count);
+
+            for (int i = 0; i < image.count; i++) {
+                out.writeLong(image.mostSignificant[i]);
+                out.writeLong(image.leastSignificant[i]);
+                out.writeLong(image.locations[i]);
+                out.writeLong(image.nextSends[i]);
+            }
+
+            out.flush();
+            out.writeLong(crc.getValue());
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        covered = image.covered;
+
+        logger.debug("leaving write with " + image.count + " entries");
+    }
+
+    /**
+     * Read the snapshot if it matches the log
+     *
+     * @param log The log that the snapshot is of.
+     * @return The entries of the snapshot as a single chunk, or null if there is no snapshot or it doesn't match
+     * the log.  getCovered says where in the log the snapshot leaves off.
+     * @throws IOException If there is a problem flushing the log.
+     */
+    public LogIndexer.Chunk read(SegmentedLog log) throws IOException {
+        covered = 0;
+        if (!file.exists()) {
+            return null;
+        }
+
+        log.flush();
+
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), crc))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != VERSION && version != VERSION_1) {
+                logger.warn(file + " is not an index snapshot, ignoring it");
+                return null;
+            }
+
+            long newCovered = in.readLong();
+            long lastLocation = in.readLong();
+            UUID lastUuid = new UUID(in.readLong(), in.readLong());
+
+            if (!matches(log, newCovered, lastLocation, lastUuid)) {
+                logger.warn(file + " does not match " + log.getFile() + ", ignoring it");
+                return null;
+            }
+
+            Set<Integer> segments = new HashSet<>(log.getSegments());
+            int count = in.readInt();
+            LogIndexer.Chunk chunk = new LogIndexer.Chunk(-1, 0, newCovered);
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                long location = in.readLong();
+                long nextSend = version == VERSION_1 ? 0 : in.readLong();
+
+                int segment = SegmentedLog.segmentOf(location);
+                if (segments.contains(segment)
+                        && SegmentedLog.offsetOf(location) < log.getSegmentFile(segment).length()) {
+                    chunk.add(uuid, location, nextSend);
+                }
+            }
+
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                logger.warn(file + " is damaged, ignoring it");
+                return null;
+            }
+
+            covered = newCovered;
+            logger.debug("read " + chunk.size() + " entries from " + file);
+            return chunk;
+        } catch (EOFException e) {
+            logger.warn(file + " is truncated, ignoring it");
+            return null;
+        }
+    }
+
+    /**
+     * Does the log still have what the snapshot says it covers?
+     *
+     * <P>
+     * If the segment the snapshot ends in is gone then every message in it was removed, which is fine as long as
+     * the log has gone on to a later segment.  Otherwise the segment must be at least as long as it was and the
+     * last record the snapshot covers must still be there.
+     * </P>
+     */
+    protected boolean matches(SegmentedLog log, long newCovered, long lastLocation, UUID lastUuid)
+            throws IOException {
+        int segment = SegmentedLog.segmentOf(newCovered);
+        if (!log.getSegments().contains(segment)) {
+            return log.getActive() > segment;
+        }
+
+        if (log.getSegmentFile(segment).length() < SegmentedLog.offsetOf(newCovered)) {
+            return false;
+        }
+
+        if (lastLocation == -1) {
+            return true;
+        }
+
+        try {
+            return lastUuid.equals(MessageCodec.readMessageID(log.readLine(lastLocation)));
+        } catch (IOException | RuntimeException e) {
+            logger.debug("could not read the last record covered by " + file, e);
+            return false;
+        }
+    }
+}
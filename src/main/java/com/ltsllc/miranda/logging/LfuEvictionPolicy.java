@@ -0,0 +1,84 @@
+package com.ltsllc.miranda.logging;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Least frequently used eviction
+ *
+ * <P>
+ * The messages are kept in buckets by the number of times they have been referenced.  The victim is the oldest
+ * message in the lowest bucket, so among messages that have been referenced the same number of times the one that
+ * reached that count first goes first.  A reference moves a message up one bucket, which costs O(log f) where f is
+ * the number of distinct reference counts.
+ * </P>
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+    /**
+     * The number of times each message has been referenced
+     */
+    protected Map<UUID, Integer> uuidToFrequency = new HashMap<>();
+
+    /**
+     * Messages by the number of times they have been referenced, oldest first within a bucket
+     */
+    protected TreeMap<Integer, LinkedHashSet<UUID>> buckets = new TreeMap<>();
+
+    @Override
+    public void admit(UUID uuid, int timesReferenced) {
+        remove(uuid);
+        uuidToFrequency.put(uuid, timesReferenced);
+        buckets.computeIfAbsent(timesReferenced, frequency -> new LinkedHashSet<>()).add(uuid);
+    }
+
+    @Override
+    public void access(UUID uuid) {
+        Integer frequency = uuidToFrequency.get(uuid);
+        if (frequency == null) {
+            return;
+        }
+
+        removeFromBucket(uuid, frequency);
+        uuidToFrequency.put(uuid, frequency + 1);
+        buckets.computeIfAbsent(frequency + 1, f -> new LinkedHashSet<>()).add(uuid);
+    }
+
+    @Override
+    public void remove(UUID uuid) {
+        Integer frequency = uuidToFrequency.remove(uuid);
+        if (frequency != null) {
+            removeFromBucket(uuid, frequency);
+        }
+    }
+
+    @Override
+    public UUID victim() {
+        if (buckets.isEmpty()) {
+            return null;
+        }
+
+        return buckets.firstEntry().getValue().iterator().next();
+    }
+
+    @Override
+    public int size() {
+        return uuidToFrequency.size();
+    }
+
+    @Override
+    public void clear() {
+        uuidToFrequency.clear();
+        buckets.clear();
+    }
+
+    protected void removeFromBucket(UUID uuid, int frequency) {
+        LinkedHashSet<UUID> bucket = buckets.get(frequency);
+        bucket.remove(uuid);
+        if (bucket.isEmpty()) {
+            buckets.remove(frequency);
+        }
+    }
+}
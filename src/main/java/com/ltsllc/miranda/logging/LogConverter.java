@@ -0,0 +1,102 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Convert a message logfile between the text and binary formats
+ *
+ * <P>
+ * The system reads either format no matter what PROPERTY_MESSAGE_LOG_FORMAT is set to, so this isn't needed to
+ * switch formats; it is for converting an existing log all at once, for example before going back to a version that
+ * only understands the text format.  It must be run while the system is stopped: it rewrites every segment of the
+ * log and the locations of the records change.  The index snapshot holds the old locations, so it is deleted before
+ * anything is rewritten and the locations are rebuilt from the records when the log is next loaded.
+ * </P>
+ * <P>
+ * Usage: LogConverter &lt;logfile&gt; text|binary
+ * </P>
+ */
+public class LogConverter {
+    protected static final Logger logger = LogManager.getLogger(LogConverter.class);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: LogConverter <logfile> text|binary");
+            System.exit(1);
+        }
+
+        ImprovedFile file = new ImprovedFile(args[0]);
+        MessageCodec.Format format = MessageCodec.Format.valueOf(args[1].toLowerCase());
+        long count = convert(file, format);
+        System.out.println("converted " + count + " records in " + file);
+    }
+
+    /**
+     * Convert every segment of a logfile
+     *
+     * @param file   The logfile (segment 0).
+     * @param format The format to convert to.
+     * @return The number of records written.
+     * @throws IOException If there is a problem reading or writing the files.
+     */
+    public static long convert(ImprovedFile file, MessageCodec.Format format) throws IOException {
+        logger.debug("entering convert with " + file + " and " + format);
+        IndexSnapshot.forLog(file).delete();
+
+        long count = 0;
+        for (ImprovedFile segment : SegmentedLog.getSegmentFiles(file)) {
+            count += convertSegment(segment, format);
+        }
+
+        logger.debug("leaving convert with " + count);
+        return count;
+    }
+
+    /**
+     * Convert one file
+     *
+     * <P>
+     * The converted records go to a temporary file which then replaces the original, so the original is left alone
+     * if something goes wrong.
+     * </P>
+     */
+    protected static long convertSegment(ImprovedFile segment, MessageCodec.Format format) throws IOException {
+        ImprovedFile temp = new ImprovedFile(segment.toString() + ".converting");
+        long count = 0;
+
+        try (BufferedReader bufferedReader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(segment), StandardCharsets.UTF_8));
+             BufferedWriter bufferedWriter = new BufferedWriter(
+                     new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                Message message = Message.readLongFormat(line);
+                bufferedWriter.write(MessageCodec.toRecord(message, format));
+                bufferedWriter.newLine();
+                count++;
+            }
+        }
+
+        Files.move(temp.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        return count;
+    }
+}
@@ -0,0 +1,340 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.message.MessageCodec;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Build the index of a message log on several threads
+ *
+ * <P>
+ * Each segment of the log is split into chunks of about the same size.  A chunk holds every record that starts in
+ * it, so a task scanning a chunk skips the end of the record that started before it and finishes the last record
+ * that starts in it, and the chunks can be scanned independently on a ForkJoinPool.  Only the start of each record
+ * is looked at, enough for MessageCodec.readMessageID and MessageCodec.readNextSend, so the contents are never
+ * decoded.
+ * </P>
+ * <P>
+ * The result is a list of chunks in log order, each with the message IDs, locations and next send times of its
+ * records in the order they appear.  Merging them in that order gives the same answer as reading the log front to back: a later record
+ * for a message replaces an earlier one.
+ * </P>
+ */
+public class LogIndexer {
+    public static final Logger logger = LogManager.getLogger(LogIndexer.class);
+
+    /**
+     * Segments are not split into chunks smaller than this
+     */
+    public static final long MINIMUM_CHUNK = 1 << 20;
+
+    /**
+     * How much of the start of a record is kept for readMessageID and readNextSend
+     *
+     * <P>
+     * This always covers the next send of a binary record, and covers it in a text record unless the parameters and
+     * URLs are unusually long.  A record whose next send isn't in its prefix gets a next send of 0.
+     * </P>
+     */
+    public static final int PREFIX_LENGTH = 512;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The records of one part of a segment
+     */
+    public static class Chunk {
+        protected int segment;
+        protected long start;
+        protected long end;
+        protected int count;
+        protected long[] mostSignificant = new long[64];
+        protected long[] leastSignificant = new long[64];
+        protected long[] locations = new long[64];
+        protected long[] nextSends = new long[64];
+
+        public Chunk(int segment, long start, long end) {
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public UUID getMessageID(int index) {
+            return new UUID(mostSignificant[index], leastSignificant[index]);
+        }
+
+        public long getLocation(int index) {
+            return locations[index];
+        }
+
+        /**
+         * Return when the record says its message is next due
+         *
+         * @param index The record.
+         * @return The time, or 0 if it isn't known.
+         */
+        public long getNextSend(int index) {
+            return nextSends[index];
+        }
+
+        protected void add(UUID uuid, long location, long nextSend) {
+            if (count == locations.length) {
+                int length = 2 * count;
+                mostSignificant = Arrays.copyOf(mostSignificant, length);
+                leastSignificant = Arrays.copyOf(leastSignificant, length);
+                locations = Arrays.copyOf(locations, length);
+                nextSends = Arrays.copyOf(nextSends, length);
+            }
+
+            mostSignificant[count] = uuid.getMostSignificantBits();
+            leastSignificant[count] = uuid.getLeastSignificantBits();
+            locations[count] = location;
+            nextSends[count] = nextSend;
+            count++;
+        }
+    }
+
+    protected SegmentedLog log;
+    protected int parallelism;
+    protected long minimumChunk;
+
+    /**
+     * Construct a new instance
+     *
+     * @param log         The log to index.
+     * @param parallelism The number of threads to use.
+     */
+    public LogIndexer(SegmentedLog log, int parallelism) {
+        this(log, parallelism, MINIMUM_CHUNK);
+    }
+
+    public LogIndexer(SegmentedLog log, int parallelism, long minimumChunk) {
+        this.log = log;
+        this.parallelism = Math.max(1, parallelism);
+        this.minimumChunk = minimumChunk;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Index the log
+     *
+     * @return The chunks of the log, in order.
+     * @throws IOException If there is a problem reading the log.
+     */
+    public List<Chunk> index() throws IOException {
+        return index(0);
+    }
+
+    /**
+     * Index the part of the log from a location on
+     *
+     * <P>
+     * This is for when the index up to that location is already known, from an IndexSnapshot for example.  The
+     * location must be the start of a record or the end of a segment.
+     * </P>
+     *
+     * @param from Where to start.
+     * @return The chunks of the log after from, in order.
+     * @throws IOException If there is a problem reading the log.
+     */
+    public List<Chunk> index(long from) throws IOException {
+        logger.debug("entering index with parallelism " + parallelism + " from " + from);
+        log.flush();
+
+        List<Chunk> chunks = split(from);
+        if (parallelism == 1) {
+            for (Chunk chunk : chunks) {
+                scan(chunk);
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ScanTask(chunks, 0, chunks.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        logger.debug("leaving index with " + chunks.size() + " chunks");
+        return chunks;
+    }
+
+    /**
+     * Divide the segments, from a location on, into chunks
+     */
+    protected List<Chunk> split(long from) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (int segment : log.getSegments()) {
+            if (segment < SegmentedLog.segmentOf(from)) {
+                continue;
+            }
+
+            long first = segment == SegmentedLog.segmentOf(from) ? SegmentedLog.offsetOf(from) : 0;
+            long length = log.getSegmentFile(segment).length();
+            long chunkSize = Math.max(minimumChunk, (length - first + parallelism - 1) / parallelism);
+            for (long start = first; start < length; start += chunkSize) {
+                chunks.add(new Chunk(segment, start, Math.min(length, start + chunkSize)));
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Read the records that start in a chunk
+     *
+     * @param chunk The chunk.
+     * @throws IOException If there is a problem reading the segment.
+     */
+    protected void scan(Chunk chunk) throws IOException {
+        ImprovedFile file = log.getSegmentFile(chunk.segment);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] prefix = new byte[PREFIX_LENGTH];
+            int prefixLength = 0;
+
+            //
+            // a record starts after a newline, so unless the chunk starts the segment back up a byte and skip to the
+            // first newline
+            //
+            long position = chunk.start == 0 ? 0 : chunk.start - 1;
+            boolean skipping = chunk.start != 0;
+            long recordStart = chunk.start;
+
+            channel.position(position);
+            while (channel.read(byteBuffer) != -1) {
+                byteBuffer.flip();
+                while (byteBuffer.hasRemaining()) {
+                    byte b = byteBuffer.get();
+                    position++;
+
+                    if (b == '\n') {
+                        if (!skipping) {
+                            addRecord(chunk, recordStart, prefix, prefixLength);
+                        }
+
+                        skipping = false;
+                        prefixLength = 0;
+                        recordStart = position;
+                        if (recordStart >= chunk.end) {
+                            return;
+                        }
+                    } else if (!skipping && prefixLength < PREFIX_LENGTH) {
+                        prefix[prefixLength++] = b;
+                    }
+                }
+
+                byteBuffer.clear();
+            }
+
+            //
+            // the last record in the segment might not have a newline
+            //
+            if (!skipping) {
+                addRecord(chunk, recordStart, prefix, prefixLength);
+            }
+        }
+    }
+
+    protected void addRecord(Chunk chunk, long recordStart, byte[] prefix, int prefixLength) {
+        if (prefixLength > 0 && prefix[prefixLength - 1] == '\r') {
+            prefixLength--;
+        }
+
+        if (prefixLength == 0) {
+            return;
+        }
+
+        String line = new String(prefix, 0, prefixLength, StandardCharsets.UTF_8);
+        chunk.add(MessageCodec.readMessageID(line), SegmentedLog.toLocation(chunk.segment, recordStart),
+                MessageCodec.readNextSend(line));
+    }
+
+    /**
+     * Scan a range of chunks, splitting the range until there is one chunk per task
+     */
+    protected class ScanTask extends RecursiveAction {
+        protected List<Chunk> chunks;
+        protected int from;
+        protected int to;
+
+        public ScanTask(List<Chunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        scan(chunks.get(i));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            } else {
+                int middle = (from + to) / 2;
+                invokeAll(new ScanTask(chunks, from, middle), new ScanTask(chunks, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Return the number of threads called for by the properties
+     *
+     * @return The value of PROPERTY_RECOVERY_THREADS, or the number of processors if that is 0 or the properties
+     * haven't been loaded.
+     */
+    public static int getDefaultParallelism() {
+        PropertiesHolder properties = Miranda.getProperties();
+        int threads = 0;
+        if (properties != null && properties.getProperty(Miranda.PROPERTY_RECOVERY_THREADS) != null) {
+            threads = properties.getIntProperty(Miranda.PROPERTY_RECOVERY_THREADS);
+        }
+
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        return threads;
+    }
+}
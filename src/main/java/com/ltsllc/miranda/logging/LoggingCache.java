@@ -7,12 +7,14 @@ import com.ltsllc.miranda.Miranda;
 import com.ltsllc.miranda.alarm.AlarmClock;
 import com.ltsllc.miranda.alarm.Alarmable;
 import com.ltsllc.miranda.alarm.Alarms;
+import com.ltsllc.miranda.message.ContentStore;
 import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
+import com.ltsllc.miranda.properties.PropertiesHolder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -20,8 +22,9 @@ import java.util.*;
  * itself when asked.
  *
  * <P>
- * A logging cache logs all objects that it takes ownership of to a file.  It then keeps some of those objects in memory
- * using a most frequently used algorithm.  Finally, the class can rebuild itself from a past file.
+ * A logging cache logs all objects that it takes ownership of to a file.  It then keeps some of those objects in memory,
+ * using an EvictionPolicy to decide which ones to leave on disk when it runs out of room.  Finally, the class can
+ * rebuild itself from a past file.
  * </P>
  */
 public class LoggingCache implements Alarmable{
@@ -33,36 +36,50 @@ public class LoggingCache implements Alarmable{
     protected ImprovedFile file;
 
     /**
-     * A message's UUID to the message itself the "main" part of the cache
+     * The segments of the logfile, which is what we actually append to and read from
      */
-    protected TreeMap<UUID, Message> uuidToMessage = new TreeMap<>();
+    protected SegmentedLog log;
 
     /**
-     * A map from a message's UUID to the location in the file where it can be found
+     * Everything the cache knows about each message: where it is in the logfile, how many times it has been
+     * referenced and, if it is in memory, the message itself.  The table has an entry for every message the cache
+     * knows about, in memory or not, and it is in UUID order so that a Cursor can resume from the last UUID it
+     * returned.
      */
-    protected Map<UUID, Long> uuidToLocation = new HashMap<>();
+    protected MessageTable table = new MessageTable();
 
     /**
-     * A map from a message's UUID to whether or not it is in memory.  If a message's UUID is not in the map then the
-     * cache doesn't know anything about it.
+     * The maximum number of contents bytes that the cache may hold.  If the cache tries to store more than this then the
+     * cache will start leaving least referenced message on disk rather than in memory.
      */
-    protected Map<UUID, Boolean> uuidToInMemory = new HashMap<>();
+    protected int loadLimit = -1;
 
     /**
-     * A map from a message's UUID to the number of times it has been referenced
+     * How many bytes of contents the cache currently has loaded, this is always the sum of the contents lengths of the
+     * messages in memory
      */
-    protected Map<UUID, Integer> uuidToTimesReferenced = new HashMap<>();
+    protected int currentLoad = 0;
 
     /**
-     * The maximum number of contents bytes that the cache may hold.  If the cache tries to store more than this then the
-     * cache will start leaving least referenced message on disk rather than in memory.
+     * Decides which messages to move to disk, it knows about exactly the messages in memory
      */
-    protected int loadLimit = -1;
+    protected EvictionPolicy evictionPolicy = EvictionPolicy.createDefault();
 
     /**
-     * How many bytes of contents the cache currently has loaded
+     * Where the contents of the messages in memory are kept, null if they are left on the heap
      */
-    protected int currentLoad = 0;
+    protected ContentStore contentStore = ContentStore.createDefault();
+
+    /**
+     * The index as of the last compaction, so a restart only has to index the log after that
+     */
+    protected IndexSnapshot snapshot;
+
+    /**
+     * Held for the whole of a compaction so that only one runs at a time; the lock on the cache is only held for
+     * parts of it
+     */
+    protected final Object compactionLock = new Object();
 
     /**
      * Construct a new instance of the class
@@ -73,6 +90,8 @@ public class LoggingCache implements Alarmable{
      */
     public LoggingCache (ImprovedFile logfile, int loadLimit) {
         file = logfile;
+        log = new SegmentedLog(logfile);
+        snapshot = IndexSnapshot.forLog(logfile);
         this.loadLimit = loadLimit;
         setupCompaction();
 
@@ -83,44 +102,77 @@ public class LoggingCache implements Alarmable{
         }
     }
 
-    public void loadMessages() throws IOException {
-        if (!file.exists()) {
+    /**
+     * Read in the logfile
+     *
+     * <P>
+     * This happens in two passes.  First a LogIndexer finds the message ID and location of every record, reading
+     * the log on several threads (PROPERTY_RECOVERY_THREADS) and only looking at the start of each record, and the
+     * index is built from that.  If there is an IndexSnapshot that matches the log, the index starts out as the
+     * snapshot and only the part of the log after what the snapshot covers is read.  Then the log is read front to back, parsing the messages and keeping them in memory
+     * until one doesn't fit under the load limit; the rest are left on disk.  So the memory this takes is bounded by
+     * the load limit plus the index no matter how large the log is.  Every message is retained in the segmented log
+     * so that a segment is not removed while it still holds a message the cache knows about.
+     * </P>
+     * <P>
+     * A record for a message the cache already has replaces it, so this can be called again to rebuild the cache
+     * from the logfile.
+     * </P>
+     *
+     * @throws IOException If there is a problem reading the logfile.
+     */
+    public synchronized void loadMessages() throws IOException {
+        if (!log.exists()) {
             return;
         }
 
-        FileInputStream fis = null;
-        InputStreamReader inputStreamReader = null;
-        BufferedReader reader = null;
-        FileReader fileReader = null;
+        List<LogIndexer.Chunk> chunks = new ArrayList<>();
+        LogIndexer.Chunk snapshotted = snapshot.read(log);
+        if (snapshotted != null) {
+            chunks.add(snapshotted);
+        }
+        chunks.addAll(new LogIndexer(log, LogIndexer.getDefaultParallelism()).index(snapshot.getCovered()));
+
+        for (LogIndexer.Chunk chunk : chunks) {
+            for (int i = 0; i < chunk.size(); i++) {
+                UUID uuid = chunk.getMessageID(i);
+                long location = chunk.getLocation(i);
+                log.retain(location);
+                unload(uuid);
+
+                int slot = table.put(uuid);
+                if (table.getLocation(slot) != -1) {
+                    log.release(table.getLocation(slot));
+                }
+                table.setLocation(slot, location);
+                table.setNextSend(slot, chunk.getNextSend(i));
+                table.setReferences(slot, 0);
+            }
+        }
 
-        try {
-            fis = new FileInputStream(file);
-            inputStreamReader = new InputStreamReader(fis);
-            reader = new BufferedReader(inputStreamReader);
-            boolean notOverLoadLimit = true;
-            UUID uuid = null;
-
-            long location = 0;
-            for (String line = reader.readLine(); line != null && notOverLoadLimit && !line.equals("");line = reader.readLine()) {
-                Message newMessage = Message.readLongFormat(line);
-                currentLoad += newMessage.getContents().length;
-                uuidToMessage.put (newMessage.getMessageID(), newMessage);
-                FileChannel channel = fis.getChannel();
-                long position = channel.position();
-                uuidToLocation.put (newMessage.getMessageID(), position);
-                uuidToInMemory.put (newMessage.getMessageID(), true);
-                uuidToTimesReferenced.put (newMessage.getMessageID(), 0);
-                notOverLoadLimit = (loadLimit >= currentLoad);
+        log.forEach((location, line) -> {
+            int slot = table.find(MessageCodec.readMessageID(line));
+            if (slot == -1 || table.getLocation(slot) != location) {
+                return true;
             }
 
-            if (!notOverLoadLimit) {
-                remove(uuid);
+            Message newMessage = Message.readLongFormat(line);
+            if (loadLimit < currentLoad + newMessage.getContentLength()) {
+                return false;
             }
-        } finally {
-            if (reader != null) {
-                reader.close();
+
+            //
+            // a snapshot may know of a later next send than the record
+            //
+            if (table.getNextSend(slot) != 0) {
+                newMessage.setNextSend(table.getNextSend(slot));
             }
-        }
+
+            currentLoad += newMessage.getContentLength();
+            keep(slot, newMessage);
+            evictionPolicy.admit(newMessage.getMessageID(), 0);
+            return true;
+        });
     }
 
     public int getCurrentLoad() {
@@ -131,6 +183,18 @@ public class LoggingCache implements Alarmable{
         this.currentLoad = currentLoad;
     }
 
+    public IndexSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
     public int getLoadLimit() {
         return loadLimit;
     }
@@ -139,36 +203,80 @@ public class LoggingCache implements Alarmable{
         this.loadLimit = loadLimit;
     }
 
-    public Map<UUID, Integer> getUuidToTimesReferenced() {
-        return uuidToTimesReferenced;
+    public MessageTable getTable() {
+        return table;
     }
 
-    public void setUuidToTimesReferenced(Map<UUID, Integer> uuidToTimesReferenced) {
-        this.uuidToTimesReferenced = uuidToTimesReferenced;
+    /**
+     * A view of how many times each message has been referenced
+     *
+     * @return A read-only map with an entry for every message the cache knows about.
+     */
+    public Map<UUID, Integer> getUuidToTimesReferenced() {
+        return new TableView<>(false) {
+            @Override
+            protected Integer valueAt(int slot) {
+                return table.getReferences(slot);
+            }
+        };
     }
 
+    /**
+     * A view of whether each message is in memory
+     *
+     * @return A read-only map with an entry for every message the cache knows about.
+     */
     public Map<UUID, Boolean> getUuidToInMemory() {
-        return uuidToInMemory;
-    }
-
-    public void setUuidToInMemory(Map<UUID, Boolean> uuidToInMemory) {
-        this.uuidToInMemory = uuidToInMemory;
+        return new TableView<>(false) {
+            @Override
+            protected Boolean valueAt(int slot) {
+                return table.getMessage(slot) != null;
+            }
+        };
     }
 
+    /**
+     * A view of where each message is in the logfile
+     *
+     * <P>
+     * Removing a message from this map removes it from the cache, the same as undefine.
+     * </P>
+     *
+     * @return A map with an entry for every message the cache knows about, in UUID order.
+     */
     public Map<UUID, Long> getUuidToLocation() {
-        return uuidToLocation;
-    }
+        return new TableView<>(false) {
+            @Override
+            protected Long valueAt(int slot) {
+                return table.getLocation(slot);
+            }
 
-    public void setUuidToLocation(Map<UUID, Long> uuidToLocation) {
-        this.uuidToLocation = uuidToLocation;
-    }
+            @Override
+            public Long remove(Object key) {
+                synchronized (LoggingCache.this) {
+                    Long location = get(key);
+                    if (location != null) {
+                        undefine((UUID) key);
+                    }
 
-    public Map<UUID, Message> getUuidToMessage() {
-        return uuidToMessage;
+                    return location;
+                }
+            }
+        };
     }
 
-    public void setUuidToMessage(TreeMap<UUID, Message> uuidToMessage) {
-        this.uuidToMessage = uuidToMessage;
+    /**
+     * A view of the messages that are in memory
+     *
+     * @return A read-only map with an entry for every message that is in memory, in UUID order.
+     */
+    public Map<UUID, Message> getUuidToMessage() {
+        return new TableView<>(true) {
+            @Override
+            protected Message valueAt(int slot) {
+                return table.getMessage(slot);
+            }
+        };
     }
 
     public ImprovedFile getFile() {
@@ -176,7 +284,28 @@ public class LoggingCache implements Alarmable{
     }
 
     public void setFile(ImprovedFile file) {
+        close();
         this.file = file;
+        log = new SegmentedLog(file);
+    }
+
+    public SegmentedLog getLog() {
+        return log;
+    }
+
+    /**
+     * Close the logfile
+     *
+     * <P>
+     * Anything that has been written is forced to disk.  The next add will open the logfile again.
+     * </P>
+     */
+    public synchronized void close () {
+        try {
+            log.close();
+        } catch (IOException e) {
+            throw new UncheckedLtsllcException(e);
+        }
     }
 
 
@@ -187,7 +316,7 @@ public class LoggingCache implements Alarmable{
      * @return whether the value is outside the allowable range
      */
     public boolean outOfBounds (int value) {
-        if ((value > -1) && (value < uuidToInMemory.size())) {
+        if ((value > -1) && (value < table.size())) {
             return false;
         }
         else {
@@ -206,31 +335,22 @@ public class LoggingCache implements Alarmable{
         //
         // first add the message to the file
         //
-        FileWriter fileWriter = null;
-        BufferedWriter bufferedWriter = null;
-        Long location = null;
-
-        try {
-            location = file.length();
-            fileWriter = new FileWriter(file, true);
-            bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(message.longToString());
-            bufferedWriter.newLine();
-        } finally {
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
-            }
-
-            if (fileWriter != null) {
-                fileWriter.close();
-            }
+        long location = log.append(MessageCodec.toRecord(message));
+        long oldLocation = table.getLocation(message.getMessageID());
+        if (oldLocation != -1) {
+            log.release(oldLocation);
         }
 
+        //
+        // if we already had a copy of the message in memory, the new one replaces it
+        //
+        unload(message.getMessageID());
+
         //
         // if we will take too much space then migrate some messages to disk
         //
-        if (currentLoad + message.getContents().length > loadLimit) {
-            int desiredLoad = loadLimit - message.getContents().length;
+        if (currentLoad + message.getContentLength() > loadLimit) {
+            int desiredLoad = loadLimit - message.getContentLength();
             if (desiredLoad < 0) {
                 desiredLoad = loadLimit;
             }
@@ -240,17 +360,72 @@ public class LoggingCache implements Alarmable{
         //
         // then add it to the cache
         //
-        currentLoad += message.getContents().length;
-        uuidToMessage.put (message.getMessageID(), message);
-        uuidToLocation.put (message.getMessageID(), location);
-        uuidToInMemory.put (message.getMessageID(), true);
-        uuidToTimesReferenced.put (message.getMessageID(), 0);
+        currentLoad += message.getContentLength();
+        int slot = table.put(message.getMessageID());
+        keep(slot, message);
+        table.setLocation(slot, location);
+        table.setNextSend(slot, message.getNextSend());
+        table.setReferences(slot, 0);
+        evictionPolicy.admit(message.getMessageID(), 0);
+    }
+
+    public synchronized void forceInMemory(Message message) {
+        unload(message.getMessageID());
+        currentLoad += message.getContentLength();
+        int slot = table.put(message.getMessageID());
+        keep(slot, message);
+        table.setReferences(slot, 0);
+        evictionPolicy.admit(message.getMessageID(), 0);
+    }
+
+    /**
+     * Take a message out of memory without marking it as being on disk
+     *
+     * <P>
+     * This keeps currentLoad and the eviction policy in step with the messages in the table, and gives up the
+     * message's space in the content store if there is one.  It does nothing if the message isn't in memory.
+     * </P>
+     *
+     * @param uuid The message.
+     * @return The message that was in memory or null if there wasn't one.
+     */
+    protected Message unload(UUID uuid) {
+        int slot = table.find(uuid);
+        if (slot == -1) {
+            return null;
+        }
+
+        Message message = table.getMessage(slot);
+        if (message != null) {
+            table.setNextSend(slot, message.getNextSend());
+            table.setMessage(slot, null);
+            currentLoad -= message.getContentLength();
+            evictionPolicy.remove(uuid);
+            if (contentStore != null) {
+                message.releaseContents();
+            }
+        }
+
+        return message;
     }
 
-    public void forceInMemory(Message message) {
-        uuidToMessage.put(message.getMessageID(), message);
-        uuidToInMemory.put(message.getMessageID(), true);
-        uuidToTimesReferenced.put(message.getMessageID(), 0);
+    /**
+     * Put a message in memory
+     *
+     * <P>
+     * If the cache has a content store, the message's contents are moved into it.  The caller takes care of
+     * currentLoad and the eviction policy.
+     * </P>
+     *
+     * @param slot    The message's slot in the table.
+     * @param message The message.
+     */
+    protected void keep(int slot, Message message) {
+        if (contentStore != null) {
+            message.moveContentsOffHeap(contentStore);
+        }
+
+        table.setMessage(slot, message);
     }
 
 
@@ -264,38 +439,47 @@ public class LoggingCache implements Alarmable{
         //
         // if we don't know of the message then say so
         //
-        if (uuidToLocation.get(uuid) == null) {
+        if (!table.contains(uuid)) {
             return null;
         }
 
         //
         // if the message is not in memory, then load it
         //
-        Message message = null;
-        if (!uuidToInMemory.get(uuid)) {
-            loadMessage(uuid);
-        }
+        Message message = loadMessage(uuid);
 
         //
         // increment the number of times referenced
         //
-        int numberOfTimesReferenced = uuidToTimesReferenced.get(uuid);
-        numberOfTimesReferenced++;
-        uuidToTimesReferenced.put (uuid, numberOfTimesReferenced);
+        int slot = table.find(uuid);
+        table.setReferences(slot, table.getReferences(slot) + 1);
+        evictionPolicy.access(uuid);
 
         //
         // finally, return the message
         //
-        return uuidToMessage.get(uuid);
+        return message;
     }
 
     public synchronized void clear() {
+        close();
+        if (contentStore != null) {
+            for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+                if (table.getMessage(slot) != null) {
+                    table.getMessage(slot).releaseContents();
+                }
+            }
+        }
+
         currentLoad = 0;
-        uuidToMessage.clear();
-        uuidToLocation.clear();
-        uuidToInMemory.clear();
-        uuidToTimesReferenced.clear();
-        file.clear();
+        table.clear();
+        evictionPolicy.clear();
+        snapshot.delete();
+        try {
+            log.clear();
+        } catch (IOException e) {
+            throw new UncheckedLtsllcException(e);
+        }
     }
 
     public static class CopyMessagesResult {
@@ -305,6 +489,11 @@ public class LoggingCache implements Alarmable{
     /**
      * Copy messages up to some limit
      *
+     * <P>
+     * This method skips restartIndexIn messages from the start on every call, so paging through the cache with it
+     * is O(n<sup>2</sup>).  Use a Cursor instead.
+     * </P>
+     *
      * @param limit The number of .content.length in the list
      * @return The resulting list, and the restartIndexIn value for the next call
      */
@@ -312,6 +501,7 @@ public class LoggingCache implements Alarmable{
         CopyMessagesResult copyMessagesResult = new CopyMessagesResult();
         copyMessagesResult.list = new ArrayList<>();
 
+        Map<UUID, Message> uuidToMessage = getUuidToMessage();
         Iterator<UUID> iter = uuidToMessage.keySet().iterator();
 
         int spaceUsed = 0;
@@ -341,10 +531,10 @@ public class LoggingCache implements Alarmable{
             copyMessagesResult.restartIndex++;
             Message m = uuidToMessage.get(u);
 
-            if ((spaceUsed + m.getContents().length) <= limit) {
+            if ((spaceUsed + m.getContentLength()) <= limit) {
                 copyMessagesResult.list.add(m);
                 copyMessagesResult.restartIndex = -1;
-                spaceUsed += m.getContents().length;
+                spaceUsed += m.getContentLength();
             } else {
                 break;
             }
@@ -355,24 +545,23 @@ public class LoggingCache implements Alarmable{
     }
 
     /**
-     * Move the least referenced message to disk
+     * Move messages to disk until the load is at or below a level
+     *
+     * <P>
+     * The eviction policy picks the messages, so each one costs O(1) or O(log n) instead of a sort of the whole
+     * cache.
+     * </P>
+     *
+     * @param desiredLoad The load to get down to.
      */
     public synchronized void migrateLeastReferencedMessagesToDisk(int desiredLoad) {
-        //
-        // sort the cache by number of times referenced
-        //
-        List<Message> list = new ArrayList<>(uuidToMessage.size());
-
-        int index = 0;
-        for (Message message : uuidToMessage.values()) {
-            list.add(index, message);
-        }
-
-        Collections.sort(list, new TimesReferencedComparator(uuidToTimesReferenced));
-
         while (currentLoad > desiredLoad) {
-            Message message = list.get(list.size() - 1);
-            moveMessageToDisk(message);
+            UUID victim = evictionPolicy.victim();
+            if (victim == null) {
+                break;
+            }
+
+            moveMessageToDisk(table.getMessage(table.find(victim)));
         }
     }
 
@@ -385,53 +574,72 @@ public class LoggingCache implements Alarmable{
      * @param message The message to be moved.
      */
     public synchronized void moveMessageToDisk(Message message) {
-        uuidToMessage.remove(message.getMessageID());
-        uuidToInMemory.put(message.getMessageID(), false);
-
-        currentLoad -= message.getContents().length;
+        unload(message.getMessageID());
     }
 
     /**
      * Load a message from disk to memory
      *
-     * This method affects the currentLoad and uuidToMessage.
+     * This method affects the currentLoad and the messages in memory.
      *
      * @param uuid The uuid of the message to load
      * @throws LtsllcException This method throws this exception if it doesn't recognize the UUID.
      * @throws IOException If there is a problem loading the message.
      */
     public synchronized Message loadMessage (UUID uuid) throws LtsllcException, IOException {
-        Long location = uuidToLocation.get(uuid);
+        int slot = table.find(uuid);
 
-        if (null == location) {
+        if (slot == -1) {
             throw new LtsllcException("message not found in loadMessage");
         }
 
-        Message message = null;
-        FileReader fileReader = null;
-        BufferedReader bufferedReader = null;
-        try {
-            fileReader = new FileReader(file);
-            bufferedReader = new BufferedReader(fileReader);
-            bufferedReader.skip(location);
-            String line = bufferedReader.readLine();
-            message = Message.readLongFormat(line);
-        } finally {
-            if (bufferedReader != null) {
-                bufferedReader.close();
-            }
-
-            if (fileReader != null) {
-                fileReader.close();
-            }
+        Message message = table.getMessage(slot);
+        if (message != null) {
+            return message;
         }
 
-        currentLoad += message.getContents().length;
-        if (currentLoad > loadLimit) {
-            
+        message = readMessageIn(slot);
+
+        currentLoad += message.getContentLength();
+        keep(slot, message);
+        evictionPolicy.admit(uuid, table.getReferences(slot));
+        return message;
+    }
+
+    /**
+     * Read the message at a location in the logfile
+     *
+     * <P>
+     * This method does not change what is in memory.  The location says which segment the record is in and where in
+     * that segment it starts, so only the one record is read no matter how large the logfile is.
+     * </P>
+     *
+     * @param location The location of the message in the logfile.
+     * @return The message at that location.
+     * @throws IOException If there is a problem reading the logfile.
+     */
+    protected Message readMessageAt (long location) throws IOException {
+        return Message.readLongFormat(log.readLine(location));
+    }
+
+    /**
+     * Read the message in a slot from the logfile
+     *
+     * <P>
+     * The record has the next send from when the message was logged, but the message may have been sent since then;
+     * the table has the next send from when it last left memory, so that is the one it gets.
+     * </P>
+     *
+     * @param slot The message's slot in the table.
+     * @return The message.
+     * @throws IOException If there is a problem reading the logfile.
+     */
+    protected Message readMessageIn (int slot) throws IOException {
+        Message message = readMessageAt(table.getLocation(slot));
+        if (table.getNextSend(slot) != 0) {
+            message.setNextSend(table.getNextSend(slot));
         }
-        uuidToInMemory.put (uuid, true);
-        uuidToMessage.put (uuid, message);
+
         return message;
     }
 
@@ -441,34 +649,40 @@ public class LoggingCache implements Alarmable{
      * @param uuid The message to be removed
      */
     public synchronized void remove (UUID uuid) {
-        if (null == uuidToLocation.get(uuid)) {
+        if (!table.contains(uuid)) {
             return;
         }
 
-        Message message = uuidToMessage.get(uuid);
-        uuidToMessage.remove(uuid);
-        if (message != null) {
-            currentLoad -= message.getContents().length;
-        }
-
-        uuidToInMemory.remove(uuid);
-        uuidToTimesReferenced.remove(uuid);
-        uuidToLocation.remove(uuid);
+        undefine(uuid);
     }
 
     /**
      * Compact the logfile by keeping out the messages not in the system
      * <P>
-     *     A message is not part of the system if it does not appear in any of the uuidTo variables, which happens when
-     *     a message is delivered.
+     *     A message is not part of the system if it does not appear in the table, which happens when a message is
+     *     delivered.
+     * <P>
+     *     Sealed segments are removed by the segmented log as soon as the last message in them is removed.  Until
+     *     then a sealed segment keeps the records of the messages removed from it, and those would come back if the
+     *     log were indexed without a snapshot, so once PROPERTY_COMPACTION_DEAD_PERCENT of the records in a sealed
+     *     segment are dead it is compacted as well.
+     * <P>
+     *     Each segment is compacted with a SegmentedLog.Compaction, which only holds the lock on the cache at the
+     *     start and the end.  At the start it notes the locations of the messages in the table.  The records at those locations are then copied to a temporary file while messages continue to be
+     *     added and read.  At the end, with the lock held again, the records added in the meantime are copied over,
+     *     the temporary file replaces the segment and the locations in the table are moved to match.
      * <P>
-     *     This method works by going through the logfile and copying those messages that are referenced elsewhere to
-     *     another, temporary file.  The original logfile is then deleted and then the temporary file is renamed to the
-     *     logfile.
+     *     A message whose record was not copied, because it was read back in from the logfile while the copy was
+     *     going on, would be lost, so in that case the copy is thrown away and the segment is left as it was until
+     *     the next compaction.  Messages removed while the copy was going on are still in the new segment, and are
+     *     dropped by the next compaction.
+     * <P>
+     *     Afterwards the index is written to an IndexSnapshot, so that a restart only has to read the log written
+     *     since.  The old snapshot is deleted first since compacting moves the records it points to.
      *
      * @throws IOException If there is a problem reading or writing a file.
      */
-    public synchronized void compact () throws IOException {
+    public void compact () throws IOException {
         logger.debug("entering compact");
 
         ImprovedFile messages = new ImprovedFile(Miranda.getProperties().getProperty(Miranda.PROPERTY_MESSAGE_LOG));
@@ -479,50 +693,121 @@ public class LoggingCache implements Alarmable{
             return;
         }
 
-        FileReader fileReader = null;
-        BufferedReader bufferedReader = null;
-        FileWriter fileWriter = null;
-        BufferedWriter bufferedWriter = null;
-        String outputFileName = file.toString() + ".temp";
-        ImprovedFile outputFile = new ImprovedFile(outputFileName);
+        synchronized (compactionLock) {
+            SegmentedLog.Compaction compaction;
+            synchronized (this) {
+                snapshot.delete();
+                compaction = log.beginCompaction(getKeep());
+            }
 
-        try {
-            fileReader = new FileReader(file);
-            bufferedReader = new BufferedReader(fileReader);
-            fileWriter = new FileWriter(outputFile);
-            bufferedWriter = new BufferedWriter(fileWriter);
-
-            for (java.lang.String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-                Message message = Message.readLongFormat(line);
-                if (null != uuidToLocation.get(message.getMessageID())) {
-                    long location = file.length();
-                    uuidToLocation.put(message.getMessageID(), location);
-                    bufferedWriter.write(line);
-                    bufferedWriter.newLine();
+            runCompaction(compaction);
+
+            for (int segment : log.getSparseSegments(getCompactionDeadPercent())) {
+                synchronized (this) {
+                    compaction = log.beginCompaction(segment, getKeep());
                 }
+
+                runCompaction(compaction);
             }
-        } finally {
-            if (bufferedReader != null) {
-                bufferedReader.close();
+
+            IndexSnapshot.Image image;
+            synchronized (this) {
+                image = IndexSnapshot.capture(log, table);
             }
 
-            if (fileReader != null) {
-                fileReader.close();
+            try {
+                snapshot.write(image);
+            } catch (IOException e) {
+                logger.error("error writing " + snapshot.getFile() + ", the next restart will read the whole log", e);
+                snapshot.delete();
             }
+        }
 
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
+        logger.debug("leaving compact");
+    }
+
+    /**
+     * Return the locations of the messages in the table
+     *
+     * <P>
+     * This must be called with the lock on the cache held.
+     * </P>
+     */
+    protected long[] getKeep() {
+        long[] keep = new long[table.size()];
+        int count = 0;
+        for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+            if (table.getLocation(slot) != -1) {
+                keep[count++] = table.getLocation(slot);
             }
+        }
+
+        return Arrays.copyOf(keep, count);
+    }
+
+    /**
+     * Copy the records of a compaction without the lock on the cache and then finish it with the lock held
+     *
+     * @param compaction The compaction, or null if there is nothing to compact.
+     * @throws IOException If there is a problem reading or writing the segment.
+     */
+    protected void runCompaction(SegmentedLog.Compaction compaction) throws IOException {
+        if (compaction == null) {
+            return;
+        }
+
+        try {
+            compaction.copy();
+        } catch (IOException e) {
+            compaction.abandon();
+            throw e;
+        }
+
+        synchronized (this) {
+            finishCompaction(compaction);
+        }
+    }
+
+    /**
+     * The percentage of the records in a sealed segment that must be dead before compact copies it
+     *
+     * @return The value of PROPERTY_COMPACTION_DEAD_PERCENT or the default if the properties haven't been loaded.
+     */
+    public static int getCompactionDeadPercent() {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(Miranda.PROPERTY_COMPACTION_DEAD_PERCENT) == null) {
+            return Integer.parseInt(Miranda.PROPERTY_DEFAULT_COMPACTION_DEAD_PERCENT);
+        }
+
+        return properties.getIntProperty(Miranda.PROPERTY_COMPACTION_DEAD_PERCENT);
+    }
 
-            if (fileWriter != null) {
-                fileWriter.close();
+    /**
+     * Replace the compacted segment and move the locations in the table to match
+     *
+     * <P>
+     * This must be called with the lock on the cache held.
+     * </P>
+     */
+    protected void finishCompaction(SegmentedLog.Compaction compaction) throws IOException {
+        for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+            if (table.getLocation(slot) != -1 && compaction.relocate(table.getLocation(slot)) == -1) {
+                logger.debug("the table changed during compaction, leaving segment " + compaction.getSegment());
+                compaction.abandon();
+                return;
             }
         }
 
-        file.delete();
-        outputFile.renameTo(file);
+        if (!compaction.finish()) {
+            logger.debug("segment " + compaction.getSegment() + " changed during compaction, leaving it");
+            return;
+        }
 
-        logger.debug("leaving compact");
+        for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+            if (table.getLocation(slot) != -1) {
+                table.setLocation(slot, compaction.relocate(table.getLocation(slot)));
+            }
+        }
     }
 
     /**
@@ -533,72 +818,29 @@ public class LoggingCache implements Alarmable{
      * @return true if we should recover, false otherwise.
      */
     public boolean shouldRecover () {
-        return file.exists();
+        return log.exists();
     }
 
     /**
      * Recover from a crash
      *
      * <P>
-     * This method reads in the logfile and then deletes it.
+     * This method backs up every segment of the logfile and then rebuilds the cache from it with loadMessages, so
+     * only the index and as many messages as fit under the load limit end up in memory.
      * <P>
      * A recover should immediately be followed by a compaction.
-     * <P>
-     * This method depends on the ability to get a location in
-     * the file where an entry takes place.  Unfortunately, Java doesn't provide that capability in a BufferedReader or
-     * a FileReader, but it sort of does in an InputStream.  Hence, the use of FileInputStream and InputStreamReader.
-     * <p>
-     *     This method works by
-     * </p>
      */
     public synchronized void recover () throws IOException, LtsllcException {
-
-        FileInputStream fis = null;
-        InputStreamReader isr = null;
-        BufferedReader bufferedReader = null;
-
-        try {
-            String oldFileName = file.toString();
-            String newFileName = oldFileName + ".backup";
-            ImprovedFile newFile = new ImprovedFile(newFileName);
-            file.copyTo(newFile);
-            file.delete();
-
-            fis = new FileInputStream(newFile);
-            isr = new InputStreamReader(fis);
-            bufferedReader = new BufferedReader(isr);
-
-            long location = 0; // the location within the file of the current entry
-            long lastLocation = 0; // the location within the file of the previous entry
-
-            for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-                Message message = Message.readLongFormat(line);
-                location = lastLocation;
-                lastLocation = fis.getChannel().position();
-
-                currentLoad += message.getContents().length;
-                uuidToLocation.put (message.getMessageID(), location);
-                uuidToMessage.put (message.getMessageID(), message);
-                uuidToTimesReferenced.put (message.getMessageID(), 0);
-                uuidToInMemory.put (message.getMessageID(), true);
-            }
-        } finally {
-            if (bufferedReader != null) {
-                bufferedReader.close();
-            }
-
-            if (isr != null) {
-                isr.close();
-            }
-
-            if (fis != null) {
-                fis.close();
-            }
+        log.flush();
+        for (ImprovedFile segmentFile : SegmentedLog.getSegmentFiles(file)) {
+            SegmentedLog.backup(segmentFile, new ImprovedFile(segmentFile.toString() + ".backup"));
         }
+
+        loadMessages();
     }
 
-    public boolean contains(UUID uuid) {
-        return (null != uuidToLocation.get(uuid));
+    public synchronized boolean contains(UUID uuid) {
+        return table.contains(uuid);
     }
 
     /**
@@ -618,37 +860,26 @@ public class LoggingCache implements Alarmable{
     public synchronized List<Message> copyAllMessages () throws IOException {
         List<Message> list = new ArrayList<>();
         if (allInMemory()) {
-            list.addAll(uuidToMessage.values());
+            list.addAll(getAllMessages());
         } else {
-            if (!file.exists()) {
-                return new ArrayList<>();
-            }
-
-            FileReader fileReader = null;
-            BufferedReader bufferedReader = null;
-            try {
-                fileReader = new FileReader(file);
-                bufferedReader = new BufferedReader(fileReader);
-                for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-                    Message message = Message.readLongFormat(line);
-                    list.add(message);
-                }
-            } finally {
-                if (bufferedReader != null) {
-                    bufferedReader.close();
-                }
-
-                if (fileReader != null) {
-                    fileReader.close();
-                }
-            }
+            log.forEach((location, line) -> {
+                list.add(Message.readLongFormat(line));
+                return true;
+            });
         }
 
         return list;
     }
 
+    /**
+     * Is a message in memory?
+     *
+     * @param uuid The message.
+     * @return true if the message is in memory, false if it is on disk or the cache doesn't know about it.
+     */
     public synchronized boolean isInMemory (UUID uuid) {
-        return uuidToInMemory.get(uuid);
+        int slot = table.find(uuid);
+        return slot != -1 && table.getMessage(slot) != null;
     }
 
     /**
@@ -662,10 +893,12 @@ public class LoggingCache implements Alarmable{
      * @param uuid The UUID of the message to be removed.
      */
     public synchronized void undefine (UUID uuid) {
-        uuidToMessage.remove(uuid);
-        uuidToLocation.remove(uuid);
-        uuidToTimesReferenced.remove(uuid);
-        uuidToInMemory.remove(uuid);
+        unload(uuid);
+        int slot = table.find(uuid);
+        if (slot != -1) {
+            log.release(table.getLocation(slot));
+            table.remove(slot);
+        }
     }
 
     /**
@@ -673,23 +906,12 @@ public class LoggingCache implements Alarmable{
      *
      * @return Whether all of the messages are in memory.
      */
-    public boolean allInMemory () {
-        for (Boolean b : uuidToInMemory.values()) {
-            if (!b) {
-                return false;
-            }
-        }
-
-        return true;
+    public synchronized boolean allInMemory () {
+        return table.getInMemory() == table.size();
     }
 
-    public long getLocationFor (UUID message) {
-        Long l = uuidToLocation.get(message);
-        if (l == null) {
-            return -1;
-        } else {
-            return l.longValue();
-        }
+    public synchronized long getLocationFor (UUID message) {
+        return table.getLocation(message);
     }
 
     /**
@@ -698,7 +920,263 @@ public class LoggingCache implements Alarmable{
      * @return A collection of all the message UUIDs in the object
      */
     public synchronized Collection<Message> getAllMessages () {
-        return uuidToMessage.values();
+        return getUuidToMessage().values();
+    }
+
+    /**
+     * Return a cursor positioned before the first message
+     *
+     * @return A new cursor.
+     */
+    public Cursor cursor () {
+        return new Cursor(null, null);
+    }
+
+    /**
+     * Return a cursor positioned after a message
+     *
+     * @param after The message to resume after.  The message does not have to still be in the cache.  If this is
+     *              null the cursor starts before the first message.
+     * @return A new cursor.
+     */
+    public Cursor cursor (UUID after) {
+        return new Cursor(after, null);
+    }
+
+    /**
+     * Return a cursor over the messages in a range
+     *
+     * @param after The message to resume after, or null to start at the beginning.
+     * @param until The last message ID in the range.  The message does not have to be in the cache.  If this is null
+     *              the cursor goes to the end.
+     * @return A new cursor.
+     */
+    public Cursor cursor (UUID after, UUID until) {
+        return new Cursor(after, until);
+    }
+
+    /**
+     * A position in the cache that survives adds and removes
+     *
+     * <P>
+     * A cursor remembers the UUID of the last message it returned and resumes from there by seeking in the table, so
+     * each call costs about the same as a lookup plus the messages it returns rather than re-walking everything
+     * before them.  A message
+     * that is in the cache for the whole walk is returned exactly once.  A message added ahead of the cursor is
+     * returned, a message added behind it is not, and a message that is removed is simply not there to return.
+     * </P>
+     * <P>
+     * Messages that are not in memory are read from the logfile, but they are not brought into memory.
+     * </P>
+     */
+    public class Cursor {
+        /**
+         * The UUID of the last message returned, null if we haven't returned anything yet
+         */
+        protected UUID last;
+
+        /**
+         * The cursor stops after this message ID, null if it goes to the end
+         */
+        protected UUID until;
+
+        protected Cursor (UUID after, UUID until) {
+            last = after;
+            this.until = until;
+        }
+
+        public UUID getLast() {
+            return last;
+        }
+
+        /**
+         * Go back to before the first message
+         */
+        public void reset () {
+            last = null;
+        }
+
+        /**
+         * Are there any more messages?
+         *
+         * @return true if there are messages after the cursor.
+         */
+        public boolean hasNext () {
+            synchronized (LoggingCache.this) {
+                return start() != -1;
+            }
+        }
+
+        /**
+         * Return the UUIDs of the next messages
+         *
+         * @param count The maximum number of UUIDs to return.
+         * @return The next UUIDs.  The list is empty if there are no more messages.
+         */
+        public List<UUID> nextKeys (int count) {
+            List<UUID> list = new ArrayList<>();
+
+            synchronized (LoggingCache.this) {
+                for (int slot = start(); list.size() < count && slot != -1; slot = bounded(table.next(slot))) {
+                    list.add(table.getUuid(slot));
+                }
+            }
+
+            if (!list.isEmpty()) {
+                last = list.get(list.size() - 1);
+            }
+
+            return list;
+        }
+
+        /**
+         * Return the next messages
+         *
+         * @param limit The maximum number of bytes of contents to return.  At least one message is returned if
+         *              there is one, even if its contents are larger than this.
+         * @return The next messages.  The list is empty if there are no more messages.
+         * @throws IOException If there is a problem reading a message that is not in memory.
+         */
+        public List<Message> next (int limit) throws IOException {
+            List<Message> list = new ArrayList<>();
+
+            synchronized (LoggingCache.this) {
+                int spaceUsed = 0;
+
+                for (int slot = start(); slot != -1; slot = bounded(table.next(slot))) {
+                    Message message = table.getMessage(slot);
+                    if (message == null) {
+                        message = readMessageIn(slot);
+                    }
+
+                    if (!list.isEmpty() && spaceUsed + message.getContentLength() > limit) {
+                        break;
+                    }
+
+                    list.add(message);
+                    spaceUsed += message.getContentLength();
+                    last = message.getMessageID();
+                }
+            }
+
+            return list;
+        }
+
+        /**
+         * The first slot after the cursor, or -1 if there isn't one
+         */
+        protected int start () {
+            if (last == null) {
+                return bounded(table.first());
+            } else {
+                return bounded(table.after(last));
+            }
+        }
+
+        /**
+         * The slot, or -1 if it is past the end of the cursor's range
+         */
+        protected int bounded (int slot) {
+            if (slot == -1 || until == null) {
+                return slot;
+            }
+
+            return table.getUuid(slot).compareTo(until) > 0 ? -1 : slot;
+        }
+    }
+
+    /**
+     * A map backed by the table
+     *
+     * <P>
+     * The maps that LoggingCache used to keep for each field are views of the table now.  A view iterates in UUID
+     * order and reflects later changes to the cache, so, like the maps it replaces, it should only be used while
+     * holding the cache's lock.
+     * </P>
+     *
+     * @param <V> The field the view shows.
+     */
+    protected abstract class TableView<V> extends AbstractMap<UUID, V> {
+        /**
+         * Whether the view only has entries for the messages that are in memory
+         */
+        protected boolean inMemoryOnly;
+
+        protected TableView (boolean inMemoryOnly) {
+            this.inMemoryOnly = inMemoryOnly;
+        }
+
+        protected abstract V valueAt (int slot);
+
+        protected boolean includes (int slot) {
+            return !inMemoryOnly || table.getMessage(slot) != null;
+        }
+
+        @Override
+        public V get (Object key) {
+            if (!(key instanceof UUID)) {
+                return null;
+            }
+
+            int slot = table.find((UUID) key);
+            if (slot == -1 || !includes(slot)) {
+                return null;
+            }
+
+            return valueAt(slot);
+        }
+
+        @Override
+        public boolean containsKey (Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size () {
+            return inMemoryOnly ? table.getInMemory() : table.size();
+        }
+
+        @Override
+        public Set<Entry<UUID, V>> entrySet () {
+            return new AbstractSet<>() {
+                @Override
+                public int size () {
+                    return TableView.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<UUID, V>> iterator () {
+                    return new Iterator<>() {
+                        protected int slot = advance(-1);
+
+                        protected int advance (int from) {
+                            int next = table.next(from);
+                            while (next != -1 && !includes(next)) {
+                                next = table.next(next);
+                            }
+
+                            return next;
+                        }
+
+                        @Override
+                        public boolean hasNext () {
+                            return slot != -1;
+                        }
+
+                        @Override
+                        public Entry<UUID, V> next () {
+                            if (slot == -1) {
+                                throw new NoSuchElementException();
+                            }
+
+                            Entry<UUID, V> entry = new SimpleImmutableEntry<>(table.getUuid(slot), valueAt(slot));
+                            slot = advance(slot);
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
     }
 
     /**
@@ -725,16 +1203,17 @@ public class LoggingCache implements Alarmable{
     }
 
 
-    public void loadMessageAndRebalance (Message message) throws IOException {
-        if (uuidToInMemory.get(message.getMessageID()) == null) {
+    public synchronized void loadMessageAndRebalance (Message message) throws IOException {
+        if (!table.contains(message.getMessageID())) {
             add(message);
+        } else {
+            unload(message.getMessageID());
+            int slot = table.find(message.getMessageID());
+            keep(slot, message);
+            currentLoad += message.getContentLength();
+            evictionPolicy.admit(message.getMessageID(), table.getReferences(slot));
         }
 
-        uuidToMessage.put (message.getMessageID(), message);
-        uuidToInMemory.put (message.getMessageID(), true);
-
-        currentLoad += message.getContents().length;
-
         if (currentLoad > loadLimit) {
             migrateLeastReferencedMessagesToDisk(loadLimit);
         }
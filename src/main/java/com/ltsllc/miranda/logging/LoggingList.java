@@ -3,6 +3,7 @@ package com.ltsllc.miranda.logging;
 import com.ltsllc.commons.LtsllcException;
 import com.ltsllc.commons.io.ImprovedFile;
 import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -57,7 +58,7 @@ public class LoggingList {
         try {
             fileWriter = new FileWriter(file, true);
             bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(message.longToString());
+            bufferedWriter.write(MessageCodec.toRecord(message));
             bufferedWriter.newLine();
         } finally {
             if (bufferedWriter != null) {
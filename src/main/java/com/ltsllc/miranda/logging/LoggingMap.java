@@ -3,6 +3,10 @@ package com.ltsllc.miranda.logging;
 import com.ltsllc.commons.io.ImprovedFile;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -14,29 +18,64 @@ public class LoggingMap {
      */
     protected ImprovedFile file;
 
+    /**
+     * What we use to append to the file
+     */
+    protected AppendWriter writer;
+
     /**
      * A map from message ID to the UUID of the owner of that message
+     *
+     * <P>
+     * The map is sorted by message ID so that it can be walked a page at a time, see next.
+     * </P>
+     */
+    protected NavigableMap<UUID, UUID> uuidToOwner = new TreeMap<>();
+
+    /**
+     * Held for the whole of a compaction so that only one runs at a time
+     */
+    protected final Object compactionLock = new Object();
+
+    /**
+     * The number of times the map has been cleared
+     *
+     * <P>
+     * A compaction notes this at the start and throws its work away if it has changed by the end.  The length of the
+     * logfile can't be used for this because the logfile may have been cleared and then grown past where it was.
+     * </P>
      */
-    protected Map<UUID, UUID> uuidToOwner = new HashMap<>();
+    protected long generation = 0;
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
 
     public Map<UUID, UUID> getUuidToOwner() {
         return uuidToOwner;
     }
 
     public void setUuidToOwner(Map<UUID, UUID> uuidToOwner) {
-        this.uuidToOwner = uuidToOwner;
+        this.uuidToOwner = new TreeMap<>(uuidToOwner);
     }
 
     public ImprovedFile getFile() {
         return file;
     }
 
-    public void setFile(ImprovedFile file) {
+    public void setFile(ImprovedFile file) throws IOException {
+        close();
         this.file = file;
+        writer = new AppendWriter(file);
+    }
+
+    public AppendWriter getWriter() {
+        return writer;
     }
 
     public LoggingMap(String filename) {
         file = new ImprovedFile(filename);
+        writer = new AppendWriter(file);
     }
 
     /**
@@ -48,6 +87,20 @@ public class LoggingMap {
      */
     public LoggingMap (File file) {
         this.file = new ImprovedFile(file);
+        writer = new AppendWriter(this.file);
+    }
+
+    /**
+     * Close the logfile
+     *
+     * <P>
+     * Anything that has been written is forced to disk.  The next add will open the logfile again.
+     * </P>
+     *
+     * @throws IOException If there is a problem closing the logfile.
+     */
+    public synchronized void close () throws IOException {
+        writer.close();
     }
 
     /**
@@ -63,29 +116,12 @@ public class LoggingMap {
         //
         // first log it
         //
-        FileWriter fileWriter = null;
-        BufferedWriter bufferedWriter = null;
-
-        try {
-            fileWriter = new FileWriter(file, true);
-            bufferedWriter = new BufferedWriter(fileWriter);
-
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append (message.toString());
-            stringBuilder.append (" ");
-            stringBuilder.append (owner.toString());
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append (message.toString());
+        stringBuilder.append (" ");
+        stringBuilder.append (owner.toString());
 
-            bufferedWriter.write(stringBuilder.toString());
-            bufferedWriter.newLine();
-        } finally {
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
-            }
-
-            if (fileWriter != null) {
-                fileWriter.close();
-            }
-        }
+        writer.append(stringBuilder.toString());
 
         //
         // then add it to the map
@@ -104,57 +140,71 @@ public class LoggingMap {
     }
 
     /**
-     * Go through the logfile and copy only those messageIDs that exist in uuidToUuid
+     * Rewrite the logfile so that it only has the associations in the map
+     *
+     * <P>
+     * The lock on the map is only held at the start and the end, so adds and gets go on while the new logfile is
+     * written.  At the start the map is copied and the length of the logfile noted.  The copy is then written to a
+     * temporary file without the lock.  At the end, with the lock held again, whatever was added to the logfile in
+     * the meantime is copied to the end of the temporary file, which then replaces the logfile.  An association that
+     * was removed while the temporary file was being written stays in the logfile until the next compaction.  If the
+     * map was cleared in the meantime, which the generation tells, the temporary file is thrown away.
+     * </P>
+     *
+     * @throws IOException If there is a problem reading or writing the files.
      */
-    public synchronized void compact () throws IOException {
-        FileReader fileReader = null;
-        BufferedReader bufferedReader = null;
-        FileWriter fileWriter = null;
-        BufferedWriter bufferedWriter = null;
-
-        ImprovedFile newFile = null;
-
-        try {
-            fileReader = new FileReader(file);
-            bufferedReader = new BufferedReader(fileReader);
-
-            String oldFileName = file.toString();
-            newFile = new ImprovedFile(file.toString() + ".temp");
-            fileWriter = new FileWriter(newFile);
-            bufferedWriter = new BufferedWriter(fileWriter);
+    public void compact () throws IOException {
+        synchronized (compactionLock) {
+            Map<UUID, UUID> copy;
+            long end;
+            long startingGeneration;
+            ImprovedFile newFile = new ImprovedFile(file.toString() + ".temp");
+
+            synchronized (this) {
+                writer.flush();
+                copy = new HashMap<>(uuidToOwner);
+                end = file.exists() ? file.length() : 0;
+                startingGeneration = generation;
+            }
 
-            String line = bufferedReader.readLine();
-            while (line != null) {
-                Scanner scanner = new Scanner(line);
-                UUID message = UUID.fromString(scanner.next());
-                if (uuidToOwner.containsKey(message)) {
-                    bufferedWriter.write(line);
+            try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(newFile))) {
+                for (Map.Entry<UUID, UUID> entry : copy.entrySet()) {
+                    bufferedWriter.write(entry.getKey().toString());
+                    bufferedWriter.write(" ");
+                    bufferedWriter.write(entry.getValue().toString());
                     bufferedWriter.newLine();
-                } else {
-                    remove (message);
                 }
-
-                line = bufferedReader.readLine();
-            }
-        } finally {
-            if (bufferedReader != null) {
-                bufferedReader.close();
             }
 
-            if (fileReader != null) {
-                fileReader.close();
-            }
+            synchronized (this) {
+                writer.close();
 
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
-            }
+                //
+                // if the map was cleared then the copy is out of date
+                //
+                if (generation != startingGeneration) {
+                    newFile.delete();
+                    return;
+                }
 
-            if (fileWriter != null) {
-                fileWriter.close();
+                if (file.exists()) {
+                    try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                         FileChannel destination = FileChannel.open(newFile.toPath(), StandardOpenOption.WRITE,
+                                 StandardOpenOption.APPEND)) {
+                        long position = end;
+                        long size = source.size();
+                        while (position < size) {
+                            position += source.transferTo(position, size - position, destination);
+                        }
+
+                        destination.force(false);
+                    }
+                }
+
+                Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
             }
         }
-        file.delete();
-        newFile.renameTo(file);
     }
 
     /**
@@ -211,6 +261,7 @@ public class LoggingMap {
             }
         }
 
+        writer.close();
         file.delete();
 
         FileWriter fileWriter = new FileWriter(file);
@@ -241,6 +292,52 @@ public class LoggingMap {
         return uuidToOwner.keySet();
     }
 
+    /**
+     * Return the associations after a message, in message ID order
+     *
+     * <P>
+     * This is for walking the map a page at a time without copying all of it: pass the last message ID of one page
+     * to get the next.  An association added behind that point in the meantime is not returned.
+     * </P>
+     *
+     * @param after The message ID to start after, or null to start at the beginning.
+     * @param count The most associations to return.
+     * @return The associations.  The list is empty if there are no more.
+     */
+    public synchronized List<Map.Entry<UUID, UUID>> next (UUID after, int count) {
+        return next(after, null, count);
+    }
+
+    /**
+     * Return the associations after a message, up to and including another, in message ID order
+     *
+     * @param after The message ID to start after, or null to start at the beginning.
+     * @param until The message ID to stop after, or null to go to the end.
+     * @param count The most associations to return.
+     * @return The associations.  The list is empty if there are no more in the range.
+     */
+    public synchronized List<Map.Entry<UUID, UUID>> next (UUID after, UUID until, int count) {
+        List<Map.Entry<UUID, UUID>> list = new ArrayList<>();
+        if (after != null && until != null && until.compareTo(after) <= 0) {
+            return list;
+        }
+
+        NavigableMap<UUID, UUID> tail = after == null ? uuidToOwner : uuidToOwner.tailMap(after, false);
+        if (until != null) {
+            tail = tail.headMap(until, true);
+        }
+
+        for (Map.Entry<UUID, UUID> entry : tail.entrySet()) {
+            if (list.size() >= count) {
+                break;
+            }
+
+            list.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+
+        return list;
+    }
+
     /**
      * Get a collection of all values
      */
@@ -249,7 +346,22 @@ public class LoggingMap {
     }
 
     public synchronized void clear() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
         uuidToOwner.clear();
-        file.clear();
+        generation++;
+
+        //
+        // the backup may be a hard link to the logfile, so replace the file rather than truncating it
+        //
+        try {
+            SegmentedLog.replaceWithEmptyFile(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
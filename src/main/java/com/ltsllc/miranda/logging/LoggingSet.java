@@ -2,12 +2,12 @@ package com.ltsllc.miranda.logging;
 
 import com.ltsllc.commons.io.ImprovedFile;
 import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
 
 import java.io.*;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 
 /**
  * A set that logs its members
@@ -18,11 +18,27 @@ public class LoggingSet {
      */
     protected ImprovedFile file;
 
+    /**
+     * What we use to append to the logfile
+     */
+    protected AppendWriter writer;
+
     /**
      * The actual set
      */
     protected Set<Message> set = new HashSet<>();
 
+    /**
+     * The number of records in the logfile that are for removed messages, counting tombstones, since the last
+     * compaction
+     */
+    protected int deadRecords = 0;
+
+    /**
+     * remove does not compact the logfile until there are at least this many dead records
+     */
+    public static final int MINIMUM_DEAD_RECORDS = 1024;
+
     /**
      * Construct a new instance of the class
      * <P>
@@ -32,14 +48,30 @@ public class LoggingSet {
      */
     public LoggingSet (ImprovedFile logfile) {
         file = logfile;
+        writer = new AppendWriter(logfile);
     }
 
     public ImprovedFile getFile() {
         return file;
     }
 
-    public void setFile(ImprovedFile file) {
+    public void setFile(ImprovedFile file) throws IOException {
+        close();
         this.file = file;
+        writer = new AppendWriter(file);
+    }
+
+    /**
+     * Close the logfile
+     *
+     * <P>
+     * Anything that has been written is forced to disk.  The next add will open the logfile again.
+     * </P>
+     *
+     * @throws IOException If there is a problem closing the logfile.
+     */
+    public synchronized void close () throws IOException {
+        writer.close();
     }
 
     public Set<Message> getSet() {
@@ -63,37 +95,28 @@ public class LoggingSet {
      * @throws IOException If there is a problem logging the message.
      */
     public synchronized boolean add (Message message) throws IOException {
-        FileWriter fileWriter = null;
-        BufferedWriter bufferedWriter = null;
-        try {
-            fileWriter = new FileWriter(file, true);
-            bufferedWriter = new BufferedWriter(fileWriter);
-
-            bufferedWriter.write(message.longToString());
-            bufferedWriter.newLine();
-            return set.add(message);
-        } finally {
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
-            }
-
-            if (fileWriter != null) {
-                fileWriter.close();
-            }
+        writer.append(MessageCodec.toRecord(message));
+        boolean added = set.add(message);
+        if (!added) {
+            deadRecords++;
         }
+
+        return added;
     }
 
     /**
      * Remove a message from the set as well as the logfile
      *
      * <P>
-     *     In the case where a message is in the logfile more than once; ALL instances of the message are removed from
-     *     the logfile.
+     *     The message is not taken out of the logfile right away.  Instead a tombstone is appended, and when the
+     *     logfile is read back by recover, every record for the message that comes before the tombstone is ignored.
+     *     So a remove costs one append no matter how big the logfile is.
      * </P>
      * <P>
-     *     The method works by first removing the backup file.  The backup file has the same name as the logfile,
-     *     with ".backup" appended to it.  It then renames the logfile to the backup file, and then copies the contents
-     *     of the backup, minus the removed element, to the logfile.
+     *     The records and tombstones for removed messages are cleaned out by compact.  That happens on its own once
+     *     there are more of them than there are members (and at least MINIMUM_DEAD_RECORDS), so the logfile stays
+     *     within a constant factor of the size of the set and the cost of compacting works out to a constant per
+     *     remove.
      * </P>
      *
      * @param message The message to be removed.
@@ -101,59 +124,44 @@ public class LoggingSet {
      * @throws IOException If there is a problem when removing the message from the logfile.
      */
     public synchronized boolean remove (Message message) throws IOException {
-        ImprovedFile backup = new ImprovedFile(file.getName() + ".backup");
-        if (backup.exists()) {
-            backup.delete();
+        if (!set.remove(message)) {
+            return false;
         }
 
-        file.renameTo(backup);
-
-        FileReader fileReader = null;
-        FileWriter fileWriter = null;
-        BufferedReader bufferedReader = null;
-        BufferedWriter bufferedWriter = null;
-        try {
-            fileReader = new FileReader(backup);
-            bufferedReader = new BufferedReader(fileReader);
-            fileWriter = new FileWriter(file);
-            bufferedWriter = new BufferedWriter(fileWriter);
-
-            String line = bufferedReader.readLine();
-            while (line != null) {
-                Message temp = Message.readLongFormat(line);
-
-                //
-                // only write a message to the new file if the line represents a message that is NOT being removed
-                //
-                if (!temp.equals(message)) {
-                    bufferedWriter.write (line);
-                    bufferedWriter.newLine();
-                }
-
-                line = bufferedReader.readLine();
-            }
-        } finally {
-            if (bufferedReader != null) {
-                bufferedReader.close();
-            }
+        writer.append(MessageCodec.toTombstone(message.getMessageID()));
+        deadRecords += 2;
 
-            if (fileReader != null) {
-                fileReader.close();
-            }
+        if (deadRecords >= MINIMUM_DEAD_RECORDS && deadRecords > set.size()) {
+            compact();
+        }
 
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
-            }
+        return true;
+    }
 
-            if (fileWriter != null) {
-                fileWriter.close();
+    /**
+     * Rewrite the logfile so that it only has the members of the set
+     *
+     * <P>
+     *     The members are written to a temporary file which then replaces the logfile.
+     * </P>
+     *
+     * @throws IOException If there is a problem writing the new logfile.
+     */
+    public synchronized void compact () throws IOException {
+        ImprovedFile temp = new ImprovedFile(file.toString() + ".temp");
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(temp))) {
+            for (Message message : set) {
+                bufferedWriter.write(MessageCodec.toRecord(message));
+                bufferedWriter.newLine();
             }
         }
 
-        return set.remove(message);
+        writer.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        deadRecords = 0;
     }
 
-
     /**
      * Is the set empty?
      *
@@ -188,9 +196,10 @@ public class LoggingSet {
      * </P>
      *
      * <P>
-     *     Recovery just consists of loading the set members into memory.  In the case where both exist, use the backup
-     *     file.  The logfile may be incomplete or otherwise damaged, but the backup is just the contents of the set.
-     *     The backup file is created when we are about to copy the contents of the logfile, minus the removed
+     *     Recovery consists of loading the set members into memory, leaving out those with a tombstone after them,
+     *     and then compacting the logfile.  In the case where both exist, use the backup file.  The logfile may be
+     *     incomplete or otherwise damaged, but the backup is just the contents of the set.  Older versions of remove
+     *     created the backup file when they were about to copy the contents of the logfile, minus the removed
      *     message, to the logfile.
      * </P>
      *
@@ -206,21 +215,27 @@ public class LoggingSet {
         if (theLogfile.exists() && !backup.exists()) {
             FileReader fileReader = null;
             BufferedReader bufferedReader = null;
-            Set<Message> set = new HashSet<>();
+            Map<UUID, List<Message>> idToMessages = new LinkedHashMap<>();
 
             try {
                 fileReader = new FileReader(theLogfile);
                 bufferedReader = new BufferedReader(fileReader);
                 String line = bufferedReader.readLine();
                 while (line != null) {
-                    Message message = Message.readLongFormat(line);
-                    set.add(message);
+                    if (MessageCodec.isTombstone(line)) {
+                        idToMessages.remove(MessageCodec.readTombstone(line));
+                    } else if (!line.isEmpty()) {
+                        Message message = Message.readLongFormat(line);
+                        idToMessages.computeIfAbsent(message.getMessageID(), id -> new ArrayList<>()).add(message);
+                    }
 
                     line = bufferedReader.readLine();
                 }
 
                 returnValue = new LoggingSet(theLogfile);
-                returnValue.addAll(set);
+                for (List<Message> messages : idToMessages.values()) {
+                    returnValue.set.addAll(messages);
+                }
             } finally {
                 if (bufferedReader != null) {
                     bufferedReader.close();
@@ -230,6 +245,8 @@ public class LoggingSet {
                     fileReader.close();
                 }
             }
+
+            returnValue.compact();
         } else if (!logfile.exists() && !backup.exists()) {
             //
             // another pathological case: what are doing here?
@@ -1,16 +1,46 @@
 package com.ltsllc.miranda.logging;
 
 import com.ltsllc.commons.io.ScannerWithUnget;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.UUID;
 
+/**
+ * Something that happened to a message
+ *
+ * <P>
+ * An event records where it came from, its origin, as a list of stack frames.  How much of the stack is captured is
+ * controlled by PROPERTY_EVENT_ORIGIN:
+ * </P>
+ * <TABLE border="1">
+ *     <TR><TH>Origin</TH><TH>Meaning</TH></TR>
+ *     <TR><TD>off</TD><TD>nothing is captured</TD></TR>
+ *     <TR><TD>caller</TD><TD>the PROPERTY_EVENT_ORIGIN_FRAMES frames above the MessageEventLogger call that recorded
+ *     the event are captured with a StackWalker</TD></TR>
+ *     <TR><TD>full</TD><TD>the whole stack is captured, which is what the class always used to do</TD></TR>
+ * </TABLE>
+ * <P>
+ * The stored form of an event has one entry per captured frame, so it shrinks to match.
+ * </P>
+ */
 public class MessageEvent {
+    public enum Origin {
+        off,
+        caller,
+        full
+    }
+
+    protected static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+    protected static final StackWalker stackWalker = StackWalker.getInstance();
+
     protected MessageEventType type = MessageEventType.unknown;
     protected long time = System.currentTimeMillis();
-    protected Exception where = new Exception();
+    protected StackTraceElement[] origin = NO_FRAMES;
     protected UUID id;
 
     public MessageEvent () {}
@@ -18,10 +48,28 @@ public class MessageEvent {
     public MessageEvent(UUID id, MessageEventType newType) {
         this.id = id;
         this.type = newType;
+        this.origin = captureOrigin(getDefaultOrigin(), getDefaultOriginFrames());
+    }
+
+    public StackTraceElement[] getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(StackTraceElement[] origin) {
+        this.origin = origin;
     }
 
+    /**
+     * The origin as an exception
+     *
+     * <P>
+     * This is here for code that was written when the origin was an Exception; the exception is created on each call.
+     * </P>
+     */
     public Exception getWhere() {
-        return where;
+        Exception exception = new Exception();
+        exception.setStackTrace(origin);
+        return exception;
     }
 
     public long getTime() {
@@ -45,7 +93,7 @@ public class MessageEvent {
     }
 
     public void setWhere(Exception where) {
-        this.where = where;
+        this.origin = where.getStackTrace();
     }
 
     public void setId(UUID id) {
@@ -64,7 +112,7 @@ public class MessageEvent {
         stringBuilder.append(type.toString());
         stringBuilder.append(" WHERE: ");
 
-        for (StackTraceElement stackTraceElement : where.getStackTrace()) {
+        for (StackTraceElement stackTraceElement : origin) {
             stringBuilder.append (stackTraceElement.getClassName());
             stringBuilder.append(' ');
             stringBuilder.append(stackTraceElement.getMethodName());
@@ -113,11 +161,65 @@ public class MessageEvent {
             stackTraceElements.add(stackTraceElement);
         }
         StackTraceElement[] buffer = new StackTraceElement[stackTraceElements.size()];
-        StackTraceElement[] stackTrace = stackTraceElements.toArray(buffer);
+        messageEvent.setOrigin(stackTraceElements.toArray(buffer));
+    }
 
-        Exception exception = new Exception();
-        exception.setStackTrace(stackTrace);
+    /**
+     * Capture the origin of an event
+     *
+     * <P>
+     * In caller mode the frames belonging to this class and to MessageEventLogger are skipped, so the first frame is
+     * whoever asked for the event to be recorded.
+     * </P>
+     *
+     * @param mode   How much to capture.
+     * @param frames In caller mode, the maximum number of frames to capture.
+     * @return The captured frames, innermost first.
+     */
+    public static StackTraceElement[] captureOrigin(Origin mode, int frames) {
+        switch (mode) {
+            case full:
+                return new Exception().getStackTrace();
+
+            case caller:
+                return stackWalker.walk(stream -> stream
+                        .dropWhile(frame -> frame.getClassName().equals(MessageEvent.class.getName())
+                                || frame.getClassName().equals(MessageEventLogger.class.getName()))
+                        .limit(frames)
+                        .map(StackWalker.StackFrame::toStackTraceElement)
+                        .toArray(StackTraceElement[]::new));
+
+            default:
+                return NO_FRAMES;
+        }
+    }
+
+    /**
+     * Return the origin mode called for by the properties
+     *
+     * @return The value of PROPERTY_EVENT_ORIGIN or the default if the properties haven't been loaded.
+     */
+    public static Origin getDefaultOrigin() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_EVENT_ORIGIN);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_EVENT_ORIGIN;
+        }
+
+        return Origin.valueOf(value.toLowerCase());
+    }
 
-        messageEvent.setWhere(exception);
+    /**
+     * Return the number of frames caller mode captures
+     *
+     * @return The value of PROPERTY_EVENT_ORIGIN_FRAMES or the default if the properties haven't been loaded.
+     */
+    public static int getDefaultOriginFrames() {
+        return (int) AppendWriter.getLongProperty(Miranda.PROPERTY_EVENT_ORIGIN_FRAMES,
+                Miranda.PROPERTY_DEFAULT_EVENT_ORIGIN_FRAMES);
     }
 }
@@ -4,27 +4,90 @@ import com.ltsllc.commons.LtsllcException;
 import com.ltsllc.commons.io.ImprovedFile;
 import com.ltsllc.miranda.Miranda;
 import com.ltsllc.miranda.message.Message;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
+/**
+ * A record of what has happened to messages
+ *
+ * <P>
+ * The events file is a journal: each event is appended to it as it happens, and the appends are forced to disk in
+ * groups the way an AppendWriter in group mode does it.  This class used to rewrite the whole file (and copy it to a
+ * backup first) for every event, which made each event cost as much as the whole history.
+ * </P>
+ * <P>
+ * Only the most recent PROPERTY_EVENTS_RETAINED events are kept in memory; older ones are dropped from log and map.
+ * Once that many events have been appended since the last checkpoint, the file is checkpointed: it is replaced with
+ * just the events that are still retained.  That keeps the file under twice the retention limit and makes the cost of
+ * the rewrite, spread over the events that caused it, constant.
+ * </P>
+ */
 public class MessageEventLogger {
-    protected List<MessageEvent> log = new ArrayList<>();
+    protected static final Logger logger = LogManager.getLogger(MessageEventLogger.class);
+
+    /**
+     * The most recent events, oldest first
+     */
+    protected List<MessageEvent> log = new LinkedList<>();
+
+    /**
+     * The retained events for each message
+     */
     protected Map<UUID, List<MessageEvent>> map = new HashMap<>();
+
     protected ImprovedFile file = null;
 
+    /**
+     * What we append events to or null if the journal isn't open
+     */
+    protected AppendWriter writer = null;
+
+    /**
+     * The maximum number of events kept in memory
+     */
+    protected int retained;
+
+    /**
+     * The number of events appended to the file since it was last checkpointed
+     */
+    protected int sinceCheckpoint = 0;
+
     public MessageEventLogger() {
         String fileName = Miranda.getProperties().getProperty(Miranda.PROPERTY_EVENTS_FILE);
         file = new ImprovedFile(fileName);
+        retained = getDefaultRetained();
+        load();
     }
 
     public MessageEventLogger(ImprovedFile eventsFile) {
+        this(eventsFile, getDefaultRetained());
+    }
+
+    public MessageEventLogger(ImprovedFile eventsFile, int retained) {
         this.file = eventsFile;
+        this.retained = retained;
+        load();
     }
 
-    public void clear() {
+    public synchronized void clear() {
+        try {
+            close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
         ImprovedFile backup = new ImprovedFile(file.getAbsolutePath() + ".backup");
         if (backup.exists()) {
             backup.delete();;
@@ -61,78 +124,206 @@ public class MessageEventLogger {
         this.file = file;
     }
 
-    public synchronized void store () {
-        try {
-            ImprovedFile backUp = new ImprovedFile(Miranda.getProperties().getProperty(Miranda.PROPERTY_EVENTS_FILE)
-                    + ".backup");
-            if (backUp.exists()) {
-                backUp.delete();
-            }
+    public int getRetained() {
+        return retained;
+    }
+
+    /**
+     * Return the number of events to retain called for by the properties
+     *
+     * @return The value of PROPERTY_EVENTS_RETAINED or the default if the properties haven't been loaded.
+     */
+    public static int getDefaultRetained() {
+        return (int) AppendWriter.getLongProperty(Miranda.PROPERTY_EVENTS_RETAINED,
+                Miranda.PROPERTY_DEFAULT_EVENTS_RETAINED);
+    }
 
-            if (file.exists()) {
-                file.copyTo(backUp);
+    /**
+     * Read the events in the file into memory
+     *
+     * <P>
+     * Only the last retained events end up in memory.  A line that can't be read is logged and skipped; the events
+     * file is a diagnostic aid and a bad line in it shouldn't keep the system from starting.
+     * </P>
+     */
+    protected synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (BufferedReader bufferedReader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                try {
+                    remember(MessageEvent.readMessageEvent(line));
+                    sinceCheckpoint++;
+                } catch (RuntimeException e) {
+                    logger.warn("skipping unreadable event in " + file + ": " + line, e);
+                }
             }
+        } catch (IOException e) {
+            logger.error("error reading events file " + file, e);
+        }
+    }
 
-            FileWriter fileWriter = null;
-            BufferedWriter bufferedWriter = null;
+    /**
+     * Force anything that has been appended to disk and close the file
+     *
+     * <P>
+     * The next event will open the file again.
+     * </P>
+     *
+     * @throws IOException If there is a problem closing the file.
+     */
+    public synchronized void close() throws IOException {
+        if (writer != null) {
             try {
-                fileWriter = new FileWriter(file);
-                bufferedWriter = new BufferedWriter(fileWriter);
+                writer.close();
+            } finally {
+                writer = null;
+            }
+        }
+    }
 
+    /**
+     * Checkpoint the events file
+     *
+     * <P>
+     * The file is replaced with the events that are currently retained.  The new file is written next to the old one
+     * and then renamed over it, so a crash part way through leaves the old file alone.
+     * </P>
+     */
+    public synchronized void store () {
+        try {
+            close();
+
+            ImprovedFile temp = new ImprovedFile(file.getAbsolutePath() + ".checkpoint");
+            try (BufferedWriter bufferedWriter = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
                 for (MessageEvent messageEvent : log) {
                     bufferedWriter.write(messageEvent.toStorageString());
                     bufferedWriter.newLine();
                 }
-            } finally {
-                if (bufferedWriter != null) {
-                    bufferedWriter.close();
-                }
-
-                if (fileWriter != null) {
-                    fileWriter.close();
-                }
             }
-        } catch (IOException | LtsllcException e) {
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            sinceCheckpoint = 0;
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public synchronized void added(Message message) {
-        MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.added);
-        messageEvent.setId(message.getMessageID());
+    /**
+     * Return the writer for the file, opening it if it isn't open
+     *
+     * <P>
+     * The journal is forced in groups regardless of PROPERTY_LOG_DURABILITY.  The events are a diagnostic aid, so
+     * losing the last few in a crash is not worth forcing every one of them.
+     * </P>
+     */
+    protected AppendWriter getWriter() {
+        if (writer == null) {
+            writer = new AppendWriter(file, AppendWriter.Durability.group,
+                    AppendWriter.getLongProperty(Miranda.PROPERTY_LOG_GROUP_COMMIT_PERIOD,
+                            Miranda.PROPERTY_DEFAULT_LOG_GROUP_COMMIT_PERIOD),
+                    (int) AppendWriter.getLongProperty(Miranda.PROPERTY_LOG_GROUP_COMMIT_RECORDS,
+                            Miranda.PROPERTY_DEFAULT_LOG_GROUP_COMMIT_RECORDS));
+        }
+
+        return writer;
+    }
+
+    /**
+     * Record an event: remember it and append it to the file
+     */
+    protected void record(MessageEvent messageEvent) {
+        remember(messageEvent);
+
+        try {
+            getWriter().append(messageEvent.toStorageString());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        sinceCheckpoint++;
+        if (sinceCheckpoint >= retained) {
+            store();
+        }
+    }
 
+    /**
+     * Add an event to log and map, dropping the oldest event if there are more than retained
+     */
+    protected void remember(MessageEvent messageEvent) {
         log.add(messageEvent);
 
-        List<MessageEvent> messageEventList = getEventsFor(message.getMessageID());
+        List<MessageEvent> messageEventList = getListFor(messageEvent.getId());
         messageEventList.add(messageEvent);
+        map.put(messageEvent.getId(), messageEventList);
+
+        while (log.size() > retained) {
+            MessageEvent oldest = log.remove(0);
+            List<MessageEvent> oldestList = map.get(oldest.getId());
+            if (oldestList != null) {
+                oldestList.remove(oldest);
+                if (oldestList.isEmpty()) {
+                    map.remove(oldest.getId());
+                }
+            }
+        }
+    }
 
-        map.put(message.getMessageID(), messageEventList);
-
-        store();
+    public synchronized void added(Message message) {
+        MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.added);
+        record(messageEvent);
     }
 
-    public synchronized List<MessageEvent> getEventsFor (UUID uuid) {
-        List<MessageEvent> messageEventList = null;
-        messageEventList = map.get(uuid);
-        if (null == messageEventList) {
-            messageEventList = new ArrayList<>();
-            map.put(uuid, messageEventList);
+    /**
+     * Record that a group of messages was added
+     *
+     * <P>
+     * This does the same thing as calling added for each message, except that the events are forced to disk once for
+     * the whole group.
+     * </P>
+     *
+     * @param messages The messages that were added.
+     */
+    public synchronized void addedAll(Collection<Message> messages) {
+        AppendWriter appendWriter = getWriter();
+        appendWriter.beginBatch();
+        try {
+            for (Message message : messages) {
+                MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.added);
+                record(messageEvent);
+            }
+        } finally {
+            try {
+                appendWriter.endBatch();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+    }
 
-        return messageEventList;
+    /**
+     * Return the retained events for a message
+     *
+     * <P>
+     * A message we have no events for gets an empty list, which is not added to map: someone looking up a message
+     * that doesn't exist shouldn't leave anything behind.
+     * </P>
+     */
+    public synchronized List<MessageEvent> getEventsFor (UUID uuid) {
+        return getListFor(uuid);
     }
 
     public synchronized void deliveryAttempted(Message message) {
         MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.attempted);
-
-        log.add(messageEvent);
-
-        List<MessageEvent> messageEventList = getListFor(message.getMessageID());
-        messageEventList.add(messageEvent);
-
-        map.put(message.getMessageID(), messageEventList);
-
-        store();
+        record(messageEvent);
     }
 
     public List<MessageEvent> getListFor (UUID uuid) {
@@ -146,42 +337,17 @@ public class MessageEventLogger {
 
     public synchronized void delivered(Message message) {
         MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.delivered);
-
-        log.add(messageEvent);
-
-        List<MessageEvent> messageEventList = getListFor(message.getMessageID());
-        messageEventList.add(messageEvent);
-
-        map.put(message.getMessageID(), messageEventList);
-
-        store();
+        record(messageEvent);
     }
 
     public synchronized void attemptFailed(Message message) {
         MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.attemptFailed);
-        messageEvent.setId(message.getMessageID());
-
-        log.add(messageEvent);
-
-        List<MessageEvent> messageEventList = getListFor(message.getMessageID());
-        messageEventList.add(messageEvent);
-
-        map.put(message.getMessageID(), messageEventList);
-
-        store();
+        record(messageEvent);
     }
 
     public synchronized void deleted (Message message) {
         MessageEvent messageEvent = new MessageEvent(message.getMessageID(), MessageEventType.deleted);
-
-        log.add(messageEvent);
-
-        List<MessageEvent> messageEventList = getListFor(message.getMessageID());
-        messageEventList.add(messageEvent);
-
-        map.put(message.getMessageID(), messageEventList);
-
-        store();
+        record(messageEvent);
     }
 
     public synchronized void removed (Message message) {
@@ -2,7 +2,7 @@ package com.ltsllc.miranda.logging;
 
 import com.ltsllc.commons.LtsllcException;
 import com.ltsllc.commons.io.ImprovedFile;
-import com.ltsllc.commons.io.TextFile;
+import com.ltsllc.miranda.DeliveryScheduler;
 import com.ltsllc.miranda.Miranda;
 import com.ltsllc.miranda.message.Message;
 import com.ltsllc.miranda.properties.PropertyChangedEvent;
@@ -11,10 +11,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * A central location for all messages
@@ -40,8 +46,31 @@ public class MessageLog implements PropertyListener {
 
     protected MessageEventLogger messageEventLogger = new MessageEventLogger();
 
+    /**
+     * When each message should next be sent
+     */
+    protected DeliveryScheduler scheduler = new DeliveryScheduler();
+
+    /**
+     * Batches the messages that are added concurrently
+     */
+    protected GroupCommitter groupCommitter = new GroupCommitter(this);
+
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
     public void removeMessage(Message message) {
         cache.remove(message.getMessageID());
+        scheduler.cancel(message.getMessageID());
+    }
+
+    public DeliveryScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setScheduler(DeliveryScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     public LoggingCache getCache() {
@@ -82,6 +111,7 @@ public class MessageLog implements PropertyListener {
         cache = new LoggingCache(logfile, loadLimit);
         uuidToOwner = new LoggingMap(ownersFile);
         messageEventLogger = new MessageEventLogger();
+        scheduleAll();
 
         Miranda.getProperties().listen(this, com.ltsllc.miranda.properties.Properties.messageLogfile);
         Miranda.getProperties().listen(this, com.ltsllc.miranda.properties.Properties.cacheLoadLimit);
@@ -95,6 +125,7 @@ public class MessageLog implements PropertyListener {
         ImprovedFile ownerLog = new ImprovedFile(Miranda.getProperties().getProperty(Miranda.PROPERTY_OWNER_FILE));
         uuidToOwner = new LoggingMap(ownerLog);
         messageEventLogger = new MessageEventLogger();
+        scheduleAll();
 
         Miranda.getProperties().listen(this, com.ltsllc.miranda.properties.Properties.messageLogfile);
         Miranda.getProperties().listen(this, com.ltsllc.miranda.properties.Properties.cacheLoadLimit);
@@ -141,7 +172,7 @@ public class MessageLog implements PropertyListener {
         logger.debug("entering shouldRecover");
         boolean returnValue = false;
 
-        if (logfile.exists()) {
+        if (!SegmentedLog.getSegments(logfile).isEmpty()) {
             logger.debug("message log, " + logfile + ", exists");
             events.info("message log, " + logfile + ", exists");
 
@@ -198,8 +229,11 @@ public class MessageLog implements PropertyListener {
      * true) before calling this method.
      * </P>
      * <p>
-     * The method first attempts to copy the files to backups, then it attempts to read in the message and owners
-     * information.
+     * The method first backs up the files, then it reads in the message log, the owners log and the events log.
+     * The backups are hard links where the file system allows it (see SegmentedLog.backup), so they don't cost a
+     * copy of each file.  The three logs are read at the same time on separate threads, and the message log is
+     * itself indexed on several threads (see LogIndexer), so recovery is limited by the disk rather than by one
+     * core.
      * </P>
      *
      * @param logfile    Where the class stores the messages that were added to it.
@@ -211,16 +245,9 @@ public class MessageLog implements PropertyListener {
      */
     public MessageLog performRecover(ImprovedFile logfile, int loadLimit, ImprovedFile ownersFile,
                                      ImprovedFile eventsFile) throws IOException, LtsllcException {
-        ImprovedFile messageBackup = new ImprovedFile(logfile.getName() + ".backup");
         ImprovedFile ownersBackup = new ImprovedFile(ownersFile.getName() + ".backup");
         ImprovedFile eventsBackup = new ImprovedFile(eventsFile.getName() + ".backup");
 
-        if (messageBackup.exists())
-        {
-            logger.info("removing backup " + messageBackup);
-            messageBackup.delete();
-        }
-
         if (ownersBackup.exists()) {
             logger.info("removing backup " + ownersBackup);
             ownersBackup.delete();
@@ -231,23 +258,72 @@ public class MessageLog implements PropertyListener {
             eventsBackup.delete();
         }
 
-        if (logfile.exists()) {
-            logfile.copyTo(messageBackup);
+        if (cache != null) {
+            cache.close();
+        }
+
+        if (uuidToOwner != null) {
+            uuidToOwner.close();
+        }
+
+        if (messageEventLogger != null) {
+            messageEventLogger.close();
+        }
+
+        for (ImprovedFile segmentFile : SegmentedLog.getSegmentFiles(logfile)) {
+            ImprovedFile messageBackup = new ImprovedFile(segmentFile.getName() + ".backup");
+            if (messageBackup.exists()) {
+                logger.info("removing backup " + messageBackup);
+                messageBackup.delete();
+            }
+
+            SegmentedLog.backup(segmentFile, messageBackup);
         }
 
         if (ownersFile.exists()) {
-            ownersFile.copyTo(ownersBackup);
+            SegmentedLog.backup(ownersFile, ownersBackup);
         }
 
         if (eventsFile.exists()) {
-            eventsFile.copyTo(eventsBackup);
+            SegmentedLog.backup(eventsFile, eventsBackup);
         }
 
-        cache = new LoggingCache(logfile, loadLimit);
-        uuidToOwner = new LoggingMap(ownersFile);
-        messageEventLogger = new MessageEventLogger(eventsFile);
+        UUID myUuid = Miranda.getInstance().getMyUuid();
+
+        CompletableFuture<LoggingCache> futureCache = CompletableFuture.supplyAsync(() ->
+                new LoggingCache(logfile, loadLimit));
+
+        CompletableFuture<LoggingMap> futureOwners = CompletableFuture.supplyAsync(() -> {
+            LoggingMap loggingMap = new LoggingMap(ownersFile);
+            if (myUuid != null && loggingMap.shouldRecover()) {
+                try {
+                    loggingMap.recover(myUuid);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
 
-        setOwnerTo(Miranda.getInstance().getMyUuid());
+            return loggingMap;
+        });
+
+        CompletableFuture<MessageEventLogger> futureEvents = CompletableFuture.supplyAsync(() ->
+                new MessageEventLogger(eventsFile));
+
+        try {
+            cache = futureCache.join();
+            uuidToOwner = futureOwners.join();
+            messageEventLogger = futureEvents.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+
+            throw new LtsllcException("error recovering", e.getCause());
+        }
+
+        scheduleAll();
+
+        setOwnerTo(myUuid);
 
         return this;
     }
@@ -351,33 +427,149 @@ public class MessageLog implements PropertyListener {
     /**
      * Add the message to the logfile and record the ownership of the message
      *
+     * <P>
+     * The message is handed to the group committer, which writes it along with whatever other messages were added
+     * at the same time.  This method does not return until the message has been logged.
+     * </P>
+     *
      * @param message The message to be added.
      * @param owner   The UUID of the owner of the message.  If this parameter is null, then it is assumed that the
      *                ownership information was previously entered, and only the message will be added.
      * @throws IOException If a problem is encountered while reading or writing the logfiles
      */
-    public synchronized void add(Message message, UUID owner) throws IOException, LtsllcException {
+    public void add(Message message, UUID owner) throws IOException, LtsllcException {
         logger.debug("entering add with message: " + message + " and owner: " + owner);
 
-        if (message.getNextSend() <= 0) {
-            message.setNextSend(System.currentTimeMillis());
-        }
+        //
+        // a thread that already holds our lock (or is the writer itself) would deadlock waiting on the writer
+        //
+        if (Thread.holdsLock(this) || groupCommitter.isWriterThread()) {
+            GroupCommitter.Pending pending = new GroupCommitter.Pending(message, owner);
+            List<GroupCommitter.Pending> list = new ArrayList<>();
+            list.add(pending);
+
+            GroupCommitter.commit(this, list);
+            try {
+                pending.future.join();
+            } catch (CompletionException e) {
+                rethrow(e.getCause());
+            }
 
-        cache.add(message);
-        if (null != owner) {
-            uuidToOwner.add(message.getMessageID(), owner);
+            logger.debug("leaving add --- wrote inline");
+            return;
         }
 
-        messageEventLogger.added(message);
+        try {
+            addAsync(message, owner).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LtsllcException("interrupted while adding " + message.getMessageID(), e);
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        }
 
         logger.debug("leaving add");
     }
 
+    protected static void rethrow(Throwable cause) throws IOException, LtsllcException {
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof LtsllcException) {
+            throw (LtsllcException) cause;
+        } else {
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Add a message without waiting for it to be logged
+     *
+     * @param message The message to be added.
+     * @param owner   The UUID of the owner of the message or null if the ownership information was previously
+     *                entered.
+     * @return A future that completes when the message has been written to all the logfiles.
+     */
+    public CompletableFuture<Void> addAsync(Message message, UUID owner) {
+        return groupCommitter.submit(message, owner);
+    }
+
+    /**
+     * Write a group of messages to the logfiles
+     *
+     * <P>
+     * Every message in the group is written to the message log and the owners log, and then each file is forced
+     * once for the whole group.  The added events are stored once for the whole group as well.
+     * </P>
+     * <P>
+     * A message that can't be written gets its failure set and the rest of the group carries on without it.  Once
+     * the files have been forced every message that was written is marked appended, before the events are stored
+     * and the messages scheduled, so that a failure in one of those steps doesn't make the caller think a message
+     * that is on disk was lost.  It is up to the caller to complete the futures, see GroupCommitter.commit.
+     * </P>
+     *
+     * @param batch The messages to write.
+     * @throws IOException If there is a problem forcing the logfiles.
+     */
+    public synchronized void writeBatch(List<GroupCommitter.Pending> batch) throws IOException {
+        logger.debug("entering writeBatch with " + batch.size() + " messages");
+
+        List<GroupCommitter.Pending> written = new ArrayList<>(batch.size());
+        SegmentedLog cacheLog = cache.getLog();
+        AppendWriter ownerWriter = uuidToOwner.getWriter();
+
+        cacheLog.beginBatch();
+        ownerWriter.beginBatch();
+        try {
+            for (GroupCommitter.Pending pending : batch) {
+                Message message = pending.message;
+                if (message.getNextSend() <= 0) {
+                    message.setNextSend(System.currentTimeMillis());
+                }
+
+                try {
+                    cache.add(message);
+                    if (null != pending.owner) {
+                        uuidToOwner.add(message.getMessageID(), pending.owner);
+                    }
+
+                    written.add(pending);
+                } catch (IOException | LtsllcException | RuntimeException e) {
+                    logger.error("exception adding " + message.getMessageID(), e);
+                    pending.failure = e;
+                }
+            }
+        } finally {
+            try {
+                cacheLog.endBatch();
+            } finally {
+                ownerWriter.endBatch();
+            }
+        }
+
+        //
+        // everything in written is on disk now, whatever happens next
+        //
+        List<Message> messages = new ArrayList<>(written.size());
+        for (GroupCommitter.Pending pending : written) {
+            pending.appended = true;
+            messages.add(pending.message);
+        }
+
+        for (Message message : messages) {
+            scheduler.schedule(message.getMessageID(), message.getNextSend());
+        }
+
+        messageEventLogger.addedAll(messages);
+
+        logger.debug("leaving writeBatch");
+    }
+
     public synchronized void clear () {
         logger.debug("entering clear");
 
         cache.clear();
         uuidToOwner.clear();
+        scheduler.clear();
 
         logger.debug("leaving clear");
     }
@@ -405,6 +597,7 @@ public class MessageLog implements PropertyListener {
 
         cache.remove(uuid);
         uuidToOwner.remove(uuid);
+        scheduler.cancel(uuid);
         Miranda.getInstance().removeFromInflight(message);
 
         messageEventLogger.deleted(message);
@@ -422,6 +615,37 @@ public class MessageLog implements PropertyListener {
         return cache.copyMessages(limit, restartIndexIn);
     }
 
+    /**
+     * Return a cursor over all the messages in the log
+     *
+     * @return A cursor positioned before the first message.
+     * @see LoggingCache.Cursor
+     */
+    public LoggingCache.Cursor cursor() {
+        return cache.cursor();
+    }
+
+    /**
+     * Return a cursor over the messages after a message
+     *
+     * @param after The message to resume after, or null to start at the beginning.
+     * @return The cursor.
+     */
+    public LoggingCache.Cursor cursor(UUID after) {
+        return cache.cursor(after);
+    }
+
+    /**
+     * Return a cursor over the messages in a range
+     *
+     * @param after The message to resume after, or null to start at the beginning.
+     * @param until The last message ID in the range, or null to go to the end.
+     * @return The cursor.
+     */
+    public LoggingCache.Cursor cursor(UUID after, UUID until) {
+        return cache.cursor(after, until);
+    }
+
     public UUID getOwnerOf(UUID message) {
         return uuidToOwner.get(message);
     }
@@ -429,6 +653,31 @@ public class MessageLog implements PropertyListener {
     public void clearAllMessages(ImprovedFile logfile, int loadLimit, ImprovedFile ownersFile) {
         cache = new LoggingCache(logfile, loadLimit);
         uuidToOwner = new LoggingMap(ownersFile);
+        scheduleAll();
+    }
+
+    /**
+     * Rebuild the delivery schedule from the messages in the cache
+     *
+     * <p>
+     * Messages that are in memory are scheduled for their nextSend time.  Messages that are on disk are scheduled
+     * for the next send the cache's table has for them, which came from the logfile index or from when they left
+     * memory, so nothing is read from the logfile.  The rare message whose next send isn't known is scheduled for
+     * right now, so that the main loop will load it and find out when it is really due.
+     * </P>
+     */
+    public void scheduleAll() {
+        scheduler.clear();
+
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            MessageTable table = cache.getTable();
+            for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+                Message message = table.getMessage(slot);
+                long nextSend = message == null ? table.getNextSend(slot) : message.getNextSend();
+                scheduler.schedule(table.getUuid(slot), nextSend == 0 ? now : nextSend);
+            }
+        }
     }
 
     public long getLocationFor(UUID message) {
@@ -568,23 +817,26 @@ public class MessageLog implements PropertyListener {
         return uuidToOwner.get(uuid) != null;
     }
 
+    /**
+     * Add the messages in a file
+     *
+     * <P>
+     * The file is read a line at a time rather than all at once, so it can be larger than the heap.
+     * </P>
+     *
+     * @param logfile   The file to read.
+     * @param loadLimit Not used, the cache's load limit applies.
+     * @throws IOException If there is a problem reading the file or adding the messages.
+     */
     public void loadMessages (ImprovedFile logfile, int loadLimit)
             throws IOException, LtsllcException {
-        Reader reader = null;
-        try {
-            TextFile tf = new TextFile(logfile);
-            tf.load();
-            reader = tf.getReader();
-            BufferedReader br = new BufferedReader(reader);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(logfile),
+                StandardCharsets.UTF_8))) {
             Message m = readMessage(br);
             while (m != null) {
                 add(m, Miranda.getInstance().getMyUuid());
                 m = readMessage(br);
             }
-
-        } finally {
-            if (reader != null)
-                reader.close();
         }
     }
 
@@ -616,8 +868,13 @@ public class MessageLog implements PropertyListener {
      * @throws IOException if an IOException is thrown while trying to set the ownership
      */
     public void setOwnerTo (UUID owner) throws IOException {
-        for (Message m : cache.getAllMessages()) {
-            uuidToOwner.add(m.getMessageID(), owner);
+        LoggingCache.Cursor cursor = cache.cursor();
+        for (List<UUID> list = cursor.nextKeys(1000); !list.isEmpty(); list = cursor.nextKeys(1000)) {
+            for (UUID message : list) {
+                if (owner == null || !owner.equals(uuidToOwner.get(message))) {
+                    uuidToOwner.add(message, owner);
+                }
+            }
         }
     }
 
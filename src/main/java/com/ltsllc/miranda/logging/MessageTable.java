@@ -0,0 +1,413 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.message.Message;
+
+import java.util.UUID;
+
+/**
+ * The bookkeeping a LoggingCache keeps for each message, in one table
+ *
+ * <P>
+ * Each message the cache knows about has a slot holding its UUID (as two longs), its location in the logfile, the
+ * number of times it has been referenced, when it is next due to be sent and, if it is in memory, the message itself.
+ * The next send is kept so that the delivery schedule can be rebuilt without reading messages that are on disk.  The slots are parallel arrays
+ * of primitives, so an entry costs a few dozen bytes instead of the boxed keys, values and tree or hash nodes of one
+ * map per field.
+ * </P>
+ * <P>
+ * The table uses linear probing without wrapping around, and a message's home slot is the top bits of its UUID, so
+ * the entries are kept in UUID order (the same order as UUID.compareTo).  That lets a LoggingCache.Cursor resume
+ * after a UUID that has since been removed by seeking to it, the way it used to with a TreeMap.  The top bits of a
+ * random (version 4) UUID are evenly distributed, which is what keeps the probe sequences short; UUIDs that share
+ * their top bits still work, but they share a probe sequence too.
+ * </P>
+ * <P>
+ * Slots are only good until the next put or remove, which may move entries around.  This class is not thread safe,
+ * the LoggingCache synchronizes access to it.
+ * </P>
+ */
+public class MessageTable {
+    /**
+     * The number of slots past the end of the table that a probe sequence may run into before the table grows
+     */
+    public static final int OVERFLOW = 64;
+
+    public static final int MINIMUM_BITS = 4;
+
+    protected static final byte OCCUPIED = 1;
+
+    /**
+     * The table has 2<sup>bits</sup> home slots
+     */
+    protected int bits;
+
+    protected long[] mostSignificant;
+    protected long[] leastSignificant;
+    protected long[] locations;
+    protected long[] nextSends;
+    protected int[] references;
+    protected byte[] flags;
+    protected Message[] messages;
+
+    /**
+     * The number of entries
+     */
+    protected int size;
+
+    /**
+     * The number of entries whose message is in memory
+     */
+    protected int inMemory;
+
+    public MessageTable() {
+        allocate(MINIMUM_BITS);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getInMemory() {
+        return inMemory;
+    }
+
+    /**
+     * Return the slot for a message
+     *
+     * @param uuid The message.
+     * @return The slot or -1 if the table doesn't have the message.
+     */
+    public int find(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        int slot = home(msb);
+        while (slot < flags.length && flags[slot] == OCCUPIED) {
+            int comparison = compare(mostSignificant[slot], leastSignificant[slot], msb, lsb);
+            if (comparison == 0) {
+                return slot;
+            } else if (comparison > 0) {
+                break;
+            }
+
+            slot++;
+        }
+
+        return -1;
+    }
+
+    public boolean contains(UUID uuid) {
+        return find(uuid) != -1;
+    }
+
+    /**
+     * Return the slot for a message, adding an entry for it if there isn't one
+     *
+     * <P>
+     * A new entry has a location of -1, a next send of 0, has been referenced 0 times and is not in memory.
+     * </P>
+     *
+     * @param uuid The message.
+     * @return The slot for the message.
+     */
+    public int put(UUID uuid) {
+        int slot = find(uuid);
+        if (slot != -1) {
+            return slot;
+        }
+
+        if (size + 1 > (1 << bits) / 2) {
+            resize(bits + 1);
+        }
+
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        while (true) {
+            //
+            // find where the message goes: after everything smaller than it in its probe sequence
+            //
+            slot = home(msb);
+            while (slot < flags.length && flags[slot] == OCCUPIED
+                    && compare(mostSignificant[slot], leastSignificant[slot], msb, lsb) < 0) {
+                slot++;
+            }
+
+            //
+            // then find the end of the run that has to move over to make room
+            //
+            int empty = slot;
+            while (empty < flags.length && flags[empty] == OCCUPIED) {
+                empty++;
+            }
+
+            if (empty < flags.length) {
+                shiftRight(slot, empty);
+                break;
+            }
+
+            resize(bits + 1);
+        }
+
+        mostSignificant[slot] = msb;
+        leastSignificant[slot] = lsb;
+        locations[slot] = -1;
+        nextSends[slot] = 0;
+        references[slot] = 0;
+        flags[slot] = OCCUPIED;
+        messages[slot] = null;
+        size++;
+
+        return slot;
+    }
+
+    /**
+     * Remove the entry in a slot
+     *
+     * <P>
+     * The entries after it in its probe sequence move back a slot, so there are no tombstones to clean up later.
+     * </P>
+     *
+     * @param slot The slot.
+     */
+    public void remove(int slot) {
+        if (messages[slot] != null) {
+            inMemory--;
+        }
+        size--;
+
+        int next = slot + 1;
+        while (next < flags.length && flags[next] == OCCUPIED && home(mostSignificant[next]) < next) {
+            move(next, next - 1);
+            next++;
+        }
+
+        clearSlot(next - 1);
+    }
+
+    public void clear() {
+        allocate(MINIMUM_BITS);
+    }
+
+    public UUID getUuid(int slot) {
+        return new UUID(mostSignificant[slot], leastSignificant[slot]);
+    }
+
+    /**
+     * Return where a message is in the logfile
+     *
+     * @param uuid The message.
+     * @return The location or -1 if the table doesn't have the message.
+     */
+    public long getLocation(UUID uuid) {
+        int slot = find(uuid);
+        return slot == -1 ? -1 : locations[slot];
+    }
+
+    public long getLocation(int slot) {
+        return locations[slot];
+    }
+
+    public void setLocation(int slot, long location) {
+        locations[slot] = location;
+    }
+
+    /**
+     * Return when a message is next due to be sent
+     *
+     * <P>
+     * While the message is in memory the message's own nextSend is the one to go by; this is what it was when it
+     * was read from the logfile or last left memory.
+     * </P>
+     *
+     * @param slot The slot.
+     * @return The time, or 0 if it isn't known.
+     */
+    public long getNextSend(int slot) {
+        return nextSends[slot];
+    }
+
+    public void setNextSend(int slot, long nextSend) {
+        nextSends[slot] = nextSend;
+    }
+
+    public int getReferences(int slot) {
+        return references[slot];
+    }
+
+    public void setReferences(int slot, int timesReferenced) {
+        references[slot] = timesReferenced;
+    }
+
+    public Message getMessage(int slot) {
+        return messages[slot];
+    }
+
+    /**
+     * Set or clear the in-memory copy of a message
+     *
+     * @param slot    The slot.
+     * @param message The message or null if it is no longer in memory.
+     */
+    public void setMessage(int slot, Message message) {
+        if (messages[slot] == null && message != null) {
+            inMemory++;
+        } else if (messages[slot] != null && message == null) {
+            inMemory--;
+        }
+
+        messages[slot] = message;
+    }
+
+    /**
+     * Return the first slot in use
+     *
+     * @return The slot with the smallest UUID or -1 if the table is empty.
+     */
+    public int first() {
+        return next(-1);
+    }
+
+    /**
+     * Return the next slot in use
+     *
+     * @param slot The current slot, or -1 to start from the beginning.
+     * @return The next slot in UUID order or -1 if there isn't one.
+     */
+    public int next(int slot) {
+        for (slot++; slot < flags.length; slot++) {
+            if (flags[slot] == OCCUPIED) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Return the first slot whose UUID comes after a UUID
+     *
+     * @param uuid The UUID.  It does not need to be in the table.
+     * @return The slot or -1 if there isn't one.
+     */
+    public int after(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        int slot = home(msb);
+        while (slot < flags.length && flags[slot] == OCCUPIED
+                && compare(mostSignificant[slot], leastSignificant[slot], msb, lsb) <= 0) {
+            slot++;
+        }
+
+        if (slot < flags.length && flags[slot] == OCCUPIED) {
+            return slot;
+        }
+
+        return next(slot);
+    }
+
+    /**
+     * The home slot for a UUID: the top bits of its most significant long, adjusted so that the order of the slots
+     * is the signed order UUID.compareTo uses
+     */
+    protected int home(long msb) {
+        return (int) ((msb ^ Long.MIN_VALUE) >>> (64 - bits));
+    }
+
+    protected static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        int comparison = Long.compare(msb1, msb2);
+        return comparison != 0 ? comparison : Long.compare(lsb1, lsb2);
+    }
+
+    protected void allocate(int newBits) {
+        bits = newBits;
+        int length = (1 << bits) + OVERFLOW;
+
+        mostSignificant = new long[length];
+        leastSignificant = new long[length];
+        locations = new long[length];
+        nextSends = new long[length];
+        references = new int[length];
+        flags = new byte[length];
+        messages = new Message[length];
+        size = 0;
+        inMemory = 0;
+    }
+
+    /**
+     * Rebuild the table with more slots
+     *
+     * <P>
+     * The entries are copied in order, so each one goes in its home slot or the slot after the previous entry,
+     * whichever is later.  If that runs off the end of the new table, the table is made bigger still.
+     * </P>
+     */
+    protected void resize(int newBits) {
+        long[] oldMostSignificant = mostSignificant;
+        long[] oldLeastSignificant = leastSignificant;
+        long[] oldLocations = locations;
+        long[] oldNextSends = nextSends;
+        int[] oldReferences = references;
+        byte[] oldFlags = flags;
+        Message[] oldMessages = messages;
+        int oldSize = size;
+        int oldInMemory = inMemory;
+
+        boolean fits = false;
+        while (!fits) {
+            allocate(newBits);
+            fits = true;
+
+            int previous = -1;
+            for (int i = 0; i < oldFlags.length && fits; i++) {
+                if (oldFlags[i] != OCCUPIED) {
+                    continue;
+                }
+
+                int slot = Math.max(home(oldMostSignificant[i]), previous + 1);
+                if (slot >= flags.length) {
+                    fits = false;
+                    newBits++;
+                    continue;
+                }
+
+                mostSignificant[slot] = oldMostSignificant[i];
+                leastSignificant[slot] = oldLeastSignificant[i];
+                locations[slot] = oldLocations[i];
+                nextSends[slot] = oldNextSends[i];
+                references[slot] = oldReferences[i];
+                messages[slot] = oldMessages[i];
+                flags[slot] = OCCUPIED;
+                previous = slot;
+            }
+        }
+
+        size = oldSize;
+        inMemory = oldInMemory;
+    }
+
+    /**
+     * Move the entries from one slot up to, but not including, an empty slot over by one
+     */
+    protected void shiftRight(int from, int empty) {
+        for (int slot = empty; slot > from; slot--) {
+            move(slot - 1, slot);
+        }
+    }
+
+    protected void move(int from, int to) {
+        mostSignificant[to] = mostSignificant[from];
+        leastSignificant[to] = leastSignificant[from];
+        locations[to] = locations[from];
+        nextSends[to] = nextSends[from];
+        references[to] = references[from];
+        flags[to] = flags[from];
+        messages[to] = messages[from];
+    }
+
+    protected void clearSlot(int slot) {
+        flags[slot] = 0;
+        messages[slot] = null;
+    }
+}
@@ -0,0 +1,147 @@
+package com.ltsllc.miranda.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads one record (line) from a logfile given the record's byte offset
+ *
+ * <P>
+ * The logging classes used to find a record by opening a FileReader and calling skip(location).  That decodes every
+ * character before the record, so a lookup near the end of a large file read the whole file, and it was wrong for
+ * anything that isn't ASCII because skip counts characters while the locations we record are bytes.  This class
+ * uses positional FileChannel reads instead: it reads from the record's offset until it finds the end of the line,
+ * so fetching a record costs about the size of the record no matter where it is in the file.
+ * </P>
+ * <P>
+ * The channel is opened on the first read and kept open.  Like AppendWriter, anyone who is going to delete, rename
+ * or truncate the file must call close first; the next read opens the file again.
+ * </P>
+ */
+public class RecordReader {
+    /**
+     * How many bytes we read at a time while looking for the end of a record
+     */
+    public static final int CHUNK_SIZE = 4096;
+
+    /**
+     * The file we read from
+     */
+    protected File file;
+
+    /**
+     * The open channel or null if the file is not open
+     */
+    protected FileChannel channel;
+
+    public RecordReader(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Read the line that starts at a location
+     *
+     * @param location The byte offset of the start of the line.
+     * @return The line without its line terminator.
+     * @throws IOException If there is a problem reading the file or if location is at or past the end of the file.
+     */
+    public synchronized String readLine(long location) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        return readLine(channel, location);
+    }
+
+    /**
+     * Close the file
+     *
+     * <P>
+     * The next read will open the file again.
+     * </P>
+     *
+     * @throws IOException If there is a problem closing the file.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Read the line that starts at a location without keeping the file open
+     *
+     * @param file     The file to read.
+     * @param location The byte offset of the start of the line.
+     * @return The line without its line terminator.
+     * @throws IOException If there is a problem reading the file or if location is at or past the end of the file.
+     */
+    public static String readLine(File file, long location) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readLine(fileChannel, location);
+        }
+    }
+
+    /**
+     * Read the line that starts at a location in a channel
+     *
+     * <P>
+     * The line ends at a newline or at the end of the file.  A carriage return before the newline is dropped.  The
+     * position of the channel is not changed.
+     * </P>
+     */
+    protected static String readLine(FileChannel fileChannel, long location) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer byteBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+        long position = location;
+        boolean found = false;
+
+        while (!found) {
+            byteBuffer.clear();
+            int count = fileChannel.read(byteBuffer, position);
+            if (count == -1) {
+                break;
+            }
+
+            byte[] bytes = byteBuffer.array();
+            int length = 0;
+            while (length < count && bytes[length] != '\n') {
+                length++;
+            }
+
+            found = length < count;
+            line.write(bytes, 0, length);
+            position += count;
+        }
+
+        if (!found && line.size() == 0) {
+            throw new EOFException("no record at " + location + " in a file of " + fileChannel.size() + " bytes");
+        }
+
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,946 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.LtsllcException;
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A logfile that is split into fixed-size segments
+ *
+ * <P>
+ * Records are appended to the active segment.  When appending a record would take the active segment past the
+ * segment size, the segment is sealed and a new active segment is started.  Segment 0 is the logfile itself
+ * (e.g. messages.log) and segment n is the logfile with ".n" on the end (e.g. messages.log.3), so a log that has
+ * never filled a segment looks exactly like the single file the system used to write.
+ * </P>
+ * <P>
+ * A location in a segmented log packs the segment number into the bits above SEGMENT_SHIFT and the byte offset
+ * within the segment into the bits below it.  For segment 0 the location is just the byte offset.
+ * </P>
+ * <P>
+ * Sealed segments never change, so they are memory-mapped for reads.  The active segment is read with positional
+ * reads since it is still growing.
+ * </P>
+ * <P>
+ * The log keeps a count of the live records in each segment: append and retain count a record and release uncounts
+ * it.  When a sealed segment has no live records left it is deleted outright rather than being copied during
+ * compaction, so the owner must retain every record it still needs.  Segment 0 is replaced with an empty file
+ * instead of being deleted so that the logfile continues to exist for shouldRecover.
+ * </P>
+ * <P>
+ * A sealed segment that still has a live record keeps the records of every message that was removed from it, and
+ * those come back if the log is ever indexed from scratch.  The log also knows how many records each segment has,
+ * so that the owner can find the sealed segments where most of the records are dead (getSparseSegments) and
+ * compact them the same way as the active segment.
+ * </P>
+ */
+public class SegmentedLog {
+    public static final Logger logger = LogManager.getLogger(SegmentedLog.class);
+
+    /**
+     * The number of bits in a location that are used for the offset within a segment
+     */
+    public static final int SEGMENT_SHIFT = 40;
+
+    public static final long OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    /**
+     * Segments are memory-mapped, so they can be no larger than this
+     */
+    public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Something that wants to see every record in the log
+     */
+    public interface RecordVisitor {
+        /**
+         * Look at a record
+         *
+         * @param location The location of the record.
+         * @param line     The record.
+         * @return true to keep going, false to stop.
+         * @throws IOException If the visitor has a problem with the record.
+         */
+        boolean visit(long location, String line) throws IOException;
+    }
+
+    /**
+     * The logfile, which is also segment 0
+     */
+    protected ImprovedFile file;
+
+    protected long segmentSize;
+
+    /**
+     * The segment that appends go to
+     */
+    protected int active = 0;
+
+    /**
+     * What we use to append to the active segment
+     */
+    protected AppendWriter writer;
+
+    /**
+     * What we use to read from the active segment
+     */
+    protected RecordReader reader;
+
+    /**
+     * The sealed segments that have been mapped
+     */
+    protected Map<Integer, MappedByteBuffer> mapped = new HashMap<>();
+
+    /**
+     * A map from segment number to the number of live records in that segment
+     */
+    protected TreeMap<Integer, Integer> live = new TreeMap<>();
+
+    /**
+     * A map from segment number to the number of records in that segment, live or not, for the segments where that
+     * is known.  A segment that isn't in the map is counted the first time someone asks.
+     */
+    protected Map<Integer, Integer> records = new HashMap<>();
+
+    /**
+     * How many beginBatch calls have not been matched by an endBatch
+     */
+    protected int batchDepth = 0;
+
+    /**
+     * Goes up whenever records already in the log are moved or thrown away, so a Compaction can tell if the
+     * segment it copied is still the one on disk
+     */
+    protected long generation = 0;
+
+    /**
+     * Create a log that uses the segment size from the properties
+     *
+     * @param file The logfile.
+     */
+    public SegmentedLog(ImprovedFile file) {
+        this(file, getDefaultSegmentSize());
+    }
+
+    public SegmentedLog(ImprovedFile file, long segmentSize) {
+        this.file = file;
+        this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+
+        List<Integer> segments = getSegments();
+        active = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        writer = new AppendWriter(getSegmentFile(active));
+        reader = new RecordReader(getSegmentFile(active));
+    }
+
+    public ImprovedFile getFile() {
+        return file;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    public synchronized ImprovedFile getActiveFile() {
+        return getSegmentFile(active);
+    }
+
+    public static long toLocation(int segment, long offset) {
+        return ((long) segment << SEGMENT_SHIFT) | offset;
+    }
+
+    public static int segmentOf(long location) {
+        return (int) (location >>> SEGMENT_SHIFT);
+    }
+
+    public static long offsetOf(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    public ImprovedFile getSegmentFile(int segment) {
+        return getSegmentFile(file, segment);
+    }
+
+    public static ImprovedFile getSegmentFile(ImprovedFile file, int segment) {
+        if (segment == 0) {
+            return file;
+        }
+
+        return new ImprovedFile(file.toString() + "." + segment);
+    }
+
+    /**
+     * Return the segments that exist on disk
+     *
+     * @return The numbers of the segments that exist, in ascending order.
+     */
+    public List<Integer> getSegments() {
+        return getSegments(file);
+    }
+
+    public static List<Integer> getSegments(ImprovedFile file) {
+        List<Integer> list = new ArrayList<>();
+        if (file.exists()) {
+            list.add(0);
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        String[] names = directory == null ? null : directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                    String suffix = name.substring(prefix.length());
+                    if (suffix.chars().allMatch(Character::isDigit) && suffix.length() < 10) {
+                        list.add(Integer.parseInt(suffix));
+                    }
+                }
+            }
+        }
+
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Return the files of all the segments that exist on disk
+     *
+     * @param file The logfile.
+     * @return The segment files in order.
+     */
+    public static List<ImprovedFile> getSegmentFiles(ImprovedFile file) {
+        List<ImprovedFile> list = new ArrayList<>();
+        for (int segment : getSegments(file)) {
+            list.add(getSegmentFile(file, segment));
+        }
+
+        return list;
+    }
+
+    /**
+     * Put back the backups of the segments after the first
+     *
+     * <P>
+     * Recovery copies each segment of the logfile to a file with ".backup" on the end.  The caller is responsible
+     * for the backup of the logfile itself (segment 0); this method renames the backups of all the other segments
+     * back to their segment files.
+     * </P>
+     *
+     * @param file The logfile.
+     * @throws LtsllcException If a backup cannot be renamed.
+     */
+    public static void restoreBackups(ImprovedFile file) throws LtsllcException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        String suffix = ".backup";
+        String[] names = directory == null ? null : directory.list();
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix) && name.length() > prefix.length() + suffix.length()) {
+                String segment = name.substring(prefix.length(), name.length() - suffix.length());
+                if (segment.chars().allMatch(Character::isDigit)) {
+                    File backup = new File(directory, name);
+                    File segmentFile = new File(directory, prefix + segment);
+                    if (!backup.renameTo(segmentFile)) {
+                        throw new LtsllcException("failed to rename " + backup + " to " + segmentFile);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a backup of a logfile
+     *
+     * <P>
+     * The backup is a hard link to the file when the file system allows it, which takes no time and no space no
+     * matter how big the file is, and a copy otherwise.  A link shares the file's contents, so it is only safe as
+     * long as nothing changes the file in place except by appending: a logfile is never truncated or rewritten, it
+     * is replaced by moving a new file over it (see replaceWithEmptyFile), which leaves the backup with the old
+     * contents.  Records appended later show up in the backup too, which does no harm since a later record for a
+     * message replaces an earlier one.
+     * </P>
+     *
+     * @param file   The file to back up.
+     * @param backup The backup, which must not exist.
+     * @throws IOException     If the file can be neither linked nor copied.
+     * @throws LtsllcException If there is a problem copying the file.
+     */
+    public static void backup(ImprovedFile file, ImprovedFile backup) throws IOException, LtsllcException {
+        try {
+            Files.createLink(backup.toPath(), file.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            logger.debug("could not link " + backup + " to " + file + ", copying it instead", e);
+            file.copyTo(backup);
+        }
+    }
+
+    /**
+     * Empty a logfile by moving a new, empty file over it
+     *
+     * <P>
+     * Truncating the file would also empty any backup that is a hard link to it; the move gives the name a new file
+     * and leaves the old one to the backup.
+     * </P>
+     *
+     * @param file The file to empty.  The caller must have closed any writer or reader on it.
+     * @throws IOException If there is a problem creating or moving the empty file.
+     */
+    public static void replaceWithEmptyFile(ImprovedFile file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        Path empty = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".empty");
+        try {
+            Files.move(empty, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(empty, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Does any part of the log exist?
+     */
+    public boolean exists() {
+        return !getSegments().isEmpty();
+    }
+
+    /**
+     * Append a record
+     *
+     * <P>
+     * If the record would take the active segment past the segment size, then a new segment is started first.  A
+     * record is never split across segments, so a record that is larger than the segment size gets a segment to
+     * itself.
+     * </P>
+     *
+     * @param line The record to append.
+     * @return The location of the record.
+     * @throws IOException If there is a problem writing the record.
+     */
+    public synchronized long append(String line) throws IOException {
+        long position = writer.getPosition();
+        if (position > 0 && position + recordLength(line) > segmentSize) {
+            roll();
+        }
+
+        long offset = writer.append(line);
+        live.merge(active, 1, Integer::sum);
+        records.computeIfPresent(active, (segment, count) -> count + 1);
+
+        return toLocation(active, offset);
+    }
+
+    /**
+     * Read the record at a location
+     *
+     * @param location The location of the record.
+     * @return The record.
+     * @throws IOException If there is a problem reading the record or there is no record at that location.
+     */
+    public synchronized String readLine(long location) throws IOException {
+        int segment = segmentOf(location);
+        long offset = offsetOf(location);
+
+        if (segment == active) {
+            return reader.readLine(offset);
+        }
+
+        return readMapped(map(segment), (int) offset);
+    }
+
+    /**
+     * Count a record that is already in the log as live
+     *
+     * <P>
+     * This is for when the log is being read in rather than appended to.
+     * </P>
+     *
+     * @param location The location of the record.
+     */
+    public synchronized void retain(long location) {
+        live.merge(segmentOf(location), 1, Integer::sum);
+    }
+
+    /**
+     * The record at a location is no longer needed
+     *
+     * <P>
+     * If this was the last live record in a sealed segment then the segment is removed.
+     * </P>
+     *
+     * @param location The location of the record.
+     */
+    public synchronized void release(long location) {
+        int segment = segmentOf(location);
+        Integer count = live.get(segment);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            live.put(segment, count - 1);
+        } else {
+            live.remove(segment);
+            if (segment != active) {
+                removeSegment(segment);
+            }
+        }
+    }
+
+    public synchronized int getLiveCount(int segment) {
+        Integer count = live.get(segment);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Start compacting the active segment without holding the lock on the log while the records are copied
+     *
+     * <P>
+     * Only the records that are in the active segment now, and whose locations are given, are copied.  See
+     * Compaction for the rest.
+     * </P>
+     *
+     * @param keep The locations of the records to keep, in any order.  Locations in other segments are ignored.
+     * @return The compaction, or null if the active segment is empty.
+     * @throws IOException If there is a problem flushing the active segment.
+     */
+    public synchronized Compaction beginCompaction(long[] keep) throws IOException {
+        return beginCompaction(active, keep);
+    }
+
+    /**
+     * Start compacting a segment without holding the lock on the log while the records are copied
+     *
+     * @param segment The segment, which may be sealed or active.
+     * @param keep    The locations of the records to keep, in any order.  Locations in other segments are ignored.
+     * @return The compaction, or null if the segment is empty or doesn't exist.
+     * @throws IOException If there is a problem flushing the active segment.
+     */
+    public synchronized Compaction beginCompaction(int segment, long[] keep) throws IOException {
+        long end;
+        if (segment == active) {
+            writer.flush();
+            end = writer.getPosition();
+        } else {
+            ImprovedFile segmentFile = getSegmentFile(segment);
+            end = segmentFile.exists() ? segmentFile.length() : 0;
+        }
+
+        if (end == 0) {
+            return null;
+        }
+
+        long[] offsets = new long[keep.length];
+        int count = 0;
+        for (long location : keep) {
+            if (segmentOf(location) == segment && offsetOf(location) < end) {
+                offsets[count++] = offsetOf(location);
+            }
+        }
+
+        offsets = Arrays.copyOf(offsets, count);
+        Arrays.sort(offsets);
+
+        return new Compaction(segment, end, offsets, generation);
+    }
+
+    /**
+     * Return the sealed segments where at least a given percentage of the records are dead
+     *
+     * <P>
+     * Segments with no live records aren't returned since they are removed as soon as the last one goes.  The first
+     * time a segment is looked at its records are counted, which reads the whole segment, so that is done without
+     * holding the lock on the log.  After that the count is kept up to date.
+     * </P>
+     *
+     * @param deadPercent The percentage of records that must be dead.
+     * @return The segments, in ascending order.
+     * @throws IOException If there is a problem reading a segment to count its records.
+     */
+    public List<Integer> getSparseSegments(int deadPercent) throws IOException {
+        List<Integer> uncounted = new ArrayList<>();
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+            for (int segment : live.keySet()) {
+                if (segment != active && !records.containsKey(segment)) {
+                    uncounted.add(segment);
+                }
+            }
+        }
+
+        //
+        // a sealed segment only changes when it is compacted or removed, and compacting bumps the generation
+        //
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int segment : uncounted) {
+            try {
+                counts.put(segment, countRecords(getSegmentFile(segment)));
+            } catch (FileNotFoundException e) {
+                logger.debug("segment " + segment + " was removed while it was being counted");
+            }
+        }
+
+        List<Integer> sparse = new ArrayList<>();
+        synchronized (this) {
+            if (generation == startGeneration) {
+                for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                    if (live.containsKey(entry.getKey())) {
+                        records.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            for (Map.Entry<Integer, Integer> entry : live.entrySet()) {
+                Integer count = records.get(entry.getKey());
+                if (entry.getKey() == active || count == null || count == 0) {
+                    continue;
+                }
+
+                long dead = count - entry.getValue();
+                if (dead > 0 && 100L * dead >= (long) deadPercent * count) {
+                    sparse.add(entry.getKey());
+                }
+            }
+        }
+
+        return sparse;
+    }
+
+    /**
+     * Count the records in a file
+     *
+     * @param segmentFile The file.
+     * @return The number of non-empty lines in the file.
+     * @throws IOException If there is a problem reading the file.
+     */
+    protected static int countRecords(ImprovedFile segmentFile) throws IOException {
+        int count = 0;
+        boolean inRecord = false;
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(segmentFile))) {
+            for (int b = inputStream.read(); b != -1; b = inputStream.read()) {
+                if (b == '\n' || b == '\r') {
+                    if (inRecord) {
+                        count++;
+                    }
+                    inRecord = false;
+                } else {
+                    inRecord = true;
+                }
+            }
+        }
+
+        if (inRecord) {
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * A compaction of one segment that does not hold the lock on the log while it copies
+     *
+     * <P>
+     * A compaction happens in three steps.  beginCompaction notes how long the segment is and which of its records
+     * to keep.  copy then copies those records to a temporary file; this is the slow part and it does not lock the
+     * log, so records can be appended and read while it runs.  finish locks the log, copies whatever was appended to
+     * the segment after beginCompaction to the end of the temporary file as is, and moves the temporary file over the
+     * segment.  If the segment was rewritten or removed in the meantime, finish throws the copy away instead.
+     * </P>
+     * <P>
+     * Moving the records changes their locations, and relocate translates an old location into a new one.  The owner
+     * of the log has to apply that to every location it holds for the segment, and must do so before anything else
+     * can read the segment, so it calls finish and relocate while holding its own lock.  The live count of the
+     * segment stays the same because the same records are live.
+     * </P>
+     */
+    public class Compaction {
+        protected int segment;
+        protected long end;
+        protected long[] keep;
+        protected long startGeneration;
+        protected ImprovedFile temp;
+
+        /**
+         * The offsets of the records that were copied, in order, and their offsets in the copy
+         */
+        protected long[] oldOffsets;
+        protected long[] newOffsets;
+        protected int copied;
+
+        /**
+         * How much shorter the copy is than the part of the segment it replaces
+         */
+        protected long shift;
+
+        protected Compaction(int segment, long end, long[] keep, long startGeneration) {
+            this.segment = segment;
+            this.end = end;
+            this.keep = keep;
+            this.startGeneration = startGeneration;
+            temp = new ImprovedFile(getSegmentFile(segment).toString() + ".temp");
+            oldOffsets = new long[keep.length];
+            newOffsets = new long[keep.length];
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public int getCopied() {
+            return copied;
+        }
+
+        /**
+         * Copy the records to keep to the temporary file
+         *
+         * <P>
+         * This does not lock the log.  It only reads the part of the segment that was there when the compaction
+         * began, which does not change while records are appended.
+         * </P>
+         *
+         * @throws IOException If there is a problem reading the segment or writing the copy.
+         */
+        public void copy() throws IOException {
+            long oldOffset = 0;
+            long newOffset = 0;
+
+            try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(getSegmentFile(segment)), StandardCharsets.UTF_8));
+                 BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(
+                         new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                while (oldOffset < end) {
+                    String line = bufferedReader.readLine();
+                    if (line == null) {
+                        break;
+                    }
+
+                    long length = recordLength(line);
+                    if (Arrays.binarySearch(keep, oldOffset) >= 0) {
+                        bufferedWriter.write(line);
+                        bufferedWriter.write(System.lineSeparator());
+                        oldOffsets[copied] = oldOffset;
+                        newOffsets[copied] = newOffset;
+                        copied++;
+                        newOffset += length;
+                    }
+
+                    oldOffset += length;
+                }
+            }
+
+            shift = end - newOffset;
+        }
+
+        /**
+         * Return where a record will be once the compaction finishes
+         *
+         * @param location The location of the record now.
+         * @return The new location: the same location for a record in another segment, or -1 if the record is in
+         * the part of the segment that was compacted but was not copied.
+         */
+        public long relocate(long location) {
+            if (segmentOf(location) != segment) {
+                return location;
+            }
+
+            long offset = offsetOf(location);
+            if (offset >= end) {
+                return location - shift;
+            }
+
+            int index = Arrays.binarySearch(oldOffsets, 0, copied, offset);
+            return index < 0 ? -1 : toLocation(segment, newOffsets[index]);
+        }
+
+        /**
+         * Catch up with what was appended during the copy and replace the segment with the copy
+         *
+         * @return true if the segment was replaced, false if the segment changed in some other way in the meantime
+         * and the copy was thrown away.
+         * @throws IOException If there is a problem copying or moving the files.
+         */
+        public boolean finish() throws IOException {
+            synchronized (SegmentedLog.this) {
+                ImprovedFile segmentFile = getSegmentFile(segment);
+                if (generation != startGeneration || !segmentFile.exists() || segmentFile.length() < end) {
+                    abandon();
+                    return false;
+                }
+
+                boolean isActive = segment == active;
+                if (isActive) {
+                    writer.close();
+                    reader.close();
+                }
+
+                long size;
+                try (FileChannel source = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ);
+                     FileChannel destination = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+                             StandardOpenOption.APPEND)) {
+                    long position = end;
+                    size = source.size();
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, destination);
+                    }
+
+                    destination.force(false);
+                }
+
+                mapped.remove(segment);
+                Files.move(temp.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                generation++;
+
+                //
+                // records appended during the copy were carried over without being counted, so in that case the
+                // count is found again when it is next needed
+                //
+                if (isActive || size > end) {
+                    records.remove(segment);
+                } else {
+                    records.put(segment, copied);
+                }
+
+                if (isActive) {
+                    setActive(segment);
+                    for (int i = 0; i < batchDepth; i++) {
+                        writer.beginBatch();
+                    }
+                }
+
+                return true;
+            }
+        }
+
+        /**
+         * Throw the copy away
+         */
+        public void abandon() {
+            if (temp.exists() && !temp.delete()) {
+                logger.warn("could not delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Read every record in the log, oldest segment first
+     *
+     * @param visitor What to call with each record.
+     * @throws IOException If there is a problem reading the log.
+     */
+    public synchronized void forEach(RecordVisitor visitor) throws IOException {
+        writer.flush();
+
+        for (int segment : getSegments()) {
+            try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(getSegmentFile(segment)), StandardCharsets.UTF_8))) {
+                long offset = 0;
+                for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+                    if (line.isEmpty()) {
+                        offset += recordLength(line);
+                        continue;
+                    }
+
+                    if (!visitor.visit(toLocation(segment, offset), line)) {
+                        return;
+                    }
+
+                    offset += recordLength(line);
+                }
+            }
+        }
+    }
+
+    public synchronized void beginBatch() {
+        batchDepth++;
+        writer.beginBatch();
+    }
+
+    public synchronized void endBatch() throws IOException {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+
+        writer.endBatch();
+    }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Close all the files
+     *
+     * <P>
+     * The next append or read opens them again.
+     * </P>
+     *
+     * @throws IOException If there is a problem closing a file.
+     */
+    public synchronized void close() throws IOException {
+        mapped.clear();
+        try {
+            writer.close();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Delete every segment
+     *
+     * @throws IOException If there is a problem closing the files.
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        generation++;
+
+        for (int segment : getSegments()) {
+            getSegmentFile(segment).delete();
+        }
+
+        live.clear();
+        records.clear();
+        setActive(0);
+    }
+
+    /**
+     * Delete every segment and leave an empty logfile
+     *
+     * @throws IOException If there is a problem closing the files.
+     */
+    public synchronized void clear() throws IOException {
+        delete();
+        file.clear();
+    }
+
+    /**
+     * Seal the active segment and start a new one
+     */
+    protected void roll() throws IOException {
+        logger.debug("sealing segment " + active + " of " + file);
+
+        writer.close();
+        reader.close();
+        setActive(active + 1);
+        records.put(active, 0);
+
+        for (int i = 0; i < batchDepth; i++) {
+            writer.beginBatch();
+        }
+    }
+
+    protected void setActive(int segment) {
+        active = segment;
+        writer = new AppendWriter(getSegmentFile(segment));
+        reader = new RecordReader(getSegmentFile(segment));
+    }
+
+    protected void removeSegment(int segment) {
+        logger.debug("removing segment " + segment + " of " + file);
+
+        mapped.remove(segment);
+        live.remove(segment);
+        records.remove(segment);
+        ImprovedFile segmentFile = getSegmentFile(segment);
+
+        if (segment == 0) {
+            try {
+                replaceWithEmptyFile(segmentFile);
+            } catch (IOException e) {
+                logger.warn("exception emptying " + segmentFile, e);
+            }
+        } else if (!segmentFile.delete()) {
+            logger.warn("could not delete " + segmentFile);
+        }
+    }
+
+    protected MappedByteBuffer map(int segment) throws IOException {
+        MappedByteBuffer mappedByteBuffer = mapped.get(segment);
+        if (mappedByteBuffer == null) {
+            try (FileChannel fileChannel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.READ)) {
+                mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            }
+
+            mapped.put(segment, mappedByteBuffer);
+        }
+
+        return mappedByteBuffer;
+    }
+
+    protected static String readMapped(MappedByteBuffer mappedByteBuffer, int offset) throws IOException {
+        int limit = mappedByteBuffer.limit();
+        if (offset >= limit) {
+            throw new EOFException("no record at " + offset + " in a segment of " + limit + " bytes");
+        }
+
+        int end = offset;
+        while (end < limit && mappedByteBuffer.get(end) != '\n') {
+            end++;
+        }
+
+        int length = end - offset;
+        if (length > 0 && mappedByteBuffer.get(end - 1) == '\r') {
+            length--;
+        }
+
+        byte[] bytes = new byte[length];
+        mappedByteBuffer.get(offset, bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The number of bytes a line takes up in the logfile, including its line separator
+     *
+     * <P>
+     * The channel position of the stream under a BufferedReader is wherever the last buffer-full ended, not where
+     * the current line ends, so locations have to be counted rather than asked for.
+     * </P>
+     *
+     * @param line The line as written by AppendWriter.
+     * @return The number of bytes the line occupies.
+     */
+    public static long recordLength(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length + System.lineSeparator().length();
+    }
+
+    /**
+     * Return the segment size called for by the properties
+     *
+     * @return The segment size from PROPERTY_MESSAGE_LOG_SEGMENT_SIZE or the default if the properties haven't been
+     * loaded.
+     */
+    public static long getDefaultSegmentSize() {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(Miranda.PROPERTY_MESSAGE_LOG_SEGMENT_SIZE) == null) {
+            return Long.parseLong(Miranda.PROPERTY_DEFAULT_MESSAGE_LOG_SEGMENT_SIZE);
+        }
+
+        return properties.getLongProperty(Miranda.PROPERTY_MESSAGE_LOG_SEGMENT_SIZE);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ltsllc.miranda.logging;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.UUID;
+
+/**
+ * Segmented least recently used eviction
+ *
+ * <P>
+ * A message starts out in the probationary segment.  If it is referenced while it is there it moves to the protected
+ * segment; a message in the protected segment that is referenced moves to the most recently used end of it.  The
+ * protected segment is limited to PROTECTED_FRACTION of the messages, and when it grows beyond that its least
+ * recently used message goes back to probation.  Victims come from the least recently used end of the probationary
+ * segment, so a burst of messages that are each referenced once can't push out messages that are referenced over
+ * and over.  Everything is O(1).
+ * </P>
+ */
+public class SegmentedLruEvictionPolicy implements EvictionPolicy {
+    /**
+     * The largest part of the messages that can be in the protected segment
+     */
+    public static final double PROTECTED_FRACTION = 0.8;
+
+    /**
+     * Messages that have been referenced at most once since they were admitted, least recently used first
+     */
+    protected LinkedHashSet<UUID> probation = new LinkedHashSet<>();
+
+    /**
+     * Messages that have been referenced more than that, least recently used first
+     */
+    protected LinkedHashSet<UUID> protectedSegment = new LinkedHashSet<>();
+
+    @Override
+    public void admit(UUID uuid, int timesReferenced) {
+        remove(uuid);
+        probation.add(uuid);
+    }
+
+    @Override
+    public void access(UUID uuid) {
+        if (protectedSegment.remove(uuid)) {
+            protectedSegment.add(uuid);
+        } else if (probation.remove(uuid)) {
+            protectedSegment.add(uuid);
+            balance();
+        }
+    }
+
+    @Override
+    public void remove(UUID uuid) {
+        if (!probation.remove(uuid)) {
+            protectedSegment.remove(uuid);
+        }
+    }
+
+    @Override
+    public UUID victim() {
+        if (!probation.isEmpty()) {
+            return probation.iterator().next();
+        }
+
+        if (!protectedSegment.isEmpty()) {
+            return protectedSegment.iterator().next();
+        }
+
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public void clear() {
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    public boolean isProtected(UUID uuid) {
+        return protectedSegment.contains(uuid);
+    }
+
+    /**
+     * Move the least recently used protected messages to probation until the protected segment is small enough
+     */
+    protected void balance() {
+        int limit = (int) Math.max(1, size() * PROTECTED_FRACTION);
+        Iterator<UUID> iterator = protectedSegment.iterator();
+        while (protectedSegment.size() > limit && iterator.hasNext()) {
+            UUID uuid = iterator.next();
+            iterator.remove();
+            probation.add(uuid);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.ltsllc.miranda.message;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the contents of messages off the heap
+ *
+ * <P>
+ * A cache with a large load limit holds a lot of large byte arrays that live a long time, which is the worst case
+ * for the garbage collector.  This class keeps the contents in direct buffers instead.  The buffers are allocated a
+ * slab at a time and each slab is cut into chunks of one size, a power of two from SMALLEST_CHUNK to SLAB_SIZE.
+ * Contents go in the smallest chunk they fit in, and a chunk that is released goes on a free list for that size to
+ * be reused.  Contents larger than a slab get a direct buffer of their own.  Slabs are never given back, so the
+ * store stays as big as the most it has ever held.
+ * </P>
+ * <P>
+ * A Handle is reference counted.  The message that the contents belong to holds one reference; anything that
+ * writes the contents somewhere without copying them, like a delivery, takes another for as long as it needs them.
+ * The chunk goes back on its free list when the last reference is released.
+ * </P>
+ * <P>
+ * Whether a LoggingCache uses a store is controlled by PROPERTY_CACHE_CONTENT_STORE.
+ * </P>
+ */
+public class ContentStore {
+    public enum Mode {
+        heap,
+        direct
+    }
+
+    public static final int SLAB_SIZE = 1 << 20;
+
+    public static final int SMALLEST_CHUNK = 64;
+
+    protected static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(SLAB_SIZE / SMALLEST_CHUNK) + 1;
+
+    protected static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+    /**
+     * The slabs, each of which holds chunks of one size
+     */
+    protected List<ByteBuffer> slabs = new ArrayList<>();
+
+    /**
+     * For each size, the free chunks as (slab &lt;&lt; 32) | offset
+     */
+    protected long[][] free = new long[SIZE_CLASSES][];
+
+    /**
+     * For each size, how many entries of free are in use
+     */
+    protected int[] freeCount = new int[SIZE_CLASSES];
+
+    /**
+     * The number of bytes of contents in the store
+     */
+    protected long used;
+
+    /**
+     * The number of bytes of direct memory the store has taken, including contents too big for a slab
+     */
+    protected long reserved;
+
+    public ContentStore() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            free[i] = new long[16];
+        }
+    }
+
+    /**
+     * Create a store if the properties call for one
+     *
+     * @return A new store or null if PROPERTY_CACHE_CONTENT_STORE says to keep contents on the heap.
+     */
+    public static ContentStore createDefault() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_CACHE_CONTENT_STORE);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_CACHE_CONTENT_STORE;
+        }
+
+        if (Mode.valueOf(value.toLowerCase()) == Mode.heap) {
+            return null;
+        }
+
+        return new ContentStore();
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    public synchronized int getSlabs() {
+        return slabs.size();
+    }
+
+    /**
+     * Copy some contents into the store
+     *
+     * @param bytes The contents.
+     * @return A handle with one reference to the copy.
+     */
+    public synchronized Handle allocate(byte[] bytes) {
+        Handle handle;
+
+        if (bytes.length == 0) {
+            handle = new Handle(-1, -1, -1, EMPTY);
+        } else if (bytes.length > SLAB_SIZE) {
+            reserved += bytes.length;
+            handle = new Handle(-1, -1, -1, ByteBuffer.allocateDirect(bytes.length));
+        } else {
+            int sizeClass = sizeClass(bytes.length);
+            if (freeCount[sizeClass] == 0) {
+                addSlab(sizeClass);
+            }
+
+            long chunk = free[sizeClass][--freeCount[sizeClass]];
+            int slab = (int) (chunk >>> 32);
+            int offset = (int) chunk;
+            handle = new Handle(sizeClass, slab, offset, slabs.get(slab).slice(offset, bytes.length));
+        }
+
+        handle.region.put(0, bytes);
+        used += bytes.length;
+
+        return handle;
+    }
+
+    /**
+     * The size class for some contents: 0 for SMALLEST_CHUNK, 1 for twice that, and so on
+     */
+    protected static int sizeClass(int length) {
+        int chunkSize = Math.max(SMALLEST_CHUNK, Integer.highestOneBit(length - 1) << 1);
+        return Integer.numberOfTrailingZeros(chunkSize / SMALLEST_CHUNK);
+    }
+
+    protected void addSlab(int sizeClass) {
+        int chunkSize = SMALLEST_CHUNK << sizeClass;
+        int slab = slabs.size();
+        slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        reserved += SLAB_SIZE;
+
+        for (int offset = SLAB_SIZE - chunkSize; offset >= 0; offset -= chunkSize) {
+            push(sizeClass, ((long) slab << 32) | offset);
+        }
+    }
+
+    protected void push(int sizeClass, long chunk) {
+        if (freeCount[sizeClass] == free[sizeClass].length) {
+            long[] temp = new long[free[sizeClass].length * 2];
+            System.arraycopy(free[sizeClass], 0, temp, 0, freeCount[sizeClass]);
+            free[sizeClass] = temp;
+        }
+
+        free[sizeClass][freeCount[sizeClass]++] = chunk;
+    }
+
+    /**
+     * The contents of one message in the store
+     */
+    public class Handle {
+        protected int sizeClass;
+        protected int slab;
+        protected int offset;
+        protected ByteBuffer region;
+        protected int references = 1;
+
+        protected Handle(int sizeClass, int slab, int offset, ByteBuffer region) {
+            this.sizeClass = sizeClass;
+            this.slab = slab;
+            this.offset = offset;
+            this.region = region;
+        }
+
+        public int length() {
+            return region.capacity();
+        }
+
+        /**
+         * A read-only view of the contents
+         *
+         * <P>
+         * The view is only good while the caller holds a reference to the handle.
+         * </P>
+         *
+         * @return The view, positioned at the start of the contents.
+         */
+        public ByteBuffer buffer() {
+            return region.asReadOnlyBuffer();
+        }
+
+        /**
+         * Copy the contents onto the heap
+         *
+         * @return A new array with the contents.
+         */
+        public byte[] copy() {
+            byte[] bytes = new byte[region.capacity()];
+            region.get(0, bytes);
+            return bytes;
+        }
+
+        /**
+         * Does anyone besides the first owner hold a reference to the contents?
+         */
+        public boolean isShared() {
+            synchronized (ContentStore.this) {
+                return references > 1;
+            }
+        }
+
+        /**
+         * Take another reference to the contents
+         */
+        public void retain() {
+            synchronized (ContentStore.this) {
+                if (references <= 0) {
+                    throw new IllegalStateException("retain called on released contents");
+                }
+
+                references++;
+            }
+        }
+
+        /**
+         * Give up a reference to the contents, when the last one goes the chunk can be reused
+         */
+        public void release() {
+            synchronized (ContentStore.this) {
+                if (references <= 0) {
+                    throw new IllegalStateException("release called on released contents");
+                }
+
+                references--;
+                if (references > 0) {
+                    return;
+                }
+
+                used -= region.capacity();
+                if (sizeClass != -1) {
+                    push(sizeClass, ((long) slab << 32) | offset);
+                } else if (region != EMPTY) {
+                    reserved -= region.capacity();
+                }
+                region = EMPTY;
+            }
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package com.ltsllc.miranda.message;
 
 import com.ltsllc.commons.HexConverter;
+import com.ltsllc.commons.LtsllcException;
+import com.ltsllc.commons.UncheckedLtsllcException;
 import com.ltsllc.commons.io.ScannerWithUnget;
+import com.ltsllc.miranda.logging.MessageLog;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.asynchttpclient.AsyncCompletionHandler;
 import org.asynchttpclient.Param;
 import org.asynchttpclient.Response;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -35,6 +40,17 @@ public class Message implements Comparable<Message> {
     protected String statusURL;
     protected List<Param> paramList = new ArrayList<>();
     protected byte[] contents;
+
+    /**
+     * The contents when they are in a ContentStore, in which case contents is null
+     */
+    protected ContentStore.Handle handle;
+
+    /**
+     * The contents were in a ContentStore and were dropped when the cache let go of the message
+     */
+    protected boolean contentsReleased = false;
+
     protected UUID messageID;
     protected long lastSend = 0;
     protected int numberOfSends = 0;
@@ -50,7 +66,8 @@ public class Message implements Comparable<Message> {
         status = message.status;
         deliveryURL = message.deliveryURL;
         statusURL = message.statusURL;
-        contents = Arrays.copyOf(message.contents, message.contents.length);
+        byte[] original = message.getContents();
+        contents = Arrays.copyOf(original, original.length);
         messageID = new UUID(message.messageID.getMostSignificantBits(), message.messageID.getLeastSignificantBits());
     }
 
@@ -86,14 +103,174 @@ public class Message implements Comparable<Message> {
         this.statusURL = statusURL;
     }
 
+    /**
+     * Return the contents of the message
+     *
+     * <P>
+     * If the contents are in a ContentStore this returns a copy of them, so code that only needs the size should use
+     * getContentLength, and code that writes the contents somewhere should use writeContents or retainContents.
+     * If the contents were released they are read again through MessageLog.get.
+     * </P>
+     *
+     * @return The contents.
+     */
     public byte[] getContents() {
-        return contents;
+        synchronized (this) {
+            if (handle != null) {
+                return handle.copy();
+            }
+
+            if (!contentsReleased) {
+                return contents;
+            }
+        }
+
+        //
+        // this is done without the lock on the message because the cache holds its own lock when it releases the
+        // contents
+        //
+        Message reread = withContents();
+        return reread == this ? null : reread.getContents();
     }
 
-    public void setContents(byte[] contents) {
+    public synchronized void setContents(byte[] contents) {
+        if (handle != null) {
+            handle.release();
+            handle = null;
+        }
+
+        contentsReleased = false;
+
         this.contents = contents;
     }
 
+    public synchronized boolean hasContents() {
+        return handle != null || contents != null;
+    }
+
+    /**
+     * Return the size of the contents without copying them
+     *
+     * @return The number of bytes in the contents, 0 if there are none.
+     */
+    public synchronized int getContentLength() {
+        if (handle != null) {
+            return handle.length();
+        }
+
+        return contents == null ? 0 : contents.length;
+    }
+
+    /**
+     * Copy the contents into a buffer
+     *
+     * @param byteBuffer Where to put them.  The buffer must have at least getContentLength() bytes remaining.
+     */
+    public synchronized void writeContents(ByteBuffer byteBuffer) {
+        if (handle != null) {
+            byteBuffer.put(handle.buffer());
+        } else if (contents != null) {
+            byteBuffer.put(contents);
+        }
+    }
+
+    /**
+     * Move the contents into a ContentStore
+     *
+     * <P>
+     * This does nothing if the contents are already in a store or there are none.
+     * </P>
+     *
+     * @param contentStore The store.
+     */
+    public synchronized void moveContentsOffHeap(ContentStore contentStore) {
+        if (handle == null && contents != null) {
+            handle = contentStore.allocate(contents);
+            contents = null;
+        }
+    }
+
+    /**
+     * Give up the message's reference to its contents in the ContentStore
+     *
+     * <P>
+     * The cache calls this when it evicts or removes the message.  Usually nobody else is using the message by
+     * then, so the contents are simply dropped: the message has no contents afterwards (isContentsReleased is true)
+     * and getContents and withContents read the message again through MessageLog.get.  If someone has retained the
+     * contents, say a delivery that is still in flight, the message is still in use and the contents are copied
+     * back onto the heap for it.
+     * </P>
+     */
+    public synchronized void releaseContents() {
+        if (handle != null) {
+            if (handle.isShared()) {
+                contents = handle.copy();
+            } else {
+                contentsReleased = true;
+            }
+
+            handle.release();
+            handle = null;
+        }
+    }
+
+    /**
+     * Were the contents dropped by releaseContents?
+     */
+    public synchronized boolean isContentsReleased() {
+        return contentsReleased;
+    }
+
+    /**
+     * Return a message with the same contents that still has them
+     *
+     * <P>
+     * Code that holds on to a message that the cache has since evicted, and that is about to write the message
+     * somewhere, should write the message this returns.  If the contents were not released this is the message
+     * itself, otherwise it is the message read again through MessageLog.get.
+     * </P>
+     *
+     * @return The message, or this message if the contents were released and the message is no longer in the
+     * message log.
+     */
+    public Message withContents() {
+        if (!isContentsReleased() || MessageLog.getInstance() == null) {
+            return this;
+        }
+
+        Message reread;
+        try {
+            reread = MessageLog.getInstance().get(messageID);
+        } catch (LtsllcException | IOException e) {
+            throw new UncheckedLtsllcException(e);
+        }
+
+        if (reread == null) {
+            logger.warn("the contents of " + messageID + " were released and the message is no longer in the log");
+            return this;
+        }
+
+        return reread;
+    }
+
+    /**
+     * Take a reference to the contents in the ContentStore
+     *
+     * <P>
+     * The caller can write handle.buffer() without copying it and must call release on the handle when it is done.
+     * </P>
+     *
+     * @return The handle or null if the contents are on the heap, in which case getContents doesn't copy them.
+     */
+    public synchronized ContentStore.Handle retainContents() {
+        if (handle == null) {
+            return null;
+        }
+
+        handle.retain();
+        return handle;
+    }
+
     public int getStatus() {
         return status;
     }
@@ -157,7 +334,7 @@ public class Message implements Comparable<Message> {
         } else if (!deliveryURL.equals(other.deliveryURL)) {
             return false;
         } else {
-            return contentsAreEquivalent(contents, other.contents);
+            return contentsAreEquivalent(getContents(), other.getContents());
         }
     }
 
@@ -225,7 +402,7 @@ public class Message implements Comparable<Message> {
         stringBuffer.append(" NEXT_SEND: ");
         stringBuffer.append(nextSend);
         stringBuffer.append(" CONTENTS: ");
-        stringBuffer.append(HexConverter.toHexString(contents));
+        stringBuffer.append(HexConverter.toHexString(getContents()));
 
         returnValue = stringBuffer.toString();
 
@@ -253,11 +430,19 @@ public class Message implements Comparable<Message> {
     /**
      * Read a Message in long format.
      *
+     * <P>
+     * This also reads the binary records that MessageCodec writes to the logfiles.
+     * </P>
+     *
      * @param s The string to read from.
      * @return The encoded message.
      */
     public static Message readLongFormat (String s) {
         logger.debug("entering readLongFormat with " + s);
+        if (MessageCodec.isBinaryRecord(s)) {
+            return MessageCodec.fromRecord(s);
+        }
+
         Message newMessage = new Message();
         Scanner scanner = new Scanner(s);
 
@@ -355,7 +540,7 @@ public class Message implements Comparable<Message> {
     public void convertToUpperCase() {
         deliveryURL = deliveryURL.toUpperCase();
         statusURL = statusURL.toUpperCase();
-        contents = contents.toString().toUpperCase().getBytes();
+        setContents(getContents().toString().toUpperCase().getBytes());
         messageID = UUID.fromString(messageID.toString().toUpperCase());
         owner = UUID.fromString(owner.toString().toUpperCase());
         paramList = convertParamListToUpperCase(paramList);
@@ -0,0 +1,522 @@
+package com.ltsllc.miranda.message;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import io.netty.buffer.ByteBuf;
+import org.asynchttpclient.Param;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A binary encoding for Messages
+ *
+ * <P>
+ * The long format that Message.longToString produces is easy to read but it is expensive: the contents are hex
+ * encoded, which doubles their size; it is parsed a token at a time with a Scanner; and a parameter value with a
+ * space in it cannot be read back.  This class encodes a message as a length-prefixed, versioned record instead:
+ * </P>
+ * <TABLE border="1">
+ *     <TR><TH>Field</TH><TH>Encoding</TH></TR>
+ *     <TR><TD>length</TD><TD>int, the number of bytes that follow</TD></TR>
+ *     <TR><TD>version</TD><TD>byte, currently VERSION</TD></TR>
+ *     <TR><TD>message ID</TD><TD>two longs, most significant first</TD></TR>
+ *     <TR><TD>owner</TD><TD>byte (0 for none, 1 otherwise) followed by two longs if there is an owner</TD></TR>
+ *     <TR><TD>status</TD><TD>int</TD></TR>
+ *     <TR><TD>number of sends</TD><TD>int</TD></TR>
+ *     <TR><TD>last send</TD><TD>long</TD></TR>
+ *     <TR><TD>next send</TD><TD>long</TD></TR>
+ *     <TR><TD>status URL</TD><TD>string</TD></TR>
+ *     <TR><TD>delivery URL</TD><TD>string</TD></TR>
+ *     <TR><TD>params</TD><TD>int count followed by a name string and a value string for each parameter</TD></TR>
+ *     <TR><TD>contents</TD><TD>int length followed by the raw bytes, a length of -1 means null</TD></TR>
+ * </TABLE>
+ * <P>
+ * A string is an int length followed by that many bytes of UTF-8, a length of -1 means null.
+ * </P>
+ * <P>
+ * The logfiles are line oriented, so when a message is written to a logfile in binary form the record is base64
+ * encoded and prefixed with RECORD_PREFIX.  Message.readLongFormat recognizes that prefix, so a logfile can contain
+ * records in either format.  Which format is written is controlled by PROPERTY_MESSAGE_LOG_FORMAT.
+ * </P>
+ */
+public class MessageCodec {
+    /**
+     * The version of the encoding that this class writes
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * What a binary record in a logfile starts with
+     */
+    public static final String RECORD_PREFIX = "BINARY ";
+
+    /**
+     * What a text record in a logfile starts with, the message ID comes right after it
+     */
+    public static final String TEXT_PREFIX = "MESSAGE ID: ";
+
+    /**
+     * What a tombstone in a logfile starts with, the ID of the removed message comes right after it
+     */
+    public static final String TOMBSTONE_PREFIX = "REMOVED ";
+
+    /**
+     * The furthest into a binary record that the next send can end: the length, version, message ID, owner flag,
+     * owner, status, number of sends, last send and next send
+     */
+    public static final int MAXIMUM_NEXT_SEND_END = 4 + 1 + 16 + 1 + 16 + 4 + 4 + 8 + 8;
+
+    /**
+     * Finds the next send in a text record; the trailing space makes sure the number wasn't cut off
+     */
+    protected static final Pattern NEXT_SEND = Pattern.compile(" LAST_SEND: -?\\d+ NEXT_SEND: (-?\\d+) ");
+
+    public enum Format {
+        text,
+        binary
+    }
+
+    /**
+     * The number of bytes encode will produce for a message, including the length prefix
+     *
+     * @param message The message.
+     * @return The size of the encoded message.
+     */
+    public static int encodedLength(Message message) {
+        return headerLength(message) + message.getContentLength();
+    }
+
+    /**
+     * The number of bytes encode will produce for a message, not counting the bytes of its contents
+     *
+     * @param message The message.
+     * @return The size of everything up to and including the length of the contents.
+     */
+    public static int headerLength(Message message) {
+        int length = 4 + 1 + 16 + 1 + 4 + 4 + 8 + 8;
+        if (message.getOwner() != null) {
+            length += 16;
+        }
+
+        length += stringLength(message.getStatusURL());
+        length += stringLength(message.getDeliveryURL());
+
+        length += 4;
+        for (Param param : message.getParamList()) {
+            length += stringLength(param.getName());
+            length += stringLength(param.getValue());
+        }
+
+        length += 4;
+
+        return length;
+    }
+
+    /**
+     * Encode a message into a new byte array
+     *
+     * @param message The message to encode.
+     * @return The encoded message.
+     */
+    public static byte[] encode(Message message) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(encodedLength(message));
+        encode(message, byteBuffer);
+
+        return byteBuffer.array();
+    }
+
+    /**
+     * Encode a message into a buffer
+     *
+     * @param message    The message to encode.
+     * @param byteBuffer Where to put it.  The buffer must have at least encodedLength(message) bytes remaining.
+     */
+    public static void encode(Message message, ByteBuffer byteBuffer) {
+        putHeader(message, encodedLength(message), byteBuffer);
+
+        if (message.hasContents()) {
+            byteBuffer.putInt(message.getContentLength());
+            message.writeContents(byteBuffer);
+        } else {
+            byteBuffer.putInt(-1);
+        }
+    }
+
+    /**
+     * Encode everything but the contents of a message, up to where the length of the contents goes
+     *
+     * @param message    The message.
+     * @param length     The length of the whole encoded message, including the length prefix.
+     * @param byteBuffer Where to put it.
+     */
+    protected static void putHeader(Message message, int length, ByteBuffer byteBuffer) {
+        byteBuffer.putInt(length - 4);
+        byteBuffer.put(VERSION);
+        putUuid(byteBuffer, message.getMessageID());
+
+        if (message.getOwner() == null) {
+            byteBuffer.put((byte) 0);
+        } else {
+            byteBuffer.put((byte) 1);
+            putUuid(byteBuffer, message.getOwner());
+        }
+
+        byteBuffer.putInt(message.getStatus());
+        byteBuffer.putInt(message.getNumberOfSends());
+        byteBuffer.putLong(message.getLastSend());
+        byteBuffer.putLong(message.getNextSend());
+        putString(byteBuffer, message.getStatusURL());
+        putString(byteBuffer, message.getDeliveryURL());
+
+        byteBuffer.putInt(message.getParamList().size());
+        for (Param param : message.getParamList()) {
+            putString(byteBuffer, param.getName());
+            putString(byteBuffer, param.getValue());
+        }
+    }
+
+    /**
+     * Decode a message
+     *
+     * <P>
+     * On return the buffer is positioned just past the message.
+     * </P>
+     *
+     * @param byteBuffer The buffer to decode from.
+     * @return The message.
+     * @throws IllegalArgumentException If the record has a version we don't understand or is malformed.
+     */
+    public static Message decode(ByteBuffer byteBuffer) {
+        try {
+            int length = byteBuffer.getInt();
+            int end = byteBuffer.position() + length;
+
+            byte version = byteBuffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unknown message encoding version: " + version);
+            }
+
+            Message message = new Message();
+            message.setMessageID(getUuid(byteBuffer));
+            if (byteBuffer.get() != 0) {
+                message.setOwner(getUuid(byteBuffer));
+            }
+
+            message.setStatus(byteBuffer.getInt());
+            message.setNumberOfSends(byteBuffer.getInt());
+            message.setLastSend(byteBuffer.getLong());
+            message.setNextSend(byteBuffer.getLong());
+            message.setStatusURL(getString(byteBuffer));
+            message.setDeliveryURL(getString(byteBuffer));
+
+            int count = byteBuffer.getInt();
+            List<Param> paramList = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = getString(byteBuffer);
+                String value = getString(byteBuffer);
+                paramList.add(new Param(name, value));
+            }
+            message.setParamList(paramList);
+
+            message.setContents(getBytes(byteBuffer));
+
+            if (byteBuffer.position() != end) {
+                throw new IllegalArgumentException("message record length, " + length + ", does not match its contents");
+            }
+
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated message record", e);
+        }
+    }
+
+    /**
+     * Encode a message into a Netty buffer
+     *
+     * @param message The message to encode.
+     * @param byteBuf Where to put it.  The buffer grows if it needs to.
+     */
+    public static void encode(Message message, ByteBuf byteBuf) {
+        int length = encodedLength(message);
+        byteBuf.ensureWritable(length);
+        ByteBuffer byteBuffer = byteBuf.nioBuffer(byteBuf.writerIndex(), length);
+        encode(message, byteBuffer);
+        byteBuf.writerIndex(byteBuf.writerIndex() + length);
+    }
+
+    /**
+     * Encode everything but the bytes of the contents of a message into a Netty buffer
+     *
+     * <P>
+     * The caller writes the contentLength bytes of the contents after this.  That is how contents that are in a
+     * ContentStore go out without being copied: the length is that of the handle the caller holds, so it matches
+     * what gets written even if the message has let go of its contents in the meantime.
+     * </P>
+     *
+     * @param message       The message to encode.
+     * @param contentLength The length of the contents that will follow.
+     * @param byteBuf       Where to put it.  The buffer grows if it needs to.
+     */
+    public static void encodeHeader(Message message, int contentLength, ByteBuf byteBuf) {
+        int length = headerLength(message);
+        byteBuf.ensureWritable(length);
+        ByteBuffer byteBuffer = byteBuf.nioBuffer(byteBuf.writerIndex(), length);
+        putHeader(message, length + contentLength, byteBuffer);
+        byteBuffer.putInt(contentLength);
+        byteBuf.writerIndex(byteBuf.writerIndex() + length);
+    }
+
+    /**
+     * Decode a message from a Netty buffer
+     *
+     * <P>
+     * On return the reader index of the buffer is just past the message.
+     * </P>
+     *
+     * @param byteBuf The buffer to decode from.
+     * @return The message.
+     * @throws IllegalArgumentException If the record is malformed or incomplete.
+     */
+    public static Message decode(ByteBuf byteBuf) {
+        if (byteBuf.readableBytes() < 4) {
+            throw new IllegalArgumentException("truncated message record");
+        }
+
+        int length = byteBuf.getInt(byteBuf.readerIndex()) + 4;
+        if (length < 4 || byteBuf.readableBytes() < length) {
+            throw new IllegalArgumentException("truncated message record");
+        }
+
+        Message message = decode(byteBuf.nioBuffer(byteBuf.readerIndex(), length));
+        byteBuf.skipBytes(length);
+
+        return message;
+    }
+
+    /**
+     * Turn a message into a line for a logfile using the format called for by the properties
+     *
+     * @param message The message.
+     * @return The line.
+     */
+    public static String toRecord(Message message) {
+        return toRecord(message, getDefaultFormat());
+    }
+
+    public static String toRecord(Message message, Format format) {
+        if (format == Format.binary) {
+            return RECORD_PREFIX + Base64.getEncoder().encodeToString(encode(message));
+        }
+
+        return message.longToString();
+    }
+
+    /**
+     * Is a line from a logfile a binary record?
+     */
+    public static boolean isBinaryRecord(String line) {
+        return line.startsWith(RECORD_PREFIX);
+    }
+
+    /**
+     * Read a message from a binary record in a logfile
+     *
+     * @param line The line, which must start with RECORD_PREFIX.
+     * @return The message.
+     */
+    public static Message fromRecord(String line) {
+        byte[] bytes = Base64.getDecoder().decode(line.substring(RECORD_PREFIX.length()));
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Make a tombstone: a line for a logfile that says a message was removed
+     *
+     * <P>
+     * Appending a tombstone is how a logfile that is replayed from the start records a removal without rewriting
+     * the file.  Records for the message that come before the tombstone are ignored when the logfile is read back.
+     * </P>
+     *
+     * @param messageID The message that was removed.
+     * @return The line.
+     */
+    public static String toTombstone(UUID messageID) {
+        return TOMBSTONE_PREFIX + messageID;
+    }
+
+    /**
+     * Is a line from a logfile a tombstone?
+     */
+    public static boolean isTombstone(String line) {
+        return line.startsWith(TOMBSTONE_PREFIX);
+    }
+
+    /**
+     * Read the ID of the removed message from a tombstone
+     *
+     * @param line The line, which must start with TOMBSTONE_PREFIX.
+     * @return The message ID.
+     */
+    public static UUID readTombstone(String line) {
+        return UUID.fromString(line.substring(TOMBSTONE_PREFIX.length()).trim());
+    }
+
+    /**
+     * Read just the message ID from a line from a logfile
+     *
+     * <P>
+     * This is for building an index of a logfile without the cost of parsing every message, in particular without
+     * decoding the contents.  The line can be in either format.
+     * </P>
+     *
+     * @param line The line.
+     * @return The ID of the message in the line.
+     * @throws IllegalArgumentException If the line is not a message record.
+     */
+    public static UUID readMessageID(String line) {
+        if (isBinaryRecord(line)) {
+            //
+            // the length, version and message ID are the first 21 bytes, which are the first 28 characters of base64
+            //
+            int end = RECORD_PREFIX.length() + 28;
+            if (line.length() < end) {
+                throw new IllegalArgumentException("truncated message record");
+            }
+
+            ByteBuffer byteBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(line.substring(RECORD_PREFIX.length(), end)));
+            byteBuffer.getInt();
+            byte version = byteBuffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unknown message encoding version: " + version);
+            }
+
+            return getUuid(byteBuffer);
+        }
+
+        if (!line.startsWith(TEXT_PREFIX)) {
+            throw new IllegalArgumentException("not a message record: " + line);
+        }
+
+        int end = line.indexOf(' ', TEXT_PREFIX.length());
+        if (end == -1) {
+            end = line.length();
+        }
+
+        return UUID.fromString(line.substring(TEXT_PREFIX.length(), end));
+    }
+
+    /**
+     * Read just the next send time from the start of a line from a logfile
+     *
+     * <P>
+     * Like readMessageID this is for building an index without parsing the message.  In a binary record the next
+     * send is always within the first MAXIMUM_NEXT_SEND_END bytes.  In a text record it comes after the parameters
+     * and URLs, so a short prefix may not have it.
+     * </P>
+     *
+     * @param line The line, or as much of the start of it as is at hand.
+     * @return The next send time, or 0 if it isn't in what was given.
+     */
+    public static long readNextSend(String line) {
+        if (isBinaryRecord(line)) {
+            int available = (line.length() - RECORD_PREFIX.length()) / 4 * 4;
+            int length = Math.min(available, 4 * ((MAXIMUM_NEXT_SEND_END + 2) / 3));
+            if (length <= 0) {
+                return 0;
+            }
+
+            try {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(
+                        line.substring(RECORD_PREFIX.length(), RECORD_PREFIX.length() + length)));
+                byteBuffer.position(4 + 1 + 16);
+                if (byteBuffer.get() != 0) {
+                    byteBuffer.position(byteBuffer.position() + 16);
+                }
+
+                byteBuffer.position(byteBuffer.position() + 4 + 4 + 8);
+                return byteBuffer.getLong();
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                return 0;
+            }
+        }
+
+        Matcher matcher = NEXT_SEND.matcher(line);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    /**
+     * Return the format called for by the properties
+     *
+     * @return The format from PROPERTY_MESSAGE_LOG_FORMAT or the default if the properties haven't been loaded.
+     */
+    public static Format getDefaultFormat() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_MESSAGE_LOG_FORMAT);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_MESSAGE_LOG_FORMAT;
+        }
+
+        return Format.valueOf(value.toLowerCase());
+    }
+
+    protected static int stringLength(String string) {
+        return 4 + (string == null ? 0 : string.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    protected static void putUuid(ByteBuffer byteBuffer, UUID uuid) {
+        byteBuffer.putLong(uuid.getMostSignificantBits());
+        byteBuffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    protected static UUID getUuid(ByteBuffer byteBuffer) {
+        long mostSignificantBits = byteBuffer.getLong();
+        long leastSignificantBits = byteBuffer.getLong();
+        return new UUID(mostSignificantBits, leastSignificantBits);
+    }
+
+    protected static void putString(ByteBuffer byteBuffer, String string) {
+        putBytes(byteBuffer, string == null ? null : string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static String getString(ByteBuffer byteBuffer) {
+        byte[] bytes = getBytes(byteBuffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected static void putBytes(ByteBuffer byteBuffer, byte[] bytes) {
+        if (bytes == null) {
+            byteBuffer.putInt(-1);
+        } else {
+            byteBuffer.putInt(bytes.length);
+            byteBuffer.put(bytes);
+        }
+    }
+
+    protected static byte[] getBytes(ByteBuffer byteBuffer) {
+        int length = byteBuffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+
+        if (length < 0 || length > byteBuffer.remaining()) {
+            throw new IllegalArgumentException("bad field length: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        byteBuffer.get(bytes);
+
+        return bytes;
+    }
+}
@@ -24,20 +24,15 @@ public class ChannelOutboundMonitor extends ChannelOutboundHandlerAdapter {
     }
 
     public void write (ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
-        String s = null;
-        ByteBuf byteBuf = null;
-        if (msg instanceof ByteBuf) {
-            byteBuf = (ByteBuf) msg;
-            s = byteBuf.toString(Charset.defaultCharset());
-            //byteBuf.release();
-        } else if (msg instanceof String) {
-            s = (String) msg;
+        //
+        // the message is passed on as it is so the frame handler can encode it without another copy
+        //
+        if (logger.isDebugEnabled()) {
+            String s = msg instanceof ByteBuf ? ((ByteBuf) msg).toString(Charset.defaultCharset()) : String.valueOf(msg);
+            logger.debug(s + channel.toString());
         }
-        String message = s + channel.toString();
 
-        logger.debug(message);
-        byteBuf = Unpooled.copiedBuffer(s.getBytes());
-        ChannelFuture future = ctx.write(byteBuf, promise);
+        ChannelFuture future = ctx.write(msg, promise);
         ChannelFutureListener listener = new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture channelFuture) throws Exception {
@@ -50,7 +45,9 @@ public class ChannelOutboundMonitor extends ChannelOutboundHandlerAdapter {
             }
         };
 
-        future.addListener(listener);
+        if (!promise.isVoid()) {
+            future.addListener(listener);
+        }
     }
 
     public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause) {
@@ -2,6 +2,7 @@ package com.ltsllc.miranda.netty;
 
 import com.ltsllc.commons.LtsllcException;
 import com.ltsllc.miranda.cluster.Cluster;
+import com.ltsllc.miranda.cluster.MessageRecord;
 import com.ltsllc.miranda.cluster.Node;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -55,6 +56,11 @@ public class ClientChannelToNodeDecoder extends ChannelInboundHandlerAdapter {
                 node.setChannel(ctx.channel());
             }
 
+            if (msg instanceof MessageRecord) {
+                node.recordReceived((MessageRecord) msg);
+                return;
+            }
+
             String s = null;
             if (msg instanceof ByteBuf) {
                 ByteBuf byteBuf = (ByteBuf) msg;
@@ -73,6 +79,17 @@ public class ClientChannelToNodeDecoder extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Let the node know that the channel can take more, or can't, so that it can pace a synchronization
+     */
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (node != null) {
+            node.channelWritabilityChanged();
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         logger.error("caught exception");
         logger.error(cause);
@@ -0,0 +1,166 @@
+package com.ltsllc.miranda.netty;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Turn many flushes into a few
+ *
+ * <P>
+ * Every flush of a socket is a system call, so a node that flushes after each message makes one system call per
+ * message.  This handler sits next to the socket, after the frame handlers, and holds flushes back:
+ * </P>
+ * <UL>
+ *     <LI>A flush while the channel is reading waits until the read is complete, so the answers to everything in
+ *     one read go out together.</LI>
+ *     <LI>Any other flush is done by a task on the channel's event loop, so every flush asked for before that task
+ *     runs, in the same tick of the event loop, becomes one flush.</LI>
+ *     <LI>Once maximumBytes have been written without being flushed they are flushed right away, so a large batch
+ *     goes out in pieces of about that size rather than all being held in memory.</LI>
+ * </UL>
+ * <P>
+ * Anything pending is flushed before the channel is closed or disconnected, when it stops being writable, and when
+ * the handler is removed.  This is netty's FlushConsolidationHandler with a limit on the bytes held back.
+ * </P>
+ */
+public class FlushConsolidator extends ChannelDuplexHandler {
+    public static final Logger logger = LogManager.getLogger(FlushConsolidator.class);
+
+    protected int maximumBytes;
+    protected long pendingBytes = 0;
+    protected boolean flushPending = false;
+    protected boolean readInProgress = false;
+    protected boolean flushScheduled = false;
+    protected ChannelHandlerContext context;
+
+    protected final Runnable flushTask = () -> {
+        flushScheduled = false;
+        if (flushPending && !readInProgress) {
+            flushNow(context);
+        }
+    };
+
+    public FlushConsolidator() {
+        this(getDefaultMaximumBytes());
+    }
+
+    /**
+     * Construct a new instance
+     *
+     * @param maximumBytes The most that is written before flushing, whether or not a flush was asked for.
+     */
+    public FlushConsolidator(int maximumBytes) {
+        this.maximumBytes = maximumBytes;
+    }
+
+    public int getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        context = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof ByteBuf) {
+            pendingBytes += ((ByteBuf) msg).readableBytes();
+        }
+
+        ctx.write(msg, promise);
+
+        if (pendingBytes >= maximumBytes) {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        flushPending = true;
+        if (readInProgress || flushScheduled) {
+            return;
+        }
+
+        flushScheduled = true;
+        ctx.channel().eventLoop().execute(flushTask);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        readInProgress = false;
+        if (flushPending) {
+            flushNow(ctx);
+        }
+
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isWritable()) {
+            flushNow(ctx);
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        flushNow(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) {
+        flushNow(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        flushNow(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        flushNow(ctx);
+    }
+
+    protected void flushNow(ChannelHandlerContext ctx) {
+        if (!flushPending && pendingBytes == 0) {
+            return;
+        }
+
+        flushPending = false;
+        pendingBytes = 0;
+        ctx.flush();
+    }
+
+    /**
+     * Return the byte limit called for by the properties
+     *
+     * @return The value of PROPERTY_CLUSTER_FLUSH_BYTES, or the default if the properties haven't been loaded.
+     */
+    public static int getDefaultMaximumBytes() {
+        PropertiesHolder properties = Miranda.getProperties();
+        if (properties == null || properties.getProperty(Miranda.PROPERTY_CLUSTER_FLUSH_BYTES) == null) {
+            return Integer.parseInt(Miranda.PROPERTY_DEFAULT_CLUSTER_FLUSH_BYTES);
+        }
+
+        return properties.getIntProperty(Miranda.PROPERTY_CLUSTER_FLUSH_BYTES);
+    }
+}
@@ -0,0 +1,187 @@
+package com.ltsllc.miranda.netty;
+
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.cluster.Cluster;
+import com.ltsllc.miranda.properties.PropertiesHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Scanner;
+
+/**
+ * How nodes agree to go from null terminated frames to length prefixed frames
+ *
+ * <P>
+ * Every connection starts out with null terminated frames (NullTerminatedInboundFrame and
+ * NullTerminatedOutboundFrame), since that is all that older nodes understand.  A node that can use length prefixed
+ * frames (LengthFieldInboundFrame and LengthFieldOutboundFrame) puts LENGTH on the end of its START START.  A node
+ * that gets a START START with LENGTH on the end and can use them too puts LENGTH on the end of its START
+ * ACKNOWLEDGED.  Older nodes ignore anything after the port, so they answer without it and nothing changes.
+ * </P>
+ * <P>
+ * A node that can read binary MessageRecords puts BINARY after the LENGTH, and a node that gets BINARY and can read
+ * them too puts BINARY after the LENGTH of its answer.  A node only writes binary records to a node that said BINARY,
+ * so a node that doesn't know about them never gets one.
+ * </P>
+ * <P>
+ * Each direction of the connection changes over on its own.  A node that has sent a START ACKNOWLEDGED with LENGTH,
+ * or received one, calls switchOutbound: it sends SWITCH as its last null terminated frame and then replaces its
+ * outbound frame handler.  The NullTerminatedInboundFrame on the other end sees SWITCH and replaces itself with a
+ * LengthFieldInboundFrame, handing it whatever came in after SWITCH.  Since the frames going one way arrive in the
+ * order they were sent, nothing is ever read with the wrong decoder, however the two directions interleave.
+ * </P>
+ */
+public class Framing {
+    public static final Logger logger = LogManager.getLogger(Framing.class);
+
+    /**
+     * Put on the end of START START and START ACKNOWLEDGED to offer length prefixed frames
+     */
+    public static final String LENGTH = "LENGTH";
+
+    /**
+     * The last null terminated frame in a direction; everything after it is length prefixed
+     */
+    public static final String SWITCH = "LENGTH FRAMES FOLLOW";
+
+    /**
+     * Put after LENGTH to say that this node can read binary MessageRecords
+     */
+    public static final String BINARY = "BINARY";
+
+    /**
+     * Change the frames that a channel writes to length prefixed
+     *
+     * <P>
+     * SWITCH is written and the outbound frame handler replaced in one go on the channel's event loop, so that no
+     * other write can come between them.  Calling this more than once does nothing.
+     * </P>
+     *
+     * @param channel The channel.
+     */
+    public static void switchOutbound(Channel channel) {
+        switchOutbound(channel, false);
+    }
+
+    /**
+     * Change the frames that a channel writes to length prefixed
+     *
+     * @param channel The channel.
+     * @param binary  Whether the other node can read binary MessageRecords.
+     */
+    public static void switchOutbound(Channel channel, boolean binary) {
+        if (channel == null) {
+            return;
+        }
+
+        Runnable runnable = () -> {
+            ChannelPipeline pipeline = channel.pipeline();
+            if (pipeline.get(NullTerminatedOutboundFrame.class) == null) {
+                return;
+            }
+
+            logger.debug("switching " + channel + " to length prefixed frames outbound");
+            channel.writeAndFlush(SWITCH);
+            pipeline.replace(NullTerminatedOutboundFrame.class, Cluster.LENGTH_FRAME_OUTBOUND,
+                    new LengthFieldOutboundFrame(binary));
+        };
+
+        if (channel.eventLoop().inEventLoop()) {
+            runnable.run();
+        } else {
+            channel.eventLoop().execute(runnable);
+        }
+    }
+
+    /**
+     * Change the frames that a channel reads to length prefixed
+     *
+     * <P>
+     * This is called by a NullTerminatedInboundFrame when it reads SWITCH.  Replacing a ByteToMessageDecoder while
+     * it is decoding passes whatever it has not decoded yet on to the handler that replaced it.
+     * </P>
+     *
+     * @param ctx The context of the NullTerminatedInboundFrame.
+     */
+    public static void switchInbound(ChannelHandlerContext ctx) {
+        logger.debug("switching " + ctx.channel() + " to length prefixed frames inbound");
+        ctx.pipeline().replace(ctx.name(), Cluster.LENGTH_FRAME_INBOUND, new LengthFieldInboundFrame());
+    }
+
+    /**
+     * Is there a LENGTH on the end of a START START or START ACKNOWLEDGED?
+     *
+     * @param scanner A scanner that has read everything up to where LENGTH would be.
+     * @return true if the next token is LENGTH.
+     */
+    public static boolean offered(Scanner scanner) {
+        return scanner.hasNext() && scanner.next().equalsIgnoreCase(LENGTH);
+    }
+
+    /**
+     * Is there a BINARY after the LENGTH?
+     *
+     * @param scanner A scanner that has read the LENGTH.
+     * @return true if the next token is BINARY.
+     */
+    public static boolean offeredBinary(Scanner scanner) {
+        return scanner.hasNext() && scanner.next().equalsIgnoreCase(BINARY);
+    }
+
+    /**
+     * Add what this node offers to the end of a START START
+     *
+     * @param builder The START START.
+     */
+    public static void addOffer(StringBuilder builder) {
+        if (isEnabled()) {
+            builder.append(" ");
+            builder.append(LENGTH);
+            if (isBinaryEnabled()) {
+                builder.append(" ");
+                builder.append(BINARY);
+            }
+        }
+    }
+
+    /**
+     * Should this node offer binary message records?
+     *
+     * @return The value of PROPERTY_CLUSTER_BINARY_RECORDS, or the default if the properties haven't been loaded.
+     */
+    public static boolean isBinaryEnabled() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_CLUSTER_BINARY_RECORDS);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_CLUSTER_BINARY_RECORDS;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Should this node offer length prefixed frames?
+     *
+     * @return The value of PROPERTY_CLUSTER_LENGTH_FRAMES, or the default if the properties haven't been loaded.
+     */
+    public static boolean isEnabled() {
+        PropertiesHolder properties = Miranda.getProperties();
+        String value = null;
+        if (properties != null) {
+            value = properties.getProperty(Miranda.PROPERTY_CLUSTER_LENGTH_FRAMES);
+        }
+
+        if (value == null) {
+            value = Miranda.PROPERTY_DEFAULT_CLUSTER_LENGTH_FRAMES;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,88 @@
+package com.ltsllc.miranda.netty;
+
+import com.ltsllc.miranda.cluster.MessageRecord;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Break what comes in into strings, each of which was prefixed with its length
+ *
+ * <P>
+ * Each frame is a 4 byte, big endian length followed by that many bytes of UTF-8.  Nothing is looked at until the
+ * whole frame is there, and then the string is decoded straight out of the buffer that netty accumulated, so the
+ * frame is never copied.  See LengthFieldOutboundFrame for the other end and Framing for how a connection comes to
+ * use them.
+ * </P>
+ * <P>
+ * A frame that starts with MessageRecord.MARKER is a binary MessageRecord, which is decoded and passed on as one.
+ * </P>
+ * <P>
+ * A length that is negative or more than the maximum means the two ends no longer agree on where the frames are.
+ * There is no getting back in step after that, so the channel is closed.
+ * </P>
+ */
+public class LengthFieldInboundFrame extends ByteToMessageDecoder {
+    public static Logger logger = LogManager.getLogger(LengthFieldInboundFrame.class);
+
+    public static final int LENGTH_SIZE = 4;
+
+    /**
+     * The default largest frame: 256MB
+     */
+    public static final int DEFAULT_MAXIMUM_FRAME = 256 * 1024 * 1024;
+
+    protected int maximumFrame;
+
+    public LengthFieldInboundFrame() {
+        this(DEFAULT_MAXIMUM_FRAME);
+    }
+
+    public LengthFieldInboundFrame(int maximumFrame) {
+        this.maximumFrame = maximumFrame;
+    }
+
+    public int getMaximumFrame() {
+        return maximumFrame;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (in.readableBytes() < LENGTH_SIZE) {
+            return;
+        }
+
+        int start = in.readerIndex();
+        int length = in.getInt(start);
+        if (length < 0 || length > maximumFrame) {
+            throw new CorruptedFrameException("bad frame length: " + length);
+        }
+
+        if (in.readableBytes() < LENGTH_SIZE + length) {
+            return;
+        }
+
+        if (MessageRecord.isRecord(in, start + LENGTH_SIZE, length)) {
+            try {
+                out.add(MessageRecord.decode(in.slice(start + LENGTH_SIZE, length)));
+            } catch (IllegalArgumentException e) {
+                throw new CorruptedFrameException("bad message record", e);
+            }
+        } else if (length > 0) {
+            out.add(in.toString(start + LENGTH_SIZE, length, StandardCharsets.UTF_8));
+        }
+
+        in.readerIndex(start + LENGTH_SIZE + length);
+    }
+
+    public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause) {
+        logger.error("caught " + cause + " on channel " + ctx.channel() + ", closing it");
+        ctx.close();
+    }
+}
@@ -0,0 +1,122 @@
+package com.ltsllc.miranda.netty;
+
+import com.ltsllc.miranda.cluster.MessageRecord;
+import com.ltsllc.miranda.message.ContentStore;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Put the length in front of outgoing messages
+ *
+ * <P>
+ * A string is encoded straight into a pooled buffer after room for the length, which is filled in once the string
+ * has been written.  A ByteBuf is passed on as it is, after a separate 4 byte buffer holding its length, rather than
+ * being copied.  See LengthFieldInboundFrame for the other end and Framing for how a connection comes to use them.
+ * </P>
+ * <P>
+ * A MessageRecord is encoded in binary if the other node said it can read them, and as its text otherwise.  When
+ * the contents of its message are in a ContentStore, only the rest of the record goes in a new buffer and the
+ * contents are written from the store, with a reference to them held until the write is over.
+ * </P>
+ * <P>
+ * Nothing is flushed here; that is up to whoever wrote the message and to the FlushConsolidator.
+ * </P>
+ */
+public class LengthFieldOutboundFrame extends ChannelOutboundHandlerAdapter {
+    public static Logger logger = LogManager.getLogger(LengthFieldOutboundFrame.class);
+
+    /**
+     * Can the other node read binary message records?
+     */
+    protected boolean binary;
+
+    public LengthFieldOutboundFrame() {
+        this(false);
+    }
+
+    public LengthFieldOutboundFrame(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void write (ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof MessageRecord && !binary) {
+            msg = ((MessageRecord) msg).toText();
+        }
+
+        String logged = null;
+        if (logger.isDebugEnabled()) {
+            if (msg instanceof MessageRecord) {
+                MessageRecord record = (MessageRecord) msg;
+                logged = record.getKind() + " record for " + record.getMessage().getMessageID();
+            } else {
+                logged = msg instanceof ByteBuf ? ((ByteBuf) msg).toString(StandardCharsets.UTF_8) : String.valueOf(msg);
+            }
+        }
+
+        ChannelFuture channelFuture = null;
+        if (msg instanceof ByteBuf) {
+            ByteBuf byteBuf = (ByteBuf) msg;
+            ByteBuf length = ctx.alloc().ioBuffer(LengthFieldInboundFrame.LENGTH_SIZE);
+            length.writeInt(byteBuf.readableBytes());
+            ctx.write(length);
+            channelFuture = ctx.write(byteBuf, promise);
+        } else if (msg instanceof MessageRecord) {
+            MessageRecord record = (MessageRecord) msg;
+            ContentStore.Handle contents = record.getMessage().retainContents();
+            if (contents == null) {
+                int length = record.encodedLength();
+                ByteBuf byteBuf = ctx.alloc().ioBuffer(LengthFieldInboundFrame.LENGTH_SIZE + length);
+                byteBuf.writeInt(length);
+                record.encode(byteBuf);
+                channelFuture = ctx.write(byteBuf, promise);
+            } else {
+                ByteBuf header = null;
+                try {
+                    int headerLength = record.headerLength();
+                    header = ctx.alloc().ioBuffer(LengthFieldInboundFrame.LENGTH_SIZE + headerLength);
+                    header.writeInt(headerLength + contents.length());
+                    record.encodeHeader(header, contents.length());
+                } catch (RuntimeException e) {
+                    if (header != null) {
+                        header.release();
+                    }
+                    contents.release();
+                    throw e;
+                }
+                ctx.write(header);
+
+                ChannelPromise released = promise.unvoid();
+                released.addListener(future -> contents.release());
+                channelFuture = ctx.write(Unpooled.wrappedBuffer(contents.buffer()), released);
+            }
+        } else if (msg instanceof CharSequence) {
+            CharSequence s = (CharSequence) msg;
+            ByteBuf byteBuf = ctx.alloc().ioBuffer(LengthFieldInboundFrame.LENGTH_SIZE + ByteBufUtil.utf8MaxBytes(s));
+            int start = byteBuf.writerIndex();
+            byteBuf.writeInt(0);
+            int length = byteBuf.writeCharSequence(s, StandardCharsets.UTF_8);
+            byteBuf.setInt(start, length);
+            channelFuture = ctx.write(byteBuf, promise);
+        } else {
+            channelFuture = ctx.write(msg, promise);
+        }
+
+        if (logged != null && !promise.isVoid()) {
+            channelFuture.addListener(new MessageChanelFutureListener(logged));
+        }
+    }
+
+    public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause) {
+        logger.error("caught exception on channel " + ctx.channel(), cause);
+    }
+}
@@ -2,46 +2,55 @@ package com.ltsllc.miranda.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ByteProcessor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
- * Break a string into several substrings each of which is terminated with a null
+ * Break what comes in into strings, each of which was terminated with a null
+ *
+ * <P>
+ * Bytes that don't end in a null yet are kept until the rest of the frame arrives, and each frame is decoded
+ * straight out of the buffer that netty accumulated.  The part of the buffer that has already been searched for a
+ * null is remembered, so a large frame arriving in many pieces is only searched once.
+ * </P>
+ * <P>
+ * If the frame is Framing.SWITCH then the other node has gone over to length prefixed frames, and this decoder
+ * replaces itself with a LengthFieldInboundFrame.  See Framing.
+ * </P>
  */
-public class NullTerminatedInboundFrame extends ChannelInboundHandlerAdapter {
+public class NullTerminatedInboundFrame extends ByteToMessageDecoder {
     public static Logger logger = LogManager.getLogger(NullTerminatedInboundFrame.class);
 
-    protected StringBuilder stringBuilder = new StringBuilder();
-
-    public void channelRead (ChannelHandlerContext ctx, Object msg) {
-        String s = null;
-
-        if (msg instanceof ByteBuf) {
-            ByteBuf byteBuf = (ByteBuf) msg;
-            s = byteBuf.toString(Charset.defaultCharset());
-            byteBuf.release();
-        } else if (msg instanceof String) {
-            s = (String) msg;
+    /**
+     * How far past the reader index has been searched without finding a null
+     */
+    protected int searched = 0;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        int end = in.forEachByte(start + searched, in.readableBytes() - searched, ByteProcessor.FIND_NUL);
+        if (end == -1) {
+            searched = in.readableBytes();
+            return;
         }
 
-        logger.debug ("received " + s);
-        int index = s.indexOf('\u0000');
-        while (index != -1) {
-            String frame = s.substring(0, index);
-            ctx.fireChannelRead(frame);
-            s = s.substring(index + 1, s.length());
-            index = s.indexOf('\u0000');
-        }
+        searched = 0;
+        String frame = in.toString(start, end - start, StandardCharsets.UTF_8);
+        in.readerIndex(end + 1);
 
-        if (index == -1 && s.length() > 0) {
-            stringBuilder.append(s);
+        if (Framing.SWITCH.equals(frame)) {
+            Framing.switchInbound(ctx);
+            return;
         }
 
-        if (!s.equalsIgnoreCase("")) {
-            ctx.fireChannelRead(s);
+        if (!frame.isEmpty()) {
+            out.add(frame);
         }
     }
 
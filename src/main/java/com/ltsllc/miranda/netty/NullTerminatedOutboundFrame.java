@@ -1,38 +1,56 @@
 package com.ltsllc.miranda.netty;
 
+import com.ltsllc.miranda.cluster.MessageRecord;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Add a null byte to the end of outgoing messages.
+ *
+ * <P>
+ * A string is encoded straight into a pooled buffer with room for the null.  A ByteBuf is passed on as it is, with
+ * the null written after it, rather than being copied.  Older nodes only understand these frames; see Framing.
+ * A MessageRecord is written as its text.
+ * </P>
+ * <P>
+ * Nothing is flushed here; that is up to whoever wrote the message and to the FlushConsolidator.
+ * </P>
  */
 public class NullTerminatedOutboundFrame extends ChannelOutboundHandlerAdapter {
     public static Logger logger = LogManager.getLogger(NullTerminatedOutboundFrame.class);
 
     public void write (ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
-        String s = null;
-        ByteBuf byteBuf = null;
+        if (msg instanceof MessageRecord) {
+            msg = ((MessageRecord) msg).toText();
+        }
+
+        String logged = null;
+        if (logger.isDebugEnabled()) {
+            logged = msg instanceof ByteBuf ? ((ByteBuf) msg).toString(StandardCharsets.UTF_8) : String.valueOf(msg);
+        }
+
+        ChannelFuture channelFuture = null;
         if (msg instanceof ByteBuf) {
-            byteBuf = (ByteBuf) msg;
-            s = byteBuf.toString(Charset.defaultCharset());
-        } else if (msg instanceof String) {
-            s = (String) msg;
+            ctx.write(msg);
+            channelFuture = ctx.write(ctx.alloc().ioBuffer(1).writeByte(0), promise);
+        } else if (msg instanceof CharSequence) {
+            CharSequence s = (CharSequence) msg;
+            ByteBuf byteBuf = ctx.alloc().ioBuffer(ByteBufUtil.utf8MaxBytes(s) + 1);
+            byteBuf.writeCharSequence(s, StandardCharsets.UTF_8);
+            byteBuf.writeByte(0);
+            channelFuture = ctx.write(byteBuf, promise);
+        } else {
+            channelFuture = ctx.write(msg, promise);
         }
 
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(s);
-        stringBuilder.append('\u0000');
-        msg = Unpooled.copiedBuffer(stringBuilder.toString().getBytes());
-        byte[] bytes = ((ByteBuf) msg).array();
-        s = ((ByteBuf) msg).toString(Charset.defaultCharset());
-        ChannelFuture channelFuture = ctx.writeAndFlush(msg, promise);
-        MessageChanelFutureListener listener = new MessageChanelFutureListener(s);
-        channelFuture.addListener(listener);
+        if (logged != null && !promise.isVoid()) {
+            channelFuture.addListener(new MessageChanelFutureListener(logged));
+        }
     }
 
     public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause) {
@@ -2,6 +2,7 @@ package com.ltsllc.miranda.netty;
 
 import com.ltsllc.commons.LtsllcException;
 import com.ltsllc.miranda.cluster.Cluster;
+import com.ltsllc.miranda.cluster.MessageRecord;
 import com.ltsllc.miranda.cluster.Node;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -70,7 +71,10 @@ public class ServerChannelToNodeDecoder extends ChannelInboundHandlerAdapter {
             node = Cluster.getNode(ctx.channel());
         }
 
-        if (message instanceof ByteBuf) {
+        if (message instanceof MessageRecord) {
+            node.recordReceived((MessageRecord) message);
+            return;
+        } else if (message instanceof ByteBuf) {
             s = ((ByteBuf) message).toString(Charset.defaultCharset());
             //((ByteBuf) message).release();
         } else if (message instanceof String) {
@@ -89,6 +93,17 @@ public class ServerChannelToNodeDecoder extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Let the node know that the channel can take more, or can't, so that it can pace a synchronization
+     */
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (node != null) {
+            node.channelWritabilityChanged();
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
     public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause) {
         logger.error(cause);
         cause.printStackTrace();
@@ -10,6 +10,8 @@ public enum Properties {
 
     auctionTimeout,
     bidTimeout,
+    cacheContentStore,
+    cacheEvictionPolicy,
     cacheLoadLimit,
     cluster,
     cluster1,
@@ -17,22 +19,44 @@ public enum Properties {
     cluster3,
     cluster4,
     cluster5,
+    clusterAckMode,
+    clusterAckTimeout,
+    clusterBinaryRecords,
+    clusterDigest,
+    clusterFlushBytes,
+    clusterLengthFrames,
     clusterPort,
     clusterRetry,
     compaction,
+    compactionDeadPercent,
     coalescePeriod,
     deadNodeTimeout,
+    deliveryCallbackThreads,
+    deliveryIdleTimeout,
+    deliveryMaxConnections,
+    deliveryMaxConnectionsPerHost,
+    deliveryMaxOutstanding,
+    deliveryVirtualThreads,
+    eventOrigin,
+    eventOriginFrames,
     events,
+    eventsRetained,
     heartBeat,
     heartBeatTimeout,
     hostName,
     leaderAckTimeout,
+    logDurability,
+    logGroupCommitPeriod,
+    logGroupCommitRecords,
     loggingLevel,
     maxWaitBetweenSends,
     messageLogfile,
+    messageLogFormat,
+    messageLogSegmentSize,
     messagePort,
     ownerFile,
     propertiesFile,
+    recoveryThreads,
     scanPeriod,
     startTimeout,
     thisHost,
@@ -1,5 +1,6 @@
 package com.ltsllc.miranda.servlets;
 
+import com.ltsllc.miranda.logging.LoggingCache;
 import com.ltsllc.miranda.logging.MessageLog;
 import com.ltsllc.miranda.message.Message;
 import jakarta.servlet.http.HttpServlet;
@@ -10,7 +11,20 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
 
+/**
+ * A servlet that prints the messages in the message log as an HTML table
+ *
+ * <P>
+ * The messages are read a page at a time with a cursor, so the servlet never has a copy of the whole queue in
+ * memory.
+ * </P>
+ */
 public class Queue extends HttpServlet {
+    /**
+     * The number of bytes of message contents to read at a time
+     */
+    public static final int PAGE_LIMIT = 1024 * 1024;
+
     @Override
     public void doPost (HttpServletRequest request, HttpServletResponse response)
             throws IOException
@@ -18,7 +32,7 @@ public class Queue extends HttpServlet {
         response.setContentType("HTML");
 
         PrintWriter out = response.getWriter();
-        List<Message> messageList = MessageLog.getInstance().copyAllMessages();
+        LoggingCache.Cursor cursor = MessageLog.getInstance().cursor();
 
         out.println("<TABLE BORDER='1'>");
         out.println("  <TR>");
@@ -28,55 +42,69 @@ public class Queue extends HttpServlet {
         out.println("    <TH>Status</TH>");
         out.println("    <TH>Actions</TH>");
         out.println("  </TR>");
-        for (int i = 0; i < messageList.size(); i++) {
-            Message message = messageList.get(i);
-            out.println("<TR>");
-            out.print("<TD>");
-            out.print(i);
-            out.println("</TD>");
+        int position = 0;
+        for (List<Message> page = cursor.next(PAGE_LIMIT); !page.isEmpty(); page = cursor.next(PAGE_LIMIT)) {
+            for (Message message : page) {
+                printMessage(out, position, message);
+                position++;
+            }
+        }
 
-            out.println("<TD>");
-            out.println(message.getMessageID().toString());
-            out.println("</TD>");
+        out.println("</TABLE>");
+    }
 
-            out.println("<TD>");
-            String stringContents = new String(message.getContents());
-            out.println(stringContents);
-            out.println("</TD>");
+    /**
+     * Print one row of the table
+     *
+     * @param out      Where to print the row.
+     * @param position The message's position in the queue.
+     * @param message  The message.
+     */
+    public void printMessage (PrintWriter out, int position, Message message) {
+        out.println("<TR>");
+        out.print("<TD>");
+        out.print(position);
+        out.println("</TD>");
 
-            out.println("<TD>");
-            out.println(message.getStatus());
-            out.println("</TD>");
+        out.println("<TD>");
+        out.println(message.getMessageID().toString());
+        out.println("</TD>");
 
-            out.println("<TD>");
-            out.println("<FORM METHOD='POST' ACTION='/api/trackMessage'>");
+        out.println("<TD>");
+        String stringContents = new String(message.getContents());
+        out.println(stringContents);
+        out.println("</TD>");
 
-            out.print("<INPUT TYPE='HIDDEN' NAME='messageId' VALUE='");
-            out.print(message.getMessageID().toString());
-            out.println("'>");
+        out.println("<TD>");
+        out.println(message.getStatus());
+        out.println("</TD>");
 
-            out.println("<BUTTON TYPE='SUBMIT'>Track</BUTTON>");
-            out.println("</FORM>");
+        out.println("<TD>");
+        out.println("<FORM METHOD='POST' ACTION='/api/trackMessage'>");
 
-            out.println("<FORM METHOD='POST' ACTION='/api/messageInfo'>");
-            out.println("<INPUT TYPE='HIDDEN' NAME='ID' VALUE='" + message.getMessageID().toString() + "'>");
+        out.print("<INPUT TYPE='HIDDEN' NAME='messageId' VALUE='");
+        out.print(message.getMessageID().toString());
+        out.println("'>");
 
-            out.println("<BUTTON TYPE='SUBMIT'>Info</BUTTON>");
-            out.println("</FORM>");
+        out.println("<BUTTON TYPE='SUBMIT'>Track</BUTTON>");
+        out.println("</FORM>");
 
-            out.println("<FORM METHOD='POST' ACTION='/api/deleteMessage'>");
+        out.println("<FORM METHOD='POST' ACTION='/api/messageInfo'>");
+        out.println("<INPUT TYPE='HIDDEN' NAME='ID' VALUE='" + message.getMessageID().toString() + "'>");
 
-            out.print("<INPUT TYPE='HIDDEN' NAME='messageId' VALUE='");
-            out.print(message.getMessageID().toString());
-            out.println("'>");
+        out.println("<BUTTON TYPE='SUBMIT'>Info</BUTTON>");
+        out.println("</FORM>");
 
-            out.println("<BUTTON TYPE='SUBMIT'>Delete</BUTTON>");
-            out.println("</FORM>");
+        out.println("<FORM METHOD='POST' ACTION='/api/deleteMessage'>");
 
-            out.println("</TD>");
-            out.println("</TR>");
-        }
+        out.print("<INPUT TYPE='HIDDEN' NAME='messageId' VALUE='");
+        out.print(message.getMessageID().toString());
+        out.println("'>");
 
-        out.println("</TABLE>");
+        out.println("<BUTTON TYPE='SUBMIT'>Delete</BUTTON>");
+        out.println("</FORM>");
+
+        out.println("</TD>");
+        out.println("</TR>");
     }
 }
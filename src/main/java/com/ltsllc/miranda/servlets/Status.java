@@ -2,7 +2,9 @@ package com.ltsllc.miranda.servlets;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.ltsllc.miranda.DeliveryClient;
 import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.cluster.Broadcast;
 import com.ltsllc.miranda.cluster.Cluster;
 import com.ltsllc.miranda.logging.MessageLog;
 import com.ltsllc.miranda.properties.PropertiesHolder;
@@ -29,13 +31,18 @@ public class Status implements Servlet {
         String[][] table;
         PropertiesHolder p = Miranda.getProperties();
 
-        table = new String[p.keySet().size() + 3][2];
+        table = new String[p.keySet().size() + 8][2];
 
-        String[] names = new String[p.keySet().size() + 3];
+        String[] names = new String[p.keySet().size() + 8];
         p.keySet().toArray(names);
         names[p.keySet().size()] = "numberOfConnections";
         names[p.keySet().size() + 1] = "numberOfMessages";
         names[p.keySet().size() + 2] = "numberOfNodes";
+        names[p.keySet().size() + 3] = "deliveryConnections";
+        names[p.keySet().size() + 4] = "deliveryActiveConnections";
+        names[p.keySet().size() + 5] = "deliveryIdleConnections";
+        names[p.keySet().size() + 6] = "broadcastTimeouts";
+        names[p.keySet().size() + 7] = "broadcastFailures";
 
 
         for (int i = 0; i < names.length; i++) {
@@ -45,17 +52,44 @@ public class Status implements Servlet {
 
         String name = "numberOfConnections";
         String value = "" + Cluster.getInstance().getNumberOfConnections();
-        int numberOfRows = p.keySet().size() + 3;
-        table[numberOfRows - 3][0] = name;
-        table[numberOfRows - 3][1] = value;
+        int numberOfRows = p.keySet().size() + 8;
+        table[numberOfRows - 8][0] = name;
+        table[numberOfRows - 8][1] = value;
 
         name = "numberOfMessages";
         value = "" + MessageLog.getInstance().getAllMessages().size();
-        table[numberOfRows - 2][0] = name;
-        table[numberOfRows - 2][1] = value;
+        table[numberOfRows - 7][0] = name;
+        table[numberOfRows - 7][1] = value;
 
         name = "numberOfNodes";
         value = "" + Cluster.getInstance().getNumberOfNodes();
+        table[numberOfRows - 6][0] = name;
+        table[numberOfRows - 6][1] = value;
+
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+
+        name = "deliveryConnections";
+        value = "" + deliveryClient.getTotalConnectionCount();
+        table[numberOfRows - 5][0] = name;
+        table[numberOfRows - 5][1] = value;
+
+        name = "deliveryActiveConnections";
+        value = "" + deliveryClient.getActiveConnectionCount();
+        table[numberOfRows - 4][0] = name;
+        table[numberOfRows - 4][1] = value;
+
+        name = "deliveryIdleConnections";
+        value = "" + deliveryClient.getIdleConnectionCount();
+        table[numberOfRows - 3][0] = name;
+        table[numberOfRows - 3][1] = value;
+
+        name = "broadcastTimeouts";
+        value = "" + Broadcast.getTimeouts();
+        table[numberOfRows - 2][0] = name;
+        table[numberOfRows - 2][1] = value;
+
+        name = "broadcastFailures";
+        value = "" + Broadcast.getFailures();
         table[numberOfRows - 1][0] = name;
         table[numberOfRows - 1][1] = value;
 
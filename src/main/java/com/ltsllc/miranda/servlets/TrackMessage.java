@@ -65,7 +65,7 @@ public class TrackMessage extends HttpServlet {
             out.println("</TD>");
 
             out.print("<TD>");
-            printStackTrace(out, event.getWhere());
+            printStackTrace(out, event.getOrigin());
             out.println("</TD>");
 
             out.println("</TR>");
@@ -77,7 +77,21 @@ public class TrackMessage extends HttpServlet {
     }
 
     public void printStackTrace(PrintWriter out, Exception e) {
-        StackTraceElement[] stackTrace = e.getStackTrace();
+        printStackTrace(out, e.getStackTrace());
+    }
+
+    /**
+     * Print whatever part of the stack an event captured
+     *
+     * <P>
+     * Depending on PROPERTY_EVENT_ORIGIN this can be nothing, a few frames or the whole stack.
+     * </P>
+     */
+    public void printStackTrace(PrintWriter out, StackTraceElement[] stackTrace) {
+        if (stackTrace.length == 0) {
+            out.println("<I>not recorded</I>");
+            return;
+        }
 
         for (StackTraceElement element : stackTrace) {
             // out.println("<P>");
@@ -0,0 +1,195 @@
+package com.ltsllc.miranda;
+
+import com.ltsllc.miranda.servlets.PostReceiver;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.ListenableFuture;
+import org.asynchttpclient.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+class DeliveryClientTest extends TestSuperclass {
+    @BeforeEach
+    void setupEach() throws Exception {
+        Miranda miranda = new Miranda();
+        miranda.loadProperties();
+        DeliveryClient.defineStatics();
+    }
+
+    @Test
+    public void getClient() {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        assert (!deliveryClient.isStarted());
+
+        AsyncHttpClient client = deliveryClient.getClient();
+        assert (deliveryClient.isStarted());
+        assert (client == deliveryClient.getClient());
+
+        deliveryClient.close();
+        assert (!deliveryClient.isStarted());
+        assert (client.isClosed());
+
+        AsyncHttpClient client2 = deliveryClient.getClient();
+        assert (client2 != client);
+        assert (!client2.isClosed());
+
+        deliveryClient.close();
+    }
+
+    @Test
+    public void propertyChanged() {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        AsyncHttpClient client = deliveryClient.getClient();
+
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST, "5");
+
+        assert (client.isClosed());
+        assert (deliveryClient.getClient().getConfig().getMaxConnectionsPerHost() == 5);
+
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS_PER_HOST);
+        deliveryClient.close();
+    }
+
+    @Test
+    public void leasedClientOutlivesPropertyChange() {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        AsyncHttpClient leased = deliveryClient.leaseClient();
+
+        //
+        // a delivery still has the client, so the change retires it instead of closing it
+        //
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST, "5");
+
+        assert (!leased.isClosed());
+        assert (deliveryClient.getRetiredCount() == 1);
+        assert (deliveryClient.getClient() != leased);
+
+        deliveryClient.returnClient(leased);
+        assert (leased.isClosed());
+        assert (deliveryClient.getRetiredCount() == 0);
+
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_CONNECTIONS_PER_HOST);
+        deliveryClient.close();
+    }
+
+    @Test
+    public void getOutstanding() {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        Semaphore outstanding = deliveryClient.getOutstanding();
+        int limit = Miranda.getProperties().getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_OUTSTANDING);
+
+        assert (outstanding == deliveryClient.getOutstanding());
+        assert (outstanding.availablePermits() == limit);
+
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_MAX_OUTSTANDING, "2");
+        Semaphore outstanding2 = deliveryClient.getOutstanding();
+        assert (outstanding2 != outstanding);
+        assert (outstanding2.tryAcquire());
+        assert (outstanding2.tryAcquire());
+        assert (!outstanding2.tryAcquire());
+
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_MAX_OUTSTANDING,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_MAX_OUTSTANDING);
+    }
+
+    @Test
+    public void getCallbackExecutor() throws InterruptedException {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        Executor executor = deliveryClient.getCallbackExecutor();
+        assert (executor == deliveryClient.getCallbackExecutor());
+
+        CountDownLatch countDownLatch = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(countDownLatch::countDown);
+        }
+
+        assert (countDownLatch.await(5, TimeUnit.SECONDS));
+
+        deliveryClient.close();
+        assert (executor != deliveryClient.getCallbackExecutor());
+        deliveryClient.close();
+    }
+
+    @Test
+    public void executeCallbackAfterShutdown() throws InterruptedException {
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+        ExecutorService executor = (ExecutorService) deliveryClient.getCallbackExecutor();
+
+        //
+        // a response that arrives after the executor was shut down still gets its callback run
+        //
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_CALLBACK_THREADS, "2");
+        assert (executor.isShutdown());
+
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        deliveryClient.executeCallback(countDownLatch::countDown);
+        assert (countDownLatch.await(5, TimeUnit.SECONDS));
+
+        //
+        // and one that is rejected runs on the calling thread
+        //
+        DeliveryClient rejecting = new DeliveryClient() {
+            @Override
+            public synchronized Executor getCallbackExecutor() {
+                return executor;
+            }
+        };
+
+        CountDownLatch rejected = new CountDownLatch(1);
+        rejecting.executeCallback(rejected::countDown);
+        assert (rejected.getCount() == 0);
+
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_DELIVERY_CALLBACK_THREADS,
+                Miranda.PROPERTY_DEFAULT_DELIVERY_CALLBACK_THREADS);
+        deliveryClient.close();
+    }
+
+    /**
+     * Send a burst of posts to a local server and make sure the connections are pooled
+     */
+    @Test
+    public void connectionsAreReused() throws Exception {
+        Server server = new Server(0);
+        ServletContextHandler servletContextHandler = new ServletContextHandler();
+        servletContextHandler.addServlet(new ServletHolder(new PostReceiver()), "/");
+        server.setHandler(servletContextHandler);
+        server.start();
+
+        DeliveryClient deliveryClient = DeliveryClient.getInstance();
+
+        try {
+            String url = server.getURI().toString();
+            AsyncHttpClient client = deliveryClient.getClient();
+
+            int maxPerHost = Miranda.getProperties().getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_CONNECTIONS_PER_HOST);
+            for (int round = 0; round < 10; round++) {
+                List<ListenableFuture<Response>> list = new ArrayList<>();
+                for (int i = 0; i < maxPerHost; i++) {
+                    list.add(client.preparePost(url).setBody("hi there").execute());
+                }
+
+                for (ListenableFuture<Response> future : list) {
+                    assert (future.get().getStatusCode() == 200);
+                }
+            }
+
+            assert (deliveryClient.getTotalConnectionCount() > 0);
+            assert (deliveryClient.getTotalConnectionCount() <= maxPerHost);
+        } finally {
+            deliveryClient.close();
+            server.stop();
+        }
+    }
+}
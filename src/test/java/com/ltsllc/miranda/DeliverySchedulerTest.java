@@ -0,0 +1,85 @@
+package com.ltsllc.miranda;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+class DeliverySchedulerTest extends TestSuperclass {
+    @Test
+    public void takeDue() {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID later = UUID.randomUUID();
+
+        scheduler.schedule(second, 200);
+        scheduler.schedule(first, 100);
+        scheduler.schedule(later, 1000);
+
+        List<UUID> list = scheduler.takeDue(500, 10);
+        assert (list.size() == 2);
+        assert (list.get(0).equals(first));
+        assert (list.get(1).equals(second));
+        assert (!scheduler.isScheduled(first));
+        assert (scheduler.isScheduled(later));
+        assert (scheduler.size() == 1);
+
+        list = scheduler.takeDue(500, 10);
+        assert (list.size() == 0);
+    }
+
+    @Test
+    public void takeDueLimit() {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+        for (int i = 0; i < 10; i++) {
+            scheduler.schedule(UUID.randomUUID(), 100);
+        }
+
+        assert (scheduler.takeDue(100, 4).size() == 4);
+        assert (scheduler.size() == 6);
+    }
+
+    @Test
+    public void scheduleMoves() {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+        UUID uuid = UUID.randomUUID();
+
+        scheduler.schedule(uuid, 100);
+        scheduler.schedule(uuid, 5000);
+        assert (scheduler.size() == 1);
+        assert (scheduler.getScheduledTime(uuid) == 5000);
+        assert (scheduler.takeDue(1000, 10).size() == 0);
+
+        scheduler.cancel(uuid);
+        assert (!scheduler.isScheduled(uuid));
+        assert (scheduler.getScheduledTime(uuid) == -1);
+    }
+
+    @Test
+    public void awaitDue() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+        scheduler.schedule(UUID.randomUUID(), System.currentTimeMillis() + 100);
+
+        long start = System.currentTimeMillis();
+        scheduler.awaitDue(5000);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assert (elapsed >= 90 && elapsed < 5000);
+    }
+
+    @Test
+    public void wakeUp() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+
+        Thread thread = new Thread(() -> {
+            pause(100);
+            scheduler.schedule(UUID.randomUUID(), System.currentTimeMillis());
+        });
+        thread.start();
+
+        long start = System.currentTimeMillis();
+        scheduler.awaitDue(5000);
+        assert (System.currentTimeMillis() - start < 5000);
+    }
+}
@@ -8,16 +8,23 @@ import com.ltsllc.miranda.logging.LoggingCache;
 import com.ltsllc.miranda.message.Message;
 import com.ltsllc.miranda.logging.MessageLog;
 import com.ltsllc.miranda.properties.PropertiesHolder;
+import com.ltsllc.miranda.servlets.PostReceiver;
+import com.sun.management.UnixOperatingSystemMXBean;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.config.Configurator;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.*;
 
 import static org.mockito.Mockito.when;
@@ -436,4 +443,118 @@ class MirandaTest extends TestSuperclass {
     public void recover () {
 
     }
+
+    /**
+     * Deliver a few thousand messages to a local server and make sure it doesn't leak threads or file descriptors
+     *
+     * <P>
+     * The messages go out in rounds through Miranda.deliver.  The thread and open file descriptor counts are taken
+     * after a warm up round, when the client's connection pool and the server's threads have filled up, and every
+     * round after that must leave them within a small margin of where they were.  The throughput of the measured
+     * rounds is logged.  The file descriptor count is only checked where the JVM can report it.
+     * </P>
+     */
+    @Test
+    public void deliverUnderLoad () throws Exception {
+        final int rounds = 5;
+        final int messagesPerRound = 1000;
+        final int threadSlack = 10;
+        final long descriptorSlack = 20;
+
+        Server server = new Server(0);
+        ServletContextHandler servletContextHandler = new ServletContextHandler();
+        servletContextHandler.addServlet(new ServletHolder(new PostReceiver()), "/");
+        server.setHandler(servletContextHandler);
+        server.start();
+
+        Configurator.setRootLevel(Level.INFO);
+        Miranda miranda = new Miranda();
+        miranda.loadProperties();
+        DeliveryClient.defineStatics();
+
+        try {
+            String url = server.getURI().toString();
+            int limit = Miranda.getProperties().getIntProperty(Miranda.PROPERTY_DELIVERY_MAX_OUTSTANDING);
+
+            int baseThreads = 0;
+            long baseDescriptors = 0;
+            long start = 0;
+            for (int round = 0; round < rounds; round++) {
+                if (round == 1) {
+                    baseThreads = threadCount();
+                    baseDescriptors = openDescriptors();
+                    start = System.currentTimeMillis();
+                }
+
+                List<Message> messages = new ArrayList<>();
+                for (int i = 0; i < messagesPerRound; i++) {
+                    Message message = createTestMessage(UUID.randomUUID());
+                    message.setDeliveryURL(url);
+                    message.setStatusURL(url);
+                    message.setNextSend(System.currentTimeMillis());
+                    MessageLog.getInstance().add(message, message.getOwner());
+                    messages.add(message);
+                }
+
+                //
+                // deliver turns a message away when too many are outstanding, so keep at it until each one is sent
+                //
+                for (Message message : messages) {
+                    while (message.getNumberOfSends() == 0) {
+                        miranda.deliver(message);
+                        if (message.getNumberOfSends() == 0) {
+                            Thread.sleep(1);
+                        }
+                    }
+                }
+
+                long deadline = System.currentTimeMillis() + 30000;
+                while (DeliveryClient.getInstance().getOutstanding().availablePermits() < limit
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+
+                assert (DeliveryClient.getInstance().getOutstanding().availablePermits() == limit);
+                assert (miranda.getInflight().isEmpty());
+                for (Message message : messages) {
+                    assert (MessageLog.getInstance().getOwnerOf(message.getMessageID()) == null);
+                }
+
+                if (round > 0) {
+                    int threads = threadCount();
+                    long descriptors = openDescriptors();
+                    logger.info("round " + round + ": " + threads + " threads, " + descriptors + " open files");
+
+                    assert (threads <= baseThreads + threadSlack);
+                    assert (descriptors == -1 || descriptors <= baseDescriptors + descriptorSlack);
+                }
+            }
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            int delivered = (rounds - 1) * messagesPerRound;
+            logger.info("delivered " + delivered + " messages in " + elapsed + " ms, "
+                    + (delivered * 1000L / elapsed) + " messages per second");
+        } finally {
+            DeliveryClient.getInstance().close();
+            server.stop();
+            MessageLog.getInstance().clear();
+            Configurator.setRootLevel(Level.DEBUG);
+        }
+    }
+
+    protected static int threadCount () {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * The number of files this process has open, or -1 if the JVM can't say
+     */
+    protected static long openDescriptors () {
+        OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystemMXBean instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) operatingSystemMXBean).getOpenFileDescriptorCount();
+        }
+
+        return -1;
+    }
  }
\ No newline at end of file
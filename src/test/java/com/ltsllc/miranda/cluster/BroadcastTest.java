@@ -0,0 +1,75 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.miranda.TestSuperclass;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class BroadcastTest extends TestSuperclass {
+    @Test
+    void required () {
+        assert (Broadcast.required(Broadcast.AckMode.none, 4) == 0);
+        assert (Broadcast.required(Broadcast.AckMode.one, 4) == 1);
+        assert (Broadcast.required(Broadcast.AckMode.one, 0) == 0);
+        assert (Broadcast.required(Broadcast.AckMode.quorum, 1) == 1);
+        assert (Broadcast.required(Broadcast.AckMode.quorum, 2) == 1);
+        assert (Broadcast.required(Broadcast.AckMode.quorum, 4) == 2);
+        assert (Broadcast.required(Broadcast.AckMode.all, 4) == 4);
+
+        //
+        // a quorum is a majority of the whole cluster, not of the nodes that happen to be connected
+        //
+        assert (Broadcast.required(Broadcast.AckMode.quorum, 1, 5) == 2);
+        assert (Broadcast.required(Broadcast.AckMode.quorum, 4, 5) == 2);
+    }
+
+    @Test
+    void quorumUnreachable () {
+        List<Channel> channels = new ArrayList<>();
+        EmbeddedChannel one = new EmbeddedChannel();
+        channels.add(one);
+
+        //
+        // five nodes with three of them down: one write can't make a majority
+        //
+        Broadcast broadcast = new Broadcast(channels, "MESSAGE DELIVERED", Broadcast.AckMode.quorum, 60000, 5);
+
+        assert (broadcast.getFuture().isDone());
+        assert (!broadcast.getFuture().join());
+        assert ("MESSAGE DELIVERED".equals(one.readOutbound()));
+    }
+
+    @Test
+    void all () {
+        List<Channel> channels = new ArrayList<>();
+        EmbeddedChannel one = new EmbeddedChannel();
+        EmbeddedChannel two = new EmbeddedChannel();
+        channels.add(one);
+        channels.add(two);
+
+        Broadcast broadcast = new Broadcast(channels, "MESSAGE DELIVERED", Broadcast.AckMode.all, 1000);
+
+        assert (broadcast.getFuture().join());
+        assert ("MESSAGE DELIVERED".equals(one.readOutbound()));
+        assert ("MESSAGE DELIVERED".equals(two.readOutbound()));
+    }
+
+    @Test
+    void failure () {
+        List<Channel> channels = new ArrayList<>();
+        EmbeddedChannel open = new EmbeddedChannel();
+        EmbeddedChannel closed = new EmbeddedChannel();
+        closed.close();
+        channels.add(open);
+        channels.add(closed);
+
+        long failures = Broadcast.getFailures();
+
+        assert (!new Broadcast(channels, "MESSAGE DELIVERED", Broadcast.AckMode.all, 1000).getFuture().join());
+        assert (new Broadcast(channels, "MESSAGE DELIVERED", Broadcast.AckMode.one, 1000).getFuture().join());
+        assert (Broadcast.getFailures() == failures + 2);
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -270,4 +271,46 @@ class MessageCacheTest extends TestSuperclass {
 
         assert (message.getContents()[0] == 7);
     }
-}
\ No newline at end of file
+
+    @Test
+    void removeOfflineMessage() throws LtsllcException, IOException {
+        ImprovedFile improvedFile = new ImprovedFile("messages.log");
+        MessageCache messageCache = new MessageCache(improvedFile, 1024);
+
+        Message message1 = new Message();
+        message1.setContents(new byte[512]);
+        message1.setMessageID(UUID.randomUUID());
+        message1.setOwner(UUID.randomUUID());
+        message1.setDeliveryURL("http://localhost");
+        message1.setStatusURL("http://localhost");
+
+        messageCache.add(message1);
+
+        Message message = new Message();
+        message.setContents(new byte[548]);
+        message.setMessageID(UUID.randomUUID());
+        message.setOwner(UUID.randomUUID());
+        message.setDeliveryURL("http://localhost");
+        message.setStatusURL("http://localhost");
+
+        messageCache.add(message);
+
+        assert (!messageCache.isOnline(message1.getMessageID()));
+        long length = improvedFile.length();
+
+        messageCache.remove(message1.getMessageID());
+
+        //
+        // the record stays and a tombstone goes after it
+        //
+        assert (!messageCache.contains(message1.getMessageID()));
+        assert (improvedFile.length() > length);
+
+        List<Message> list = messageCache.copyAllMessages();
+        assert (list.size() == 1);
+        assert (list.get(0).getMessageID().equals(message.getMessageID()));
+
+        messageCache.compact();
+        assert (messageCache.copyAllMessages().size() == 1);
+    }
+}
@@ -10,6 +10,7 @@ import com.ltsllc.miranda.logging.MessageEventLogger;
 import com.ltsllc.miranda.message.Message;
 import com.ltsllc.miranda.logging.MessageLog;
 import com.ltsllc.miranda.message.MessageType;
+import com.ltsllc.miranda.netty.Framing;
 import com.ltsllc.miranda.netty.HeartBeatHandler;
 import com.ltsllc.miranda.properties.PropertiesHolder;
 import io.netty.channel.embedded.EmbeddedChannel;
@@ -875,15 +876,17 @@ System.out.println(Miranda.getProperties().getLongProperty(Miranda.PROPERTY_STAR
     }
 
     @Test
-    public void sendSynchronizationStart () throws IOException {
+    public void sendSynchronizationStart () throws IOException, LtsllcException {
         Miranda miranda = new Miranda();
+        miranda.loadProperties();
+        MessageLog.defineStatics();
 
         Node node = buildNode(UUID.randomUUID());
         EmbeddedChannel channel = (EmbeddedChannel) node.getChannel();
 
         node.sendSynchronizationStart();
 
-        StringBuilder stringBuilder = new StringBuilder();
+        StringBuffer stringBuilder = new StringBuffer();
         stringBuilder.append(Node.SYNCHRONIZE_START);
         stringBuilder.append(' ');
         stringBuilder.append(miranda.getMyUuid().toString());
@@ -893,6 +896,7 @@ System.out.println(Miranda.getProperties().getLongProperty(Miranda.PROPERTY_STAR
         stringBuilder.append(miranda.getMyPort());
         stringBuilder.append(' ');
         stringBuilder.append(miranda.getMyStart());
+        RangeDigest.of(MessageLog.getInstance()).addTo(stringBuilder);
 
         String message = channel.readOutbound();
 
@@ -1015,6 +1019,8 @@ System.out.println(Miranda.getProperties().getLongProperty(Miranda.PROPERTY_STAR
         stringBuilder.append(miranda.getMyPort());
         stringBuilder.append(" ");
         stringBuilder.append(miranda.getMyStart());
+        stringBuilder.append(" ");
+        stringBuilder.append(Framing.LENGTH);
 
         String message = channel.readOutbound();
 
@@ -0,0 +1,121 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.commons.LtsllcException;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.TestSuperclass;
+import com.ltsllc.miranda.logging.MessageLog;
+import com.ltsllc.miranda.message.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Scanner;
+import java.util.UUID;
+
+class RangeDigestTest extends TestSuperclass {
+    @Test
+    void ranges() {
+        RangeDigest digest = new RangeDigest(4);
+
+        assert (digest.getRanges() == 16);
+        assert (digest.first(0).equals(new UUID(Long.MIN_VALUE, Long.MIN_VALUE)));
+        assert (digest.last(15).equals(new UUID(Long.MAX_VALUE, Long.MAX_VALUE)));
+        assert (digest.before(0) == null);
+
+        for (int range = 0; range < 16; range++) {
+            assert (digest.rangeOf(digest.first(range)) == range);
+            assert (digest.rangeOf(digest.last(range)) == range);
+            assert (range == 0 || digest.before(range).compareTo(digest.first(range)) < 0);
+            assert (digest.first(range).compareTo(digest.last(range)) < 0);
+        }
+
+        assert (RangeDigest.bitsFor(0) == RangeDigest.MINIMUM_BITS);
+        assert (RangeDigest.bitsFor(64 * 64) == 7);
+        assert (RangeDigest.bitsFor(Long.MAX_VALUE) == RangeDigest.MAXIMUM_BITS);
+    }
+
+    @Test
+    void differences() {
+        UUID message1 = UUID.randomUUID();
+        UUID message2 = UUID.randomUUID();
+        UUID owner = UUID.randomUUID();
+
+        RangeDigest digest1 = new RangeDigest(4);
+        digest1.addMessage(message1);
+        digest1.addOwner(message1, owner);
+        digest1.addMessage(message2);
+
+        //
+        // the order things are added in doesn't matter
+        //
+        RangeDigest digest2 = new RangeDigest(4);
+        digest2.addMessage(message2);
+        digest2.addOwner(message1, owner);
+        digest2.addMessage(message1);
+        assert (digest1.differences(digest2).isEmpty());
+
+        //
+        // but a different owner does
+        //
+        RangeDigest digest3 = new RangeDigest(4);
+        digest3.addMessage(message1);
+        digest3.addOwner(message1, UUID.randomUUID());
+        digest3.addMessage(message2);
+        BitSet ranges = digest1.differences(digest3);
+        assert (ranges.cardinality() == 1);
+        assert (ranges.get(digest1.rangeOf(message1)));
+
+        assert (digest1.differences(new RangeDigest(5)).cardinality() == 16);
+    }
+
+    @Test
+    void readAndWrite() {
+        RangeDigest digest = new RangeDigest(4);
+        for (int i = 0; i < 100; i++) {
+            digest.addMessage(UUID.randomUUID());
+        }
+
+        StringBuffer stringBuffer = new StringBuffer("SYNCHRONIZE START");
+        digest.addTo(stringBuffer);
+
+        //
+        // messages are upper cased when they are received
+        //
+        Scanner scanner = new Scanner(stringBuffer.toString().toUpperCase());
+        scanner.next();
+        scanner.next();
+        assert (SyncStream.Checkpoint.read(scanner) == null);
+        RangeDigest read = RangeDigest.read(scanner);
+        assert (read.getBits() == 4);
+        assert (read.differences(digest).isEmpty());
+
+        assert (RangeDigest.read(new Scanner("DIGEST 4 0123")) == null);
+        assert (RangeDigest.read(new Scanner("")) == null);
+    }
+
+    @Test
+    void of() throws IOException, LtsllcException {
+        Miranda miranda = new Miranda();
+        miranda.loadProperties();
+        MessageLog.defineStatics();
+
+        //
+        // start from whatever the log already has, the hashes are sums so the new messages just add to them
+        //
+        RangeDigest expected = RangeDigest.of(MessageLog.getInstance(), 4);
+        UUID owner = UUID.randomUUID();
+        for (int i = 0; i < 10; i++) {
+            Message message = new Message();
+            message.setMessageID(UUID.randomUUID());
+            message.setStatusURL("http://localhost:8080");
+            message.setDeliveryURL("http://localhost:8080");
+            message.setContents(new byte[]{1, 2, 3});
+            MessageLog.getInstance().add(message, owner);
+
+            expected.addMessage(message.getMessageID());
+            expected.addOwner(message.getMessageID(), owner);
+        }
+
+        assert (RangeDigest.of(MessageLog.getInstance(), 4).differences(expected).isEmpty());
+    }
+}
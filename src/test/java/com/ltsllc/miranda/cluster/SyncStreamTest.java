@@ -0,0 +1,96 @@
+package com.ltsllc.miranda.cluster;
+
+import com.ltsllc.commons.LtsllcException;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.TestSuperclass;
+import com.ltsllc.miranda.logging.MessageLog;
+import com.ltsllc.miranda.message.Message;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.UUID;
+
+class SyncStreamTest extends TestSuperclass {
+    @Test
+    void checkpoint() {
+        UUID source = UUID.randomUUID();
+        UUID message = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+        SyncStream.Checkpoint checkpoint = SyncStream.checkpointFor(source, 1);
+        checkpoint.received(SyncStream.Phase.MESSAGES, message);
+
+        StringBuffer stringBuffer = new StringBuffer();
+        checkpoint.addTo(stringBuffer);
+        assert (stringBuffer.toString().equals(" RESUME MESSAGES " + message));
+
+        SyncStream.Checkpoint read = SyncStream.Checkpoint.read(new Scanner(stringBuffer.toString()));
+        assert (read.getPhase() == SyncStream.Phase.MESSAGES);
+        assert (message.equals(read.getLast()));
+
+        //
+        // the same node, still up, gets the same checkpoint
+        //
+        assert (SyncStream.checkpointFor(source, 1) == checkpoint);
+
+        checkpoint.ended(SyncStream.Phase.MESSAGES);
+        stringBuffer = new StringBuffer();
+        checkpoint.addTo(stringBuffer);
+        read = SyncStream.Checkpoint.read(new Scanner(stringBuffer.toString()));
+        assert (read.getPhase() == SyncStream.Phase.OWNERS);
+        assert (read.getLast() == null);
+
+        //
+        // a node that has restarted since starts over
+        //
+        assert (SyncStream.checkpointFor(source, 2) != checkpoint);
+
+        SyncStream.finished(source);
+        assert (SyncStream.getCheckpoint(source) == null);
+        assert (SyncStream.Checkpoint.read(new Scanner("")) == null);
+    }
+
+    @Test
+    void readDifferences() throws IOException, LtsllcException {
+        Miranda miranda = new Miranda();
+        miranda.loadProperties();
+        MessageLog.defineStatics();
+
+        RangeDigest theirs = RangeDigest.of(MessageLog.getInstance(), 4);
+        Message message = new Message();
+        message.setMessageID(UUID.randomUUID());
+        message.setStatusURL("http://localhost:8080");
+        message.setDeliveryURL("http://localhost:8080");
+        message.setContents(new byte[]{1, 2, 3});
+        MessageLog.getInstance().add(message, UUID.randomUUID());
+
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Node node = new Node(UUID.randomUUID(), "localhost", 2020, channel);
+        SyncStream stream = SyncStream.differences(node, theirs);
+
+        //
+        // the first read works out our digest and the reads only produce lines, the event loop writes them
+        //
+        SyncStream.Page page = stream.read(SyncStream.Phase.MESSAGES);
+        assert (page.lines.isEmpty());
+        assert (page.phase == SyncStream.Phase.MESSAGES);
+
+        List<Object> lines = new ArrayList<>();
+        SyncStream.Phase phase = SyncStream.Phase.MESSAGES;
+        while (phase != SyncStream.Phase.DONE) {
+            page = stream.read(phase);
+            lines.addAll(page.lines);
+            phase = page.phase;
+        }
+
+        assert (channel.readOutbound() == null);
+        assert (lines.stream().anyMatch(line -> line instanceof MessageRecord
+                && ((MessageRecord) line).getKind() == MessageRecord.Kind.SYNC
+                && ((MessageRecord) line).getMessage().getMessageID().equals(message.getMessageID())));
+        assert (lines.contains(Node.MESSAGES_END));
+        assert (lines.getLast().equals(Node.OWNERS_END));
+    }
+}
@@ -0,0 +1,76 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.TestSuperclass;
+import com.ltsllc.miranda.alarm.Alarms;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+public class AppendWriterTest extends TestSuperclass {
+    @Test
+    public void append () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            AppendWriter writer = new AppendWriter(file, AppendWriter.Durability.sync, 10, 100);
+            long first = writer.append("one");
+            long second = writer.append("two");
+            writer.close();
+
+            assert (first == 0);
+            assert (second == ("one" + System.lineSeparator()).length());
+            assert (file.length() == writer.getPosition());
+
+            BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
+            try {
+                bufferedReader.skip(second);
+                assert (bufferedReader.readLine().equals("two"));
+            } finally {
+                bufferedReader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reopen () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            AppendWriter writer = new AppendWriter(file, AppendWriter.Durability.buffered, 10, 100);
+            writer.append("one");
+            writer.close();
+            assert (!writer.isOpen());
+
+            file.clear();
+            long location = writer.append("two");
+            assert (location == 0);
+            writer.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void groupCommit () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            AppendWriter writer = new AppendWriter(file, AppendWriter.Durability.group, 60000, 3);
+            writer.append("one");
+            writer.append("two");
+            assert (writer.unforced == 2);
+
+            writer.append("three");
+            assert (writer.unforced == 0);
+
+            writer.append("four");
+            writer.alarm(Alarms.GROUP_COMMIT);
+            assert (writer.unforced == 0);
+            writer.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.TestSuperclass;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+class EvictionPolicyTest extends TestSuperclass {
+    @Test
+    void lfu() {
+        EvictionPolicy policy = EvictionPolicy.create("lfu");
+        UUID one = UUID.randomUUID();
+        UUID two = UUID.randomUUID();
+        UUID three = UUID.randomUUID();
+
+        policy.admit(one, 0);
+        policy.admit(two, 0);
+        policy.admit(three, 5);
+
+        assert (policy.victim().equals(one));
+
+        policy.access(one);
+
+        assert (policy.victim().equals(two));
+
+        policy.remove(two);
+
+        assert (policy.victim().equals(one));
+        assert (policy.size() == 2);
+
+        policy.remove(one);
+        policy.remove(three);
+
+        assert (policy.victim() == null);
+    }
+
+    @Test
+    void slru() {
+        SegmentedLruEvictionPolicy policy = (SegmentedLruEvictionPolicy) EvictionPolicy.create("slru");
+        UUID one = UUID.randomUUID();
+        UUID two = UUID.randomUUID();
+        UUID three = UUID.randomUUID();
+
+        policy.admit(one, 0);
+        policy.admit(two, 0);
+        policy.admit(three, 0);
+
+        assert (policy.victim().equals(one));
+
+        policy.access(one);
+
+        assert (policy.isProtected(one));
+        assert (policy.victim().equals(two));
+
+        policy.access(two);
+        policy.access(three);
+
+        //
+        // only 80% of 3 can be protected, so the least recently used protected message goes back on probation
+        //
+        assert (!policy.isProtected(one));
+        assert (policy.victim().equals(one));
+    }
+
+    @Test
+    void unknown() {
+        boolean thrown = false;
+        try {
+            EvictionPolicy.create("random");
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+
+        assert (thrown);
+    }
+}
@@ -0,0 +1,86 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.TestSuperclass;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+public class IndexSnapshotTest extends TestSuperclass {
+    public MessageTable fill (SegmentedLog log, int count) throws IOException {
+        MessageTable table = new MessageTable();
+        for (int i = 0; i < count; i++) {
+            UUID uuid = UUID.randomUUID();
+            int slot = table.put(uuid);
+            table.setLocation(slot, log.append("MESSAGE ID: " + uuid + " record " + i));
+            table.setNextSend(slot, 1000 + i);
+        }
+
+        return table;
+    }
+
+    @Test
+    public void writeAndRead () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 4096);
+        IndexSnapshot snapshot = IndexSnapshot.forLog(file);
+        try {
+            MessageTable table = fill(log, 100);
+            snapshot.write(log, table);
+
+            UUID tail = UUID.randomUUID();
+            long tailLocation = log.append("MESSAGE ID: " + tail + " tail");
+
+            IndexSnapshot other = IndexSnapshot.forLog(file);
+            LogIndexer.Chunk chunk = other.read(log);
+            assert (chunk != null);
+            assert (chunk.size() == 100);
+            assert (other.getCovered() == snapshot.getCovered());
+
+            for (int i = 0; i < chunk.size(); i++) {
+                int slot = table.find(chunk.getMessageID(i));
+                assert (table.getLocation(slot) == chunk.getLocation(i));
+                assert (table.getNextSend(slot) == chunk.getNextSend(i));
+            }
+
+            List<LogIndexer.Chunk> chunks = new LogIndexer(log, 1).index(other.getCovered());
+            int count = 0;
+            for (LogIndexer.Chunk tailChunk : chunks) {
+                for (int i = 0; i < tailChunk.size(); i++) {
+                    assert (tailChunk.getMessageID(i).equals(tail));
+                    assert (tailChunk.getLocation(i) == tailLocation);
+                    count++;
+                }
+            }
+
+            assert (count == 1);
+        } finally {
+            snapshot.delete();
+            log.delete();
+        }
+    }
+
+    @Test
+    public void readMismatch () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 4096);
+        IndexSnapshot snapshot = IndexSnapshot.forLog(file);
+        try {
+            snapshot.write(log, fill(log, 10));
+
+            //
+            // a new log that is at least as long as the old one, but with different records
+            //
+            log.clear();
+            fill(log, 20);
+
+            assert (snapshot.read(log) == null);
+            assert (snapshot.getCovered() == 0);
+        } finally {
+            snapshot.delete();
+            log.delete();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.TestSuperclass;
+import com.ltsllc.miranda.message.Message;
+import com.ltsllc.miranda.message.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public class LogConverterTest extends TestSuperclass {
+    @Test
+    public void convertDeletesSnapshot () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 4096);
+        IndexSnapshot snapshot = IndexSnapshot.forLog(file);
+        try {
+            MessageTable table = new MessageTable();
+            for (int i = 0; i < 10; i++) {
+                Message message = createTestMessage(UUID.randomUUID());
+                int slot = table.put(message.getMessageID());
+                table.setLocation(slot, log.append(MessageCodec.toRecord(message, MessageCodec.Format.text)));
+            }
+
+            snapshot.write(log, table);
+            log.close();
+            assert (snapshot.exists());
+
+            //
+            // every location moves, so the snapshot can't be used afterwards
+            //
+            assert (LogConverter.convert(file, MessageCodec.Format.binary) == 10);
+            assert (!IndexSnapshot.forLog(file).exists());
+        } finally {
+            snapshot.delete();
+            log.delete();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.TestSuperclass;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class LogIndexerTest extends TestSuperclass {
+    @Test
+    public void index () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 4096);
+        try {
+            List<UUID> uuids = new ArrayList<>();
+            List<Long> locations = new ArrayList<>();
+            List<Long> nextSends = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                UUID uuid = UUID.randomUUID();
+                uuids.add(uuid);
+                nextSends.add(1000L + i);
+                locations.add(log.append("MESSAGE ID: " + uuid + " OWNER: " + UUID.randomUUID()
+                        + " LAST_SEND: 0 NEXT_SEND: " + (1000 + i) + " CONTENTS: " + i));
+            }
+
+            assert (log.getSegments().size() > 1);
+
+            //
+            // chunks much smaller than a segment, so records straddle the chunk boundaries
+            //
+            LogIndexer logIndexer = new LogIndexer(log, 4, 100);
+            List<UUID> indexedUuids = new ArrayList<>();
+            List<Long> indexedLocations = new ArrayList<>();
+            List<Long> indexedNextSends = new ArrayList<>();
+            List<LogIndexer.Chunk> chunks = logIndexer.index();
+            for (LogIndexer.Chunk chunk : chunks) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    indexedUuids.add(chunk.getMessageID(i));
+                    indexedLocations.add(chunk.getLocation(i));
+                    indexedNextSends.add(chunk.getNextSend(i));
+                }
+            }
+
+            assert (chunks.size() > log.getSegments().size());
+            assert (indexedUuids.equals(uuids));
+            assert (indexedLocations.equals(locations));
+            assert (indexedNextSends.equals(nextSends));
+        } finally {
+            log.delete();
+        }
+    }
+}
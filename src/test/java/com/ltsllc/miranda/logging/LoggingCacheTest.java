@@ -11,7 +11,10 @@ import com.ltsllc.miranda.message.Message;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import static com.ltsllc.miranda.logging.MessageLog.getInstance;
@@ -133,6 +136,91 @@ class LoggingCacheTest extends TestSuperclass {
         assert (2 == lc.getUuidToMessage().size());
     }
 
+    @Test
+    void cursor() throws Exception {
+        ImprovedFile logFile = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            LoggingCache lc = new LoggingCache(logFile, 1024);
+            for (int i = 0; i < 10; i++) {
+                lc.add(createMessage());
+            }
+
+            Message m1 = createMessage();
+            LoggingCache.Cursor cursor = lc.cursor();
+            Set<UUID> seen = new HashSet<>();
+
+            for (List<Message> page = cursor.next(2 * m1.getContents().length); !page.isEmpty();
+                 page = cursor.next(2 * m1.getContents().length)) {
+                assert (page.size() <= 2);
+                for (Message message : page) {
+                    assert (seen.add(message.getMessageID()));
+                }
+            }
+
+            assert (seen.size() == 10);
+            assert (!cursor.hasNext());
+        } finally {
+            logFile.delete();
+        }
+    }
+
+    @Test
+    void cursorRange() throws Exception {
+        ImprovedFile logFile = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            LoggingCache lc = new LoggingCache(logFile, 1024);
+            for (int i = 0; i < 10; i++) {
+                lc.add(createMessage());
+            }
+
+            List<UUID> all = lc.cursor().nextKeys(100);
+            LoggingCache.Cursor cursor = lc.cursor(all.get(2), all.get(6));
+
+            List<UUID> range = new ArrayList<>();
+            for (List<Message> page = cursor.next(1); !page.isEmpty(); page = cursor.next(1)) {
+                for (Message message : page) {
+                    range.add(message.getMessageID());
+                }
+            }
+
+            assert (range.equals(all.subList(3, 7)));
+            assert (!cursor.hasNext());
+        } finally {
+            logFile.delete();
+        }
+    }
+
+    @Test
+    void cursorConcurrentChanges() throws Exception {
+        ImprovedFile logFile = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            LoggingCache lc = new LoggingCache(logFile, 1024);
+            for (int i = 0; i < 10; i++) {
+                lc.add(createMessage());
+            }
+
+            LoggingCache.Cursor cursor = lc.cursor();
+            List<UUID> first = cursor.nextKeys(5);
+            assert (first.size() == 5);
+
+            //
+            // remove the last message we returned and one we haven't gotten to yet
+            //
+            UUID notYet = lc.cursor(cursor.getLast()).nextKeys(1).get(0);
+            lc.remove(cursor.getLast());
+            lc.remove(notYet);
+
+            List<UUID> rest = cursor.nextKeys(100);
+            assert (rest.size() == 4);
+            assert (!rest.contains(notYet));
+            for (UUID uuid : rest) {
+                assert (!first.contains(uuid));
+            }
+        } finally {
+            logFile.delete();
+        }
+    }
+
     @Test
     void loadMessages() throws IOException, LtsllcException {
         ImprovedFile improvedFile = ImprovedFile.createImprovedTempFile("abc");
@@ -151,6 +239,31 @@ class LoggingCacheTest extends TestSuperclass {
         }
     }
 
+    @Test
+    void loadMessagesWithinLimit() throws IOException, LtsllcException {
+        ImprovedFile improvedFile = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            Message one = createMessage();
+            Message two = createMessage();
+            Message three = createMessage();
+            int size = one.getContents().length;
+            LoggingCache cache = new LoggingCache(improvedFile, 3 * size);
+            cache.add(one);
+            cache.add(two);
+            cache.add(three);
+            cache.close();
+
+            cache = new LoggingCache(improvedFile, size);
+
+            assert (cache.getCurrentLoad() == size);
+            assert (cache.isInMemory(one.getMessageID()));
+            assert (!cache.isInMemory(three.getMessageID()));
+            assert (cache.get(three.getMessageID()).equals(three));
+        } finally {
+            improvedFile.delete();
+        }
+    }
+
     @Test
     void getNotPresent() throws IOException, LtsllcException {
         ImprovedFile improvedFile = ImprovedFile.createImprovedTempFile("abc");
@@ -214,7 +327,36 @@ class LoggingCacheTest extends TestSuperclass {
     }
 
     @Test
-    void migrateLeastReferencedMessagesToDisk() {
+    void migrateLeastReferencedMessagesToDisk() throws IOException, LtsllcException {
+        ImprovedFile improvedFile = ImprovedFile.createImprovedTempFile("abc");
+
+        try {
+            Message one = createMessage();
+            Message two = createMessage();
+            Message three = createMessage();
+            int size = one.getContents().length;
+            LoggingCache cache = new LoggingCache(improvedFile, 3 * size);
+            cache.add(one);
+            cache.add(two);
+            cache.add(three);
+            cache.get(one.getMessageID());
+            cache.get(three.getMessageID());
+            cache.get(three.getMessageID());
+
+            cache.migrateLeastReferencedMessagesToDisk(size);
+
+            assert (cache.getCurrentLoad() == size);
+            assert (!cache.isInMemory(one.getMessageID()));
+            assert (!cache.isInMemory(two.getMessageID()));
+            assert (cache.isInMemory(three.getMessageID()));
+            assert (cache.getEvictionPolicy().size() == 1);
+
+            cache.get(one.getMessageID());
+
+            assert (cache.getCurrentLoad() == 2 * size);
+        } finally {
+            improvedFile.delete();
+        }
     }
 
     @Test
@@ -283,6 +425,53 @@ class LoggingCacheTest extends TestSuperclass {
         }
     }
 
+    @Test
+    void compactSparseSegments() throws IOException {
+        ImprovedFile improvedFile = new ImprovedFile(Miranda.getProperties().getProperty(Miranda.PROPERTY_MESSAGE_LOG));
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_MESSAGE_LOG_SEGMENT_SIZE, "512");
+        LoggingCache cache = new LoggingCache(improvedFile, 1024);
+        try {
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Message message = createMessage();
+                messages.add(message);
+                cache.add(message);
+            }
+
+            assert (cache.getLog().getSegments().size() > 2);
+
+            //
+            // keep one message in every segment so that no segment is removed outright
+            //
+            Set<Integer> segments = new HashSet<>();
+            List<Message> removed = new ArrayList<>();
+            for (Message message : messages) {
+                long location = cache.getUuidToLocation().get(message.getMessageID());
+                if (!segments.add(SegmentedLog.segmentOf(location))) {
+                    cache.remove(message.getMessageID());
+                    removed.add(message);
+                }
+            }
+
+            cache.compact();
+            assert (cache.getLog().getSparseSegments(LoggingCache.getCompactionDeadPercent()).isEmpty());
+
+            //
+            // without a snapshot the whole log is read, and the removed messages must not come back
+            //
+            cache.getSnapshot().delete();
+            cache = new LoggingCache(improvedFile, 1024);
+            for (Message message : removed) {
+                assert (!cache.contains(message.getMessageID()));
+            }
+        } finally {
+            Miranda.getProperties().setProperty(Miranda.PROPERTY_MESSAGE_LOG_SEGMENT_SIZE,
+                    Miranda.PROPERTY_DEFAULT_MESSAGE_LOG_SEGMENT_SIZE);
+            cache.getLog().delete();
+            improvedFile.delete();
+        }
+    }
+
     @Test
     void recover() throws IOException, LtsllcException {
         Miranda miranda = new Miranda();
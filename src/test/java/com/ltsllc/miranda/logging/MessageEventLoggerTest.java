@@ -1,6 +1,7 @@
 package com.ltsllc.miranda.logging;
 
 import com.ltsllc.commons.LtsllcException;
+import com.ltsllc.commons.io.ImprovedFile;
 import com.ltsllc.miranda.message.Message;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -118,4 +119,29 @@ class MessageEventLoggerTest {
 
         assert (messageEventList.getFirst().getType() == MessageEventType.deleted);
     }
-}
\ No newline at end of file
+
+    @Test
+    void retention() throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            MessageEventLogger messageEventLogger = new MessageEventLogger(file, 4);
+            Message first = buildMessage();
+            messageEventLogger.added(first);
+            for (int i = 0; i < 5; i++) {
+                messageEventLogger.delivered(buildMessage());
+            }
+
+            assert (messageEventLogger.getLog().size() == 4);
+            assert (messageEventLogger.getEventsFor(first.getMessageID()).isEmpty());
+            assert (!messageEventLogger.getMap().containsKey(first.getMessageID()));
+
+            messageEventLogger.close();
+            MessageEventLogger reloaded = new MessageEventLogger(file, 4);
+
+            assert (reloaded.getLog().size() == 4);
+            assert (reloaded.getLog().getLast().getType() == MessageEventType.delivered);
+        } finally {
+            file.delete();
+        }
+    }
+}
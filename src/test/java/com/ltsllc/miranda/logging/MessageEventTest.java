@@ -53,4 +53,32 @@ class MessageEventTest extends TestSuperclass {
 
         assert (messageEvent.getId().equals(uuid));
     }
-}
\ No newline at end of file
+
+    @Test
+    void captureOrigin() {
+        StackTraceElement[] origin = MessageEvent.captureOrigin(MessageEvent.Origin.caller, 2);
+
+        assert (origin.length == 2);
+        assert (origin[0].getClassName().equals(MessageEventTest.class.getName()));
+        assert (origin[0].getMethodName().equals("captureOrigin"));
+
+        assert (MessageEvent.captureOrigin(MessageEvent.Origin.off, 2).length == 0);
+        assert (MessageEvent.captureOrigin(MessageEvent.Origin.full, 2).length > 2);
+    }
+
+    @Test
+    void storeWithoutOrigin() {
+        MessageEvent messageEvent = new MessageEvent();
+        messageEvent.setType(MessageEventType.delivered);
+        UUID uuid = UUID.randomUUID();
+        messageEvent.setId(uuid);
+
+        String line = messageEvent.toStorageString();
+        MessageEvent readMessage = MessageEvent.readMessageEvent(line);
+
+        assert (line.endsWith("WHERE: "));
+        assert (readMessage.getId().equals(uuid));
+        assert (readMessage.getType() == MessageEventType.delivered);
+        assert (readMessage.getOrigin().length == 0);
+    }
+}
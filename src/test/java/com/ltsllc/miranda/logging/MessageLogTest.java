@@ -10,8 +10,12 @@ import com.ltsllc.miranda.properties.PropertyChangedEvent;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.ltsllc.miranda.properties.Properties.messageLogfile;
 import static org.junit.jupiter.api.Assertions.*;
@@ -90,6 +94,96 @@ class MessageLogTest extends TestSuperclass {
         assert (!MessageLog.getInstance().contains(message.getMessageID()));
     }
 
+    @Test
+    void scheduler() throws LtsllcException, IOException {
+        MessageLog.defineStatics();
+        Message message = createTestMessage(UUID.randomUUID());
+        message.setNextSend(12345);
+        MessageLog.getInstance().add(message, UUID.randomUUID());
+
+        assert (MessageLog.getInstance().getScheduler().getScheduledTime(message.getMessageID()) == 12345);
+
+        MessageLog.getInstance().remove(message.getMessageID());
+
+        assert (!MessageLog.getInstance().getScheduler().isScheduled(message.getMessageID()));
+    }
+
+    @Test
+    void addAsync() throws Exception {
+        MessageLog.defineStatics();
+        UUID owner = UUID.randomUUID();
+        List<Message> messages = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            Message message = createTestMessage(UUID.randomUUID());
+            messages.add(message);
+            futures.add(MessageLog.getInstance().addAsync(message, owner));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+        for (Message message : messages) {
+            assert (MessageLog.getInstance().contains(message.getMessageID()));
+            assert (owner.equals(MessageLog.getInstance().getOwnerOf(message.getMessageID())));
+            assert (MessageLog.getInstance().getScheduler().isScheduled(message.getMessageID()));
+        }
+
+        assert (MessageLog.getInstance().getAllMessagesOwnedBy(owner).size() == 50);
+    }
+
+    @Test
+    void addAsyncAfterEventsFail() throws Exception {
+        MessageLog.defineStatics();
+        MessageEventLogger eventLogger = MessageLog.getInstance().getMessageEventLogger();
+        try {
+            //
+            // the messages are on disk before the events are stored, so a failure there shouldn't fail them
+            //
+            MessageLog.getInstance().setMessageEventLogger(new MessageEventLogger() {
+                @Override
+                public synchronized void addedAll(Collection<Message> messages) {
+                    throw new RuntimeException("test");
+                }
+            });
+
+            UUID owner = UUID.randomUUID();
+            List<Message> messages = new ArrayList<>();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Message message = createTestMessage(UUID.randomUUID());
+                messages.add(message);
+                futures.add(MessageLog.getInstance().addAsync(message, owner));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+            for (Message message : messages) {
+                assert (MessageLog.getInstance().contains(message.getMessageID()));
+                assert (MessageLog.getInstance().getScheduler().isScheduled(message.getMessageID()));
+            }
+        } finally {
+            MessageLog.getInstance().setMessageEventLogger(eventLogger);
+        }
+    }
+
+    @Test
+    void scheduleAllOnDisk() throws LtsllcException, IOException {
+        MessageLog.defineStatics();
+        Message message = createTestMessage(UUID.randomUUID());
+        long nextSend = System.currentTimeMillis() + 60000;
+        message.setNextSend(nextSend);
+        MessageLog.getInstance().add(message, UUID.randomUUID());
+
+        //
+        // a message that is on disk is scheduled for when it is due, not for right now
+        //
+        MessageLog.getInstance().getCache().moveMessageToDisk(message);
+        MessageLog.getInstance().scheduleAll();
+
+        assert (MessageLog.getInstance().getScheduler().getScheduledTime(message.getMessageID()) == nextSend);
+    }
+
     @Test
     void getAllMessagesOwnedBy() throws LtsllcException, IOException {
         MessageLog.defineStatics();
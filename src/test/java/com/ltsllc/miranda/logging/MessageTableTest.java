@@ -0,0 +1,110 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.miranda.TestSuperclass;
+import com.ltsllc.miranda.message.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+class MessageTableTest extends TestSuperclass {
+    public List<UUID> contents (MessageTable table) {
+        List<UUID> list = new ArrayList<>();
+        for (int slot = table.first(); slot != -1; slot = table.next(slot)) {
+            list.add(table.getUuid(slot));
+        }
+
+        return list;
+    }
+
+    @Test
+    public void put () {
+        MessageTable table = new MessageTable();
+        TreeSet<UUID> expected = new TreeSet<>();
+
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = UUID.randomUUID();
+            expected.add(uuid);
+            int slot = table.put(uuid);
+            table.setLocation(slot, i);
+            table.setNextSend(slot, 1000 + i);
+        }
+
+        assert (table.size() == 1000);
+        assert (contents(table).equals(new ArrayList<>(expected)));
+
+        //
+        // the next send has to move along with the rest of the entry when the table grows
+        //
+        for (UUID uuid : expected) {
+            int slot = table.find(uuid);
+            assert (table.getLocation(uuid) != -1);
+            assert (table.getNextSend(slot) == 1000 + table.getLocation(slot));
+        }
+
+        assert (table.getLocation(UUID.randomUUID()) == -1);
+    }
+
+    @Test
+    public void remove () {
+        MessageTable table = new MessageTable();
+        TreeSet<UUID> expected = new TreeSet<>();
+
+        //
+        // UUIDs with the same top bits all land on the same slot, which makes for a long probe sequence
+        //
+        for (int i = 0; i < 100; i++) {
+            UUID uuid = new UUID(0, i);
+            expected.add(uuid);
+            table.put(uuid);
+        }
+
+        for (int i = 0; i < 100; i += 3) {
+            UUID uuid = new UUID(0, i);
+            expected.remove(uuid);
+            table.remove(table.find(uuid));
+        }
+
+        assert (table.size() == expected.size());
+        assert (contents(table).equals(new ArrayList<>(expected)));
+
+        for (UUID uuid : expected) {
+            assert (table.contains(uuid));
+        }
+    }
+
+    @Test
+    public void after () {
+        MessageTable table = new MessageTable();
+        UUID one = new UUID(1, 0);
+        UUID two = new UUID(2, 0);
+        UUID three = new UUID(3, 0);
+        table.put(one);
+        table.put(two);
+        table.put(three);
+
+        table.remove(table.find(two));
+
+        assert (table.getUuid(table.after(one)).equals(three));
+        assert (table.getUuid(table.after(two)).equals(three));
+        assert (table.after(three) == -1);
+    }
+
+    @Test
+    public void inMemory () {
+        MessageTable table = new MessageTable();
+        UUID uuid = UUID.randomUUID();
+        int slot = table.put(uuid);
+
+        assert (table.getInMemory() == 0);
+
+        table.setMessage(slot, new Message());
+        assert (table.getInMemory() == 1);
+
+        table.remove(table.find(uuid));
+        assert (table.getInMemory() == 0);
+        assert (table.size() == 0);
+    }
+}
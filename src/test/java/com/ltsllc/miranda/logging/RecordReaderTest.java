@@ -0,0 +1,64 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.TestSuperclass;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+public class RecordReaderTest extends TestSuperclass {
+    @Test
+    public void readLine () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            AppendWriter writer = new AppendWriter(file, AppendWriter.Durability.buffered, 10, 100);
+            long first = writer.append("d\u00e9j\u00e0 vu");
+            long second = writer.append("two");
+            StringBuilder stringBuilder = new StringBuilder();
+            for (int i = 0; i < 3 * RecordReader.CHUNK_SIZE; i++) {
+                stringBuilder.append((char) ('a' + i % 26));
+            }
+            long third = writer.append(stringBuilder.toString());
+            long fourth = writer.append("four");
+            writer.close();
+
+            RecordReader reader = new RecordReader(file);
+            try {
+                assert (reader.readLine(fourth).equals("four"));
+                assert (reader.readLine(first).equals("d\u00e9j\u00e0 vu"));
+                assert (reader.readLine(second).equals("two"));
+                assert (reader.readLine(third).equals(stringBuilder.toString()));
+                assert (reader.isOpen());
+            } finally {
+                reader.close();
+            }
+
+            assert (!reader.isOpen());
+            assert (RecordReader.readLine(file, second).equals("two"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readPastEnd () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        try {
+            AppendWriter writer = new AppendWriter(file, AppendWriter.Durability.buffered, 10, 100);
+            writer.append("one");
+            writer.close();
+
+            boolean thrown = false;
+            try {
+                RecordReader.readLine(file, file.length());
+            } catch (EOFException e) {
+                thrown = true;
+            }
+
+            assert (thrown);
+        } finally {
+            file.delete();
+        }
+    }
+}
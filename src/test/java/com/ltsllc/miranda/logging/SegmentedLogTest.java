@@ -0,0 +1,203 @@
+package com.ltsllc.miranda.logging;
+
+import com.ltsllc.commons.io.ImprovedFile;
+import com.ltsllc.miranda.TestSuperclass;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SegmentedLogTest extends TestSuperclass {
+    @Test
+    public void append () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 64);
+        try {
+            List<Long> locations = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                locations.add(log.append("record number " + i));
+            }
+
+            assert (log.getActive() > 0);
+            assert (log.getSegments().size() == log.getActive() + 1);
+            assert (locations.get(0) == 0);
+            assert (SegmentedLog.segmentOf(locations.get(9)) == log.getActive());
+
+            for (int i = 0; i < 10; i++) {
+                assert (log.readLine(locations.get(i)).equals("record number " + i));
+            }
+
+            List<String> lines = new ArrayList<>();
+            List<Long> visited = new ArrayList<>();
+            log.forEach((location, line) -> {
+                visited.add(location);
+                lines.add(line);
+                return true;
+            });
+
+            assert (visited.equals(locations));
+            assert (lines.get(9).equals("record number 9"));
+
+            log.close();
+            SegmentedLog reopened = new SegmentedLog(file, 64);
+            assert (reopened.getActive() == log.getActive());
+            assert (reopened.readLine(locations.get(3)).equals("record number 3"));
+            reopened.close();
+        } finally {
+            log.delete();
+        }
+    }
+
+    @Test
+    public void release () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 64);
+        try {
+            List<Long> locations = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                locations.add(log.append("record number " + i));
+            }
+
+            int segment = SegmentedLog.segmentOf(locations.get(5));
+            ImprovedFile segmentFile = log.getSegmentFile(segment);
+            assert (segment != 0 && segment != log.getActive());
+            assert (segmentFile.exists());
+
+            for (long location : locations) {
+                if (SegmentedLog.segmentOf(location) == segment) {
+                    log.release(location);
+                }
+            }
+
+            assert (!segmentFile.exists());
+            assert (log.getLiveCount(segment) == 0);
+            assert (log.readLine(locations.get(0)).equals("record number 0"));
+
+            for (long location : locations) {
+                if (SegmentedLog.segmentOf(location) == 0) {
+                    log.release(location);
+                }
+            }
+
+            assert (file.exists());
+            assert (file.length() == 0);
+        } finally {
+            log.delete();
+        }
+    }
+
+    @Test
+    public void backupSurvivesRemovingSegmentZero () throws Exception {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        ImprovedFile backup = new ImprovedFile(file.getAbsolutePath() + ".backup");
+        SegmentedLog log = new SegmentedLog(file, 64);
+        try {
+            List<Long> locations = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                locations.add(log.append("record number " + i));
+            }
+
+            long length = file.length();
+            SegmentedLog.backup(file, backup);
+
+            for (long location : locations) {
+                if (SegmentedLog.segmentOf(location) == 0) {
+                    log.release(location);
+                }
+            }
+
+            assert (file.length() == 0);
+            assert (backup.length() == length);
+        } finally {
+            log.delete();
+            backup.delete();
+        }
+    }
+
+    @Test
+    public void compaction () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 1 << 20);
+        try {
+            List<Long> locations = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                locations.add(log.append("record number " + i));
+            }
+
+            long[] keep = { locations.get(1), locations.get(4), locations.get(8) };
+            SegmentedLog.Compaction compaction = log.beginCompaction(keep);
+            compaction.copy();
+
+            //
+            // records that arrive while the copy is going on are caught up by finish
+            //
+            long later = log.append("a later record");
+
+            assert (compaction.finish());
+            assert (compaction.getCopied() == 3);
+            assert (log.readLine(compaction.relocate(locations.get(1))).equals("record number 1"));
+            assert (log.readLine(compaction.relocate(locations.get(4))).equals("record number 4"));
+            assert (log.readLine(compaction.relocate(locations.get(8))).equals("record number 8"));
+            assert (log.readLine(compaction.relocate(later)).equals("a later record"));
+            assert (compaction.relocate(locations.get(2)) == -1);
+
+            long next = log.append("after compaction");
+            assert (log.readLine(next).equals("after compaction"));
+        } finally {
+            log.delete();
+        }
+    }
+
+    @Test
+    public void compactSparseSegment () throws IOException {
+        ImprovedFile file = ImprovedFile.createImprovedTempFile("abc");
+        SegmentedLog log = new SegmentedLog(file, 64);
+        try {
+            List<Long> locations = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                locations.add(log.append("record number " + i));
+            }
+
+            int segment = SegmentedLog.segmentOf(locations.get(5));
+            assert (segment != log.getActive());
+
+            //
+            // release every record in the segment but one, the record that is left keeps the segment around
+            //
+            long kept = -1;
+            for (long location : locations) {
+                if (SegmentedLog.segmentOf(location) == segment) {
+                    if (kept == -1) {
+                        kept = location;
+                    } else {
+                        log.release(location);
+                    }
+                }
+            }
+
+            assert (log.getSparseSegments(50).equals(List.of(segment)));
+            assert (log.getSparseSegments(100).isEmpty());
+
+            String keptLine = log.readLine(kept);
+            SegmentedLog.Compaction compaction = log.beginCompaction(segment, new long[] { kept });
+            compaction.copy();
+            assert (compaction.finish());
+            assert (compaction.getCopied() == 1);
+            assert (log.readLine(compaction.relocate(kept)).equals(keptLine));
+
+            List<String> lines = new ArrayList<>();
+            log.forEach((location, line) -> {
+                if (SegmentedLog.segmentOf(location) == segment) {
+                    lines.add(line);
+                }
+                return true;
+            });
+
+            assert (lines.size() == 1);
+            assert (log.getSparseSegments(50).isEmpty());
+        } finally {
+            log.delete();
+        }
+    }
+}
@@ -10,6 +10,8 @@ import org.junit.jupiter.api.Test;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class TestLoggingMap extends TestSuperclass {
@@ -163,6 +165,35 @@ public class TestLoggingMap extends TestSuperclass {
         }
     }
 
+    @Test
+    public void clearChangesGeneration () throws IOException {
+        ImprovedFile logfile = null;
+        try {
+            logfile = new ImprovedFile("tempfile");
+
+            LoggingMap loggingMap = new LoggingMap(logfile);
+            loggingMap.add(UUID.randomUUID(), UUID.randomUUID());
+            long generation = loggingMap.getGeneration();
+
+            //
+            // clear and then grow the logfile past where it was, which a check on its length would miss
+            //
+            loggingMap.clear();
+            for (int i = 0; i < 4; i++) {
+                loggingMap.add(UUID.randomUUID(), UUID.randomUUID());
+            }
+
+            assert (loggingMap.getGeneration() != generation);
+
+            loggingMap.compact();
+            assert (loggingMap.getUuidToOwner().size() == 4);
+        } finally {
+            if (logfile != null) {
+                logfile.delete();
+            }
+        }
+    }
+
     @Test
     public void shouldRecover () throws IOException {
         ImprovedFile logfile = null;
@@ -186,4 +217,42 @@ public class TestLoggingMap extends TestSuperclass {
         }
 
     }
+
+    @Test
+    public void next () throws IOException {
+        ImprovedFile logfile = new ImprovedFile("tempfile");
+        try {
+            LoggingMap loggingMap = new LoggingMap(logfile);
+            for (int i = 0; i < 25; i++) {
+                loggingMap.add(UUID.randomUUID(), UUID.randomUUID());
+            }
+
+            int count = 0;
+            UUID last = null;
+            for (List<Map.Entry<UUID, UUID>> page = loggingMap.next(null, 10); !page.isEmpty();
+                 page = loggingMap.next(last, 10)) {
+                assert (page.size() <= 10);
+                for (Map.Entry<UUID, UUID> entry : page) {
+                    assert (last == null || entry.getKey().compareTo(last) > 0);
+                    assert (loggingMap.get(entry.getKey()).equals(entry.getValue()));
+                    last = entry.getKey();
+                    count++;
+                }
+            }
+
+            assert (count == 25);
+
+            //
+            // a range stops at until, and an empty range is empty
+            //
+            List<Map.Entry<UUID, UUID>> all = loggingMap.next(null, 100);
+            UUID until = all.get(9).getKey();
+            List<Map.Entry<UUID, UUID>> range = loggingMap.next(all.get(4).getKey(), until, 100);
+            assert (range.size() == 5);
+            assert (range.get(4).getKey().equals(until));
+            assert (loggingMap.next(until, until, 100).isEmpty());
+        } finally {
+            logfile.delete();
+        }
+    }
 }
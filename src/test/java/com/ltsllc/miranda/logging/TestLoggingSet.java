@@ -12,6 +12,7 @@ import org.junit.jupiter.api.Test;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
@@ -226,4 +227,30 @@ public class TestLoggingSet extends TestSuperclass {
             backup.delete();
         }
     }
+
+    @Test
+    public void removeWithTombstone () throws IOException {
+        ImprovedFile logfile = new ImprovedFile("logfile");
+        try {
+            LoggingSet loggingSet = new LoggingSet(logfile);
+            Message message1 = createTestMessage(UUID.randomUUID());
+            Message message2 = createTestMessage(UUID.randomUUID());
+            loggingSet.add(message1);
+            loggingSet.add(message2);
+
+            loggingSet.remove(message1);
+
+            assert (Files.readAllLines(logfile.toPath()).size() == 3);
+
+            loggingSet.close();
+            loggingSet = LoggingSet.recover(logfile);
+
+            assert (loggingSet != null);
+            assert (!loggingSet.contains(message1));
+            assert (loggingSet.contains(message2));
+            assert (Files.readAllLines(logfile.toPath()).size() == 1);
+        } finally {
+            logfile.delete();
+        }
+    }
 }
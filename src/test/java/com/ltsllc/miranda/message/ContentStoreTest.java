@@ -0,0 +1,108 @@
+package com.ltsllc.miranda.message;
+
+import com.ltsllc.miranda.TestSuperclass;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+class ContentStoreTest extends TestSuperclass {
+    @Test
+    public void allocate () {
+        ContentStore contentStore = new ContentStore();
+        byte[] bytes = "hello, world".getBytes();
+        ContentStore.Handle handle = contentStore.allocate(bytes);
+
+        assert (handle.length() == bytes.length);
+        assert (Arrays.equals(handle.copy(), bytes));
+        assert (contentStore.getUsed() == bytes.length);
+        assert (contentStore.getSlabs() == 1);
+
+        ByteBuffer byteBuffer = handle.buffer();
+        assert (byteBuffer.isReadOnly());
+        assert (byteBuffer.remaining() == bytes.length);
+    }
+
+    @Test
+    public void release () {
+        ContentStore contentStore = new ContentStore();
+        ContentStore.Handle one = contentStore.allocate(new byte[100]);
+        one.retain();
+        one.release();
+
+        assert (contentStore.getUsed() == 100);
+
+        one.release();
+        assert (contentStore.getUsed() == 0);
+
+        //
+        // the chunk is reused rather than taking another slab
+        //
+        ContentStore.Handle two = contentStore.allocate(new byte[120]);
+        assert (contentStore.getSlabs() == 1);
+        assert (two.length() == 120);
+
+        boolean thrown = false;
+        try {
+            one.release();
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+
+        assert (thrown);
+    }
+
+    @Test
+    public void large () {
+        ContentStore contentStore = new ContentStore();
+        byte[] bytes = new byte[ContentStore.SLAB_SIZE + 1];
+        bytes[bytes.length - 1] = 7;
+        ContentStore.Handle handle = contentStore.allocate(bytes);
+
+        assert (contentStore.getSlabs() == 0);
+        assert (Arrays.equals(handle.copy(), bytes));
+
+        handle.release();
+        assert (contentStore.getReserved() == 0);
+    }
+
+    @Test
+    public void message () {
+        ContentStore contentStore = new ContentStore();
+        Message message = new Message();
+        byte[] bytes = new byte[] {1, 2, 3, 4};
+        message.setContents(bytes);
+
+        message.moveContentsOffHeap(contentStore);
+        assert (message.getContentLength() == 4);
+        assert (Arrays.equals(message.getContents(), bytes));
+        assert (contentStore.getUsed() == 4);
+
+        ContentStore.Handle handle = message.retainContents();
+        message.releaseContents();
+        assert (contentStore.getUsed() == 4);
+        assert (Arrays.equals(handle.copy(), bytes));
+
+        handle.release();
+        assert (contentStore.getUsed() == 0);
+        assert (Arrays.equals(message.getContents(), bytes));
+        assert (!message.isContentsReleased());
+    }
+
+    @Test
+    public void releaseUnused () {
+        ContentStore contentStore = new ContentStore();
+        Message message = new Message();
+        message.setContents(new byte[] {1, 2, 3, 4});
+        message.moveContentsOffHeap(contentStore);
+
+        //
+        // nobody else is using the contents, so they are dropped rather than copied back
+        //
+        message.releaseContents();
+        assert (contentStore.getUsed() == 0);
+        assert (message.isContentsReleased());
+        assert (!message.hasContents());
+        assert (message.getContents() == null);
+    }
+}
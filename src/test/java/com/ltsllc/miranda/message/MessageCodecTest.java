@@ -0,0 +1,115 @@
+package com.ltsllc.miranda.message;
+
+import com.ltsllc.miranda.TestSuperclass;
+import org.asynchttpclient.Param;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+class MessageCodecTest extends TestSuperclass {
+    public Message createMessage () {
+        Message message = new Message();
+        message.setMessageID(UUID.randomUUID());
+        message.setOwner(UUID.randomUUID());
+        message.setStatusURL("http://foo.bar.com/status");
+        message.setDeliveryURL("http://foo.bar.com/deliver");
+        List<Param> list = new ArrayList<>();
+        list.add(new Param("one", "a value with spaces"));
+        list.add(new Param("two", "b"));
+        message.setParamList(list);
+        message.setStatus(200);
+        message.setNumberOfSends(3);
+        message.setLastSend(1759179281507L);
+        message.setNextSend(1759180281246L);
+        message.setContents(new byte[] {0, 1, 2, (byte) 0xff});
+
+        return message;
+    }
+
+    public void check (Message expected, Message actual) {
+        assert (actual.getMessageID().equals(expected.getMessageID()));
+        assert (actual.getOwner().equals(expected.getOwner()));
+        assert (actual.getStatusURL().equals(expected.getStatusURL()));
+        assert (actual.getDeliveryURL().equals(expected.getDeliveryURL()));
+        assert (actual.getParamList().size() == expected.getParamList().size());
+        assert (actual.getParamList().getFirst().getValue().equals("a value with spaces"));
+        assert (actual.getStatus() == expected.getStatus());
+        assert (actual.getNumberOfSends() == expected.getNumberOfSends());
+        assert (actual.getLastSend() == expected.getLastSend());
+        assert (actual.getNextSend() == expected.getNextSend());
+        assert (Arrays.equals(actual.getContents(), expected.getContents()));
+    }
+
+    @Test
+    public void encode () {
+        Message message = createMessage();
+        byte[] bytes = MessageCodec.encode(message);
+
+        assert (bytes.length == MessageCodec.encodedLength(message));
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        Message decoded = MessageCodec.decode(byteBuffer);
+
+        assert (!byteBuffer.hasRemaining());
+        check(message, decoded);
+    }
+
+    @Test
+    public void record () {
+        Message message = createMessage();
+        String record = MessageCodec.toRecord(message, MessageCodec.Format.binary);
+
+        assert (MessageCodec.isBinaryRecord(record));
+        assert (record.indexOf('\n') == -1);
+
+        check(message, Message.readLongFormat(record));
+    }
+
+    @Test
+    public void readMessageID () {
+        Message message = createMessage();
+
+        assert (MessageCodec.readMessageID(message.longToString()).equals(message.getMessageID()));
+        assert (MessageCodec.readMessageID(MessageCodec.toRecord(message, MessageCodec.Format.binary))
+                .equals(message.getMessageID()));
+    }
+
+    @Test
+    public void readNextSend () {
+        Message message = createMessage();
+        String text = message.longToString();
+
+        assert (MessageCodec.readNextSend(text) == message.getNextSend());
+        assert (MessageCodec.readNextSend(MessageCodec.toRecord(message, MessageCodec.Format.binary))
+                == message.getNextSend());
+
+        message.setOwner(null);
+        assert (MessageCodec.readNextSend(MessageCodec.toRecord(message, MessageCodec.Format.binary))
+                == message.getNextSend());
+
+        //
+        // a prefix that stops in the middle of the number doesn't have it
+        //
+        int end = text.indexOf("NEXT_SEND: ") + "NEXT_SEND: ".length() + 3;
+        assert (MessageCodec.readNextSend(text.substring(0, end)) == 0);
+    }
+
+    @Test
+    public void decodeTruncated () {
+        byte[] bytes = MessageCodec.encode(createMessage());
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+
+        boolean thrown = false;
+        try {
+            MessageCodec.decode(byteBuffer);
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+
+        assert (thrown);
+    }
+}
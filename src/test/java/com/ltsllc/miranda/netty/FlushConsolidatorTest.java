@@ -0,0 +1,54 @@
+package com.ltsllc.miranda.netty;
+
+import com.ltsllc.miranda.TestSuperclass;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+class FlushConsolidatorTest extends TestSuperclass {
+    @Test
+    void consolidate() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushConsolidator(1024));
+
+        for (int i = 0; i < 10; i++) {
+            channel.write(Unpooled.wrappedBuffer(new byte[10]));
+            channel.flush();
+        }
+
+        assert (channel.outboundMessages().isEmpty());
+
+        //
+        // the flushes all happen in the one task on the event loop
+        //
+        channel.runPendingTasks();
+        assert (channel.outboundMessages().size() == 10);
+
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void maximumBytes() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushConsolidator(16));
+
+        channel.write(Unpooled.wrappedBuffer(new byte[10]));
+        assert (channel.outboundMessages().isEmpty());
+
+        channel.write(Unpooled.wrappedBuffer(new byte[10]));
+        assert (channel.outboundMessages().size() == 2);
+
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void close() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushConsolidator(1024));
+
+        channel.write(Unpooled.wrappedBuffer(new byte[10]));
+        channel.flush();
+        channel.close();
+
+        assert (channel.outboundMessages().size() == 1);
+
+        channel.finishAndReleaseAll();
+    }
+}
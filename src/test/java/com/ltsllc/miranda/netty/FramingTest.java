@@ -0,0 +1,225 @@
+package com.ltsllc.miranda.netty;
+
+import com.ltsllc.commons.HexConverter;
+import com.ltsllc.miranda.Miranda;
+import com.ltsllc.miranda.TestSuperclass;
+import com.ltsllc.miranda.cluster.Cluster;
+import com.ltsllc.miranda.cluster.MessageRecord;
+import com.ltsllc.miranda.cluster.Node;
+import com.ltsllc.miranda.logging.MessageLog;
+import com.ltsllc.miranda.message.ContentStore;
+import com.ltsllc.miranda.message.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+class FramingTest extends TestSuperclass {
+    public static ByteBuf toBuf(String s) {
+        return Unpooled.copiedBuffer(s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Everything a channel has written, in one buffer
+     */
+    public static ByteBuf drain(EmbeddedChannel channel) {
+        ByteBuf all = Unpooled.buffer();
+        ByteBuf byteBuf = channel.readOutbound();
+        while (byteBuf != null) {
+            all.writeBytes(byteBuf);
+            byteBuf.release();
+            byteBuf = channel.readOutbound();
+        }
+
+        return all;
+    }
+
+    @Test
+    void nullTerminatedFragments() {
+        EmbeddedChannel channel = new EmbeddedChannel(new NullTerminatedInboundFrame());
+
+        channel.writeInbound(toBuf("ABC"));
+        assert (channel.readInbound() == null);
+
+        channel.writeInbound(toBuf("DEF\u0000GH"));
+        assert ("ABCDEF".equals(channel.readInbound()));
+        assert (channel.readInbound() == null);
+
+        channel.writeInbound(toBuf("I\u0000\u0000JKL\u0000"));
+        assert ("GHI".equals(channel.readInbound()));
+        assert ("JKL".equals(channel.readInbound()));
+        assert (channel.readInbound() == null);
+    }
+
+    @Test
+    void lengthFieldRoundTrip() {
+        EmbeddedChannel out = new EmbeddedChannel(new LengthFieldOutboundFrame());
+        out.writeOutbound("MESSAGE DELIVERED \u00e9");
+        out.writeOutbound(toBuf("START START"));
+        ByteBuf bytes = drain(out);
+
+        EmbeddedChannel in = new EmbeddedChannel(new LengthFieldInboundFrame());
+
+        //
+        // one byte at a time, so that every frame and every length arrives in pieces
+        //
+        while (bytes.isReadable()) {
+            in.writeInbound(bytes.readRetainedSlice(1));
+        }
+
+        bytes.release();
+
+        assert ("MESSAGE DELIVERED \u00e9".equals(in.readInbound()));
+        assert ("START START".equals(in.readInbound()));
+        assert (in.readInbound() == null);
+    }
+
+    @Test
+    void binaryRecordRoundTrip() {
+        Message message = createTestMessage();
+        EmbeddedChannel out = new EmbeddedChannel(new LengthFieldOutboundFrame(true));
+        out.writeOutbound(new MessageRecord(MessageRecord.Kind.CREATED, message));
+        out.writeOutbound("MESSAGE DELIVERED " + message.getMessageID());
+        ByteBuf bytes = drain(out);
+
+        EmbeddedChannel in = new EmbeddedChannel(new LengthFieldInboundFrame());
+        while (bytes.isReadable()) {
+            in.writeInbound(bytes.readRetainedSlice(1));
+        }
+
+        bytes.release();
+
+        MessageRecord record = in.readInbound();
+        assert (record.getKind() == MessageRecord.Kind.CREATED);
+        assert (record.getMessage().getMessageID().equals(message.getMessageID()));
+        assert (record.getMessage().getDeliveryURL().equals(message.getDeliveryURL()));
+        assert (Arrays.equals(record.getMessage().getContents(), message.getContents()));
+        assert (("MESSAGE DELIVERED " + message.getMessageID()).equals(in.readInbound()));
+        assert (in.readInbound() == null);
+    }
+
+    @Test
+    void binaryRecordOffHeap() {
+        Message message = createTestMessage();
+        byte[] expected = message.getContents();
+        ContentStore contentStore = new ContentStore();
+        message.moveContentsOffHeap(contentStore);
+
+        EmbeddedChannel out = new EmbeddedChannel(new LengthFieldOutboundFrame(true));
+        out.writeOutbound(new MessageRecord(MessageRecord.Kind.SYNC, message));
+        ByteBuf bytes = drain(out);
+
+        //
+        // the write let go of its reference to the contents, so they go away with the message's
+        //
+        message.setContents(null);
+        assert (contentStore.getUsed() == 0);
+
+        EmbeddedChannel in = new EmbeddedChannel(new LengthFieldInboundFrame());
+        in.writeInbound(bytes);
+
+        MessageRecord record = in.readInbound();
+        assert (record.getKind() == MessageRecord.Kind.SYNC);
+        assert (record.getMessage().getMessageID().equals(message.getMessageID()));
+        assert (Arrays.equals(record.getMessage().getContents(), expected));
+    }
+
+    @Test
+    void recordAfterEviction() throws Exception {
+        Miranda.getProperties().setProperty(Miranda.PROPERTY_CACHE_CONTENT_STORE, ContentStore.Mode.direct.toString());
+        MessageLog.defineStatics();
+        try {
+            Message message = createTestMessage();
+            byte[] expected = message.getContents();
+            MessageLog.getInstance().add(message, UUID.randomUUID());
+
+            //
+            // the cache evicts the message after it is added and before the cluster gets around to writing it
+            //
+            MessageLog.getInstance().getCache().moveMessageToDisk(message);
+            assert (message.isContentsReleased());
+
+            EmbeddedChannel binary = new EmbeddedChannel(new LengthFieldOutboundFrame(true));
+            binary.writeOutbound(new MessageRecord(MessageRecord.Kind.CREATED, message));
+            EmbeddedChannel in = new EmbeddedChannel(new LengthFieldInboundFrame());
+            in.writeInbound(drain(binary));
+
+            MessageRecord record = in.readInbound();
+            assert (record.getMessage().getMessageID().equals(message.getMessageID()));
+            assert (Arrays.equals(record.getMessage().getContents(), expected));
+
+            EmbeddedChannel text = new EmbeddedChannel(new LengthFieldOutboundFrame(false));
+            text.writeOutbound(new MessageRecord(MessageRecord.Kind.CREATED, message));
+            in.writeInbound(drain(text));
+
+            String line = in.readInbound();
+            assert (line.endsWith("CONTENTS: " + HexConverter.toHexString(expected)));
+            assert (message.equals(record.getMessage()));
+        } finally {
+            Miranda.getProperties().setProperty(Miranda.PROPERTY_CACHE_CONTENT_STORE,
+                    Miranda.PROPERTY_DEFAULT_CACHE_CONTENT_STORE);
+            MessageLog.getInstance().clear();
+        }
+    }
+
+    @Test
+    void recordAsText() {
+        Message message = createTestMessage();
+        EmbeddedChannel out = new EmbeddedChannel(new LengthFieldOutboundFrame(false));
+        out.writeOutbound(new MessageRecord(MessageRecord.Kind.CREATED, message));
+        ByteBuf bytes = drain(out);
+
+        EmbeddedChannel in = new EmbeddedChannel(new LengthFieldInboundFrame());
+        in.writeInbound(bytes);
+
+        assert ((Node.NEW_MESSAGE + " " + message.longToString()).equals(in.readInbound()));
+    }
+
+    @Test
+    void lengthFieldCorrupt() {
+        EmbeddedChannel in = new EmbeddedChannel(new LengthFieldInboundFrame(16));
+        in.writeInbound(Unpooled.buffer().writeInt(17).writeBytes(new byte[17]));
+
+        assert (in.readInbound() == null);
+        assert (!in.isOpen());
+    }
+
+    @Test
+    void switchInbound() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(Cluster.NULL_FRAME_INBOUND, new NullTerminatedInboundFrame());
+
+        ByteBuf byteBuf = toBuf("BEFORE\u0000" + Framing.SWITCH + "\u0000");
+        byte[] after = "AFTER".getBytes(StandardCharsets.UTF_8);
+        byteBuf.writeInt(after.length);
+        byteBuf.writeBytes(after);
+        channel.writeInbound(byteBuf);
+
+        assert ("BEFORE".equals(channel.readInbound()));
+        assert ("AFTER".equals(channel.readInbound()));
+        assert (channel.pipeline().get(NullTerminatedInboundFrame.class) == null);
+        assert (channel.pipeline().get(Cluster.LENGTH_FRAME_INBOUND) instanceof LengthFieldInboundFrame);
+    }
+
+    @Test
+    void switchOutbound() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(Cluster.NULL_FRAME_OUTBOUND, new NullTerminatedOutboundFrame());
+
+        Framing.switchOutbound(channel);
+        Framing.switchOutbound(channel);
+        channel.writeOutbound("AFTER");
+
+        ByteBuf bytes = drain(channel);
+        String expected = Framing.SWITCH + "\u0000";
+        assert (expected.equals(bytes.readCharSequence(expected.length(), StandardCharsets.UTF_8).toString()));
+        assert (bytes.readInt() == 5);
+        assert ("AFTER".equals(bytes.readCharSequence(5, StandardCharsets.UTF_8).toString()));
+        assert (!bytes.isReadable());
+        assert (channel.pipeline().get(Cluster.LENGTH_FRAME_OUTBOUND) instanceof LengthFieldOutboundFrame);
+    }
+}